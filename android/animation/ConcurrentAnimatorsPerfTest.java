@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.animation;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.util.FloatProperty;
+import android.util.IntProperty;
+import android.view.Choreographer;
+import android.view.animation.LinearInterpolator;
+
+import androidx.test.annotation.UiThreadTest;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Measures the per-frame cost of many animators running at once, as happens when every item
+ * of a list animates. Frames are driven manually through a custom
+ * {@link AnimationHandler.AnimationFrameCallbackProvider} so only animation work is measured.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ConcurrentAnimatorsPerfTest {
+    private static final int ANIMATOR_COUNT = 1000;
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final ManualFrameProvider mProvider = new ManualFrameProvider();
+    private final ArrayList<Animator> mAnimators = new ArrayList<>();
+
+    private static class Target {
+        float mAlpha;
+        float mTranslation;
+        int mColor;
+    }
+
+    private static final FloatProperty<Target> ALPHA = new FloatProperty<Target>("alpha") {
+        @Override
+        public void setValue(Target target, float value) {
+            target.mAlpha = value;
+        }
+
+        @Override
+        public Float get(Target target) {
+            return target.mAlpha;
+        }
+    };
+
+    private static final FloatProperty<Target> TRANSLATION =
+            new FloatProperty<Target>("translation") {
+        @Override
+        public void setValue(Target target, float value) {
+            target.mTranslation = value;
+        }
+
+        @Override
+        public Float get(Target target) {
+            return target.mTranslation;
+        }
+    };
+
+    private static final IntProperty<Target> COLOR = new IntProperty<Target>("color") {
+        @Override
+        public void setValue(Target target, int value) {
+            target.mColor = value;
+        }
+
+        @Override
+        public Integer get(Target target) {
+            return target.mColor;
+        }
+    };
+
+    private static class ManualFrameProvider
+            implements AnimationHandler.AnimationFrameCallbackProvider {
+        Choreographer.FrameCallback mCallback;
+        long mFrameTime;
+
+        @Override
+        public void postFrameCallback(Choreographer.FrameCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void postCommitCallback(Runnable runnable) {
+            runnable.run();
+        }
+
+        @Override
+        public long getFrameTime() {
+            return mFrameTime;
+        }
+
+        @Override
+        public long getFrameDelay() {
+            return FRAME_INTERVAL_MS;
+        }
+
+        @Override
+        public void setFrameDelay(long delay) {
+        }
+
+        void doFrame() {
+            mFrameTime += FRAME_INTERVAL_MS;
+            final Choreographer.FrameCallback callback = mCallback;
+            mCallback = null;
+            if (callback != null) {
+                callback.doFrame(mFrameTime * 1000000);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        AnimationHandler.getInstance().setProvider(mProvider);
+    }
+
+    @After
+    public void tearDown() {
+        for (int i = 0; i < mAnimators.size(); i++) {
+            mAnimators.get(i).cancel();
+        }
+        mAnimators.clear();
+        AnimationHandler.getInstance().setProvider(null);
+    }
+
+    private void startAnimators(boolean multiKeyframe) {
+        for (int i = 0; i < ANIMATOR_COUNT; i++) {
+            final Target target = new Target();
+            final ObjectAnimator animator;
+            if (multiKeyframe) {
+                animator = ObjectAnimator.ofPropertyValuesHolder(target,
+                        PropertyValuesHolder.ofFloat(ALPHA, 0f, 1f, 0.5f, 1f),
+                        PropertyValuesHolder.ofFloat(TRANSLATION, 0f, 100f, 50f, 200f),
+                        PropertyValuesHolder.ofInt(COLOR, 0, 0xff, 0x80, 0xff));
+            } else {
+                animator = ObjectAnimator.ofPropertyValuesHolder(target,
+                        PropertyValuesHolder.ofFloat(ALPHA, 0f, 1f),
+                        PropertyValuesHolder.ofFloat(TRANSLATION, 0f, 100f),
+                        PropertyValuesHolder.ofInt(COLOR, 0, 0xff));
+            }
+            animator.setInterpolator(new LinearInterpolator());
+            animator.setDuration(300);
+            animator.setRepeatCount(ValueAnimator.INFINITE);
+            animator.start();
+            mAnimators.add(animator);
+        }
+    }
+
+    @Test
+    @UiThreadTest
+    public void testFrame_twoKeyframes() {
+        startAnimators(false);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mProvider.doFrame();
+        }
+    }
+
+    @Test
+    @UiThreadTest
+    public void testFrame_fourKeyframes() {
+        startAnimators(true);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mProvider.doFrame();
+        }
+    }
+
+    @Test
+    @UiThreadTest
+    public void testKeyframeEvaluation_fourKeyframes() {
+        final Keyframes.FloatKeyframes keyframes =
+                (Keyframes.FloatKeyframes) KeyframeSet.ofFloat(0f, 1f, 0.5f, 1f);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < ANIMATOR_COUNT; i++) {
+                keyframes.getFloatValue(i / (float) ANIMATOR_COUNT);
+            }
+        }
+    }
+}
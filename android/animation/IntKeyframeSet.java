@@ -31,8 +31,43 @@ import java.util.List;
  * Object equivalents of these primitive types.</p>
  */
 class IntKeyframeSet extends KeyframeSet implements Keyframes.IntKeyframes {
+    // Primitive copies of the keyframes used by getIntValue() when no evaluator is set, so a
+    // frame reads a few array slots instead of going through the keyframe list and objects.
+    // Rebuilt by prepare() whenever a keyframe changed since the last copy.
+    private float[] mFractions;
+    private int[] mValues;
+    private TimeInterpolator[] mInterpolators;
+    private boolean mSorted;
+    // getKeyframesVersion() when the arrays were last copied from the keyframes.
+    private int mPreparedVersion;
+    // Index of the keyframe ending the interval used by the last in-range lookup.
+    private int mLastInterval = 1;
+
     public IntKeyframeSet(IntKeyframe... keyframes) {
         super(keyframes);
+        prepare();
+    }
+
+    private void prepare() {
+        mPreparedVersion = getKeyframesVersion();
+        final int numKeyframes = mNumKeyframes;
+        if (mFractions == null || mFractions.length != numKeyframes) {
+            mFractions = new float[numKeyframes];
+            mValues = new int[numKeyframes];
+            mInterpolators = new TimeInterpolator[numKeyframes];
+        }
+        boolean sorted = true;
+        for (int i = 0; i < numKeyframes; ++i) {
+            final IntKeyframe keyframe = (IntKeyframe) mKeyframes.get(i);
+            mFractions[i] = keyframe.getFraction();
+            mValues[i] = keyframe.getIntValue();
+            mInterpolators[i] = keyframe.getInterpolator();
+            if (i > 0 && !(mFractions[i] >= mFractions[i - 1])) {
+                sorted = false;
+            }
+        }
+        mSorted = sorted;
+        mLastInterval = 1;
     }
 
     @Override
@@ -54,6 +89,9 @@ class IntKeyframeSet extends KeyframeSet implements Keyframes.IntKeyframes {
 
     @Override
     public int getIntValue(float fraction) {
+        if (mEvaluator == null) {
+            return getIntValueFromArrays(fraction);
+        }
         if (fraction <= 0f) {
             final IntKeyframe prevKeyframe = (IntKeyframe) mKeyframes.get(0);
             final IntKeyframe nextKeyframe = (IntKeyframe) mKeyframes.get(1);
@@ -110,6 +148,63 @@ class IntKeyframeSet extends KeyframeSet implements Keyframes.IntKeyframes {
         return ((Number)mKeyframes.get(mNumKeyframes - 1).getValue()).intValue();
     }
 
+    /**
+     * Same as {@link #getIntValue(float)} without an evaluator, reading the primitive copies
+     * of the keyframes made by {@link #prepare()}.
+     */
+    private int getIntValueFromArrays(float fraction) {
+        if (mPreparedVersion != getKeyframesVersion()) {
+            prepare();
+        }
+        final float[] fractions = mFractions;
+        final int[] values = mValues;
+        final int numKeyframes = mNumKeyframes;
+        final int prevIndex;
+        final int nextIndex;
+        if (fraction <= 0f) {
+            prevIndex = 0;
+            nextIndex = 1;
+        } else if (fraction >= 1f) {
+            prevIndex = numKeyframes - 2;
+            nextIndex = numKeyframes - 1;
+        } else {
+            int i = mLastInterval;
+            // The cached interval is only reusable when the keyframes are in order; otherwise
+            // the first matching keyframe has to be found by scanning from the start.
+            if (!mSorted || !(fraction < fractions[i] && fraction >= fractions[i - 1])) {
+                for (i = 1; i < numKeyframes; ++i) {
+                    if (fraction < fractions[i]) {
+                        break;
+                    }
+                }
+                if (i == numKeyframes) {
+                    // shouldn't get here
+                    return values[numKeyframes - 1];
+                }
+                mLastInterval = i;
+            }
+            final int prev = values[i - 1];
+            final int next = values[i];
+            float intervalFraction = (fraction - fractions[i - 1])
+                    / (fractions[i] - fractions[i - 1]);
+            // Apply interpolator on the proportional duration.
+            final TimeInterpolator interpolator = mInterpolators[i];
+            if (interpolator != null) {
+                intervalFraction = interpolator.getInterpolation(intervalFraction);
+            }
+            return prev + (int)(intervalFraction * (next - prev));
+        }
+        final TimeInterpolator interpolator = mInterpolators[nextIndex];
+        if (interpolator != null) {
+            fraction = interpolator.getInterpolation(fraction);
+        }
+        final int prev = values[prevIndex];
+        final int next = values[nextIndex];
+        final float intervalFraction = (fraction - fractions[prevIndex])
+                / (fractions[nextIndex] - fractions[prevIndex]);
+        return prev + (int)(intervalFraction * (next - prev));
+    }
+
     @Override
     public Class getType() {
         return Integer.class;
@@ -65,6 +65,12 @@ public abstract class Keyframe implements Cloneable {
      */
     private TimeInterpolator mInterpolator = null;
 
+    /**
+     * Bumped whenever the fraction, value or interpolator of this keyframe changes, so that
+     * keyframe sets holding primitive copies of their keyframes know to refresh them.
+     */
+    int mVersion;
+
 
 
     /**
@@ -220,6 +226,7 @@ public abstract class Keyframe implements Cloneable {
      */
     public void setFraction(float fraction) {
         mFraction = fraction;
+        mVersion++;
     }
 
     /**
@@ -240,6 +247,7 @@ public abstract class Keyframe implements Cloneable {
      */
     public void setInterpolator(TimeInterpolator interpolator) {
         mInterpolator = interpolator;
+        mVersion++;
     }
 
     /**
@@ -280,6 +288,7 @@ public abstract class Keyframe implements Cloneable {
         public void setValue(Object value) {
             mValue = value;
             mHasValue = (value != null);
+            mVersion++;
         }
 
         @Override
@@ -325,6 +334,7 @@ public abstract class Keyframe implements Cloneable {
             if (value != null && value.getClass() == Integer.class) {
                 mValue = ((Integer)value).intValue();
                 mHasValue = true;
+                mVersion++;
             }
         }
 
@@ -372,6 +382,7 @@ public abstract class Keyframe implements Cloneable {
             if (value != null && value.getClass() == Float.class) {
                 mValue = ((Float)value).floatValue();
                 mHasValue = true;
+                mVersion++;
             }
         }
 
@@ -55,6 +55,18 @@ public class KeyframeSet implements Keyframes {
         return mKeyframes;
     }
 
+    /**
+     * Returns a value that changes whenever any keyframe of this set is modified. Versions only
+     * grow, so their sum moves whenever one of them does.
+     */
+    int getKeyframesVersion() {
+        int version = 0;
+        for (int i = 0; i < mNumKeyframes; ++i) {
+            version += mKeyframes.get(i).mVersion;
+        }
+        return version;
+    }
+
     public static KeyframeSet ofInt(int... values) {
         int numKeyframes = values.length;
         IntKeyframe keyframes[] = new IntKeyframe[Math.max(numKeyframes,2)];
@@ -27,6 +27,7 @@ import android.os.Parcelable;
 import android.os.Process;
 import android.os.SystemClock;
 import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
@@ -215,6 +216,9 @@ public final class NetworkStats implements Parcelable {
     // Used for correct stats accounting on clatd interfaces.
     private static final int IPV4V6_HEADER_DELTA = 20;
 
+    /** Row count from which bulk operations index rows instead of scanning for them. */
+    private static final int INDEX_THRESHOLD = 16;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -743,9 +747,29 @@ public final class NetworkStats implements Parcelable {
      */
     public void combineAllValues(@NonNull NetworkStats another) {
         NetworkStats.Entry entry = null;
+        if (another.size < INDEX_THRESHOLD) {
+            for (int i = 0; i < another.size; i++) {
+                entry = another.getValues(i, entry);
+                combineValues(entry);
+            }
+            return;
+        }
+
+        final RowIndex index = new RowIndex(this);
         for (int i = 0; i < another.size; i++) {
             entry = another.getValues(i, entry);
-            combineValues(entry);
+            final int j = index.find(entry.iface, entry.uid, entry.set, entry.tag,
+                    entry.metered, entry.roaming, entry.defaultNetwork);
+            if (j == -1) {
+                insertEntry(entry);
+                index.add(size - 1);
+            } else {
+                rxBytes[j] += entry.rxBytes;
+                rxPackets[j] += entry.rxPackets;
+                txBytes[j] += entry.txBytes;
+                txPackets[j] += entry.txPackets;
+                operations[j] += entry.operations;
+            }
         }
     }
 
@@ -756,16 +780,21 @@ public final class NetworkStats implements Parcelable {
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork) {
         for (int i = 0; i < size; i++) {
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && metered == this.metered[i] && roaming == this.roaming[i]
-                    && defaultNetwork == this.defaultNetwork[i]
-                    && Objects.equals(iface, this.iface[i])) {
+            if (matches(i, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
                 return i;
             }
         }
         return -1;
     }
 
+    private boolean matches(int i, String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && defaultNetwork == this.defaultNetwork[i]
+                && Objects.equals(iface, this.iface[i]);
+    }
+
     /**
      * Find first stats index that matches the requested parameters, starting
      * search around the hinted index as an optimization.
@@ -785,16 +814,104 @@ public final class NetworkStats implements Parcelable {
                 i = (size + hintIndex - halfOffset - 1) % size;
             }
 
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && metered == this.metered[i] && roaming == this.roaming[i]
-                    && defaultNetwork == this.defaultNetwork[i]
-                    && Objects.equals(iface, this.iface[i])) {
+            if (matches(i, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
                 return i;
             }
         }
         return -1;
     }
 
+    /**
+     * Open-addressing index from a row's key to the first row with that key,
+     * so that bulk operations can find rows without a {@link #findIndex} scan
+     * per row. It is only kept up to date by rows added through {@link #add},
+     * so it must not outlive the operation that built it.
+     */
+    private static final class RowIndex {
+        private final NetworkStats stats;
+        /** Row index plus one; 0 marks an empty slot. */
+        private int[] table;
+        private int shift;
+        private int count;
+        /** Whether some rows share a key with an earlier row. */
+        boolean hasDuplicates;
+
+        RowIndex(NetworkStats stats) {
+            this.stats = stats;
+            int capacity = 16;
+            while (capacity < stats.size * 2) {
+                capacity <<= 1;
+            }
+            table = new int[capacity];
+            shift = Integer.numberOfLeadingZeros(capacity) + 1;
+            for (int i = 0; i < stats.size; i++) {
+                add(i);
+            }
+        }
+
+        private int slotFor(String iface, int uid, int set, int tag, int metered,
+                int roaming, int defaultNetwork) {
+            int h = uid;
+            h = 31 * h + set;
+            h = 31 * h + tag;
+            h = 31 * h + metered;
+            h = 31 * h + roaming;
+            h = 31 * h + defaultNetwork;
+            h = 31 * h + Objects.hashCode(iface);
+            return (h * 0x9e3779b9) >>> shift;
+        }
+
+        int find(String iface, int uid, int set, int tag, int metered, int roaming,
+                int defaultNetwork) {
+            final int mask = table.length - 1;
+            for (int slot = slotFor(iface, uid, set, tag, metered, roaming, defaultNetwork);
+                    table[slot] != 0; slot = (slot + 1) & mask) {
+                final int row = table[slot] - 1;
+                if (stats.matches(row, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
+                    return row;
+                }
+            }
+            return -1;
+        }
+
+        /** Indexes the given row, unless an earlier row has the same key. */
+        void add(int row) {
+            if ((count + 1) * 2 > table.length) {
+                grow();
+            }
+            insert(row);
+        }
+
+        private void insert(int row) {
+            final NetworkStats s = stats;
+            final int mask = table.length - 1;
+            int slot = slotFor(s.iface[row], s.uid[row], s.set[row], s.tag[row], s.metered[row],
+                    s.roaming[row], s.defaultNetwork[row]);
+            for (; table[slot] != 0; slot = (slot + 1) & mask) {
+                final int other = table[slot] - 1;
+                if (s.matches(other, s.iface[row], s.uid[row], s.set[row], s.tag[row],
+                        s.metered[row], s.roaming[row], s.defaultNetwork[row])) {
+                    hasDuplicates = true;
+                    return;
+                }
+            }
+            table[slot] = row + 1;
+            count++;
+        }
+
+        private void grow() {
+            final int[] old = table;
+            table = new int[old.length * 2];
+            shift--;
+            count = 0;
+            for (int entry : old) {
+                if (entry != 0) {
+                    insert(entry - 1);
+                }
+            }
+        }
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -1004,6 +1121,7 @@ public final class NetworkStats implements Parcelable {
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
         }
+        RowIndex rightIndex = null;
         for (int i = 0; i < left.size; i++) {
             entry.iface = left.iface[i];
             entry.uid = left.uid[i];
@@ -1018,9 +1136,26 @@ public final class NetworkStats implements Parcelable {
             entry.txPackets = left.txPackets[i];
             entry.operations = left.operations[i];
 
-            // find remote row that matches, and subtract
-            final int j = right.findIndexHinted(entry.iface, entry.uid, entry.set, entry.tag,
-                    entry.metered, entry.roaming, entry.defaultNetwork, i);
+            // find remote row that matches, and subtract. Rows usually line up
+            // between snapshots, so check the same position first; only index the
+            // remote rows once they stop lining up.
+            final int j;
+            if (i < right.size && right.matches(i, entry.iface, entry.uid, entry.set,
+                    entry.tag, entry.metered, entry.roaming, entry.defaultNetwork)) {
+                j = i;
+            } else {
+                if (rightIndex == null && right.size >= INDEX_THRESHOLD) {
+                    rightIndex = new RowIndex(right);
+                }
+                if (rightIndex != null && !rightIndex.hasDuplicates) {
+                    j = rightIndex.find(entry.iface, entry.uid, entry.set, entry.tag,
+                            entry.metered, entry.roaming, entry.defaultNetwork);
+                } else {
+                    // With duplicate keys, the nearest match to the hint is the one to use
+                    j = right.findIndexHinted(entry.iface, entry.uid, entry.set, entry.tag,
+                            entry.metered, entry.roaming, entry.defaultNetwork, i);
+                }
+            }
             if (j != -1) {
                 // Found matching row, subtract remote value.
                 entry.rxBytes -= right.rxBytes[j];
@@ -1159,17 +1294,29 @@ public final class NetworkStats implements Parcelable {
         entry.roaming = ROAMING_ALL;
         entry.defaultNetwork = DEFAULT_NETWORK_ALL;
 
+        // Every row has the same key apart from its uid
+        final SparseIntArray rowForUid = new SparseIntArray();
         for (int i = 0; i < size; i++) {
             // skip specific tags, since already counted in TAG_NONE
             if (tag[i] != TAG_NONE) continue;
 
-            entry.uid = uid[i];
-            entry.rxBytes = rxBytes[i];
-            entry.rxPackets = rxPackets[i];
-            entry.txBytes = txBytes[i];
-            entry.txPackets = txPackets[i];
-            entry.operations = operations[i];
-            stats.combineValues(entry);
+            final int row = rowForUid.get(uid[i], -1);
+            if (row == -1) {
+                entry.uid = uid[i];
+                entry.rxBytes = rxBytes[i];
+                entry.rxPackets = rxPackets[i];
+                entry.txBytes = txBytes[i];
+                entry.txPackets = txPackets[i];
+                entry.operations = operations[i];
+                rowForUid.put(uid[i], stats.size);
+                stats.insertEntry(entry);
+            } else {
+                stats.rxBytes[row] += rxBytes[i];
+                stats.rxPackets[row] += rxPackets[i];
+                stats.txBytes[row] += txBytes[i];
+                stats.txPackets[row] += txPackets[i];
+                stats.operations[row] += operations[i];
+            }
         }
 
         return stats;
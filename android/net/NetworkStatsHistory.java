@@ -21,7 +21,9 @@ import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readFullLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLong;
 import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLongArray;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLong;
 import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLongArray;
 import static android.net.NetworkStatsHistory.Entry.UNKNOWN;
 import static android.net.NetworkStatsHistory.ParcelUtils.readLongArray;
@@ -30,6 +32,8 @@ import static android.text.format.DateUtils.SECOND_IN_MILLIS;
 
 import static com.android.internal.net.NetworkUtilsInternal.multiplySafeByRational;
 import static com.android.internal.util.ArrayUtils.total;
+import static com.android.internal.util.VarIntUtils.decodeZigZag;
+import static com.android.internal.util.VarIntUtils.encodeZigZag;
 
 import android.compat.annotation.UnsupportedAppUsage;
 import android.os.Build;
@@ -41,6 +45,7 @@ import android.util.MathUtils;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.util.IndentingPrintWriter;
+import com.android.internal.util.VarIntUtils;
 
 import libcore.util.EmptyArray;
 
@@ -68,6 +73,7 @@ public class NetworkStatsHistory implements Parcelable {
     private static final int VERSION_INIT = 1;
     private static final int VERSION_ADD_PACKETS = 2;
     private static final int VERSION_ADD_ACTIVE = 3;
+    private static final int VERSION_DELTA_ENCODED = 4;
 
     public static final int FIELD_ACTIVE_TIME = 0x01;
     public static final int FIELD_RX_BYTES = 0x02;
@@ -192,6 +198,32 @@ public class NetworkStatsHistory implements Parcelable {
                 totalBytes = total(rxBytes) + total(txBytes);
                 break;
             }
+            case VERSION_DELTA_ENCODED: {
+                bucketDuration = readVarLong(in);
+                final long count = readVarLong(in);
+                if (count < 0 || count > Integer.MAX_VALUE) {
+                    throw new ProtocolException("invalid bucket count: " + count);
+                }
+                bucketCount = (int) count;
+                final int fields = in.readUnsignedByte();
+                bucketStart = new long[bucketCount];
+                if (bucketCount > 0) {
+                    bucketStart[0] = readVarLong(in);
+                    for (int i = 1; i < bucketCount; i++) {
+                        bucketStart[i] = bucketStart[i - 1] + bucketDuration
+                                + decodeZigZag(readVarLong(in));
+                    }
+                }
+                activeTime = (fields & FIELD_ACTIVE_TIME) != 0
+                        ? readVarLongColumn(in, bucketCount) : null;
+                rxBytes = readVarLongColumn(in, bucketCount, fields, FIELD_RX_BYTES);
+                rxPackets = readVarLongColumn(in, bucketCount, fields, FIELD_RX_PACKETS);
+                txBytes = readVarLongColumn(in, bucketCount, fields, FIELD_TX_BYTES);
+                txPackets = readVarLongColumn(in, bucketCount, fields, FIELD_TX_PACKETS);
+                operations = readVarLongColumn(in, bucketCount, fields, FIELD_OPERATIONS);
+                totalBytes = total(rxBytes) + total(txBytes);
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
@@ -216,6 +248,61 @@ public class NetworkStatsHistory implements Parcelable {
         writeVarLongArray(out, operations, bucketCount);
     }
 
+    /**
+     * Writes this history in a more compact form than {@link #writeToStream}.
+     * The bucket count is written once for all columns, and each bucket start
+     * is written as its distance from the end of the previous bucket, which is
+     * zero for contiguous buckets. Read back with
+     * {@link #NetworkStatsHistory(DataInput)}.
+     */
+    public void writeToStreamDeltaEncoded(DataOutput out) throws IOException {
+        out.writeInt(VERSION_DELTA_ENCODED);
+        writeVarLong(out, bucketDuration);
+        writeVarLong(out, bucketCount);
+        int fields = 0;
+        if (activeTime != null) fields |= FIELD_ACTIVE_TIME;
+        if (rxBytes != null) fields |= FIELD_RX_BYTES;
+        if (rxPackets != null) fields |= FIELD_RX_PACKETS;
+        if (txBytes != null) fields |= FIELD_TX_BYTES;
+        if (txPackets != null) fields |= FIELD_TX_PACKETS;
+        if (operations != null) fields |= FIELD_OPERATIONS;
+        out.writeByte(fields);
+        if (bucketCount > 0) {
+            writeVarLong(out, bucketStart[0]);
+            for (int i = 1; i < bucketCount; i++) {
+                writeVarLong(out,
+                        encodeZigZag(bucketStart[i] - bucketStart[i - 1] - bucketDuration));
+            }
+        }
+        writeVarLongColumn(out, activeTime, bucketCount);
+        writeVarLongColumn(out, rxBytes, bucketCount);
+        writeVarLongColumn(out, rxPackets, bucketCount);
+        writeVarLongColumn(out, txBytes, bucketCount);
+        writeVarLongColumn(out, txPackets, bucketCount);
+        writeVarLongColumn(out, operations, bucketCount);
+    }
+
+    private static long[] readVarLongColumn(DataInput in, int size) throws IOException {
+        final long[] values = new long[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = readVarLong(in);
+        }
+        return values;
+    }
+
+    private static long[] readVarLongColumn(DataInput in, int size, int fields, int field)
+            throws IOException {
+        return (fields & field) != 0 ? readVarLongColumn(in, size) : new long[size];
+    }
+
+    private static void writeVarLongColumn(DataOutput out, long[] values, int size)
+            throws IOException {
+        if (values == null) return;
+        for (int i = 0; i < size; i++) {
+            writeVarLong(out, values[i]);
+        }
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -782,31 +869,14 @@ public class NetworkStatsHistory implements Parcelable {
          * Read variable-length {@link Long} using protobuf-style approach.
          */
         public static long readVarLong(DataInput in) throws IOException {
-            int shift = 0;
-            long result = 0;
-            while (shift < 64) {
-                byte b = in.readByte();
-                result |= (long) (b & 0x7F) << shift;
-                if ((b & 0x80) == 0)
-                    return result;
-                shift += 7;
-            }
-            throw new ProtocolException("malformed long");
+            return VarIntUtils.readVarLong(in);
         }
 
         /**
          * Write variable-length {@link Long} using protobuf-style approach.
          */
         public static void writeVarLong(DataOutput out, long value) throws IOException {
-            while (true) {
-                if ((value & ~0x7FL) == 0) {
-                    out.writeByte((int) value);
-                    return;
-                } else {
-                    out.writeByte(((int) value & 0x7F) | 0x80);
-                    value >>>= 7;
-                }
-            }
+            VarIntUtils.writeVarLong(out, value);
         }
 
         public static long[] readVarLongArray(DataInput in) throws IOException {
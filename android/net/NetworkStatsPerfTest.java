@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import static android.net.NetworkStats.DEFAULT_NETWORK_NO;
+import static android.net.NetworkStats.METERED_NO;
+import static android.net.NetworkStats.ROAMING_NO;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Measures aggregating and subtracting large per-uid {@link NetworkStats} snapshots.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class NetworkStatsPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static final int UID_COUNT = 2500;
+    private static final int TAG_COUNT = 5;
+    private static final String[] IFACES = { "wlan0", "rmnet0" };
+    /** UID_COUNT * TAG_COUNT * IFACES.length * 2 sets = 50k rows. */
+    private static final int ROW_COUNT = UID_COUNT * TAG_COUNT * IFACES.length * 2;
+
+    private NetworkStats mBefore;
+    private NetworkStats mAfter;
+    private NetworkStats mShuffled;
+
+    @Before
+    public void setUp() {
+        mBefore = buildSnapshot(1);
+        mAfter = buildSnapshot(2);
+
+        // Same rows as mAfter in a different order, as happens when sockets come and go
+        // between two polls
+        final Random random = new Random(0);
+        final NetworkStats.Entry[] entries = new NetworkStats.Entry[mAfter.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = mAfter.getValues(i, null);
+        }
+        for (int i = entries.length - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final NetworkStats.Entry tmp = entries[i];
+            entries[i] = entries[j];
+            entries[j] = tmp;
+        }
+        mShuffled = new NetworkStats(mAfter.getElapsedRealtime(), entries.length);
+        for (NetworkStats.Entry entry : entries) {
+            mShuffled.insertEntry(entry);
+        }
+    }
+
+    private static NetworkStats buildSnapshot(long scale) {
+        final NetworkStats stats = new NetworkStats(scale * 1000, ROW_COUNT);
+        for (int uid = 10000; uid < 10000 + UID_COUNT; uid++) {
+            for (int tag = 0; tag < TAG_COUNT; tag++) {
+                for (String iface : IFACES) {
+                    stats.insertEntry(iface, uid, SET_DEFAULT, tag, METERED_NO, ROAMING_NO,
+                            DEFAULT_NETWORK_NO, 1024 * scale, 8 * scale, 512 * scale, 4 * scale,
+                            0);
+                    stats.insertEntry(iface, uid, SET_FOREGROUND, tag, METERED_NO, ROAMING_NO,
+                            DEFAULT_NETWORK_NO, 2048 * scale, 16 * scale, 256 * scale,
+                            2 * scale, 0);
+                }
+            }
+        }
+        return stats;
+    }
+
+    @Test
+    public void testCombineAllValues() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final NetworkStats stats = new NetworkStats(0, ROW_COUNT);
+            stats.combineAllValues(mBefore);
+            stats.combineAllValues(mShuffled);
+        }
+    }
+
+    @Test
+    public void testSubtract_sameOrder() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAfter.subtract(mBefore);
+        }
+    }
+
+    @Test
+    public void testSubtract_shuffled() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mShuffled.subtract(mBefore);
+        }
+    }
+
+    @Test
+    public void testGroupedByUid() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAfter.groupedByUid();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.GrowingArrayUtils;
+
+import java.util.Arrays;
+
+/**
+ * Array backed binary min-heap of delayed messages used by {@link MessageQueue}.
+ *
+ * <p>Messages are ordered by {@link Message#when} and, for equal times, by the order in which
+ * they were added, so delivery order is the same as with the sorted message list. Adding and
+ * polling are O(log n) and do not allocate once the backing arrays have grown to the working
+ * set size. Removal by handler, what or callback has to look at every message, as with the
+ * list, and restores the heap in a single O(n) pass.
+ *
+ * <p>This class is not thread-safe; all access is guarded by the owning {@link MessageQueue}.
+ *
+ * @hide
+ */
+final class DelayedMessageHeap {
+    /** Match messages by handler, what and object identity. */
+    static final int MATCH_WHAT = 0;
+    /** Match messages by handler, what and {@link Object#equals} on the object. */
+    static final int MATCH_WHAT_EQUAL = 1;
+    /** Match messages by handler, callback and object identity. */
+    static final int MATCH_CALLBACK = 2;
+    /** Match messages by handler, callback and {@link Object#equals} on the object. */
+    static final int MATCH_CALLBACK_EQUAL = 3;
+    /** Match messages by handler and object identity. */
+    static final int MATCH_HANDLER = 4;
+    /** Match messages by handler and {@link Object#equals} on the object. */
+    static final int MATCH_HANDLER_EQUAL = 5;
+
+    private Message[] mMessages;
+    private long[] mSequences;
+    private int mSize;
+    private long mNextSequence;
+
+    DelayedMessageHeap() {
+        mMessages = ArrayUtils.newUnpaddedArray(Message.class, 16);
+        mSequences = ArrayUtils.newUnpaddedLongArray(mMessages.length);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Returns the message at the given heap slot; the slots are not in delivery order. */
+    Message get(int index) {
+        return mMessages[index];
+    }
+
+    /** Returns the earliest message without removing it, or null if the heap is empty. */
+    Message peek() {
+        return mSize != 0 ? mMessages[0] : null;
+    }
+
+    void add(Message msg) {
+        final int index = mSize;
+        if (index == mMessages.length) {
+            mMessages = GrowingArrayUtils.append(mMessages, index, msg);
+            mSequences = GrowingArrayUtils.append(mSequences, index, 0);
+        }
+        mSize = index + 1;
+        siftUp(index, msg, mNextSequence++);
+    }
+
+    /** Removes and returns the earliest message, or null if the heap is empty. */
+    Message poll() {
+        if (mSize == 0) {
+            return null;
+        }
+        final Message result = mMessages[0];
+        final int last = --mSize;
+        final Message moved = mMessages[last];
+        final long movedSequence = mSequences[last];
+        mMessages[last] = null;
+        if (last != 0) {
+            siftDown(0, moved, movedSequence);
+        }
+        return result;
+    }
+
+    boolean contains(int match, Handler h, int what, Runnable r, Object object) {
+        for (int i = 0; i < mSize; i++) {
+            if (matches(mMessages[i], match, h, what, r, object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Removes and recycles every message matching the given criteria. */
+    void removeMatching(int match, Handler h, int what, Runnable r, Object object) {
+        int kept = 0;
+        for (int i = 0; i < mSize; i++) {
+            final Message msg = mMessages[i];
+            if (matches(msg, match, h, what, r, object)) {
+                msg.recycleUnchecked();
+            } else {
+                mMessages[kept] = msg;
+                mSequences[kept] = mSequences[i];
+                kept++;
+            }
+        }
+        if (kept == mSize) {
+            return;
+        }
+        Arrays.fill(mMessages, kept, mSize, null);
+        mSize = kept;
+        heapify();
+    }
+
+    /** Removes and recycles every message. */
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mMessages[i].recycleUnchecked();
+            mMessages[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private static boolean matches(Message msg, int match, Handler h, int what, Runnable r,
+            Object object) {
+        if (msg.target != h) {
+            return false;
+        }
+        switch (match) {
+            case MATCH_WHAT:
+                return msg.what == what && (object == null || msg.obj == object);
+            case MATCH_WHAT_EQUAL:
+                return msg.what == what && (object == null || object.equals(msg.obj));
+            case MATCH_CALLBACK:
+                return msg.callback == r && (object == null || msg.obj == object);
+            case MATCH_CALLBACK_EQUAL:
+                return msg.callback == r && (object == null || object.equals(msg.obj));
+            case MATCH_HANDLER:
+                return object == null || msg.obj == object;
+            case MATCH_HANDLER_EQUAL:
+                return object == null || object.equals(msg.obj);
+            default:
+                throw new IllegalArgumentException("Unknown match type " + match);
+        }
+    }
+
+    private boolean isBefore(Message a, long aSequence, Message b, long bSequence) {
+        return a.when < b.when || (a.when == b.when && aSequence < bSequence);
+    }
+
+    private void siftUp(int index, Message msg, long sequence) {
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            final Message p = mMessages[parent];
+            if (!isBefore(msg, sequence, p, mSequences[parent])) {
+                break;
+            }
+            mMessages[index] = p;
+            mSequences[index] = mSequences[parent];
+            index = parent;
+        }
+        mMessages[index] = msg;
+        mSequences[index] = sequence;
+    }
+
+    private void siftDown(int index, Message msg, long sequence) {
+        final int half = mSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            final int right = child + 1;
+            if (right < mSize && isBefore(mMessages[right], mSequences[right],
+                    mMessages[child], mSequences[child])) {
+                child = right;
+            }
+            if (!isBefore(mMessages[child], mSequences[child], msg, sequence)) {
+                break;
+            }
+            mMessages[index] = mMessages[child];
+            mSequences[index] = mSequences[child];
+            index = child;
+        }
+        mMessages[index] = msg;
+        mSequences[index] = sequence;
+    }
+
+    private void heapify() {
+        for (int i = (mSize >>> 1) - 1; i >= 0; i--) {
+            siftDown(i, mMessages[i], mSequences[i]);
+        }
+    }
+}
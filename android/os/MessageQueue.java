@@ -58,6 +58,11 @@ public final class MessageQueue {
     private IdleHandler[] mPendingIdleHandlers;
     private boolean mQuitting;
 
+    // Messages posted for a future time when the delayed message heap is enabled, otherwise null.
+    // Messages are moved into mMessages once they are due, so mMessages only ever holds
+    // messages that were due when they were enqueued or moved, plus sync barriers.
+    private DelayedMessageHeap mDelayedMessages;
+
     // Indicates whether next() is blocked waiting in pollOnce() with a non-zero timeout.
     private boolean mBlocked;
 
@@ -107,10 +112,96 @@ public final class MessageQueue {
     public boolean isIdle() {
         synchronized (this) {
             final long now = SystemClock.uptimeMillis();
-            return mMessages == null || now < mMessages.when;
+            if (mMessages != null && now >= mMessages.when) {
+                return false;
+            }
+            final Message delayed = mDelayedMessages != null ? mDelayedMessages.peek() : null;
+            return delayed == null || now < delayed.when;
         }
     }
 
+    /**
+     * Sets whether messages posted for a future time are kept in a binary heap instead of
+     * the sorted message list.
+     *
+     * <p>Inserting a delayed message into the list costs O(n) in the number of pending
+     * messages, which adds up for loopers that hold thousands of pending timeouts. With the
+     * heap enabled, delayed messages are inserted in O(log n) and are moved into the list when
+     * they become due. Messages that are due immediately still take the list fast path.
+     * Delivery order, sync barriers and message removal behave exactly as before.
+     *
+     * <p>This method is safe to call from any thread.
+     *
+     * @param enabled True to keep delayed messages in a heap.
+     *
+     * @hide
+     */
+    public void setDelayedMessageHeapEnabled(boolean enabled) {
+        synchronized (this) {
+            if (enabled == (mDelayedMessages != null)) {
+                return;
+            }
+            if (enabled) {
+                mDelayedMessages = new DelayedMessageHeap();
+                moveFutureMessagesToHeapLocked(SystemClock.uptimeMillis());
+            } else {
+                moveDueDelayedMessagesLocked(Long.MAX_VALUE);
+                mDelayedMessages = null;
+            }
+        }
+    }
+
+    private void moveFutureMessagesToHeapLocked(long now) {
+        // Barriers stay in the list, everything after them is moved in list order so that
+        // the heap keeps messages with equal times in the order they were enqueued.
+        Message prev = null;
+        Message p = mMessages;
+        while (p != null) {
+            final Message n = p.next;
+            if (p.target != null && p.when > now) {
+                if (prev != null) {
+                    prev.next = n;
+                } else {
+                    mMessages = n;
+                }
+                p.next = null;
+                mDelayedMessages.add(p);
+            } else {
+                prev = p;
+            }
+            p = n;
+        }
+    }
+
+    private void moveDueDelayedMessagesLocked(long now) {
+        final DelayedMessageHeap heap = mDelayedMessages;
+        Message msg = heap.peek();
+        if (msg == null || msg.when > now) {
+            return;
+        }
+
+        // The heap yields messages in delivery order, so each insertion can resume scanning
+        // from the previously inserted message. A delayed message was always enqueued before
+        // any list message with the same time, so it goes ahead of those.
+        Message prev = null;
+        Message p = mMessages;
+        do {
+            heap.poll();
+            while (p != null && p.when < msg.when) {
+                prev = p;
+                p = p.next;
+            }
+            msg.next = p;
+            if (prev != null) {
+                prev.next = msg;
+            } else {
+                mMessages = msg;
+            }
+            prev = msg;
+            msg = heap.peek();
+        } while (msg != null && msg.when <= now);
+    }
+
     /**
      * Add a new {@link IdleHandler} to this message queue.  This may be
      * removed automatically for you by returning false from
@@ -337,6 +428,9 @@ public final class MessageQueue {
             synchronized (this) {
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
+                if (mDelayedMessages != null) {
+                    moveDueDelayedMessagesLocked(now);
+                }
                 Message prevMsg = null;
                 Message msg = mMessages;
                 if (msg != null && msg.target == null) {
@@ -367,6 +461,18 @@ public final class MessageQueue {
                     // No more messages.
                     nextPollTimeoutMillis = -1;
                 }
+                if (mDelayedMessages != null) {
+                    // Also wake up when the earliest delayed message becomes due.
+                    final Message delayed = mDelayedMessages.peek();
+                    if (delayed != null) {
+                        final int delayedTimeoutMillis =
+                                (int) Math.min(delayed.when - now, Integer.MAX_VALUE);
+                        if (nextPollTimeoutMillis < 0
+                                || delayedTimeoutMillis < nextPollTimeoutMillis) {
+                            nextPollTimeoutMillis = delayedTimeoutMillis;
+                        }
+                    }
+                }
 
                 // Process the quit message now that all pending messages have been handled.
                 if (mQuitting) {
@@ -566,6 +672,10 @@ public final class MessageQueue {
 
             msg.markInUse();
             msg.when = when;
+            if (mDelayedMessages != null && when > SystemClock.uptimeMillis()) {
+                enqueueDelayedMessageLocked(msg);
+                return true;
+            }
             Message p = mMessages;
             boolean needWake;
             if (p == null || when == 0 || when < p.when) {
@@ -601,6 +711,23 @@ public final class MessageQueue {
         return true;
     }
 
+    private void enqueueDelayedMessageLocked(Message msg) {
+        // Only wake the event queue if the message is due before anything it is currently
+        // waiting for, or if it is asynchronous and the queue is stalled by a barrier.
+        final Message delayed = mDelayedMessages.peek();
+        boolean needWake = mBlocked && (delayed == null || msg.when < delayed.when);
+        final Message p = mMessages;
+        if (needWake && p != null && p.when <= msg.when) {
+            needWake = p.target == null && msg.isAsynchronous();
+        }
+        mDelayedMessages.add(msg);
+
+        // We can assume mPtr != 0 because mQuitting is false.
+        if (needWake) {
+            nativeWake(mPtr);
+        }
+    }
+
     boolean hasMessages(Handler h, int what, Object object) {
         if (h == null) {
             return false;
@@ -614,7 +741,8 @@ public final class MessageQueue {
                 }
                 p = p.next;
             }
-            return false;
+            return mDelayedMessages != null && mDelayedMessages.contains(
+                    DelayedMessageHeap.MATCH_WHAT, h, what, null, object);
         }
     }
 
@@ -631,7 +759,8 @@ public final class MessageQueue {
                 }
                 p = p.next;
             }
-            return false;
+            return mDelayedMessages != null && mDelayedMessages.contains(
+                    DelayedMessageHeap.MATCH_WHAT_EQUAL, h, what, null, object);
         }
     }
 
@@ -649,7 +778,8 @@ public final class MessageQueue {
                 }
                 p = p.next;
             }
-            return false;
+            return mDelayedMessages != null && mDelayedMessages.contains(
+                    DelayedMessageHeap.MATCH_CALLBACK, h, 0, r, object);
         }
     }
 
@@ -666,7 +796,8 @@ public final class MessageQueue {
                 }
                 p = p.next;
             }
-            return false;
+            return mDelayedMessages != null && mDelayedMessages.contains(
+                    DelayedMessageHeap.MATCH_HANDLER, h, 0, null, null);
         }
     }
 
@@ -701,6 +832,10 @@ public final class MessageQueue {
                 }
                 p = n;
             }
+
+            if (mDelayedMessages != null) {
+                mDelayedMessages.removeMatching(DelayedMessageHeap.MATCH_WHAT, h, what, null, object);
+            }
         }
     }
 
@@ -735,6 +870,10 @@ public final class MessageQueue {
                 }
                 p = n;
             }
+
+            if (mDelayedMessages != null) {
+                mDelayedMessages.removeMatching(DelayedMessageHeap.MATCH_WHAT_EQUAL, h, what, null, object);
+            }
         }
     }
 
@@ -769,6 +908,10 @@ public final class MessageQueue {
                 }
                 p = n;
             }
+
+            if (mDelayedMessages != null) {
+                mDelayedMessages.removeMatching(DelayedMessageHeap.MATCH_CALLBACK, h, 0, r, object);
+            }
         }
     }
 
@@ -803,6 +946,10 @@ public final class MessageQueue {
                 }
                 p = n;
             }
+
+            if (mDelayedMessages != null) {
+                mDelayedMessages.removeMatching(DelayedMessageHeap.MATCH_CALLBACK_EQUAL, h, 0, r, object);
+            }
         }
     }
 
@@ -837,6 +984,10 @@ public final class MessageQueue {
                 }
                 p = n;
             }
+
+            if (mDelayedMessages != null) {
+                mDelayedMessages.removeMatching(DelayedMessageHeap.MATCH_HANDLER, h, 0, null, object);
+            }
         }
     }
 
@@ -870,6 +1021,10 @@ public final class MessageQueue {
                 }
                 p = n;
             }
+
+            if (mDelayedMessages != null) {
+                mDelayedMessages.removeMatching(DelayedMessageHeap.MATCH_HANDLER_EQUAL, h, 0, null, object);
+            }
         }
     }
 
@@ -881,10 +1036,17 @@ public final class MessageQueue {
             p = n;
         }
         mMessages = null;
+        if (mDelayedMessages != null) {
+            mDelayedMessages.clear();
+        }
     }
 
     private void removeAllFutureMessagesLocked() {
         final long now = SystemClock.uptimeMillis();
+        if (mDelayedMessages != null) {
+            moveDueDelayedMessagesLocked(now);
+            mDelayedMessages.clear();
+        }
         Message p = mMessages;
         if (p != null) {
             if (p.when > now) {
@@ -921,6 +1083,16 @@ public final class MessageQueue {
                 }
                 n++;
             }
+            if (mDelayedMessages != null) {
+                // Heap order, not delivery order.
+                for (int i = 0; i < mDelayedMessages.size(); i++) {
+                    final Message msg = mDelayedMessages.get(i);
+                    if (h == null || h == msg.target) {
+                        pw.println(prefix + "Delayed message " + n + ": " + msg.toString(now));
+                    }
+                    n++;
+                }
+            }
             pw.println(prefix + "(Total messages: " + n + ", polling=" + isPollingLocked()
                     + ", quitting=" + mQuitting + ")");
         }
@@ -932,6 +1104,11 @@ public final class MessageQueue {
             for (Message msg = mMessages; msg != null; msg = msg.next) {
                 msg.dumpDebug(proto, MessageQueueProto.MESSAGES);
             }
+            if (mDelayedMessages != null) {
+                for (int i = 0; i < mDelayedMessages.size(); i++) {
+                    mDelayedMessages.get(i).dumpDebug(proto, MessageQueueProto.MESSAGES);
+                }
+            }
             proto.write(MessageQueueProto.IS_POLLING_LOCKED, isPollingLocked());
             proto.write(MessageQueueProto.IS_QUITTING, mQuitting);
         }
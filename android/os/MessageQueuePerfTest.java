@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+/**
+ * Performance tests for {@link MessageQueue} with many pending delayed messages, comparing the
+ * sorted message list with the delayed message heap.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MessageQueuePerfTest {
+    private static final int PENDING_MESSAGE_COUNT = 10000;
+    private static final int DELAY_COUNT = 1024;
+    // Far enough in the future that nothing is delivered while the test runs.
+    private static final long MIN_DELAY_MILLIS = 60 * 60 * 1000;
+    private static final int WHAT_PROBE = -1;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private final long[] mDelays = new long[DELAY_COUNT];
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("MessageQueuePerfTest");
+        mThread.start();
+        mHandler = mThread.getThreadHandler();
+        final Random random = new Random(42);
+        for (int i = 0; i < DELAY_COUNT; i++) {
+            mDelays[i] = MIN_DELAY_MILLIS + random.nextInt(PENDING_MESSAGE_COUNT);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    private void fillQueue(boolean useHeap) {
+        mThread.getLooper().getQueue().setDelayedMessageHeapEnabled(useHeap);
+        final Random random = new Random(0);
+        for (int i = 0; i < PENDING_MESSAGE_COUNT; i++) {
+            mHandler.sendEmptyMessageDelayed(i,
+                    MIN_DELAY_MILLIS + random.nextInt(PENDING_MESSAGE_COUNT));
+        }
+    }
+
+    private void runEnqueueAndRemove() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mHandler.sendEmptyMessageDelayed(WHAT_PROBE, mDelays[i]);
+            mHandler.removeMessages(WHAT_PROBE);
+            i = (i + 1) % DELAY_COUNT;
+        }
+    }
+
+    private void runEnqueue() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mHandler.sendEmptyMessageDelayed(WHAT_PROBE, mDelays[i]);
+            i++;
+            if (i == DELAY_COUNT) {
+                state.pauseTiming();
+                mHandler.removeMessages(WHAT_PROBE);
+                i = 0;
+                state.resumeTiming();
+            }
+        }
+        mHandler.removeMessages(WHAT_PROBE);
+    }
+
+    @Test
+    public void timeEnqueueDelayed_list() {
+        fillQueue(false);
+        runEnqueue();
+    }
+
+    @Test
+    public void timeEnqueueDelayed_heap() {
+        fillQueue(true);
+        runEnqueue();
+    }
+
+    @Test
+    public void timeEnqueueAndRemoveDelayed_list() {
+        fillQueue(false);
+        runEnqueueAndRemove();
+    }
+
+    @Test
+    public void timeEnqueueAndRemoveDelayed_heap() {
+        fillQueue(true);
+        runEnqueueAndRemove();
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+/**
+ * ChunkedIntVector stores a two-dimensional array of integers with the same
+ * contract as {@link PackedIntVector}, but keeps the rows in fixed-capacity
+ * chunks arranged in an implicit (size-keyed) treap.
+ *
+ * <p>{@link PackedIntVector} keeps a single row gap and a single value gap per
+ * column, so an edit far from the previous one has to shift every row in
+ * between.  For documents with hundreds of thousands of lines that makes an
+ * edit near the top of the text linear in the document size.  Here every
+ * operation touches O(log n) chunks:
+ * <ul>
+ *   <li>{@link #insertAt} and {@link #deleteAt} only shift rows inside one chunk,
+ *       splitting a full chunk in two;</li>
+ *   <li>{@link #adjustValuesBelow} updates the rows of one chunk and records the
+ *       remainder as lazy per-column deltas on the subtrees to the right.</li>
+ * </ul>
+ *
+ * <p>Sequential reads (which is what drawing and line iteration do) are served from
+ * a one-entry chunk cache and do not walk the tree.
+ *
+ * @hide
+ */
+@VisibleForTesting(visibility = VisibleForTesting.Visibility.PACKAGE)
+public class ChunkedIntVector {
+    /**
+     * Maximum number of rows stored in a single chunk.  A full chunk is split in
+     * half, so chunks created by insertion hold between half and all of this.
+     */
+    private static final int CHUNK_ROWS = 64;
+
+    private final int mColumns;
+    private Chunk mRoot;
+
+    // Seed for the treap priorities; the sequence only needs to look random.
+    private int mSeed = 0x2545F491;
+
+    // Cache of the chunk containing the last row that was read.
+    private Chunk mCacheChunk;
+    private int mCacheFirstRow;
+    private final int[] mCacheDeltas;
+
+    private static final class Chunk {
+        final int priority;
+        final int[] values;
+        // Deltas applying to every row of this chunk only.
+        final int[] selfDelta;
+        // Deltas applying to every row in the subtree rooted here, not yet pushed down.
+        final int[] delta;
+        int rows;
+        int subtreeRows;
+        Chunk left;
+        Chunk right;
+
+        Chunk(int columns, int priority) {
+            this.priority = priority;
+            values = new int[CHUNK_ROWS * columns];
+            selfDelta = new int[columns];
+            delta = new int[columns];
+        }
+    }
+
+    /**
+     * Creates a new ChunkedIntVector with the specified width and
+     * a height of 0.
+     *
+     * @param columns the width of the ChunkedIntVector.
+     */
+    public ChunkedIntVector(int columns) {
+        mColumns = columns;
+        mCacheDeltas = new int[columns];
+    }
+
+    /**
+     * Returns the value at the specified row and column.
+     *
+     * @param row the index of the row to return.
+     * @param column the index of the column to return.
+     *
+     * @return the value stored at the specified position.
+     *
+     * @throws IndexOutOfBoundsException if the row is out of range
+     *         (row &lt; 0 || row >= size()) or the column is out of range
+     *         (column &lt; 0 || column >= width()).
+     */
+    public int getValue(int row, int column) {
+        if (((row | column) < 0) || (row >= size()) || (column >= mColumns)) {
+            throw new IndexOutOfBoundsException(row + ", " + column);
+        }
+
+        final Chunk chunk = findChunk(row);
+        return chunk.values[(row - mCacheFirstRow) * mColumns + column]
+                + chunk.selfDelta[column] + mCacheDeltas[column];
+    }
+
+    /**
+     * Sets the value at the specified row and column.
+     *
+     * @param row the index of the row to set.
+     * @param column the index of the column to set.
+     *
+     * @throws IndexOutOfBoundsException if the row is out of range
+     *         (row &lt; 0 || row >= size()) or the column is out of range
+     *         (column &lt; 0 || column >= width()).
+     */
+    public void setValue(int row, int column, int value) {
+        if (((row | column) < 0) || (row >= size()) || (column >= mColumns)) {
+            throw new IndexOutOfBoundsException(row + ", " + column);
+        }
+
+        final Chunk chunk = findChunk(row);
+        chunk.values[(row - mCacheFirstRow) * mColumns + column] =
+                value - chunk.selfDelta[column] - mCacheDeltas[column];
+    }
+
+    /**
+     * Increments all values in the specified column whose row >= the
+     * specified row by the specified delta.
+     *
+     * @param startRow the row at which to begin incrementing.
+     *        This may be == size(), which case there is no effect.
+     * @param column the index of the column to set.
+     *
+     * @throws IndexOutOfBoundsException if the row is out of range
+     *         (startRow &lt; 0 || startRow > size()) or the column
+     *         is out of range (column &lt; 0 || column >= width()).
+     */
+    public void adjustValuesBelow(int startRow, int column, int delta) {
+        if (((startRow | column) < 0) || (startRow > size()) ||
+                (column >= width())) {
+            throw new IndexOutOfBoundsException(startRow + ", " + column);
+        }
+
+        if (delta == 0 || startRow == size()) {
+            return;
+        }
+
+        mCacheChunk = null;
+        Chunk node = mRoot;
+        while (node != null) {
+            final int leftRows = subtreeRows(node.left);
+            if (startRow < leftRows) {
+                // This chunk and everything to its right are affected; so is part of the left.
+                node.selfDelta[column] += delta;
+                if (node.right != null) {
+                    node.right.delta[column] += delta;
+                }
+                node = node.left;
+            } else if (startRow < leftRows + node.rows) {
+                final int[] values = node.values;
+                final int columns = mColumns;
+                for (int i = startRow - leftRows; i < node.rows; i++) {
+                    values[i * columns + column] += delta;
+                }
+                if (node.right != null) {
+                    node.right.delta[column] += delta;
+                }
+                return;
+            } else {
+                startRow -= leftRows + node.rows;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * Inserts a new row of values at the specified row offset.
+     *
+     * @param row the row above which to insert the new row.
+     *        This may be == size(), which case the new row is added
+     *        at the end.
+     * @param values the new values to be added.  If this is null,
+     *        a row of zeroes is added.
+     *
+     * @throws IndexOutOfBoundsException if the row is out of range
+     *         (row &lt; 0 || row > size()) or if the length of the
+     *         values array is too small (values.length < width()).
+     */
+    public void insertAt(int row, int[] values) {
+        if ((row < 0) || (row > size())) {
+            throw new IndexOutOfBoundsException("row " + row);
+        }
+
+        if ((values != null) && (values.length < width())) {
+            throw new IndexOutOfBoundsException("value count " + values.length);
+        }
+
+        mCacheChunk = null;
+        if (mRoot == null) {
+            mRoot = newChunk();
+        }
+        mRoot = insert(mRoot, row, values);
+    }
+
+    /**
+     * Deletes the specified number of rows starting with the specified
+     * row.
+     *
+     * @param row the index of the first row to be deleted.
+     * @param count the number of rows to delete.
+     *
+     * @throws IndexOutOfBoundsException if any of the rows to be deleted
+     *         are out of range (row &lt; 0 || count &lt; 0 ||
+     *         row + count > size()).
+     */
+    public void deleteAt(int row, int count) {
+        if (((row | count) < 0) || (row + count > size())) {
+            throw new IndexOutOfBoundsException(row + ", " + count);
+        }
+
+        mCacheChunk = null;
+        final int[] remaining = { count };
+        while (remaining[0] > 0) {
+            mRoot = delete(mRoot, row, remaining);
+        }
+    }
+
+    /**
+     * Returns the number of rows in the ChunkedIntVector.  This number
+     * will change as rows are inserted and deleted.
+     *
+     * @return the number of rows.
+     */
+    public int size() {
+        return subtreeRows(mRoot);
+    }
+
+    /**
+     * Returns the width of the ChunkedIntVector.  This number is set
+     * at construction and will not change.
+     *
+     * @return the number of columns.
+     */
+    public int width() {
+        return mColumns;
+    }
+
+    /**
+     * Locates the chunk holding the given row, leaving its first row index and the
+     * accumulated subtree deltas above it in the cache fields.
+     */
+    private Chunk findChunk(int row) {
+        final Chunk cached = mCacheChunk;
+        if (cached != null && row >= mCacheFirstRow && row < mCacheFirstRow + cached.rows) {
+            return cached;
+        }
+
+        final int[] deltas = mCacheDeltas;
+        final int columns = mColumns;
+        for (int i = 0; i < columns; i++) {
+            deltas[i] = 0;
+        }
+
+        int firstRow = 0;
+        Chunk node = mRoot;
+        while (true) {
+            for (int i = 0; i < columns; i++) {
+                deltas[i] += node.delta[i];
+            }
+            final int leftRows = subtreeRows(node.left);
+            if (row < firstRow + leftRows) {
+                node = node.left;
+            } else if (row < firstRow + leftRows + node.rows) {
+                firstRow += leftRows;
+                break;
+            } else {
+                firstRow += leftRows + node.rows;
+                node = node.right;
+            }
+        }
+
+        mCacheChunk = node;
+        mCacheFirstRow = firstRow;
+        return node;
+    }
+
+    private Chunk insert(Chunk node, int row, int[] values) {
+        pushDown(node);
+        final int leftRows = subtreeRows(node.left);
+        if (row < leftRows || (row == leftRows && node.left != null && node.rows == CHUNK_ROWS)) {
+            node.left = insert(node.left, row, values);
+        } else if (row <= leftRows + node.rows) {
+            int offset = row - leftRows;
+            if (node.rows == CHUNK_ROWS) {
+                // Move the upper half of this chunk into a new chunk that becomes the
+                // leftmost chunk of the right subtree.
+                final int half = CHUNK_ROWS / 2;
+                final Chunk upper = newChunk();
+                System.arraycopy(node.selfDelta, 0, upper.selfDelta, 0, mColumns);
+                System.arraycopy(node.values, half * mColumns, upper.values, 0,
+                        (CHUNK_ROWS - half) * mColumns);
+                upper.rows = CHUNK_ROWS - half;
+                upper.subtreeRows = upper.rows;
+                node.rows = half;
+                node.right = merge(upper, node.right);
+
+                if (offset > half) {
+                    node.right = insert(node.right, offset - half, values);
+                    update(node);
+                    return rebalance(node);
+                }
+            }
+            insertRow(node, offset, values);
+        } else {
+            node.right = insert(node.right, row - leftRows - node.rows, values);
+        }
+        update(node);
+        return rebalance(node);
+    }
+
+    /**
+     * Restores the heap order on priorities after a chunk has been added below
+     * {@code node}.  At most one child can be out of order.
+     */
+    private Chunk rebalance(Chunk node) {
+        final Chunk left = node.left;
+        final Chunk right = node.right;
+        if (left != null && left.priority > node.priority) {
+            pushDown(left);
+            node.left = left.right;
+            left.right = node;
+            update(node);
+            update(left);
+            return left;
+        } else if (right != null && right.priority > node.priority) {
+            pushDown(right);
+            node.right = right.left;
+            right.left = node;
+            update(node);
+            update(right);
+            return right;
+        }
+        return node;
+    }
+
+    private void insertRow(Chunk chunk, int offset, int[] values) {
+        final int columns = mColumns;
+        final int[] data = chunk.values;
+        System.arraycopy(data, offset * columns, data, (offset + 1) * columns,
+                (chunk.rows - offset) * columns);
+        final int base = offset * columns;
+        for (int i = 0; i < columns; i++) {
+            data[base + i] = (values == null ? 0 : values[i]) - chunk.selfDelta[i];
+        }
+        chunk.rows++;
+    }
+
+    /**
+     * Deletes rows starting at {@code row} from the single chunk holding that row,
+     * decrementing {@code remaining[0]} by the number of rows removed.  Chunks that
+     * become empty are unlinked.
+     */
+    private Chunk delete(Chunk node, int row, int[] remaining) {
+        pushDown(node);
+        final int leftRows = subtreeRows(node.left);
+        if (row < leftRows) {
+            node.left = delete(node.left, row, remaining);
+        } else if (row < leftRows + node.rows) {
+            final int offset = row - leftRows;
+            final int count = Math.min(remaining[0], node.rows - offset);
+            final int columns = mColumns;
+            System.arraycopy(node.values, (offset + count) * columns, node.values,
+                    offset * columns, (node.rows - offset - count) * columns);
+            node.rows -= count;
+            remaining[0] -= count;
+            if (node.rows == 0) {
+                return merge(node.left, node.right);
+            }
+        } else {
+            node.right = delete(node.right, row - leftRows - node.rows, remaining);
+        }
+        update(node);
+        return node;
+    }
+
+    /**
+     * Concatenates two treaps; every row of {@code a} precedes every row of {@code b}.
+     */
+    private Chunk merge(Chunk a, Chunk b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        if (a.priority > b.priority) {
+            pushDown(a);
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        } else {
+            pushDown(b);
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    private void pushDown(Chunk node) {
+        final int[] delta = node.delta;
+        final Chunk left = node.left;
+        final Chunk right = node.right;
+        for (int i = mColumns - 1; i >= 0; i--) {
+            final int d = delta[i];
+            if (d != 0) {
+                node.selfDelta[i] += d;
+                if (left != null) left.delta[i] += d;
+                if (right != null) right.delta[i] += d;
+                delta[i] = 0;
+            }
+        }
+    }
+
+    private static void update(Chunk node) {
+        node.subtreeRows = subtreeRows(node.left) + node.rows + subtreeRows(node.right);
+    }
+
+    private static int subtreeRows(Chunk node) {
+        return node == null ? 0 : node.subtreeRows;
+    }
+
+    private Chunk newChunk() {
+        // xorshift32
+        int x = mSeed;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        mSeed = x;
+        return new Chunk(mColumns, x);
+    }
+}
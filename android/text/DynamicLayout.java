@@ -415,7 +415,7 @@ public class DynamicLayout extends Layout {
         mBase = b.mBase;
         mFallbackLineSpacing = b.mFallbackLineSpacing;
         if (b.mEllipsize != null) {
-            mInts = new PackedIntVector(COLUMNS_ELLIPSIZE);
+            mInts = new ChunkedIntVector(COLUMNS_ELLIPSIZE);
             mEllipsizedWidth = b.mEllipsizedWidth;
             mEllipsizeAt = b.mEllipsize;
 
@@ -439,7 +439,7 @@ public class DynamicLayout extends Layout {
             e.mMethod = b.mEllipsize;
             mEllipsize = true;
         } else {
-            mInts = new PackedIntVector(COLUMNS_NORMAL);
+            mInts = new ChunkedIntVector(COLUMNS_NORMAL);
             mEllipsizedWidth = b.mWidth;
             mEllipsizeAt = null;
         }
@@ -1161,7 +1161,7 @@ public class DynamicLayout extends Layout {
     private int mHyphenationFrequency;
     private int mJustificationMode;
 
-    private PackedIntVector mInts;
+    private ChunkedIntVector mInts;
     private PackedObjectVector<Directions> mObjects;
 
     /**
@@ -84,12 +84,17 @@ public class DynamicLayoutPerfTest {
 
     private final static String ALPHABETS = "abcdefghijklmnopqrstuvwxyz";
 
+    private final static int LONG_TEXT_PARAGRAPH_COUNT = 50000;
+
     private SpannableStringBuilder getText() {
+        return getText(100);
+    }
+
+    private SpannableStringBuilder getText(int paragraphCount) {
         final long seed = 1234567890;
         final Random r = new Random(seed);
         final SpannableStringBuilder builder = new SpannableStringBuilder();
 
-        final int paragraphCount = 100;
         for (int i = 0; i < paragraphCount; i++) {
             final int wordCount = 5 + r.nextInt(20);
             final boolean containsReplacementSpan = r.nextFloat() < mProbability;
@@ -134,4 +139,50 @@ public class DynamicLayoutPerfTest {
             }
         }
     }
+
+    @Test
+    public void testEditNearTopOfLongText() {
+        final SpannableStringBuilder text = getText(LONG_TEXT_PARAGRAPH_COUNT);
+        final DynamicLayout layout = new DynamicLayout(text, new TextPaint(), 1000,
+                ALIGN_NORMAL, 0, 0, false);
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            text.insert(1, "\n");
+            text.delete(1, 2);
+            layout.getLineCount();
+        }
+    }
+
+    @Test
+    public void testEditAlternatingEndsOfLongText() {
+        final SpannableStringBuilder text = getText(LONG_TEXT_PARAGRAPH_COUNT);
+        final DynamicLayout layout = new DynamicLayout(text, new TextPaint(), 1000,
+                ALIGN_NORMAL, 0, 0, false);
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            text.insert(1, "\n");
+            text.delete(1, 2);
+            final int end = text.length() - 1;
+            text.insert(end, "\n");
+            text.delete(end, end + 1);
+            layout.getLineCount();
+        }
+    }
+
+    @Test
+    public void testGetLineForOffsetLongText() {
+        final SpannableStringBuilder text = getText(LONG_TEXT_PARAGRAPH_COUNT);
+        final DynamicLayout layout = new DynamicLayout(text, new TextPaint(), 1000,
+                ALIGN_NORMAL, 0, 0, false);
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int steps = 100;
+        while (state.keepRunning()) {
+            for (int i = 0; i < steps; i++) {
+                layout.getLineForOffset((text.length() * i) / steps);
+            }
+        }
+    }
 }
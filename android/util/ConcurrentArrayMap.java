@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.annotation.NonNull;
+
+import libcore.util.EmptyArray;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A thread-safe {@link ArrayMap} for read-mostly state that is shared between threads.
+ *
+ * <p>Mappings are kept in the same layout as {@link ArrayMap}: a sorted array of key hash codes
+ * and an interleaved array of keys and values. The arrays are never modified once published.
+ * Every mutation copies them under a lock and publishes the copy with a single volatile write,
+ * so reads take no lock and always see a consistent snapshot. Iterators and
+ * {@link #forEach} traverse the snapshot that was current when they started and never throw
+ * {@link java.util.ConcurrentModificationException}.
+ *
+ * <p>Because every mutation copies the map, this class suits maps that are read far more
+ * often than they are written. Use {@link #putAll} to apply several changes with one copy.
+ * Unlike {@link ArrayMap}, null keys and values are not permitted.
+ *
+ * <p>Published arrays are not recycled through the {@link ArrayMap} array caches, since a
+ * concurrent reader may still be reading them.
+ *
+ * @hide
+ */
+public final class ConcurrentArrayMap<K, V> extends AbstractMap<K, V>
+        implements ConcurrentMap<K, V> {
+    private static final Snapshot EMPTY = new Snapshot(EmptyArray.INT, EmptyArray.OBJECT);
+
+    /** Immutable once published. */
+    private static final class Snapshot {
+        final int[] mHashes;
+        final Object[] mArray;
+
+        Snapshot(int[] hashes, Object[] array) {
+            mHashes = hashes;
+            mArray = array;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private volatile Snapshot mSnapshot = EMPTY;
+
+    private Set<Entry<K, V>> mEntrySet;
+
+    /**
+     * Create a new empty ConcurrentArrayMap.
+     */
+    public ConcurrentArrayMap() {
+    }
+
+    /**
+     * Create a new ConcurrentArrayMap with the mappings from the given map.
+     */
+    public ConcurrentArrayMap(@NonNull Map<? extends K, ? extends V> map) {
+        putAll(map);
+    }
+
+    /**
+     * Returns the index of {@code key} in the first {@code size} entries of the arrays, or the
+     * bitwise complement of the index where it should be inserted. This mirrors
+     * {@link ArrayMap#indexOf(Object, int)}.
+     */
+    private static int indexOf(int[] hashes, Object[] array, int size, Object key, int hash) {
+        if (size == 0) {
+            return ~0;
+        }
+
+        int index = ContainerHelpers.binarySearch(hashes, size, hash);
+        if (index < 0) {
+            return index;
+        }
+        if (key.equals(array[index << 1])) {
+            return index;
+        }
+
+        int end;
+        for (end = index + 1; end < size && hashes[end] == hash; end++) {
+            if (key.equals(array[end << 1])) return end;
+        }
+        for (int i = index - 1; i >= 0 && hashes[i] == hash; i--) {
+            if (key.equals(array[i << 1])) return i;
+        }
+        return ~end;
+    }
+
+    private static int indexOf(Snapshot snapshot, Object key) {
+        return indexOf(snapshot.mHashes, snapshot.mArray, snapshot.mHashes.length, key,
+                key.hashCode());
+    }
+
+    @Override
+    public int size() {
+        return mSnapshot.mHashes.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mSnapshot.mHashes.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(mSnapshot, key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        final Snapshot snapshot = mSnapshot;
+        final int index = indexOf(snapshot, key);
+        return index >= 0 ? (V) snapshot.mArray[(index << 1) + 1] : null;
+    }
+
+    @Override
+    public V put(@NonNull K key, @NonNull V value) {
+        return putInternal(key, value, false);
+    }
+
+    @Override
+    public V putIfAbsent(@NonNull K key, @NonNull V value) {
+        return putInternal(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V putInternal(K key, V value, boolean onlyIfAbsent) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        final int hash = key.hashCode();
+        synchronized (mLock) {
+            final Snapshot snapshot = mSnapshot;
+            final int n = snapshot.mHashes.length;
+            int index = indexOf(snapshot.mHashes, snapshot.mArray, n, key, hash);
+            if (index >= 0) {
+                final V old = (V) snapshot.mArray[(index << 1) + 1];
+                if (!onlyIfAbsent && old != value) {
+                    final Object[] array = snapshot.mArray.clone();
+                    array[(index << 1) + 1] = value;
+                    mSnapshot = new Snapshot(snapshot.mHashes, array);
+                }
+                return old;
+            }
+
+            index = ~index;
+            final int[] hashes = new int[n + 1];
+            final Object[] array = new Object[(n + 1) << 1];
+            System.arraycopy(snapshot.mHashes, 0, hashes, 0, index);
+            System.arraycopy(snapshot.mHashes, index, hashes, index + 1, n - index);
+            System.arraycopy(snapshot.mArray, 0, array, 0, index << 1);
+            System.arraycopy(snapshot.mArray, index << 1, array, (index + 1) << 1,
+                    (n - index) << 1);
+            hashes[index] = hash;
+            array[index << 1] = key;
+            array[(index << 1) + 1] = value;
+            mSnapshot = new Snapshot(hashes, array);
+            return null;
+        }
+    }
+
+    /**
+     * Adds all of the mappings in {@code map}, publishing them together with a single copy.
+     */
+    @Override
+    public void putAll(@NonNull Map<? extends K, ? extends V> map) {
+        synchronized (mLock) {
+            final Snapshot snapshot = mSnapshot;
+            int size = snapshot.mHashes.length;
+            int[] hashes = new int[size + map.size()];
+            Object[] array = new Object[hashes.length << 1];
+            System.arraycopy(snapshot.mHashes, 0, hashes, 0, size);
+            System.arraycopy(snapshot.mArray, 0, array, 0, size << 1);
+
+            for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+                final K key = Objects.requireNonNull(entry.getKey());
+                final V value = Objects.requireNonNull(entry.getValue());
+                final int hash = key.hashCode();
+                int index = indexOf(hashes, array, size, key, hash);
+                if (index >= 0) {
+                    array[(index << 1) + 1] = value;
+                    continue;
+                }
+                index = ~index;
+                if (size == hashes.length) {
+                    // The source map grew while it was being copied.
+                    hashes = Arrays.copyOf(hashes, size + 1);
+                    array = Arrays.copyOf(array, (size + 1) << 1);
+                }
+                System.arraycopy(hashes, index, hashes, index + 1, size - index);
+                System.arraycopy(array, index << 1, array, (index + 1) << 1,
+                        (size - index) << 1);
+                hashes[index] = hash;
+                array[index << 1] = key;
+                array[(index << 1) + 1] = value;
+                size++;
+            }
+
+            if (size < hashes.length) {
+                final int[] trimmedHashes = new int[size];
+                final Object[] trimmedArray = new Object[size << 1];
+                System.arraycopy(hashes, 0, trimmedHashes, 0, size);
+                System.arraycopy(array, 0, trimmedArray, 0, size << 1);
+                hashes = trimmedHashes;
+                array = trimmedArray;
+            }
+            mSnapshot = new Snapshot(hashes, array);
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        return removeInternal(key, null);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return value != null && removeInternal(key, value) != null;
+    }
+
+    /**
+     * Removes the mapping for {@code key}, if it is mapped to {@code expectedValue} or
+     * {@code expectedValue} is null, and returns the removed value.
+     */
+    @SuppressWarnings("unchecked")
+    private V removeInternal(Object key, Object expectedValue) {
+        synchronized (mLock) {
+            final Snapshot snapshot = mSnapshot;
+            final int index = indexOf(snapshot, key);
+            if (index < 0) {
+                return null;
+            }
+            final V old = (V) snapshot.mArray[(index << 1) + 1];
+            if (expectedValue != null && !expectedValue.equals(old)) {
+                return null;
+            }
+
+            final int n = snapshot.mHashes.length - 1;
+            if (n == 0) {
+                mSnapshot = EMPTY;
+                return old;
+            }
+            final int[] hashes = new int[n];
+            final Object[] array = new Object[n << 1];
+            System.arraycopy(snapshot.mHashes, 0, hashes, 0, index);
+            System.arraycopy(snapshot.mHashes, index + 1, hashes, index, n - index);
+            System.arraycopy(snapshot.mArray, 0, array, 0, index << 1);
+            System.arraycopy(snapshot.mArray, (index + 1) << 1, array, index << 1,
+                    (n - index) << 1);
+            mSnapshot = new Snapshot(hashes, array);
+            return old;
+        }
+    }
+
+    @Override
+    public V replace(@NonNull K key, @NonNull V value) {
+        return replaceInternal(key, null, value);
+    }
+
+    @Override
+    public boolean replace(@NonNull K key, @NonNull V oldValue, @NonNull V newValue) {
+        Objects.requireNonNull(oldValue);
+        return replaceInternal(key, oldValue, newValue) != null;
+    }
+
+    /**
+     * Replaces the value for {@code key}, if it is mapped to {@code expectedValue} or
+     * {@code expectedValue} is null, and returns the replaced value.
+     */
+    @SuppressWarnings("unchecked")
+    private V replaceInternal(K key, V expectedValue, V value) {
+        Objects.requireNonNull(value);
+        synchronized (mLock) {
+            final Snapshot snapshot = mSnapshot;
+            final int index = indexOf(snapshot, key);
+            if (index < 0) {
+                return null;
+            }
+            final V old = (V) snapshot.mArray[(index << 1) + 1];
+            if (expectedValue != null && !expectedValue.equals(old)) {
+                return null;
+            }
+            if (old != value) {
+                final Object[] array = snapshot.mArray.clone();
+                array[(index << 1) + 1] = value;
+                mSnapshot = new Snapshot(snapshot.mHashes, array);
+            }
+            return old;
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mLock) {
+            mSnapshot = EMPTY;
+        }
+    }
+
+    /**
+     * Performs the given action for every mapping of the snapshot current at the time of the
+     * call, without holding any lock.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(@NonNull BiConsumer<? super K, ? super V> action) {
+        final Object[] array = mSnapshot.mArray;
+        for (int i = 0; i < array.length; i += 2) {
+            action.accept((K) array[i], (V) array[i + 1]);
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        if (mEntrySet == null) {
+            mEntrySet = new EntrySet();
+        }
+        return mEntrySet;
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<K, V>> {
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator(mSnapshot.mArray);
+        }
+
+        @Override
+        public int size() {
+            return ConcurrentArrayMap.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            final Entry<?, ?> entry = (Entry<?, ?>) o;
+            final Object key = entry.getKey();
+            final Object value = entry.getValue();
+            return key != null && value != null && value.equals(get(key));
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            final Entry<?, ?> entry = (Entry<?, ?>) o;
+            final Object key = entry.getKey();
+            return key != null && ConcurrentArrayMap.this.remove(key, entry.getValue());
+        }
+
+        @Override
+        public void clear() {
+            ConcurrentArrayMap.this.clear();
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Entry<K, V>> {
+        private final Object[] mArray;
+        private int mIndex;
+        private K mLastKey;
+
+        EntryIterator(Object[] array) {
+            mArray = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return mIndex < mArray.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            mLastKey = (K) mArray[mIndex];
+            final V value = (V) mArray[mIndex + 1];
+            mIndex += 2;
+            return new SimpleImmutableEntry<>(mLastKey, value);
+        }
+
+        @Override
+        public void remove() {
+            if (mLastKey == null) {
+                throw new IllegalStateException();
+            }
+            ConcurrentArrayMap.this.remove(mLastKey);
+            mLastKey = null;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares lookups in a lock-guarded {@link ArrayMap}/{@link ArraySet} with
+ * {@link ConcurrentArrayMap}/{@link ConcurrentArraySet} while other threads read the same
+ * container.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ConcurrentArrayMapPerfTest {
+    private static final int NUM_ITERATIONS = 100;
+    private static final int MAP_SIZE = 50;
+    private static final int READER_THREAD_COUNT = 4;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final ArrayList<Thread> mReaders = new ArrayList<>();
+    private volatile boolean mStopped;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mStopped = true;
+        for (Thread reader : mReaders) {
+            reader.join();
+        }
+    }
+
+    private void startReaders(Runnable lookup) {
+        for (int i = 0; i < READER_THREAD_COUNT; i++) {
+            Thread reader = new Thread(() -> {
+                while (!mStopped) {
+                    lookup.run();
+                }
+            }, "reader-" + i);
+            mReaders.add(reader);
+            reader.start();
+        }
+    }
+
+    private static void fill(Map<Integer, Integer> map) {
+        for (int i = 0; i < MAP_SIZE; i++) {
+            map.put(i, i);
+        }
+    }
+
+    private static void fill(Set<Integer> set) {
+        for (int i = 0; i < MAP_SIZE; i++) {
+            set.add(i);
+        }
+    }
+
+    @Test
+    public void testGet_synchronizedArrayMap() {
+        final ArrayMap<Integer, Integer> map = new ArrayMap<>();
+        fill(map);
+        startReaders(() -> {
+            synchronized (map) {
+                map.get(MAP_SIZE / 2);
+            }
+        });
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < NUM_ITERATIONS; ++i) {
+                synchronized (map) {
+                    map.get(i % MAP_SIZE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGet_concurrentArrayMap() {
+        final ConcurrentArrayMap<Integer, Integer> map = new ConcurrentArrayMap<>();
+        fill(map);
+        startReaders(() -> map.get(MAP_SIZE / 2));
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < NUM_ITERATIONS; ++i) {
+                map.get(i % MAP_SIZE);
+            }
+        }
+    }
+
+    @Test
+    public void testContains_synchronizedArraySet() {
+        final ArraySet<Integer> set = new ArraySet<>();
+        fill(set);
+        startReaders(() -> {
+            synchronized (set) {
+                set.contains(MAP_SIZE / 2);
+            }
+        });
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < NUM_ITERATIONS; ++i) {
+                synchronized (set) {
+                    set.contains(i % MAP_SIZE);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testContains_concurrentArraySet() {
+        final ConcurrentArraySet<Integer> set = new ConcurrentArraySet<>();
+        fill(set);
+        startReaders(() -> set.contains(MAP_SIZE / 2));
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < NUM_ITERATIONS; ++i) {
+                set.contains(i % MAP_SIZE);
+            }
+        }
+    }
+
+    @Test
+    public void testPut_concurrentArrayMap() {
+        final ConcurrentArrayMap<Integer, Integer> map = new ConcurrentArrayMap<>();
+        fill(map);
+        startReaders(() -> map.get(MAP_SIZE / 2));
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int value = 0;
+        while (state.keepRunning()) {
+            map.put(value % MAP_SIZE, value);
+            value++;
+        }
+    }
+}
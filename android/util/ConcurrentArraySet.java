@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.annotation.NonNull;
+
+import libcore.util.EmptyArray;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * A thread-safe {@link ArraySet} for read-mostly state that is shared between threads.
+ *
+ * <p>Values are kept in the same layout as {@link ArraySet}: a sorted array of hash codes and
+ * a parallel array of values. The arrays are never modified once published. Every mutation
+ * copies them under a lock and publishes the copy with a single volatile write, so
+ * {@link #contains} takes no lock and always sees a consistent snapshot. Iterators and
+ * {@link #forEach} traverse the snapshot that was current when they started and never throw
+ * {@link java.util.ConcurrentModificationException}.
+ *
+ * <p>Because every mutation copies the set, this class suits sets that are read far more
+ * often than they are written. Use {@link #addAll} to add several values with one copy.
+ * Unlike {@link ArraySet}, null values are not permitted.
+ *
+ * @see ConcurrentArrayMap
+ * @hide
+ */
+public final class ConcurrentArraySet<E> extends AbstractSet<E> {
+    private static final Snapshot EMPTY = new Snapshot(EmptyArray.INT, EmptyArray.OBJECT);
+
+    /** Immutable once published. */
+    private static final class Snapshot {
+        final int[] mHashes;
+        final Object[] mArray;
+
+        Snapshot(int[] hashes, Object[] array) {
+            mHashes = hashes;
+            mArray = array;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private volatile Snapshot mSnapshot = EMPTY;
+
+    /**
+     * Create a new empty ConcurrentArraySet.
+     */
+    public ConcurrentArraySet() {
+    }
+
+    /**
+     * Create a new ConcurrentArraySet with the values from the given collection.
+     */
+    public ConcurrentArraySet(@NonNull Collection<? extends E> values) {
+        addAll(values);
+    }
+
+    /**
+     * Returns the index of {@code value} in the first {@code size} entries of the arrays, or
+     * the bitwise complement of the index where it should be inserted.
+     */
+    private static int indexOf(int[] hashes, Object[] array, int size, Object value, int hash) {
+        if (size == 0) {
+            return ~0;
+        }
+
+        int index = ContainerHelpers.binarySearch(hashes, size, hash);
+        if (index < 0) {
+            return index;
+        }
+        if (value.equals(array[index])) {
+            return index;
+        }
+
+        int end;
+        for (end = index + 1; end < size && hashes[end] == hash; end++) {
+            if (value.equals(array[end])) return end;
+        }
+        for (int i = index - 1; i >= 0 && hashes[i] == hash; i--) {
+            if (value.equals(array[i])) return i;
+        }
+        return ~end;
+    }
+
+    @Override
+    public int size() {
+        return mSnapshot.mHashes.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mSnapshot.mHashes.length == 0;
+    }
+
+    @Override
+    public boolean contains(Object value) {
+        final Snapshot snapshot = mSnapshot;
+        return indexOf(snapshot.mHashes, snapshot.mArray, snapshot.mHashes.length, value,
+                value.hashCode()) >= 0;
+    }
+
+    @Override
+    public boolean add(@NonNull E value) {
+        Objects.requireNonNull(value);
+        final int hash = value.hashCode();
+        synchronized (mLock) {
+            final Snapshot snapshot = mSnapshot;
+            final int n = snapshot.mHashes.length;
+            int index = indexOf(snapshot.mHashes, snapshot.mArray, n, value, hash);
+            if (index >= 0) {
+                return false;
+            }
+
+            index = ~index;
+            final int[] hashes = new int[n + 1];
+            final Object[] array = new Object[n + 1];
+            System.arraycopy(snapshot.mHashes, 0, hashes, 0, index);
+            System.arraycopy(snapshot.mHashes, index, hashes, index + 1, n - index);
+            System.arraycopy(snapshot.mArray, 0, array, 0, index);
+            System.arraycopy(snapshot.mArray, index, array, index + 1, n - index);
+            hashes[index] = hash;
+            array[index] = value;
+            mSnapshot = new Snapshot(hashes, array);
+            return true;
+        }
+    }
+
+    /**
+     * Adds all of the values in {@code values}, publishing them together with a single copy.
+     */
+    @Override
+    public boolean addAll(@NonNull Collection<? extends E> values) {
+        synchronized (mLock) {
+            final Snapshot snapshot = mSnapshot;
+            final int oldSize = snapshot.mHashes.length;
+            int size = oldSize;
+            int[] hashes = new int[size + values.size()];
+            Object[] array = new Object[hashes.length];
+            System.arraycopy(snapshot.mHashes, 0, hashes, 0, size);
+            System.arraycopy(snapshot.mArray, 0, array, 0, size);
+
+            for (E value : values) {
+                Objects.requireNonNull(value);
+                final int hash = value.hashCode();
+                int index = indexOf(hashes, array, size, value, hash);
+                if (index >= 0) {
+                    continue;
+                }
+                index = ~index;
+                if (size == hashes.length) {
+                    // The source collection grew while it was being copied.
+                    hashes = Arrays.copyOf(hashes, size + 1);
+                    array = Arrays.copyOf(array, size + 1);
+                }
+                System.arraycopy(hashes, index, hashes, index + 1, size - index);
+                System.arraycopy(array, index, array, index + 1, size - index);
+                hashes[index] = hash;
+                array[index] = value;
+                size++;
+            }
+
+            if (size == oldSize) {
+                return false;
+            }
+            if (size < hashes.length) {
+                hashes = Arrays.copyOf(hashes, size);
+                array = Arrays.copyOf(array, size);
+            }
+            mSnapshot = new Snapshot(hashes, array);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean remove(Object value) {
+        synchronized (mLock) {
+            final Snapshot snapshot = mSnapshot;
+            final int n = snapshot.mHashes.length - 1;
+            final int index = indexOf(snapshot.mHashes, snapshot.mArray, n + 1, value,
+                    value.hashCode());
+            if (index < 0) {
+                return false;
+            }
+            if (n == 0) {
+                mSnapshot = EMPTY;
+                return true;
+            }
+
+            final int[] hashes = new int[n];
+            final Object[] array = new Object[n];
+            System.arraycopy(snapshot.mHashes, 0, hashes, 0, index);
+            System.arraycopy(snapshot.mHashes, index + 1, hashes, index, n - index);
+            System.arraycopy(snapshot.mArray, 0, array, 0, index);
+            System.arraycopy(snapshot.mArray, index + 1, array, index, n - index);
+            mSnapshot = new Snapshot(hashes, array);
+            return true;
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mLock) {
+            mSnapshot = EMPTY;
+        }
+    }
+
+    /**
+     * Performs the given action for every value of the snapshot current at the time of the
+     * call, without holding any lock.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(@NonNull Consumer<? super E> action) {
+        for (Object value : mSnapshot.mArray) {
+            action.accept((E) value);
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final Object[] array = mSnapshot.mArray;
+        return new Iterator<E>() {
+            private int mIndex;
+            private Object mLast;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < array.length;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                mLast = array[mIndex++];
+                return (E) mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                ConcurrentArraySet.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+
+    @Override
+    public Object[] toArray() {
+        return mSnapshot.mArray.clone();
+    }
+}
@@ -0,0 +1,490 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache with the same contract as {@link LruCache} that lets many threads read it at once.
+ *
+ * <p>{@link LruCache} guards every {@link LruCache#get} with the cache's monitor, because
+ * moving an entry to the head of its access-ordered queue is a write. This cache splits its
+ * entries across a power-of-two number of segments by key hash. Each segment is a small
+ * access-ordered map with its own lock and counters, so threads only contend when they touch
+ * keys in the same segment.
+ *
+ * <p>The size limit applies to the whole cache, not to each segment. When the cache is over
+ * its limit, the entry to evict is chosen by sampling the least recently used entry of a few
+ * segments and evicting the one that was used longest ago. Eviction is therefore an
+ * approximation of LRU order. When several threads add entries at once, the cache may evict
+ * a few more entries than strictly necessary.
+ *
+ * <p>As with {@link LruCache}, override {@link #sizeOf} to measure entries in other units,
+ * {@link #create} to compute missing values and {@link #entryRemoved} to release evicted
+ * values. These are called without holding any lock. {@link #sizeOf} is called once per
+ * entry, when it is added.
+ *
+ * <p>This class does not allow null to be used as a key or value.
+ *
+ * @hide
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final int DEFAULT_SEGMENT_COUNT = 16;
+
+    /** Number of segments whose eldest entries are compared when choosing what to evict. */
+    private static final int EVICTION_SAMPLES = 4;
+
+    private static final class Node<V> {
+        final V mValue;
+        final int mSize;
+        /** Value of {@link #mClock} when the entry was last added or read. */
+        long mStamp;
+
+        Node(V value, int size, long stamp) {
+            mValue = value;
+            mSize = size;
+            mStamp = stamp;
+        }
+    }
+
+    /** Guarded by its own monitor. */
+    private static final class Segment<K, V> {
+        final LinkedHashMap<K, Node<V>> mMap = new LinkedHashMap<>(0, 0.75f, true);
+
+        int mPutCount;
+        int mCreateCount;
+        int mEvictionCount;
+        int mHitCount;
+        int mMissCount;
+    }
+
+    private final Segment<K, V>[] mSegments;
+    private final int mSegmentShift;
+
+    /**
+     * Sum of the sizes of all entries. Added before an entry is inserted and subtracted after
+     * it is removed, so it never undercounts.
+     */
+    private final AtomicInteger mSize = new AtomicInteger();
+    private volatile int mMaxSize;
+
+    /** Advanced when entries are added; read when they are accessed. */
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicInteger mEvictionCursor = new AtomicInteger();
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        this(maxSize, DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * @param maxSize the maximum size of the cache, as for {@link #ConcurrentLruCache(int)}.
+     * @param segmentCount the number of independently locked segments, rounded up to a power
+     *     of two. More segments reduce contention between threads.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentLruCache(int maxSize, int segmentCount) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException("segmentCount <= 0");
+        }
+        mMaxSize = maxSize;
+        final int bits = 32 - Integer.numberOfLeadingZeros(segmentCount - 1);
+        mSegments = new Segment[1 << bits];
+        for (int i = 0; i < mSegments.length; i++) {
+            mSegments[i] = new Segment<>();
+        }
+        // Use the high bits of the mixed hash, so that the low bits the segment maps use to
+        // pick a bucket stay well distributed.
+        mSegmentShift = 32 - bits;
+    }
+
+    private Segment<K, V> segmentFor(Object key) {
+        if (mSegments.length == 1) {
+            return mSegments[0];
+        }
+        final int h = key.hashCode();
+        return mSegments[((h ^ (h >>> 16)) * 0x9e3779b9) >>> mSegmentShift];
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is moved to the
+     * head of its segment's queue. This returns null if a value is not cached
+     * and cannot be created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            final Node<V> node = segment.mMap.get(key);
+            if (node != null) {
+                segment.mHitCount++;
+                node.mStamp = mClock.get();
+                return node.mValue;
+            }
+            segment.mMissCount++;
+        }
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map
+         * may be different when create() returns. If a conflicting value was
+         * added to the map while create() was working, we leave that value in
+         * the map and release the created value.
+         */
+
+        final V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        final int size = safeSizeOf(key, createdValue);
+        mSize.addAndGet(size);
+        final Node<V> previous;
+        synchronized (segment) {
+            segment.mCreateCount++;
+            previous = segment.mMap.putIfAbsent(key,
+                    new Node<>(createdValue, size, mClock.incrementAndGet()));
+        }
+
+        if (previous != null) {
+            mSize.addAndGet(-size);
+            entryRemoved(false, key, createdValue, previous.mValue);
+            return previous.mValue;
+        } else {
+            trimToSize(mMaxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * its segment's queue.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final int size = safeSizeOf(key, value);
+        mSize.addAndGet(size);
+        final Segment<K, V> segment = segmentFor(key);
+        final Node<V> previous;
+        synchronized (segment) {
+            segment.mPutCount++;
+            previous = segment.mMap.put(key, new Node<>(value, size, mClock.incrementAndGet()));
+        }
+
+        if (previous != null) {
+            mSize.addAndGet(-previous.mSize);
+            entryRemoved(false, key, previous.mValue, value);
+        }
+
+        trimToSize(mMaxSize);
+        return previous != null ? previous.mValue : null;
+    }
+
+    /**
+     * Remove entries, approximately least recently used first, until the total of remaining
+     * entries is at or below the requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        while (mSize.get() > maxSize) {
+            final Segment<K, V> victim = chooseVictim();
+            if (victim == null) {
+                break;
+            }
+
+            final K key;
+            final Node<V> node;
+            synchronized (victim) {
+                final Map.Entry<K, Node<V>> eldest = victim.mMap.eldest();
+                if (eldest == null) {
+                    // Emptied by another thread since it was chosen.
+                    continue;
+                }
+                key = eldest.getKey();
+                node = eldest.getValue();
+                victim.mMap.remove(key);
+                victim.mEvictionCount++;
+            }
+
+            mSize.addAndGet(-node.mSize);
+            entryRemoved(true, key, node.mValue, null);
+        }
+    }
+
+    /**
+     * Returns the segment whose eldest entry should be evicted next, or null if the cache is
+     * empty. Compares the eldest entries of {@link #EVICTION_SAMPLES} segments, starting from
+     * a rotating cursor so that every segment is sampled in turn.
+     */
+    private Segment<K, V> chooseVictim() {
+        final Segment<K, V>[] segments = mSegments;
+        final int mask = segments.length - 1;
+        final int start = mEvictionCursor.getAndIncrement();
+        Segment<K, V> victim = null;
+        long oldestStamp = Long.MAX_VALUE;
+        int sampled = 0;
+        for (int i = 0; i < segments.length && sampled < EVICTION_SAMPLES; i++) {
+            final Segment<K, V> segment = segments[(start + i) & mask];
+            synchronized (segment) {
+                final Map.Entry<K, Node<V>> eldest = segment.mMap.eldest();
+                if (eldest == null) {
+                    continue;
+                }
+                sampled++;
+                if (eldest.getValue().mStamp < oldestStamp) {
+                    oldestStamp = eldest.getValue().mStamp;
+                    victim = segment;
+                }
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Segment<K, V> segment = segmentFor(key);
+        final Node<V> previous;
+        synchronized (segment) {
+            previous = segment.mMap.remove(key);
+        }
+
+        if (previous == null) {
+            return null;
+        }
+        mSize.addAndGet(-previous.mSize);
+        entryRemoved(false, key, previous.mValue, null);
+        return previous.mValue;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put} or a {@link #get}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * <p>If a value for {@code key} exists in the cache when this method
+     * returns, the created value will be released with {@link #entryRemoved}
+     * and discarded.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>This is called once, without synchronization, when an entry is added.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        return mSize.get();
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was
+     * already present in the cache.
+     */
+    public final int hitCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.mHitCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.mMissCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.mCreateCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.mPutCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        int count = 0;
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                count += segment.mEvictionCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered approximately from least
+     * recently accessed to most recently accessed. Segments are copied one at a time, so the
+     * copy is not an atomic snapshot of the whole cache.
+     */
+    public final Map<K, V> snapshot() {
+        final ArrayList<Map.Entry<K, Node<V>>> entries = new ArrayList<>();
+        for (Segment<K, V> segment : mSegments) {
+            synchronized (segment) {
+                for (Map.Entry<K, Node<V>> entry : segment.mMap.entrySet()) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
+            }
+        }
+        entries.sort((a, b) -> Long.compare(a.getValue().mStamp, b.getValue().mStamp));
+        final LinkedHashMap<K, V> result = new LinkedHashMap<>(entries.size());
+        for (Map.Entry<K, Node<V>> entry : entries) {
+            result.put(entry.getKey(), entry.getValue().mValue);
+        }
+        return result;
+    }
+
+    @Override public final String toString() {
+        int hitCount = hitCount();
+        int missCount = missCount();
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mMaxSize, hitCount, missCount, hitPercent);
+    }
+}
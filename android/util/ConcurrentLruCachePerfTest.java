@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Compares {@link LruCache} with {@link ConcurrentLruCache} while other threads read and
+ * write the same cache.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ConcurrentLruCachePerfTest {
+    private static final int NUM_ITERATIONS = 100;
+    private static final int CACHE_SIZE = 512;
+    private static final int KEY_RANGE = 1024;
+    private static final int READER_THREAD_COUNT = 4;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private final ArrayList<Thread> mReaders = new ArrayList<>();
+    private volatile boolean mStopped;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mStopped = true;
+        for (Thread reader : mReaders) {
+            reader.join();
+        }
+    }
+
+    private void startReaders(IntConsumer lookup) {
+        for (int i = 0; i < READER_THREAD_COUNT; i++) {
+            final int seed = i;
+            Thread reader = new Thread(() -> {
+                int key = seed;
+                while (!mStopped) {
+                    lookup.accept(key);
+                    key = (key + 7) % KEY_RANGE;
+                }
+            }, "reader-" + i);
+            mReaders.add(reader);
+            reader.start();
+        }
+    }
+
+    private interface IntConsumer {
+        void accept(int key);
+    }
+
+    private static final class CreatingLruCache extends LruCache<Integer, Integer> {
+        CreatingLruCache() {
+            super(CACHE_SIZE);
+        }
+
+        @Override
+        protected Integer create(Integer key) {
+            return key;
+        }
+    }
+
+    private static final class CreatingConcurrentLruCache
+            extends ConcurrentLruCache<Integer, Integer> {
+        CreatingConcurrentLruCache() {
+            super(CACHE_SIZE);
+        }
+
+        @Override
+        protected Integer create(Integer key) {
+            return key;
+        }
+    }
+
+    @Test
+    public void testGet_lruCache() {
+        final LruCache<Integer, Integer> cache = new CreatingLruCache();
+        startReaders(cache::get);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < NUM_ITERATIONS; ++i) {
+                cache.get(i % KEY_RANGE);
+            }
+        }
+    }
+
+    @Test
+    public void testGet_concurrentLruCache() {
+        final ConcurrentLruCache<Integer, Integer> cache = new CreatingConcurrentLruCache();
+        startReaders(cache::get);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int i = 0; i < NUM_ITERATIONS; ++i) {
+                cache.get(i % KEY_RANGE);
+            }
+        }
+    }
+
+    @Test
+    public void testPut_lruCache() {
+        final LruCache<Integer, Integer> cache = new LruCache<>(CACHE_SIZE);
+        startReaders(cache::get);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int value = 0;
+        while (state.keepRunning()) {
+            cache.put(value % KEY_RANGE, value);
+            value++;
+        }
+    }
+
+    @Test
+    public void testPut_concurrentLruCache() {
+        final ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<>(CACHE_SIZE);
+        startReaders(cache::get);
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int value = 0;
+        while (state.keepRunning()) {
+            cache.put(value % KEY_RANGE, value);
+            value++;
+        }
+    }
+}
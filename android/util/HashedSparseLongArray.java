@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.GrowingArrayUtils;
+
+import libcore.util.EmptyArray;
+
+import java.util.Arrays;
+
+/**
+ * Maps integers to longs like {@link SparseLongArray}, but finds keys with an
+ * open-addressing hash table instead of a binary search, so that lookups, insertions and
+ * removals take constant time regardless of size. Use it for maps that hold thousands of
+ * mappings or more; for smaller maps {@link SparseLongArray} uses less memory and is as fast.
+ *
+ * <p>Mappings are stored in parallel key and value arrays, and it is possible to iterate over
+ * them using {@link #keyAt(int)} and {@link #valueAt(int)}. Unlike {@link SparseLongArray}, the
+ * keys are not sorted. By default the iteration order is unspecified: removing a mapping moves
+ * the last mapping into its place. A map created with {@code insertionOrder} set keeps its
+ * mappings in the order they were first added, at the cost of removals taking linear time.
+ *
+ * <p>This class is not thread safe.
+ *
+ * @hide
+ */
+public class HashedSparseLongArray implements Cloneable {
+    /** The smallest hash table; always a power of two. */
+    private static final int MIN_TABLE_SIZE = 8;
+
+    private final boolean mInsertionOrder;
+    private int[] mKeys;
+    private long[] mValues;
+    private int mSize;
+
+    /**
+     * Open-addressed hash table with linear probing. Each slot holds an index into
+     * {@link #mKeys} plus one, or 0 if the slot is empty. The table is kept at least twice as
+     * large as the key array so that probe sequences stay short.
+     */
+    private int[] mTable;
+    /** Shift that maps a mixed key hash to a slot in {@link #mTable}. */
+    private int mShift;
+
+    /**
+     * Creates a new HashedSparseLongArray containing no mappings.
+     */
+    public HashedSparseLongArray() {
+        this(10);
+    }
+
+    /**
+     * Creates a new HashedSparseLongArray containing no mappings that will not require any
+     * additional memory allocation to store the specified number of mappings.
+     */
+    public HashedSparseLongArray(int initialCapacity) {
+        this(initialCapacity, false);
+    }
+
+    /**
+     * Creates a new HashedSparseLongArray containing no mappings that will not require any
+     * additional memory allocation to store the specified number of mappings.
+     *
+     * @param insertionOrder if true, {@link #keyAt(int)} and {@link #valueAt(int)} return the
+     *     mappings in the order in which their keys were first added, and removals take time
+     *     proportional to the size of the map.
+     */
+    public HashedSparseLongArray(int initialCapacity, boolean insertionOrder) {
+        mInsertionOrder = insertionOrder;
+        if (initialCapacity == 0) {
+            mKeys = EmptyArray.INT;
+            mValues = EmptyArray.LONG;
+        } else {
+            mKeys = ArrayUtils.newUnpaddedIntArray(initialCapacity);
+            mValues = new long[mKeys.length];
+        }
+        mSize = 0;
+        rehash();
+    }
+
+    @Override
+    public HashedSparseLongArray clone() {
+        HashedSparseLongArray clone = null;
+        try {
+            clone = (HashedSparseLongArray) super.clone();
+            clone.mKeys = mKeys.clone();
+            clone.mValues = mValues.clone();
+            clone.mTable = mTable.clone();
+        } catch (CloneNotSupportedException cnse) {
+            /* ignore */
+        }
+        return clone;
+    }
+
+    /**
+     * Gets the long mapped from the specified key, or <code>0</code>
+     * if no such mapping has been made.
+     */
+    public long get(int key) {
+        return get(key, 0);
+    }
+
+    /**
+     * Gets the long mapped from the specified key, or the specified value
+     * if no such mapping has been made.
+     */
+    public long get(int key, long valueIfKeyNotFound) {
+        int slot = findSlot(key);
+        if (slot < 0) {
+            return valueIfKeyNotFound;
+        }
+        return mValues[mTable[slot] - 1];
+    }
+
+    /**
+     * Removes the mapping from the specified key, if there was any.
+     */
+    public void delete(int key) {
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            removeEntry(slot, mTable[slot] - 1);
+        }
+    }
+
+    /**
+     * Removes the mapping at the given index.
+     *
+     * <p>Unless the map keeps insertion order, this moves the mapping at index
+     * <code>size()-1</code> to <code>index</code>.</p>
+     */
+    public void removeAt(int index) {
+        checkIndex(index);
+        removeEntry(findSlot(mKeys[index]), index);
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value,
+     * replacing the previous mapping from the specified key if there
+     * was one.
+     */
+    public void put(int key, long value) {
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            mValues[mTable[slot] - 1] = value;
+            return;
+        }
+
+        mKeys = GrowingArrayUtils.append(mKeys, mSize, key);
+        mValues = GrowingArrayUtils.append(mValues, mSize, value);
+        mSize++;
+        if (mTable.length < mKeys.length * 2) {
+            rehash();
+        } else {
+            mTable[~slot] = mSize;
+        }
+    }
+
+    /**
+     * Returns the number of key-value mappings that this HashedSparseLongArray
+     * currently stores.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the key from the <code>index</code>th key-value mapping that this
+     * HashedSparseLongArray stores.
+     *
+     * @throws ArrayIndexOutOfBoundsException if the index is outside of the range
+     *     <code>0...size()-1</code>
+     */
+    public int keyAt(int index) {
+        checkIndex(index);
+        return mKeys[index];
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the value from the <code>index</code>th key-value mapping that this
+     * HashedSparseLongArray stores.
+     *
+     * @throws ArrayIndexOutOfBoundsException if the index is outside of the range
+     *     <code>0...size()-1</code>
+     */
+    public long valueAt(int index) {
+        checkIndex(index);
+        return mValues[index];
+    }
+
+    /**
+     * Directly set the value at a particular index.
+     *
+     * @throws ArrayIndexOutOfBoundsException if the index is outside of the range
+     *     <code>0...size()-1</code>
+     */
+    public void setValueAt(int index, long value) {
+        checkIndex(index);
+        mValues[index] = value;
+    }
+
+    /**
+     * Returns the index for which {@link #keyAt} would return the
+     * specified key, or a negative number if the specified
+     * key is not mapped.
+     */
+    public int indexOfKey(int key) {
+        int slot = findSlot(key);
+        return slot >= 0 ? mTable[slot] - 1 : -1;
+    }
+
+    /**
+     * Returns an index for which {@link #valueAt} would return the
+     * specified key, or a negative number if no keys map to the
+     * specified value.
+     * Beware that this is a linear search, unlike lookups by key,
+     * and that multiple keys can map to the same value and this will
+     * find only one of them.
+     */
+    public int indexOfValue(long value) {
+        for (int i = 0; i < mSize; i++) {
+            if (mValues[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Removes all key-value mappings from this HashedSparseLongArray.
+     */
+    public void clear() {
+        Arrays.fill(mTable, 0);
+        mSize = 0;
+    }
+
+    /**
+     * Equivalent to {@link #put}, which never needs to move existing mappings. Provided for
+     * source compatibility with {@link SparseLongArray}.
+     */
+    public void append(int key, long value) {
+        put(key, value);
+    }
+
+    /**
+     * Provides a copy of keys, in iteration order.
+     */
+    public int[] copyKeys() {
+        if (size() == 0) {
+            return null;
+        }
+        return Arrays.copyOf(mKeys, size());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This implementation composes a string by iterating over its mappings.
+     */
+    @Override
+    public String toString() {
+        if (size() <= 0) {
+            return "{}";
+        }
+
+        StringBuilder buffer = new StringBuilder(mSize * 28);
+        buffer.append('{');
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            int key = keyAt(i);
+            buffer.append(key);
+            buffer.append('=');
+            long value = valueAt(i);
+            buffer.append(value);
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+
+    private void checkIndex(int index) {
+        if (index >= mSize) {
+            // The arrays might be bigger than mSize, in which case indexing wouldn't fail.
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+
+    private int hash(int key) {
+        return (key * 0x9e3779b9) >>> mShift;
+    }
+
+    /**
+     * Returns the slot of {@link #mTable} that refers to {@code key}, or the bitwise complement
+     * of the empty slot where it would be added.
+     */
+    private int findSlot(int key) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int slot = hash(key);
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            if (mKeys[entry - 1] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    /**
+     * Sizes the table for the capacity of the key array and adds every mapping to it.
+     */
+    private void rehash() {
+        int tableSize = MIN_TABLE_SIZE;
+        while (tableSize < mKeys.length * 2) {
+            tableSize <<= 1;
+        }
+        if (mTable == null || mTable.length != tableSize) {
+            mTable = new int[tableSize];
+            mShift = Integer.numberOfLeadingZeros(tableSize) + 1;
+        } else {
+            Arrays.fill(mTable, 0);
+        }
+        for (int i = 0; i < mSize; i++) {
+            mTable[~findSlot(mKeys[i])] = i + 1;
+        }
+    }
+
+    /**
+     * Removes the mapping at {@code index}, which {@code slot} refers to.
+     */
+    private void removeEntry(int slot, int index) {
+        deleteSlot(slot);
+
+        final int last = mSize - 1;
+        if (index != last) {
+            if (mInsertionOrder) {
+                System.arraycopy(mKeys, index + 1, mKeys, index, last - index);
+                System.arraycopy(mValues, index + 1, mValues, index, last - index);
+                final int[] table = mTable;
+                for (int i = 0; i < table.length; i++) {
+                    if (table[i] > index + 1) {
+                        table[i]--;
+                    }
+                }
+            } else {
+                // The table still refers to the last mapping by its old index.
+                mTable[findSlot(mKeys[last])] = index + 1;
+                mKeys[index] = mKeys[last];
+                mValues[index] = mValues[last];
+            }
+        }
+        mSize = last;
+    }
+
+    /**
+     * Empties a slot, moving later entries of the same probe sequence back so that every
+     * key can still be found without tombstones.
+     */
+    private void deleteSlot(int slot) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        int entry;
+        while ((entry = table[next]) != 0) {
+            // The entry can fill the hole unless the hole is before its home slot.
+            if (((next - hash(mKeys[entry - 1])) & mask) >= ((next - hole) & mask)) {
+                table[hole] = entry;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = 0;
+    }
+}
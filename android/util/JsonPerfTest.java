@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares reading and writing a 10 MB document with {@link JsonReader} and {@link JsonWriter}
+ * through {@link java.io.Reader}/{@link java.io.Writer} and through the UTF-8 byte streams.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class JsonPerfTest {
+    private static final int DOCUMENT_SIZE = 10 * 1024 * 1024;
+
+    private static final String[] NAMES = { "id", "package", "enabled", "weight", "label" };
+    private static final JsonReader.Options OPTIONS = JsonReader.Options.of(NAMES);
+
+    private static byte[] sDocument;
+    private static int sRecordCount;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(DOCUMENT_SIZE + 1024);
+        final JsonWriter writer = new JsonWriter(new OutputStreamWriter(out));
+        writer.beginArray();
+        int count = 0;
+        while (out.size() < DOCUMENT_SIZE) {
+            writeRecord(writer, count++);
+            if (count % 1024 == 0) {
+                writer.flush();
+            }
+        }
+        writer.endArray();
+        writer.close();
+        sDocument = out.toByteArray();
+        sRecordCount = count;
+    }
+
+    private static void writeRecord(JsonWriter writer, int i) throws IOException {
+        writer.beginObject();
+        writer.name(NAMES[0]).value(i * 7919L);
+        writer.name(NAMES[1]).value("com.example.package_" + i);
+        writer.name(NAMES[2]).value(i % 3 == 0);
+        writer.name(NAMES[3]).value(i * 0.5);
+        writer.name(NAMES[4]).value("Étiquette \"" + i + "\" – ラベル");
+        writer.endObject();
+    }
+
+    private static long readWithNames(JsonReader reader) throws IOException {
+        long checksum = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "id":
+                        checksum += reader.nextLong();
+                        break;
+                    case "weight":
+                        checksum += (long) reader.nextDouble();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return checksum;
+    }
+
+    private static long readWithOptions(JsonReader reader) throws IOException {
+        long checksum = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(OPTIONS)) {
+                    case 0:
+                        checksum += reader.nextLong();
+                        break;
+                    case 3:
+                        checksum += (long) reader.nextDouble();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return checksum;
+    }
+
+    @Test
+    public void timeRead_reader() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readWithNames(new JsonReader(new InputStreamReader(
+                    new ByteArrayInputStream(sDocument), StandardCharsets.UTF_8)));
+        }
+    }
+
+    @Test
+    public void timeRead_inputStream() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readWithNames(new JsonReader(new ByteArrayInputStream(sDocument)));
+        }
+    }
+
+    @Test
+    public void timeRead_byteBufferOptions() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            readWithOptions(new JsonReader(ByteBuffer.wrap(sDocument)));
+        }
+    }
+
+    @Test
+    public void timeWrite_writer() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final JsonWriter writer = new JsonWriter(new BufferedWriter(
+                    new OutputStreamWriter(new NullOutputStream(), StandardCharsets.UTF_8)));
+            writeDocument(writer);
+        }
+    }
+
+    @Test
+    public void timeWrite_outputStream() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            writeDocument(new JsonWriter(new NullOutputStream()));
+        }
+    }
+
+    private static void writeDocument(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        for (int i = 0; i < sRecordCount; i++) {
+            writeRecord(writer, i);
+        }
+        writer.endArray();
+        writer.close();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -17,11 +17,14 @@
 package android.util;
 
 import com.android.internal.util.StringPool;
+import com.android.org.kxml2.io.Utf8Reader;
 
 import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -215,8 +218,14 @@ public final class JsonReader implements Closeable {
      */
     private JsonToken token;
 
-    /** The text of the next name. */
+    /**
+     * The text of the next name. If null while the next token is a name, the
+     * name is the {@code nameLength} characters at {@code namePos} in the
+     * buffer and is only turned into a string on demand.
+     */
     private String name;
+    private int namePos;
+    private int nameLength;
 
     /*
      * For the next literal value, we may have the text value, or the position
@@ -239,6 +248,28 @@ public final class JsonReader implements Closeable {
         this.in = in;
     }
 
+    /**
+     * Creates a new instance that reads a UTF-8 encoded JSON stream from
+     * {@code in}. The bytes are decoded directly into the reader's buffer
+     * without an intermediate {@link java.io.InputStreamReader}, so {@code in}
+     * does not need to be buffered.
+     *
+     * @hide
+     */
+    public JsonReader(InputStream in) {
+        this(new Utf8Reader(in));
+    }
+
+    /**
+     * Creates a new instance that reads the remaining UTF-8 encoded bytes of
+     * {@code in}. Array-backed buffers are decoded in place without copying.
+     *
+     * @hide
+     */
+    public JsonReader(ByteBuffer in) {
+        this(new Utf8Reader(in));
+    }
+
     /**
      * Configure this parser to be  be liberal in what it accepts. By default,
      * this parser is strict and only accepts JSON as specified by <a
@@ -391,7 +422,29 @@ public final class JsonReader implements Closeable {
         if (token != JsonToken.NAME) {
             throw new IllegalStateException("Expected a name but was " + peek());
         }
-        String result = name;
+        String result = name != null ? name : stringPool.get(buffer, namePos, nameLength);
+        advance();
+        return result;
+    }
+
+    /**
+     * Consumes the next token, a {@link JsonToken#NAME property name}, and
+     * returns its index in {@code options}, or -1 if it is not one of them.
+     * Unlike {@link #nextName()}, this doesn't create a string for names that
+     * can be matched in place.
+     *
+     * @throws IllegalStateException if the next token in the stream is not a
+     *     property name.
+     * @hide
+     */
+    public int selectName(Options options) throws IOException {
+        peek();
+        if (token != JsonToken.NAME) {
+            throw new IllegalStateException("Expected a name but was " + peek());
+        }
+        int result = name != null
+                ? options.indexOf(name)
+                : options.indexOf(buffer, namePos, nameLength);
         advance();
         return result;
     }
@@ -410,7 +463,7 @@ public final class JsonReader implements Closeable {
             throw new IllegalStateException("Expected a string but was " + peek());
         }
 
-        String result = value;
+        String result = literalValue();
         advance();
         return result;
     }
@@ -462,7 +515,15 @@ public final class JsonReader implements Closeable {
             throw new IllegalStateException("Expected a double but was " + token);
         }
 
-        double result = Double.parseDouble(value);
+        double result;
+        if (isPlainInteger(15)) {
+            // Integers of up to 15 digits are exactly representable.
+            final long integer = plainIntegerValue();
+            // Except "-0", which Double.parseDouble() returns as negative zero
+            result = integer == 0 && buffer[valuePos] == '-' ? -0.0 : integer;
+        } else {
+            result = Double.parseDouble(literalValue());
+        }
         advance();
         return result;
     }
@@ -484,13 +545,18 @@ public final class JsonReader implements Closeable {
         }
 
         long result;
-        try {
-            result = Long.parseLong(value);
-        } catch (NumberFormatException ignored) {
-            double asDouble = Double.parseDouble(value); // don't catch this NumberFormatException
-            result = (long) asDouble;
-            if ((double) result != asDouble) {
-                throw new NumberFormatException(value);
+        if (isPlainInteger(18)) {
+            result = plainIntegerValue();
+        } else {
+            String value = literalValue();
+            try {
+                result = Long.parseLong(value);
+            } catch (NumberFormatException ignored) {
+                double asDouble = Double.parseDouble(value); // don't catch this NumberFormatException
+                result = (long) asDouble;
+                if ((double) result != asDouble) {
+                    throw new NumberFormatException(value);
+                }
             }
         }
 
@@ -515,13 +581,18 @@ public final class JsonReader implements Closeable {
         }
 
         int result;
-        try {
-            result = Integer.parseInt(value);
-        } catch (NumberFormatException ignored) {
-            double asDouble = Double.parseDouble(value); // don't catch this NumberFormatException
-            result = (int) asDouble;
-            if ((double) result != asDouble) {
-                throw new NumberFormatException(value);
+        if (isPlainInteger(9)) {
+            result = (int) plainIntegerValue();
+        } else {
+            String value = literalValue();
+            try {
+                result = Integer.parseInt(value);
+            } catch (NumberFormatException ignored) {
+                double asDouble = Double.parseDouble(value); // don't catch this NumberFormatException
+                result = (int) asDouble;
+                if ((double) result != asDouble) {
+                    throw new NumberFormatException(value);
+                }
             }
         }
 
@@ -565,6 +636,59 @@ public final class JsonReader implements Closeable {
         }
     }
 
+    /**
+     * Returns the text of the current string or number, creating it from the
+     * buffer if this is a number that hasn't been read as a string yet.
+     */
+    private String literalValue() {
+        if (value == null && token == JsonToken.NUMBER) {
+            value = stringPool.get(buffer, valuePos, valueLength);
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if the current token is a number still in the buffer that
+     * consists of an optional minus sign and at most {@code maxDigits} digits.
+     */
+    private boolean isPlainInteger(int maxDigits) {
+        if (token != JsonToken.NUMBER || value != null) {
+            return false;
+        }
+        int i = valuePos;
+        int end = valuePos + valueLength;
+        if (buffer[i] == '-') {
+            i++;
+        }
+        if (end - i > maxDigits) {
+            return false;
+        }
+        for (; i < end; i++) {
+            char c = buffer[i];
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of a number for which {@link #isPlainInteger} is true.
+     */
+    private long plainIntegerValue() {
+        int i = valuePos;
+        int end = valuePos + valueLength;
+        boolean negative = buffer[i] == '-';
+        if (negative) {
+            i++;
+        }
+        long result = 0;
+        for (; i < end; i++) {
+            result = result * 10 + (buffer[i] - '0');
+        }
+        return negative ? -result : result;
+    }
+
     private JsonScope peekStack() {
         return stack.get(stack.size() - 1);
     }
@@ -656,7 +780,7 @@ public final class JsonReader implements Closeable {
             case '\'':
                 checkLenient(); // fall-through
             case '"':
-                name = nextString((char) quote);
+                nextQuotedName((char) quote);
                 break;
             default:
                 checkLenient();
@@ -915,6 +1039,39 @@ public final class JsonReader implements Closeable {
         throw syntaxError("Unterminated string");
     }
 
+    /**
+     * Reads a quoted name like {@link #nextString}, but if the name has no
+     * escape sequences and fits in the buffer, only records its position in
+     * {@code namePos} and {@code nameLength} and leaves {@code name} null.
+     */
+    private void nextQuotedName(char quote) throws IOException {
+        int i = pos;
+        while (true) {
+            if (i == limit) {
+                int length = i - pos;
+                if (length + 1 >= buffer.length || !fillBuffer(length + 1)) {
+                    name = nextString(quote);
+                    return;
+                }
+                i = pos + length;
+                continue;
+            }
+            char c = buffer[i];
+            if (c == quote) {
+                name = null;
+                namePos = pos;
+                nameLength = i - pos;
+                pos = i + 1;
+                return;
+            }
+            if (c == '\\') {
+                name = nextString(quote);
+                return;
+            }
+            i++;
+        }
+    }
+
     /**
      * Reads the value up to but not including any delimiter characters. This
      * does not consume the delimiter character.
@@ -1094,8 +1251,12 @@ public final class JsonReader implements Closeable {
             value = FALSE;
             return JsonToken.BOOLEAN;
         } else {
-            value = stringPool.get(buffer, valuePos, valueLength);
-            return decodeNumber(buffer, valuePos, valueLength);
+            // Numbers are left in the buffer and only turned into a string on demand.
+            JsonToken result = decodeNumber(buffer, valuePos, valueLength);
+            value = result == JsonToken.NUMBER
+                    ? null
+                    : stringPool.get(buffer, valuePos, valueLength);
+            return result;
         }
     }
 
@@ -1162,6 +1323,81 @@ public final class JsonReader implements Closeable {
                 + " at line " + getLineNumber() + " column " + getColumnNumber());
     }
 
+    /**
+     * A fixed set of property names to match with {@link #selectName}. Build
+     * one instance per set of names and reuse it across reads.
+     *
+     * @hide
+     */
+    public static final class Options {
+        private final String[] names;
+
+        /** Open addressed table of indices into {@code names}, offset by one. */
+        private final int[] table;
+
+        private Options(String[] names) {
+            this.names = names.clone();
+            int size = Integer.highestOneBit(Math.max(names.length * 2, 2) - 1) << 1;
+            table = new int[size];
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i];
+                if (indexOf(name) != -1) {
+                    throw new IllegalArgumentException("Duplicate name " + name);
+                }
+                int slot = name.hashCode() & (size - 1);
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & (size - 1);
+                }
+                table[slot] = i + 1;
+            }
+        }
+
+        /**
+         * Returns options matching {@code names}; {@link #selectName} returns
+         * indices into this array.
+         */
+        public static Options of(String... names) {
+            return new Options(names);
+        }
+
+        int indexOf(String name) {
+            int mask = table.length - 1;
+            for (int slot = name.hashCode() & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int index = table[slot] - 1;
+                if (names[index].equals(name)) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        int indexOf(char[] chars, int start, int length) {
+            // Same hash as String.hashCode().
+            int hash = 0;
+            for (int i = start; i < start + length; i++) {
+                hash = 31 * hash + chars[i];
+            }
+            int mask = table.length - 1;
+            for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                int index = table[slot] - 1;
+                String name = names[index];
+                if (name.length() == length && contentEquals(name, chars, start)) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+
+        private static boolean contentEquals(String name, char[] chars, int start) {
+            for (int i = 0; i < name.length(); i++) {
+                if (name.charAt(i) != chars[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     private CharSequence getSnippet() {
         StringBuilder snippet = new StringBuilder();
         int beforePos = Math.min(pos, 20);
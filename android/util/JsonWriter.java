@@ -18,6 +18,7 @@ package android.util;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
@@ -140,6 +141,11 @@ public final class JsonWriter implements Closeable {
 
     private boolean lenient;
 
+    /** Scratch space for formatting numbers and escape sequences. */
+    private final char[] scratch = new char[20];
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /**
      * Creates a new instance that writes a JSON-encoded stream to {@code out}.
      * For best performance, ensure {@link Writer} is buffered; wrapping in
@@ -152,6 +158,19 @@ public final class JsonWriter implements Closeable {
         this.out = out;
     }
 
+    /**
+     * Creates a new instance that writes a UTF-8 encoded JSON stream to
+     * {@code out}. Characters are encoded into an internal buffer without an
+     * intermediate {@link java.io.OutputStreamWriter}, so {@code out} does not
+     * need to be buffered. Call {@link #flush} or {@link #close} to write the
+     * buffered output.
+     *
+     * @hide
+     */
+    public JsonWriter(OutputStream out) {
+        this(new Utf8Writer(out));
+    }
+
     /**
      * Sets the indentation string to be repeated for each level of indentation
      * in the encoded document. If {@code indent.isEmpty()} the encoded document
@@ -350,7 +369,22 @@ public final class JsonWriter implements Closeable {
      */
     public JsonWriter value(long value) throws IOException {
         beforeValue(false);
-        out.write(Long.toString(value));
+        if (value == Long.MIN_VALUE) {
+            out.write(Long.toString(value));
+            return this;
+        }
+        // Format into the scratch buffer to avoid creating a string.
+        boolean negative = value < 0;
+        long remaining = negative ? -value : value;
+        int start = scratch.length;
+        do {
+            scratch[--start] = (char) ('0' + (remaining % 10));
+            remaining /= 10;
+        } while (remaining != 0);
+        if (negative) {
+            scratch[--start] = '-';
+        }
+        out.write(scratch, start, scratch.length - start);
         return this;
     }
 
@@ -399,6 +433,8 @@ public final class JsonWriter implements Closeable {
 
     private void string(String value) throws IOException {
         out.write("\"");
+        /* the index of the first character not yet written. */
+        int start = 0;
         for (int i = 0, length = value.length(); i < length; i++) {
             char c = value.charAt(i);
 
@@ -412,7 +448,17 @@ public final class JsonWriter implements Closeable {
              * as newline characters. This prevents eval() from failing with a
              * syntax error.
              * http://code.google.com/p/google-gson/issues/detail?id=341
+             *
+             * Runs of characters that need no escaping are written at once.
              */
+            if (c > 0x1F && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            if (i > start) {
+                out.write(value, start, i - start);
+            }
+            start = i + 1;
+
             switch (c) {
                 case '"':
                 case '\\':
@@ -440,24 +486,31 @@ public final class JsonWriter implements Closeable {
                     out.write("\\f");
                     break;
 
-                case '\u2028':
-                case '\u2029':
-                    out.write(String.format("\\u%04x", (int) c));
-                    break;
-
                 default:
-                    if (c <= 0x1F) {
-                        out.write(String.format("\\u%04x", (int) c));
-                    } else {
-                        out.write(c);
-                    }
+                    unicodeEscape(c);
                     break;
             }
-
+        }
+        if (value.length() > start) {
+            out.write(value, start, value.length() - start);
         }
         out.write("\"");
     }
 
+    /**
+     * Writes {@code c} as a "\\u" escape, equivalent to
+     * {@code String.format("\\u%04x", (int) c)}.
+     */
+    private void unicodeEscape(char c) throws IOException {
+        scratch[0] = '\\';
+        scratch[1] = 'u';
+        scratch[2] = HEX_DIGITS[(c >> 12) & 0xf];
+        scratch[3] = HEX_DIGITS[(c >> 8) & 0xf];
+        scratch[4] = HEX_DIGITS[(c >> 4) & 0xf];
+        scratch[5] = HEX_DIGITS[c & 0xf];
+        out.write(scratch, 0, 6);
+    }
+
     private void newline() throws IOException {
         if (indent == null) {
             return;
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Buffered UTF-8 encoder writing to an {@link OutputStream} without going through a
+ * {@link java.nio.charset.CharsetEncoder}. ASCII runs are copied with a single comparison per
+ * char. Unpaired surrogates are replaced with '?', as {@link java.io.OutputStreamWriter} does.
+ *
+ * <p>This class is not thread safe.
+ */
+final class Utf8Writer extends Writer {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream mOut;
+    private byte[] mBytes = new byte[BUFFER_SIZE];
+    private int mPos;
+
+    /** First half of a surrogate pair whose second half has not been written yet, or 0. */
+    private char mPendingHighSurrogate;
+
+    Utf8Writer(OutputStream out) {
+        mOut = out;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        writeChar((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (mPos == BUFFER_SIZE) {
+                flushBuffer();
+            }
+            final byte[] bytes = mBytes;
+            int pos = mPos;
+            final int asciiEnd = Math.min(end, i + (BUFFER_SIZE - pos));
+            char c;
+            while (i < asciiEnd && (c = cbuf[i]) < 0x80 && mPendingHighSurrogate == 0) {
+                bytes[pos++] = (byte) c;
+                i++;
+            }
+            mPos = pos;
+            if (i < asciiEnd) {
+                writeChar(cbuf[i++]);
+            }
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        final int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (mPos == BUFFER_SIZE) {
+                flushBuffer();
+            }
+            final byte[] bytes = mBytes;
+            int pos = mPos;
+            final int asciiEnd = Math.min(end, i + (BUFFER_SIZE - pos));
+            char c;
+            while (i < asciiEnd && (c = str.charAt(i)) < 0x80 && mPendingHighSurrogate == 0) {
+                bytes[pos++] = (byte) c;
+                i++;
+            }
+            mPos = pos;
+            if (i < asciiEnd) {
+                writeChar(str.charAt(i++));
+            }
+        }
+    }
+
+    private void writeChar(char c) throws IOException {
+        if (BUFFER_SIZE - mPos < 4) {
+            flushBuffer();
+        }
+        final byte[] bytes = mBytes;
+        if (mPendingHighSurrogate != 0) {
+            final char high = mPendingHighSurrogate;
+            mPendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                final int codePoint = Character.toCodePoint(high, c);
+                bytes[mPos++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[mPos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[mPos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[mPos++] = (byte) (0x80 | (codePoint & 0x3f));
+                return;
+            }
+            bytes[mPos++] = '?';
+        }
+
+        if (c < 0x80) {
+            bytes[mPos++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[mPos++] = (byte) (0xc0 | (c >> 6));
+            bytes[mPos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)) {
+            mPendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            bytes[mPos++] = '?';
+        } else {
+            bytes[mPos++] = (byte) (0xe0 | (c >> 12));
+            bytes[mPos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[mPos++] = (byte) (0x80 | (c & 0x3f));
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBytes == null) {
+            throw new IOException("Writer is closed");
+        }
+        if (mPos > 0) {
+            mOut.write(mBytes, 0, mPos);
+            mPos = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mBytes == null) {
+            return;
+        }
+        if (mPendingHighSurrogate != 0) {
+            mPendingHighSurrogate = 0;
+            writeChar('?');
+        }
+        flushBuffer();
+        mBytes = null;
+        mOut.close();
+    }
+}
@@ -22,6 +22,7 @@ import android.system.Os;
 import android.system.OsConstants;
 
 import dalvik.system.CloseGuard;
+import java.io.Closeable;
 import java.io.FileDescriptor;
 import java.io.FilterInputStream;
 import java.io.IOException;
@@ -30,6 +31,7 @@ import java.security.cert.Certificate;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.jar.JarFile;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -219,6 +221,161 @@ public final class StrictJarFile {
         return is;
     }
 
+    /**
+     * Receives the entries read by {@link #readEntries}.
+     */
+    public interface EntryConsumer {
+        /**
+         * Called once for each entry, on a thread of the executor passed to
+         * {@link #readEntries}. Calls for different entries may run concurrently
+         * and in any order.
+         *
+         * @param contents the uncompressed, verified contents of the entry.
+         * @param certChains the entry's certificate chains, as returned by
+         *        {@link #getCertificateChains}.
+         */
+        void accept(ZipEntry entry, byte[] contents, Certificate[][] certChains)
+                throws IOException;
+    }
+
+    /**
+     * Reads every file entry whose name starts with {@code prefix}, using
+     * {@code executor} to inflate and verify entries in parallel.
+     *
+     * The central directory is walked once on the calling thread, and each
+     * entry is handed to the executor as soon as it is found. No more than
+     * {@code maxBytesInFlight} bytes of uncompressed entry data are held at
+     * once, except that an entry larger than the limit is read on its own.
+     *
+     * This method returns once every scheduled entry has been processed. If
+     * an entry fails to read or verify, or the consumer throws, no further
+     * entries are scheduled and the first failure is rethrown.
+     *
+     * @throws SecurityException if an entry does not match its digest in the
+     *         manifest.
+     */
+    public void readEntries(String prefix, Executor executor, long maxBytesInFlight,
+            EntryConsumer consumer) throws IOException, InterruptedException {
+        final BulkRead bulkRead = new BulkRead(maxBytesInFlight);
+        try (EntryIterator entryIterator = new EntryIterator(nativeHandle, prefix)) {
+            while (entryIterator.hasNext()) {
+                final ZipEntry ze = entryIterator.next();
+                if (ze.isDirectory()) {
+                    continue;
+                }
+                final long size = ze.getSize();
+                if (size < 0 || size > Integer.MAX_VALUE - 8) {
+                    throw new IOException("Entry too large to read: " + ze.getName());
+                }
+                if (!bulkRead.acquire(size)) {
+                    break;
+                }
+
+                try {
+                    executor.execute(() -> {
+                        try {
+                            final byte[] contents = readEntry(ze, (int) size);
+                            consumer.accept(ze, contents, getCertificateChains(ze));
+                        } catch (Throwable t) {
+                            bulkRead.fail(t);
+                        } finally {
+                            bulkRead.release(size);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    bulkRead.release(size);
+                    throw e;
+                }
+            }
+        } finally {
+            // The tasks share our file descriptor, so never return while any are running
+            bulkRead.awaitCompletion();
+        }
+        bulkRead.rethrowFailure();
+    }
+
+    private byte[] readEntry(ZipEntry ze, int size) throws IOException {
+        final byte[] contents = new byte[size];
+        try (InputStream is = getInputStream(ze)) {
+            Streams.readFully(is, contents);
+            // Reaching the end of the stream checks the inflated size and
+            // triggers verification of empty entries
+            if (is.read() != -1) {
+                throw new IOException("Size mismatch on inflated file: " + ze.getName());
+            }
+        }
+        return contents;
+    }
+
+    /**
+     * Tracks the entries that {@link #readEntries} has handed to its executor.
+     */
+    private static final class BulkRead {
+        private final long maxBytesInFlight;
+        private long bytesInFlight;
+        private int pending;
+        private Throwable failure;
+
+        BulkRead(long maxBytesInFlight) {
+            this.maxBytesInFlight = maxBytesInFlight;
+        }
+
+        /**
+         * Waits until {@code size} bytes fit within the limit. Returns false if
+         * a task has failed and no more should be scheduled.
+         */
+        synchronized boolean acquire(long size) throws InterruptedException {
+            while (failure == null && pending > 0 && bytesInFlight + size > maxBytesInFlight) {
+                wait();
+            }
+            if (failure != null) {
+                return false;
+            }
+            bytesInFlight += size;
+            pending++;
+            return true;
+        }
+
+        synchronized void release(long size) {
+            bytesInFlight -= size;
+            pending--;
+            notifyAll();
+        }
+
+        synchronized void fail(Throwable t) {
+            if (failure == null) {
+                failure = t;
+            }
+            notifyAll();
+        }
+
+        synchronized void awaitCompletion() {
+            boolean interrupted = false;
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void rethrowFailure() throws IOException {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new IOException(failure);
+            }
+        }
+    }
+
     public void close() throws IOException {
         if (!closed) {
             if (guard != null) {
@@ -256,9 +413,11 @@ public final class StrictJarFile {
         }
     }
 
-    static final class EntryIterator implements Iterator<ZipEntry> {
+    static final class EntryIterator implements Iterator<ZipEntry>, Closeable {
         private final long iterationHandle;
         private ZipEntry nextEntry;
+        // The native side frees the iteration once it runs out of entries
+        private boolean ended;
 
         EntryIterator(long nativeHandle, String prefix) throws IOException {
             iterationHandle = nativeStartIteration(nativeHandle, prefix);
@@ -271,7 +430,7 @@ public final class StrictJarFile {
                 return ze;
             }
 
-            return nativeNextEntry(iterationHandle);
+            return nativeNextEntryOrEnd();
         }
 
         public boolean hasNext() {
@@ -279,7 +438,7 @@ public final class StrictJarFile {
                 return true;
             }
 
-            final ZipEntry ze = nativeNextEntry(iterationHandle);
+            final ZipEntry ze = nativeNextEntryOrEnd();
             if (ze == null) {
                 return false;
             }
@@ -291,6 +450,29 @@ public final class StrictJarFile {
         public void remove() {
             throw new UnsupportedOperationException();
         }
+
+        /**
+         * Releases the native iteration if the caller stops before reaching the
+         * last entry, by reading through the remaining entries.
+         */
+        @Override
+        public void close() {
+            nextEntry = null;
+            while (nativeNextEntryOrEnd() != null) {
+                // Skip to the end
+            }
+        }
+
+        private ZipEntry nativeNextEntryOrEnd() {
+            if (ended) {
+                return null;
+            }
+            final ZipEntry ze = nativeNextEntry(iterationHandle);
+            if (ze == null) {
+                ended = true;
+            }
+            return ze;
+        }
     }
 
     private HashMap<String, byte[]> getMetaEntries() throws IOException {
@@ -435,9 +617,9 @@ public final class StrictJarFile {
 
     /**
      * Wrap a stream around a FileDescriptor.  The file descriptor is shared
-     * among all streams returned by getInputStream(), so we have to synchronize
-     * access to it.  (We can optimize this by adding buffering here to reduce
-     * collisions.)
+     * among all streams returned by getInputStream(), so each read is a
+     * positioned pread(2) that leaves the file offset untouched. Streams can
+     * therefore be read from several threads at once without locking.
      *
      * <p>We could support mark/reset, but we don't currently need them.
      *
@@ -463,23 +645,24 @@ public final class StrictJarFile {
         }
 
         @Override public int read(byte[] buffer, int byteOffset, int byteCount) throws IOException {
-            synchronized (this.fd) {
-                final long length = endOffset - offset;
-                if (byteCount > length) {
-                    byteCount = (int) length;
-                }
-                try {
-                    Os.lseek(fd, offset, OsConstants.SEEK_SET);
-                } catch (ErrnoException e) {
-                    throw new IOException(e);
-                }
-                int count = IoBridge.read(fd, buffer, byteOffset, byteCount);
-                if (count > 0) {
-                    offset += count;
-                    return count;
-                } else {
-                    return -1;
-                }
+            final long length = endOffset - offset;
+            if (byteCount > length) {
+                byteCount = (int) length;
+            }
+            if (byteCount == 0) {
+                return -1;
+            }
+            final int count;
+            try {
+                count = Os.pread(fd, buffer, byteOffset, byteCount, offset);
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+            if (count > 0) {
+                offset += count;
+                return count;
+            } else {
+                return -1;
             }
         }
 
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util.jar;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import libcore.io.Streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compares reading every entry of a package one at a time with
+ * {@link StrictJarFile#readEntries}.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StrictJarFilePerfTest {
+    private static final String PACKAGE_PATH = "/system/framework/framework-res.apk";
+    private static final int THREAD_COUNT = 4;
+    private static final long MAX_BYTES_IN_FLIGHT = 8 * 1024 * 1024;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(THREAD_COUNT);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void testReadAllEntries_sequential() throws Exception {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            StrictJarFile jarFile = new StrictJarFile(PACKAGE_PATH);
+            try {
+                Iterator<ZipEntry> it = jarFile.iterator();
+                while (it.hasNext()) {
+                    ZipEntry entry = it.next();
+                    if (!entry.isDirectory()) {
+                        Streams.readFully(jarFile.getInputStream(entry));
+                        jarFile.getCertificateChains(entry);
+                    }
+                }
+            } finally {
+                jarFile.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReadAllEntries_parallel() throws Exception {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            StrictJarFile jarFile = new StrictJarFile(PACKAGE_PATH);
+            try {
+                jarFile.readEntries("", mExecutor, MAX_BYTES_IN_FLIGHT,
+                        (entry, contents, certChains) -> {});
+            } finally {
+                jarFile.close();
+            }
+        }
+    }
+}
@@ -147,6 +147,19 @@ public final class Choreographer {
     private static final int SKIPPED_FRAME_WARNING_LIMIT = SystemProperties.getInt(
             "debug.choreographer.skipwarning", 30);
 
+    // Enable/disable the frame budget: deferrable callbacks that would run after the budget
+    // is spent are pushed to the next frame, and per-frame callback costs are recorded.
+    private static final boolean USE_FRAME_BUDGET = SystemProperties.getBoolean(
+            "debug.choreographer.framebudget", false);
+
+    // Percentage of the vsync interval, measured from the frame time, that callbacks may use
+    // before deferrable callbacks are pushed to the next frame.
+    private static final int FRAME_BUDGET_PERCENT = SystemProperties.getInt(
+            "debug.choreographer.framebudget_percent", 80);
+
+    // Number of frames kept in the callback cost history reported by dump().
+    private static final int FRAME_COST_HISTORY_SIZE = 120;
+
     private static final int MSG_DO_FRAME = 0;
     private static final int MSG_DO_SCHEDULE_VSYNC = 1;
     private static final int MSG_DO_SCHEDULE_CALLBACK = 2;
@@ -187,6 +200,13 @@ public final class Choreographer {
 
     private boolean mDebugPrintNextFrameTimeDelta;
     private int mFPSDivisor = 1;
+
+    private boolean mFrameBudgetEnabled = USE_FRAME_BUDGET;
+    // Time by which the callbacks of the frame in progress should be done, or 0 when the
+    // frame budget is not applied to the frame in progress.
+    private long mFrameBudgetDeadlineNanos;
+    private final FrameCostHistory mFrameCostHistory =
+            new FrameCostHistory(FRAME_COST_HISTORY_SIZE);
     private DisplayEventReceiver.VsyncEventData mLastVsyncEventData =
             new DisplayEventReceiver.VsyncEventData();
 
@@ -261,6 +281,24 @@ public final class Choreographer {
 
     private static final int CALLBACK_LAST = CALLBACK_COMMIT;
 
+    /**
+     * Callback priority: runs before the other due callbacks of the same type.
+     * @hide
+     */
+    public static final int CALLBACK_PRIORITY_HIGH = 1;
+
+    /**
+     * Callback priority: the priority of callbacks posted without one.
+     * @hide
+     */
+    public static final int CALLBACK_PRIORITY_NORMAL = 0;
+
+    /**
+     * Callback priority: runs after the other due callbacks of the same type.
+     * @hide
+     */
+    public static final int CALLBACK_PRIORITY_LOW = -1;
+
     private Choreographer(Looper looper, int vsyncSource) {
         mLooper = looper;
         mHandler = new FrameHandler(looper);
@@ -410,6 +448,31 @@ public final class Choreographer {
                 writer.println(mFrameScheduled);
         writer.print(innerPrefix); writer.print("mLastFrameTime=");
                 writer.println(TimeUtils.formatUptime(mLastFrameTimeNanos / 1000000));
+        synchronized (mLock) {
+            writer.print(innerPrefix); writer.print("mFrameBudgetEnabled=");
+                    writer.println(mFrameBudgetEnabled);
+            if (mFrameBudgetEnabled || mFrameCostHistory.size() > 0) {
+                mFrameCostHistory.dump(innerPrefix, writer);
+            }
+        }
+    }
+
+    /**
+     * Enables or disables the frame budget for this choreographer.
+     * <p>
+     * While enabled, callbacks posted as deferrable that have not started by the time
+     * {@code FRAME_BUDGET_PERCENT} of the vsync interval has elapsed since the frame time
+     * are pushed to the next frame, due callbacks run in priority order, and the time
+     * spent in each callback type is recorded for {@link #dump}.
+     * </p>
+     *
+     * @param enabled Whether the frame budget should be applied.
+     * @hide
+     */
+    public void setFrameBudgetEnabled(boolean enabled) {
+        synchronized (mLock) {
+            mFrameBudgetEnabled = enabled;
+        }
     }
 
     /**
@@ -456,21 +519,63 @@ public final class Choreographer {
             throw new IllegalArgumentException("callbackType is invalid");
         }
 
-        postCallbackDelayedInternal(callbackType, action, token, delayMillis);
+        postCallbackDelayedInternal(callbackType, action, token, delayMillis,
+                CALLBACK_PRIORITY_NORMAL, false);
+    }
+
+    /**
+     * Posts a callback with a priority to run on the next frame after the specified delay.
+     * <p>
+     * The callback runs once then is automatically removed.  While the
+     * {@link #setFrameBudgetEnabled frame budget} is enabled, due callbacks of the same type
+     * run in priority order and a deferrable callback that has not started when the budget
+     * is spent runs during the next frame instead.  Otherwise this behaves like
+     * {@link #postCallbackDelayed}.
+     * </p>
+     *
+     * @param callbackType The callback type.
+     * @param action The callback action to run during the next frame after the specified delay.
+     * @param token The callback token, or null if none.
+     * @param delayMillis The delay time in milliseconds.
+     * @param priority One of {@link #CALLBACK_PRIORITY_HIGH}, {@link #CALLBACK_PRIORITY_NORMAL}
+     * or {@link #CALLBACK_PRIORITY_LOW}.
+     * @param deferrable Whether the callback may be pushed to the next frame.
+     *
+     * @see #removeCallbacks
+     * @hide
+     */
+    public void postCallbackWithPriority(int callbackType, Runnable action, Object token,
+            long delayMillis, int priority, boolean deferrable) {
+        if (action == null) {
+            throw new IllegalArgumentException("action must not be null");
+        }
+        if (callbackType < 0 || callbackType > CALLBACK_LAST) {
+            throw new IllegalArgumentException("callbackType is invalid");
+        }
+        if (priority < CALLBACK_PRIORITY_LOW || priority > CALLBACK_PRIORITY_HIGH) {
+            throw new IllegalArgumentException("priority is invalid");
+        }
+
+        postCallbackDelayedInternal(callbackType, action, token, delayMillis, priority,
+                deferrable);
     }
 
     private void postCallbackDelayedInternal(int callbackType,
-            Object action, Object token, long delayMillis) {
+            Object action, Object token, long delayMillis, int priority, boolean deferrable) {
         if (DEBUG_FRAMES) {
             Log.d(TAG, "PostCallback: type=" + callbackType
                     + ", action=" + action + ", token=" + token
-                    + ", delayMillis=" + delayMillis);
+                    + ", delayMillis=" + delayMillis
+                    + ", priority=" + priority + ", deferrable=" + deferrable);
         }
 
         synchronized (mLock) {
             final long now = SystemClock.uptimeMillis();
             final long dueTime = now + delayMillis;
-            mCallbackQueues[callbackType].addCallbackLocked(dueTime, action, token);
+            final CallbackRecord callback = obtainCallbackLocked(dueTime, action, token);
+            callback.priority = priority;
+            callback.deferrable = deferrable;
+            mCallbackQueues[callbackType].addCallbackLocked(callback);
 
             if (dueTime <= now) {
                 scheduleFrameLocked(now);
@@ -553,7 +658,7 @@ public final class Choreographer {
         }
 
         postCallbackDelayedInternal(CALLBACK_ANIMATION,
-                callback, FRAME_CALLBACK_TOKEN, delayMillis);
+                callback, FRAME_CALLBACK_TOKEN, delayMillis, CALLBACK_PRIORITY_NORMAL, false);
     }
 
     /**
@@ -764,6 +869,14 @@ public final class Choreographer {
                 mLastFrameTimeNanos = frameTimeNanos;
                 mLastFrameIntervalNanos = frameIntervalNanos;
                 mLastVsyncEventData = vsyncEventData;
+
+                if (mFrameBudgetEnabled) {
+                    mFrameBudgetDeadlineNanos = frameTimeNanos
+                            + frameIntervalNanos * FRAME_BUDGET_PERCENT / 100;
+                    mFrameCostHistory.beginFrame(vsyncEventData.id, frameTimeNanos);
+                } else {
+                    mFrameBudgetDeadlineNanos = 0;
+                }
             }
 
             AnimationUtils.lockAnimationClock(frameTimeNanos / TimeUtils.NANOS_PER_MS);
@@ -781,6 +894,12 @@ public final class Choreographer {
 
             doCallbacks(Choreographer.CALLBACK_COMMIT, frameTimeNanos, frameIntervalNanos);
         } finally {
+            if (mFrameBudgetDeadlineNanos != 0) {
+                synchronized (mLock) {
+                    mFrameCostHistory.endFrame();
+                    mFrameBudgetDeadlineNanos = 0;
+                }
+            }
             AnimationUtils.unlockAnimationClock();
             Trace.traceEnd(Trace.TRACE_TAG_VIEW);
         }
@@ -795,16 +914,22 @@ public final class Choreographer {
 
     void doCallbacks(int callbackType, long frameTimeNanos, long frameIntervalNanos) {
         CallbackRecord callbacks;
+        final long budgetDeadlineNanos = mFrameBudgetDeadlineNanos;
+        final long startNanos;
         synchronized (mLock) {
             // We use "now" to determine when callbacks become due because it's possible
             // for earlier processing phases in a frame to post callbacks that should run
             // in a following phase, such as an input event that causes an animation to start.
             final long now = System.nanoTime();
+            startNanos = now;
             callbacks = mCallbackQueues[callbackType].extractDueCallbacksLocked(
                     now / TimeUtils.NANOS_PER_MS);
             if (callbacks == null) {
                 return;
             }
+            if (budgetDeadlineNanos != 0) {
+                callbacks = sortByPriority(callbacks);
+            }
             mCallbacksRunning = true;
 
             // Update the frame time if necessary when committing the frame.
@@ -842,21 +967,85 @@ public final class Choreographer {
                             + ", action=" + c.action + ", token=" + c.token
                             + ", latencyMillis=" + (SystemClock.uptimeMillis() - c.dueTime));
                 }
+                // A callback is only ever pushed back once so it cannot be starved by a
+                // sequence of frames that are all over budget.
+                if (budgetDeadlineNanos != 0 && c.deferrable && !c.wasDeferred
+                        && System.nanoTime() > budgetDeadlineNanos) {
+                    c.deferred = true;
+                    c.wasDeferred = true;
+                    continue;
+                }
                 c.run(frameTimeNanos);
             }
         } finally {
             synchronized (mLock) {
                 mCallbacksRunning = false;
+                int ran = 0;
+                int deferred = 0;
                 do {
                     final CallbackRecord next = callbacks.next;
-                    recycleCallbackLocked(callbacks);
+                    if (callbacks.deferred) {
+                        callbacks.deferred = false;
+                        callbacks.next = null;
+                        mCallbackQueues[callbackType].addCallbackLocked(callbacks);
+                        deferred++;
+                    } else {
+                        recycleCallbackLocked(callbacks);
+                        ran++;
+                    }
                     callbacks = next;
                 } while (callbacks != null);
+                if (budgetDeadlineNanos != 0) {
+                    mFrameCostHistory.addCallbacks(callbackType, System.nanoTime() - startNanos,
+                            ran, deferred);
+                }
+                if (deferred > 0) {
+                    if (DEBUG_JANK) {
+                        Log.d(TAG, "Deferred " + deferred + " "
+                                + CALLBACK_TRACE_TITLES[callbackType]
+                                + " callbacks to the next frame.");
+                    }
+                    scheduleFrameLocked(SystemClock.uptimeMillis());
+                }
             }
             Trace.traceEnd(Trace.TRACE_TAG_VIEW);
         }
     }
 
+    /**
+     * Stably reorders a list of due callbacks so higher priority callbacks run first.
+     */
+    private static CallbackRecord sortByPriority(CallbackRecord callbacks) {
+        CallbackRecord highHead = null, highTail = null;
+        CallbackRecord normalHead = null, normalTail = null;
+        CallbackRecord lowHead = null, lowTail = null;
+        for (CallbackRecord c = callbacks; c != null;) {
+            final CallbackRecord next = c.next;
+            c.next = null;
+            if (c.priority == CALLBACK_PRIORITY_HIGH) {
+                if (highTail == null) highHead = c; else highTail.next = c;
+                highTail = c;
+            } else if (c.priority == CALLBACK_PRIORITY_LOW) {
+                if (lowTail == null) lowHead = c; else lowTail.next = c;
+                lowTail = c;
+            } else {
+                if (normalTail == null) normalHead = c; else normalTail.next = c;
+                normalTail = c;
+            }
+            c = next;
+        }
+        if (normalTail != null) {
+            normalTail.next = lowHead;
+        } else {
+            normalHead = lowHead;
+        }
+        if (highTail != null) {
+            highTail.next = normalHead;
+            return highHead;
+        }
+        return normalHead;
+    }
+
     void doScheduleVsync() {
         synchronized (mLock) {
             if (mFrameScheduled) {
@@ -901,12 +1090,16 @@ public final class Choreographer {
         callback.dueTime = dueTime;
         callback.action = action;
         callback.token = token;
+        callback.priority = CALLBACK_PRIORITY_NORMAL;
+        callback.deferrable = false;
+        callback.wasDeferred = false;
         return callback;
     }
 
     private void recycleCallbackLocked(CallbackRecord callback) {
         callback.action = null;
         callback.token = null;
+        callback.deferred = false;
         callback.next = mCallbackPool;
         mCallbackPool = callback;
     }
@@ -1028,6 +1221,11 @@ public final class Choreographer {
         public long dueTime;
         public Object action; // Runnable or FrameCallback
         public Object token;
+        public int priority;
+        public boolean deferrable;
+        // Set while a deferrable callback is skipped for the frame in progress.
+        public boolean deferred;
+        public boolean wasDeferred;
 
         @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
         public void run(long frameTimeNanos) {
@@ -1068,7 +1266,11 @@ public final class Choreographer {
 
         @UnsupportedAppUsage
         public void addCallbackLocked(long dueTime, Object action, Object token) {
-            CallbackRecord callback = obtainCallbackLocked(dueTime, action, token);
+            addCallbackLocked(obtainCallbackLocked(dueTime, action, token));
+        }
+
+        public void addCallbackLocked(CallbackRecord callback) {
+            final long dueTime = callback.dueTime;
             CallbackRecord entry = mHead;
             if (entry == null) {
                 mHead = callback;
@@ -1108,4 +1310,87 @@ public final class Choreographer {
             }
         }
     }
+
+    /**
+     * Ring buffer of the time spent running each callback type over the most recent frames
+     * for which the frame budget was enabled.  Guarded by the choreographer lock.
+     */
+    private static final class FrameCostHistory {
+        private static final int TYPES = CALLBACK_LAST + 1;
+
+        private final int mCapacity;
+        private final long[] mVsyncIds;
+        private final long[] mFrameTimesNanos;
+        private final long[] mCallbackNanos;
+        private final int[] mCallbackCounts;
+        private final int[] mDeferredCounts;
+        private int mNext;
+        private int mSize;
+        private boolean mInFrame;
+
+        FrameCostHistory(int capacity) {
+            mCapacity = capacity;
+            mVsyncIds = new long[capacity];
+            mFrameTimesNanos = new long[capacity];
+            mCallbackNanos = new long[capacity * TYPES];
+            mCallbackCounts = new int[capacity];
+            mDeferredCounts = new int[capacity];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void beginFrame(long vsyncId, long frameTimeNanos) {
+            final int slot = mNext;
+            mVsyncIds[slot] = vsyncId;
+            mFrameTimesNanos[slot] = frameTimeNanos;
+            for (int i = 0; i < TYPES; i++) {
+                mCallbackNanos[slot * TYPES + i] = 0;
+            }
+            mCallbackCounts[slot] = 0;
+            mDeferredCounts[slot] = 0;
+            mInFrame = true;
+        }
+
+        void addCallbacks(int callbackType, long nanos, int ran, int deferred) {
+            if (!mInFrame) {
+                return;
+            }
+            final int slot = mNext;
+            mCallbackNanos[slot * TYPES + callbackType] += nanos;
+            mCallbackCounts[slot] += ran;
+            mDeferredCounts[slot] += deferred;
+        }
+
+        void endFrame() {
+            if (!mInFrame) {
+                return;
+            }
+            mInFrame = false;
+            mNext = (mNext + 1) % mCapacity;
+            if (mSize < mCapacity) {
+                mSize++;
+            }
+        }
+
+        void dump(String prefix, PrintWriter writer) {
+            writer.print(prefix); writer.print("Frame callback costs (last ");
+                    writer.print(mSize); writer.println(" frames, ms):");
+            final String innerPrefix = prefix + "  ";
+            for (int n = 0; n < mSize; n++) {
+                final int slot = (mNext - mSize + n + mCapacity) % mCapacity;
+                writer.print(innerPrefix);
+                writer.print("vsyncId="); writer.print(mVsyncIds[slot]);
+                writer.print(" frameTime=");
+                writer.print(TimeUtils.formatUptime(mFrameTimesNanos[slot] / 1000000));
+                for (int i = 0; i < TYPES; i++) {
+                    writer.print(' '); writer.print(CALLBACK_TRACE_TITLES[i]); writer.print('=');
+                    writer.print(mCallbackNanos[slot * TYPES + i] * 0.000001f);
+                }
+                writer.print(" callbacks="); writer.print(mCallbackCounts[slot]);
+                writer.print(" deferred="); writer.println(mDeferredCounts[slot]);
+            }
+        }
+    }
 }
@@ -201,6 +201,7 @@ import com.android.internal.util.Preconditions;
 import com.android.internal.view.BaseSurfaceHolder;
 import com.android.internal.view.RootViewSurfaceTaker;
 import com.android.internal.view.SurfaceCallbackHelper;
+import com.android.internal.widget.RecyclerView;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -8056,6 +8057,9 @@ public final class ViewRootImpl implements ViewParent,
             return;
         }
         writer.println(view.toString());
+        if (view instanceof RecyclerView) {
+            ((RecyclerView) view).dumpPrefetchMetrics(prefix + "    ", writer);
+        }
         if (!(view instanceof ViewGroup)) {
             return;
         }
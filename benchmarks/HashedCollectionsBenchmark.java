@@ -16,15 +16,34 @@
 
 package benchmarks;
 
+import android.util.HashedLongSparseLongArray;
+import android.util.HashedSparseArray;
+import android.util.HashedSparseIntArray;
+import android.util.LongSparseLongArray;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.LinkedHashMap;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * How do the various hash maps compare?
  */
 public class HashedCollectionsBenchmark {
+    private static final int[] KEYS_10K = randomKeys(10_000);
+    private static final int[] KEYS_100K = randomKeys(100_000);
+
+    private static int[] randomKeys(int count) {
+        Random random = new Random(42);
+        int[] keys = new int[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextInt();
+        }
+        return keys;
+    }
+
     public void timeHashMapGet(int reps) {
         HashMap<String, String> map = new HashMap<String, String>();
         map.put("hello", "world");
@@ -64,4 +83,123 @@ public class HashedCollectionsBenchmark {
             map.get("hello");
         }
     }
+
+    // Sorted sparse arrays against their open-addressing counterparts, filled with random keys.
+
+    public void timeSparseIntArrayPut_10k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            SparseIntArray map = new SparseIntArray();
+            for (int key : KEYS_10K) {
+                map.put(key, key);
+            }
+        }
+    }
+    public void timeHashedSparseIntArrayPut_10k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            HashedSparseIntArray map = new HashedSparseIntArray();
+            for (int key : KEYS_10K) {
+                map.put(key, key);
+            }
+        }
+    }
+    public void timeSparseIntArrayPut_100k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            SparseIntArray map = new SparseIntArray();
+            for (int key : KEYS_100K) {
+                map.put(key, key);
+            }
+        }
+    }
+    public void timeHashedSparseIntArrayPut_100k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            HashedSparseIntArray map = new HashedSparseIntArray();
+            for (int key : KEYS_100K) {
+                map.put(key, key);
+            }
+        }
+    }
+    public int timeSparseIntArrayGet_100k(int reps) {
+        SparseIntArray map = new SparseIntArray();
+        for (int key : KEYS_100K) {
+            map.put(key, key);
+        }
+        int result = 0;
+        for (int i = 0; i < reps; ++i) {
+            result += map.get(KEYS_100K[i % KEYS_100K.length]);
+        }
+        return result;
+    }
+    public int timeHashedSparseIntArrayGet_100k(int reps) {
+        HashedSparseIntArray map = new HashedSparseIntArray();
+        for (int key : KEYS_100K) {
+            map.put(key, key);
+        }
+        int result = 0;
+        for (int i = 0; i < reps; ++i) {
+            result += map.get(KEYS_100K[i % KEYS_100K.length]);
+        }
+        return result;
+    }
+    public void timeSparseIntArrayPutDelete_10k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            SparseIntArray map = new SparseIntArray();
+            for (int key : KEYS_10K) {
+                map.put(key, key);
+            }
+            for (int key : KEYS_10K) {
+                map.delete(key);
+            }
+        }
+    }
+    public void timeHashedSparseIntArrayPutDelete_10k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            HashedSparseIntArray map = new HashedSparseIntArray();
+            for (int key : KEYS_10K) {
+                map.put(key, key);
+            }
+            for (int key : KEYS_10K) {
+                map.delete(key);
+            }
+        }
+    }
+    public void timeLongSparseLongArrayPut_10k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            LongSparseLongArray map = new LongSparseLongArray();
+            for (int key : KEYS_10K) {
+                map.put((long) key << 16, key);
+            }
+        }
+    }
+    public void timeHashedLongSparseLongArrayPut_10k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            HashedLongSparseLongArray map = new HashedLongSparseLongArray();
+            for (int key : KEYS_10K) {
+                map.put((long) key << 16, key);
+            }
+        }
+    }
+    public void timeSparseArrayPut_10k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            SparseArray<String> map = new SparseArray<String>();
+            for (int key : KEYS_10K) {
+                map.put(key, "hello");
+            }
+        }
+    }
+    public void timeHashedSparseArrayPut_10k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            HashedSparseArray<String> map = new HashedSparseArray<String>();
+            for (int key : KEYS_10K) {
+                map.put(key, "hello");
+            }
+        }
+    }
+    public void timeHashMapPut_10k(int reps) {
+        for (int i = 0; i < reps; ++i) {
+            HashMap<Integer, Integer> map = new HashMap<Integer, Integer>();
+            for (int key : KEYS_10K) {
+                map.put(key, key);
+            }
+        }
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import java.io.CharArrayWriter;
+import java.io.StringReader;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Compares eager and lazy parsing of a large org.json document, and encoding it to a string
+ * and to a writer.
+ */
+public class JsonParseBenchmark {
+
+    @Param({"100", "10000"}) int itemCount;
+
+    private String json;
+    private JSONObject document;
+    private final CharArrayWriter writer = new CharArrayWriter();
+
+    @BeforeExperiment
+    protected void setUp() throws JSONException {
+        JSONArray items = new JSONArray();
+        for (int i = 0; i < itemCount; i++) {
+            JSONObject item = new JSONObject();
+            item.put("id", i);
+            item.put("name", "item " + i);
+            item.put("enabled", i % 2 == 0);
+            item.put("weight", i * 0.25);
+            item.put("tags", new JSONArray().put("a").put("b").put("c"));
+            item.put("attributes", new JSONObject().put("color", "red").put("size", i % 10));
+            items.put(item);
+        }
+        document = new JSONObject();
+        document.put("version", 3);
+        document.put("items", items);
+        json = document.toString();
+    }
+
+    public int timeParseEager(int reps) throws JSONException {
+        int result = 0;
+        for (int i = 0; i < reps; i++) {
+            JSONObject object = (JSONObject) new JSONTokener(json).nextValue();
+            result += object.getInt("version");
+        }
+        return result;
+    }
+
+    public int timeParseLazy(int reps) throws JSONException {
+        int result = 0;
+        for (int i = 0; i < reps; i++) {
+            JSONTokener tokener = new JSONTokener(json);
+            tokener.setLazy(true);
+            JSONObject object = (JSONObject) tokener.nextValue();
+            result += object.getInt("version");
+        }
+        return result;
+    }
+
+    public int timeParseLazyFromReaderAndReadAll(int reps) throws Exception {
+        int result = 0;
+        for (int i = 0; i < reps; i++) {
+            JSONTokener tokener = new JSONTokener(new StringReader(json));
+            tokener.setLazy(true);
+            JSONArray items = ((JSONObject) tokener.nextValue()).getJSONArray("items");
+            for (int j = 0; j < items.length(); j++) {
+                result += items.getJSONObject(j).getJSONObject("attributes").getInt("size");
+            }
+        }
+        return result;
+    }
+
+    public int timeParseEagerAndReadAll(int reps) throws JSONException {
+        int result = 0;
+        for (int i = 0; i < reps; i++) {
+            JSONArray items = new JSONObject(json).getJSONArray("items");
+            for (int j = 0; j < items.length(); j++) {
+                result += items.getJSONObject(j).getJSONObject("attributes").getInt("size");
+            }
+        }
+        return result;
+    }
+
+    public int timeToString(int reps) {
+        int result = 0;
+        for (int i = 0; i < reps; i++) {
+            result += document.toString().length();
+        }
+        return result;
+    }
+
+    public int timeWriteToWriter(int reps) throws Exception {
+        int result = 0;
+        for (int i = 0; i < reps; i++) {
+            writer.reset();
+            document.write(writer);
+            result += writer.size();
+        }
+        return result;
+    }
+}
@@ -22,7 +22,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.Constructor;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import javax.xml.parsers.DocumentBuilder;
@@ -41,10 +43,14 @@ public class XmlParseBenchmark {
     @Param String xmlFile;
     ByteArrayInputStream inputStream;
 
+    /** A generated document of about 4 MiB, for measuring throughput on large inputs. */
+    private static final String GENERATED_LARGE = "generated-large";
+
     static List<String> xmlFileValues = Arrays.asList(
             "/etc/apns-conf.xml",
             "/etc/media_profiles.xml",
-            "/etc/permissions/features.xml"
+            "/etc/permissions/features.xml",
+            GENERATED_LARGE
     );
 
     private SAXParser saxParser;
@@ -72,6 +78,9 @@ public class XmlParseBenchmark {
     }
 
     private byte[] getXmlBytes() throws IOException {
+        if (GENERATED_LARGE.equals(xmlFile)) {
+            return generateLargeXml();
+        }
         FileInputStream fileIn = new FileInputStream(xmlFile);
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
         int count;
@@ -83,6 +92,18 @@ public class XmlParseBenchmark {
         return bytesOut.toByteArray();
     }
 
+    private static byte[] generateLargeXml() {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<resources>\n");
+        for (int i = 0; xml.length() < 4 * 1024 * 1024; i++) {
+            xml.append("  <string name=\"label_").append(i)
+                    .append("\" translatable=\"false\" product=\"default\">Label number ")
+                    .append(i).append(" \u2013 \u00e9t\u00e9</string>\n");
+        }
+        xml.append("</resources>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
     public int timeSax(int reps) throws IOException, SAXException {
         int elementCount = 0;
         for (int i = 0; i < reps; i++) {
@@ -131,6 +152,42 @@ public class XmlParseBenchmark {
         return testXmlPull(kxmlConstructor, reps);
     }
 
+    /** Like {@link #timeKxml}, but decoding through an {@link InputStreamReader}. */
+    public int timeKxmlReader(int reps) throws Exception {
+        int elementCount = 0;
+        for (int i = 0; i < reps; i++) {
+            inputStream.reset();
+            XmlPullParser xmlPullParser = kxmlConstructor.newInstance();
+            xmlPullParser.setInput(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+            int type;
+            while ((type = xmlPullParser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.START_TAG) {
+                    elementCount++;
+                }
+            }
+        }
+        return elementCount;
+    }
+
+    /** Reads every attribute value, exercising the slices returned from the parser's buffer. */
+    public int timeKxmlAttributes(int reps) throws Exception {
+        int length = 0;
+        for (int i = 0; i < reps; i++) {
+            inputStream.reset();
+            XmlPullParser xmlPullParser = kxmlConstructor.newInstance();
+            xmlPullParser.setInput(inputStream, null);
+            int type;
+            while ((type = xmlPullParser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.START_TAG) {
+                    for (int a = 0; a < xmlPullParser.getAttributeCount(); a++) {
+                        length += xmlPullParser.getAttributeValue(a).length();
+                    }
+                }
+            }
+        }
+        return length;
+    }
+
     private int testXmlPull(Constructor<? extends XmlPullParser> constructor, int reps)
             throws Exception {
         int elementCount = 0;
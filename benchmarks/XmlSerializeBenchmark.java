@@ -18,6 +18,7 @@ package benchmarks;
 
 import com.google.caliper.BeforeExperiment;
 import com.google.caliper.Param;
+import java.io.ByteArrayOutputStream;
 import java.io.CharArrayWriter;
 import java.lang.reflect.Constructor;
 import java.util.Random;
@@ -37,8 +38,25 @@ public class XmlSerializeBenchmark {
     private Constructor<? extends XmlSerializer> kxmlConstructor;
     private Constructor<? extends XmlSerializer> fastConstructor;
 
-    private void serializeRandomXml(Constructor<? extends XmlSerializer> ctor, long seed)
-            throws Exception {
+    /** Text with the occasional character that must be escaped or encoded as multiple bytes. */
+    private static final String LONG_TEXT;
+    static {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            text.append("com.example.package_").append(i)
+                    .append(" signature=\"3082\" & flags < 0x10 \u2013 caf\u00e9 ");
+        }
+        LONG_TEXT = text.toString();
+    }
+
+    private final ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+
+    /**
+     * Returns the number of chars or bytes written, so that throughput can be derived from
+     * the reported time.
+     */
+    private int serializeRandomXml(Constructor<? extends XmlSerializer> ctor, long seed,
+            boolean utf8Bytes) throws Exception {
         double contChance = dataset[0];
         double levelUpChance = dataset[1];
         double levelDownChance = dataset[2];
@@ -49,7 +67,12 @@ public class XmlSerializeBenchmark {
         XmlSerializer serializer = (XmlSerializer) ctor.newInstance();
 
         CharArrayWriter w = new CharArrayWriter();
-        serializer.setOutput(w);
+        if (utf8Bytes) {
+            bytesOut.reset();
+            serializer.setOutput(bytesOut, "UTF-8");
+        } else {
+            serializer.setOutput(w);
+        }
         int level = 0;
         Random r = new Random(seed);
         char[] toWrite = {'a','b','c','d','s','z'};
@@ -76,6 +99,25 @@ public class XmlSerializeBenchmark {
                 serializer.text("Textxtsxtxtxt ");
         }
         serializer.endDocument();
+        return utf8Bytes ? bytesOut.size() : w.size();
+    }
+
+    private int serializeLongText(Constructor<? extends XmlSerializer> ctor) throws Exception {
+        XmlSerializer serializer = (XmlSerializer) ctor.newInstance();
+        bytesOut.reset();
+        serializer.setOutput(bytesOut, "UTF-8");
+        serializer.startDocument("UTF-8", true);
+        serializer.startTag(null, "packages");
+        for (int i = 0; i < 256; i++) {
+            serializer.startTag(null, "package");
+            serializer.attribute(null, "name", "com.example.package_" + i);
+            serializer.attribute(null, "codePath", "/data/app/~~r4nd0m==/com.example.package_" + i);
+            serializer.text(LONG_TEXT);
+            serializer.endTag(null, "package");
+        }
+        serializer.endTag(null, "packages");
+        serializer.endDocument();
+        return bytesOut.size();
     }
 
     @SuppressWarnings("unchecked")
@@ -92,18 +134,47 @@ public class XmlSerializeBenchmark {
         }
     }
 
-    private void internalTimeSerializer(Constructor<? extends XmlSerializer> ctor, int reps)
+    private int internalTimeSerializer(Constructor<? extends XmlSerializer> ctor, int reps,
+            boolean utf8Bytes) throws Exception {
+        int length = 0;
+        for (int i = 0; i < reps; i++) {
+            length += serializeRandomXml(ctor, seed, utf8Bytes);
+        }
+        return length;
+    }
+
+    private int internalTimeLongText(Constructor<? extends XmlSerializer> ctor, int reps)
             throws Exception {
+        int length = 0;
         for (int i = 0; i < reps; i++) {
-            serializeRandomXml(ctor, seed);
+            length += serializeLongText(ctor);
         }
+        return length;
     }
 
     public void timeKxml(int reps) throws Exception {
-        internalTimeSerializer(kxmlConstructor, reps);
+        internalTimeSerializer(kxmlConstructor, reps, false);
     }
 
     public void timeFast(int reps) throws Exception {
-        internalTimeSerializer(fastConstructor, reps);
+        internalTimeSerializer(fastConstructor, reps, false);
+    }
+
+    public int timeKxmlUtf8(int reps) throws Exception {
+        return internalTimeSerializer(kxmlConstructor, reps, true);
+    }
+
+    public int timeFastUtf8(int reps) throws Exception {
+        return internalTimeSerializer(fastConstructor, reps, true);
+    }
+
+    /** Writes over 1 MB of escaped text per rep; divide by the time per rep for MB/s. */
+    public int timeKxmlLongText(int reps) throws Exception {
+        return internalTimeLongText(kxmlConstructor, reps);
+    }
+
+    /** Writes over 1 MB of escaped text per rep; divide by the time per rep for MB/s. */
+    public int timeFastLongText(int reps) throws Exception {
+        return internalTimeLongText(fastConstructor, reps);
     }
 }
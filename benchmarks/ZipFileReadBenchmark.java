@@ -22,15 +22,25 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 
 public class ZipFileReadBenchmark {
+    private static final int MULTI_ENTRY_COUNT = 256;
+    private static final int MULTI_ENTRY_SIZE = 64 * 1024;
+    private static final int THREAD_COUNT = 4;
+
     private File file;
+    private File multiEntryFile;
     @Param({"1024", "16384", "65536"}) int readBufferSize;
 
     @BeforeExperiment
@@ -43,6 +53,10 @@ public class ZipFileReadBenchmark {
             ZipEntry zipEntry = e.nextElement();
         }
         zipFile.close();
+
+        multiEntryFile = File.createTempFile(getClass().getName(), ".zip");
+        writeEntries(new ZipOutputStream(new FileOutputStream(multiEntryFile)),
+                MULTI_ENTRY_COUNT, MULTI_ENTRY_SIZE);
     }
 
     /**
@@ -87,4 +101,56 @@ public class ZipFileReadBenchmark {
             zipFile.close();
         }
     }
+
+    private static void readEntry(ZipFile zipFile, ZipEntry zipEntry, byte[] readBuffer)
+            throws IOException {
+        try (InputStream is = zipFile.getInputStream(zipEntry)) {
+            while (is.read(readBuffer, 0, readBuffer.length) >= 0) {
+            }
+        }
+    }
+
+    /**
+     * Reads every entry of an archive with many small entries, one entry at a time.
+     */
+    public void timeZipFileReadMultiEntry(int reps) throws Exception {
+        byte readBuffer[] = new byte[readBufferSize];
+        for (int i = 0; i < reps; ++i) {
+            try (ZipFile zipFile = new ZipFile(multiEntryFile)) {
+                for (Enumeration<? extends ZipEntry> e = zipFile.entries();
+                        e.hasMoreElements(); ) {
+                    readEntry(zipFile, e.nextElement(), readBuffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the same archive as {@link #timeZipFileReadMultiEntry}, inflating entries on
+     * several threads at once.
+     */
+    public void timeZipFileReadMultiEntryParallel(int reps) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD_COUNT);
+        ThreadLocal<byte[]> readBuffers = ThreadLocal.withInitial(() -> new byte[readBufferSize]);
+        try {
+            for (int i = 0; i < reps; ++i) {
+                try (ZipFile zipFile = new ZipFile(multiEntryFile)) {
+                    List<Future<?>> futures = new ArrayList<>(MULTI_ENTRY_COUNT);
+                    for (Enumeration<? extends ZipEntry> e = zipFile.entries();
+                            e.hasMoreElements(); ) {
+                        ZipEntry zipEntry = e.nextElement();
+                        futures.add(executor.submit(() -> {
+                            readEntry(zipFile, zipEntry, readBuffers.get());
+                            return null;
+                        }));
+                    }
+                    for (Future<?> future : futures) {
+                        future.get();
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+
+/**
+ * A process-wide, thread-safe pool of string instances, shared by parsers so that tag and
+ * attribute names read by one parser are reused by the next.
+ *
+ * <p>Like {@link StringPool}, this is a fixed-size, direct-mapped cache: a lookup that misses
+ * replaces whatever was in its slot, so memory use is bounded. Slots are split into stripes
+ * that are locked independently, and each slot only holds a weak reference, so pooled strings
+ * that no caller retains can still be collected. There is no guarantee of reference equality.
+ *
+ * @hide
+ */
+public final class ConcurrentStringPool {
+    private static final int STRIPE_BITS = 4;
+    private static final int SLOTS_PER_STRIPE = 256;
+
+    /** Longer strings are rarely repeated and are not worth the comparison. */
+    private static final int MAX_POOLED_LENGTH = 128;
+
+    private static final ConcurrentStringPool sInstance = new ConcurrentStringPool();
+
+    /** Guarded by its own monitor. */
+    private static final class Stripe {
+        @SuppressWarnings("unchecked")
+        final WeakReference<String>[] mSlots = new WeakReference[SLOTS_PER_STRIPE];
+
+        long mLookupCount;
+        long mHitCount;
+        long mCharsSaved;
+    }
+
+    private final Stripe[] mStripes = new Stripe[1 << STRIPE_BITS];
+
+    /**
+     * Returns the shared pool. Use {@link StringPool} instead for a pool private to a single
+     * thread.
+     */
+    public static @NonNull ConcurrentStringPool getInstance() {
+        return sInstance;
+    }
+
+    private ConcurrentStringPool() {
+        for (int i = 0; i < mStripes.length; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    private Stripe stripeFor(int hash) {
+        return mStripes[(hash * 0x9e3779b9) >>> (32 - STRIPE_BITS)];
+    }
+
+    private static int slotFor(int hash) {
+        // Doug Lea's supplemental secondaryHash function, as in StringPool
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return hash & (SLOTS_PER_STRIPE - 1);
+    }
+
+    private static boolean contentEquals(String s, char[] chars, int start, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contentEquals(String s, byte[] bytes, int start, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[start + i] != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a string equal to {@code new String(array, start, length)}.
+     */
+    public @NonNull String get(@NonNull char[] array, int start, int length) {
+        if (length > MAX_POOLED_LENGTH) {
+            return new String(array, start, length);
+        }
+
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            hash = (hash * 31) + array[i];
+        }
+
+        final Stripe stripe = stripeFor(hash);
+        final int slot = slotFor(hash);
+        synchronized (stripe) {
+            stripe.mLookupCount++;
+            final WeakReference<String> ref = stripe.mSlots[slot];
+            final String pooled = ref != null ? ref.get() : null;
+            if (pooled != null && contentEquals(pooled, array, start, length)) {
+                stripe.mHitCount++;
+                stripe.mCharsSaved += length;
+                return pooled;
+            }
+        }
+
+        final String result = new String(array, start, length);
+        publish(stripe, slot, result);
+        return result;
+    }
+
+    /**
+     * Returns a string decoded from {@code length} bytes of {@code array}, or null if they are
+     * not all ASCII. ASCII is a subset of both UTF-8 and modified UTF-8, so this lets callers
+     * reuse a pooled string before decoding the bytes.
+     */
+    @SuppressWarnings("deprecation")
+    public @Nullable String getAscii(@NonNull byte[] array, int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; i++) {
+            final byte b = array[i];
+            if (b < 0) {
+                return null;
+            }
+            hash = (hash * 31) + b;
+        }
+        if (length > MAX_POOLED_LENGTH) {
+            return new String(array, 0, start, length);
+        }
+
+        final Stripe stripe = stripeFor(hash);
+        final int slot = slotFor(hash);
+        synchronized (stripe) {
+            stripe.mLookupCount++;
+            final WeakReference<String> ref = stripe.mSlots[slot];
+            final String pooled = ref != null ? ref.get() : null;
+            if (pooled != null && contentEquals(pooled, array, start, length)) {
+                stripe.mHitCount++;
+                stripe.mCharsSaved += length;
+                return pooled;
+            }
+        }
+
+        final String result = new String(array, 0, start, length);
+        publish(stripe, slot, result);
+        return result;
+    }
+
+    /**
+     * Returns a pooled string equal to {@code s}, or {@code s} itself after adding it to the
+     * pool.
+     */
+    public @NonNull String intern(@NonNull String s) {
+        final int length = s.length();
+        if (length > MAX_POOLED_LENGTH) {
+            return s;
+        }
+
+        final int hash = s.hashCode();
+        final Stripe stripe = stripeFor(hash);
+        final int slot = slotFor(hash);
+        synchronized (stripe) {
+            stripe.mLookupCount++;
+            final WeakReference<String> ref = stripe.mSlots[slot];
+            final String pooled = ref != null ? ref.get() : null;
+            if (pooled != null && pooled.equals(s)) {
+                stripe.mHitCount++;
+                stripe.mCharsSaved += length;
+                return pooled;
+            }
+        }
+
+        publish(stripe, slot, s);
+        return s;
+    }
+
+    private static void publish(Stripe stripe, int slot, String value) {
+        // Allocate outside the lock; losing a race to another thread only costs a future hit
+        final WeakReference<String> ref = new WeakReference<>(value);
+        synchronized (stripe) {
+            stripe.mSlots[slot] = ref;
+        }
+    }
+
+    /**
+     * Returns the number of lookups that were satisfied by a pooled string.
+     */
+    public long getHitCount() {
+        long count = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                count += stripe.mHitCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total number of lookups.
+     */
+    public long getLookupCount() {
+        long count = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                count += stripe.mLookupCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes of character data that did not have to be allocated because
+     * a pooled string was returned. This excludes the per-object overhead of each string.
+     */
+    public long getBytesSaved() {
+        long chars = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                chars += stripe.mCharsSaved;
+            }
+        }
+        return chars * Character.BYTES;
+    }
+
+    /**
+     * Dumps the pool's dedup statistics.
+     */
+    public void dump(@NonNull PrintWriter pw) {
+        final long lookups = getLookupCount();
+        final long hits = getHitCount();
+        int live = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                for (WeakReference<String> ref : stripe.mSlots) {
+                    if (ref != null && ref.get() != null) live++;
+                }
+            }
+        }
+        pw.print("ConcurrentStringPool: lookups=");
+        pw.print(lookups);
+        pw.print(" hits=");
+        pw.print(hits);
+        pw.print(" dedupRatio=");
+        pw.print(lookups != 0 ? (100 * hits / lookups) : 0);
+        pw.print("% bytesSaved=");
+        pw.print(getBytesSaved());
+        pw.print(" liveSlots=");
+        pw.print(live);
+        pw.print("/");
+        pw.println(mStripes.length * SLOTS_PER_STRIPE);
+    }
+}
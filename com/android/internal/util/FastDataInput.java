@@ -41,6 +41,8 @@ import java.util.Objects;
 public class FastDataInput implements DataInput, Closeable {
     private static final int MAX_UNSIGNED_SHORT = 65_535;
 
+    private static final ConcurrentStringPool sStringPool = ConcurrentStringPool.getInstance();
+
     private final VMRuntime mRuntime;
     private final InputStream mIn;
 
@@ -126,12 +128,26 @@ public class FastDataInput implements DataInput, Closeable {
 
     @Override
     public String readUTF() throws IOException {
+        return readUTF(false);
+    }
+
+    /**
+     * @param pooled whether to return a string from {@link ConcurrentStringPool}, which is
+     *            shared with every other parser in the process
+     */
+    private String readUTF(boolean pooled) throws IOException {
         // Attempt to read directly from buffer space if there's enough room,
         // otherwise fall back to chunking into place
         final int len = readUnsignedShort();
         if (mBufferCap > len) {
             if (mBufferLim - mBufferPos < len) fill(len);
-            final String res = CharsetUtils.fromModifiedUtf8Bytes(mBufferPtr, mBufferPos, len);
+            // Most interned values are ASCII names, which can be found in the pool
+            // without decoding them first
+            String res = pooled ? sStringPool.getAscii(mBuffer, mBufferPos, len) : null;
+            if (res == null) {
+                res = CharsetUtils.fromModifiedUtf8Bytes(mBufferPtr, mBufferPos, len);
+                if (pooled) res = sStringPool.intern(res);
+            }
             mBufferPos += len;
             return res;
         } else {
@@ -146,6 +162,10 @@ public class FastDataInput implements DataInput, Closeable {
      * value is a candidate for being canonicalized, similar to
      * {@link String#intern()}.
      * <p>
+     * The first occurrence of each value is also deduplicated against
+     * {@link ConcurrentStringPool}, so that names repeated across files and
+     * parsers share a single instance.
+     * <p>
      * Canonicalization is implemented by writing each unique string value once
      * the first time it appears, and then writing a lightweight {@code short}
      * reference when that string is written again in the future.
@@ -155,7 +175,7 @@ public class FastDataInput implements DataInput, Closeable {
     public @NonNull String readInternedUTF() throws IOException {
         final int ref = readUnsignedShort();
         if (ref == MAX_UNSIGNED_SHORT) {
-            final String s = readUTF();
+            final String s = readUTF(true);
 
             // We can only safely intern when we have remaining values; if we're
             // full we at least sent the string value above
@@ -250,8 +270,20 @@ public class FastDataInput implements DataInput, Closeable {
 
     @Override
     public int skipBytes(int n) throws IOException {
-        // Callers should read data piecemeal
-        throw new UnsupportedOperationException();
+        final int buffered = Math.min(Math.max(n, 0), mBufferLim - mBufferPos);
+        mBufferPos += buffered;
+        int skipped = buffered;
+        while (skipped < n) {
+            final long c = mIn.skip(n - skipped);
+            if (c > 0) {
+                skipped += c;
+            } else if (mIn.read() != -1) {
+                skipped++;
+            } else {
+                break;
+            }
+        }
+        return skipped;
     }
 
     @Override
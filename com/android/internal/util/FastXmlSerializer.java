@@ -32,6 +32,7 @@ import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
 
 /**
@@ -65,6 +66,11 @@ public class FastXmlSerializer implements XmlSerializer {
     private CharsetEncoder mCharset;
     private ByteBuffer mBytes;
 
+    /** True when encoding UTF-8 directly into {@link #mBytes} rather than with mCharset. */
+    private boolean mUtf8;
+    /** First half of a surrogate pair split across two encoded chunks, or 0. */
+    private char mPendingHighSurrogate;
+
     private boolean mIndent = false;
     private boolean mInTag;
 
@@ -85,13 +91,14 @@ public class FastXmlSerializer implements XmlSerializer {
     public FastXmlSerializer(int bufferSize) {
         mBufferLen = (bufferSize > 0) ? bufferSize : DEFAULT_BUFFER_LEN;
         mText = new char[mBufferLen];
-        mBytes = ByteBuffer.allocate(mBufferLen);
+        // Leave room for the longest UTF-8 sequence even with a tiny buffer.
+        mBytes = ByteBuffer.allocate(Math.max(mBufferLen, 4));
     }
 
     private void append(char c) throws IOException {
         int pos = mPos;
         if (pos >= (mBufferLen-1)) {
-            flush();
+            flushBuffer();
             pos = mPos;
         }
         mText[pos] = c;
@@ -110,7 +117,7 @@ public class FastXmlSerializer implements XmlSerializer {
         }
         int pos = mPos;
         if ((pos+length) > mBufferLen) {
-            flush();
+            flushBuffer();
             pos = mPos;
         }
         str.getChars(i, i+length, mText, pos);
@@ -129,7 +136,7 @@ public class FastXmlSerializer implements XmlSerializer {
         }
         int pos = mPos;
         if ((pos+length) > mBufferLen) {
-            flush();
+            flushBuffer();
             pos = mPos;
         }
         System.arraycopy(buf, i, mText, pos, length);
@@ -255,32 +262,131 @@ public class FastXmlSerializer implements XmlSerializer {
         }
     }
 
-    public void flush() throws IOException {
-        //Log.i("PackageManager", "flush mPos=" + mPos);
+    /**
+     * Encodes UTF-8 from the text buffer straight into {@link #mBytes}, copying runs of ASCII
+     * with a single comparison per char. Unpaired surrogates become '?', matching the
+     * replacement of the UTF-8 {@link CharsetEncoder}.
+     */
+    private void encodeUtf8(int length) throws IOException {
+        final char[] text = mText;
+        final byte[] bytes = mBytes.array();
+        final int limit = bytes.length;
+        int pos = mBytes.position();
+        int i = 0;
+        if (mPendingHighSurrogate != 0 && length > 0) {
+            if (limit - pos < 4) {
+                mBytes.position(pos);
+                flushBytes();
+                pos = 0;
+            }
+            if (Character.isLowSurrogate(text[0])) {
+                pos = putCodePoint(bytes, pos,
+                        Character.toCodePoint(mPendingHighSurrogate, text[0]));
+                i = 1;
+            } else {
+                bytes[pos++] = '?';
+            }
+            mPendingHighSurrogate = 0;
+        }
+        while (i < length) {
+            if (limit - pos < 4) {
+                mBytes.position(pos);
+                flushBytes();
+                pos = 0;
+            }
+            final int asciiEnd = Math.min(length, i + (limit - pos));
+            char c;
+            while (i < asciiEnd && (c = text[i]) < 0x80) {
+                bytes[pos++] = (byte) c;
+                i++;
+            }
+            if (i == asciiEnd) {
+                continue;
+            }
+            if (limit - pos < 4) {
+                mBytes.position(pos);
+                flushBytes();
+                pos = 0;
+            }
+            c = text[i++];
+            if (c < 0x800) {
+                bytes[pos++] = (byte) (0xc0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                if (i == length) {
+                    mPendingHighSurrogate = c;
+                } else if (Character.isLowSurrogate(text[i])) {
+                    pos = putCodePoint(bytes, pos, Character.toCodePoint(c, text[i++]));
+                } else {
+                    bytes[pos++] = '?';
+                }
+            } else if (Character.isLowSurrogate(c)) {
+                bytes[pos++] = '?';
+            } else {
+                bytes[pos++] = (byte) (0xe0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        mBytes.position(pos);
+    }
+
+    private static int putCodePoint(byte[] bytes, int pos, int codePoint) {
+        bytes[pos++] = (byte) (0xf0 | (codePoint >> 18));
+        bytes[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        bytes[pos++] = (byte) (0x80 | (codePoint & 0x3f));
+        return pos;
+    }
+
+    /**
+     * Hands the buffered text to the output without flushing the underlying stream or writer,
+     * so that a large document is written in buffer-sized chunks.
+     */
+    private void flushBuffer() throws IOException {
         if (mPos > 0) {
             if (mOutputStream != null) {
-                CharBuffer charBuffer = CharBuffer.wrap(mText, 0, mPos);
-                CoderResult result = mCharset.encode(charBuffer, mBytes, true);
-                while (true) {
-                    if (result.isError()) {
-                        throw new IOException(result.toString());
-                    } else if (result.isOverflow()) {
-                        flushBytes();
-                        result = mCharset.encode(charBuffer, mBytes, true);
-                        continue;
+                if (mUtf8) {
+                    encodeUtf8(mPos);
+                } else {
+                    CharBuffer charBuffer = CharBuffer.wrap(mText, 0, mPos);
+                    CoderResult result = mCharset.encode(charBuffer, mBytes, true);
+                    while (true) {
+                        if (result.isError()) {
+                            throw new IOException(result.toString());
+                        } else if (result.isOverflow()) {
+                            flushBytes();
+                            result = mCharset.encode(charBuffer, mBytes, true);
+                            continue;
+                        }
+                        break;
                     }
-                    break;
                 }
                 flushBytes();
-                mOutputStream.flush();
             } else {
                 mWriter.write(mText, 0, mPos);
-                mWriter.flush();
             }
             mPos = 0;
         }
     }
 
+    public void flush() throws IOException {
+        //Log.i("PackageManager", "flush mPos=" + mPos);
+        if (mPos > 0 || mPendingHighSurrogate != 0) {
+            flushBuffer();
+            if (mOutputStream != null) {
+                if (mPendingHighSurrogate != 0) {
+                    // The document ended in the middle of a surrogate pair.
+                    mPendingHighSurrogate = 0;
+                    mOutputStream.write('?');
+                }
+                mOutputStream.flush();
+            } else {
+                mWriter.flush();
+            }
+        }
+    }
+
     public int getDepth() {
         throw new UnsupportedOperationException();
     }
@@ -341,6 +447,8 @@ public class FastXmlSerializer implements XmlSerializer {
                 throw (UnsupportedEncodingException) (new UnsupportedEncodingException(
                         encoding).initCause(e));
             }
+            mUtf8 = StandardCharsets.UTF_8.equals(mCharset.charset());
+            mPendingHighSurrogate = 0;
             mOutputStream = os;
         } else {
             setOutput(
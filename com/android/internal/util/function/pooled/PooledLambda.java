@@ -46,6 +46,7 @@ import com.android.internal.util.function.UndecConsumer;
 import com.android.internal.util.function.UndecFunction;
 import com.android.internal.util.function.pooled.PooledLambdaImpl.LambdaType.ReturnType;
 
+import java.io.PrintWriter;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.BiPredicate;
@@ -110,6 +111,13 @@ public interface PooledLambda {
      */
     PooledLambda recycleOnUse();
 
+    /**
+     * Dumps the capacity and hit/miss counters of the pools backing pooled lambdas.
+     */
+    static void dumpPools(PrintWriter pw) {
+        PooledLambdaImpl.dumpPools(pw);
+    }
+
 
     // Factories
 
@@ -56,6 +56,7 @@ import com.android.internal.util.function.UndecConsumer;
 import com.android.internal.util.function.UndecFunction;
 import com.android.internal.util.function.UndecPredicate;
 
+import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.function.BiConsumer;
@@ -78,17 +79,126 @@ final class PooledLambdaImpl<R> extends OmniFunction<Object,
 
     private static final int MAX_ARGS = 11;
 
-    private static final int MAX_POOL_SIZE = 50;
+    private static final int MIN_POOL_SIZE = 50;
+    private static final int MAX_POOL_SIZE = 800;
 
-    static class Pool extends Pools.SynchronizedPool<PooledLambdaImpl> {
+    /** Number of releases between adjustments of a {@link Pool}'s capacity. */
+    private static final int POOL_RESIZE_INTERVAL = 1024;
 
-        public Pool(Object lock) {
-            super(MAX_POOL_SIZE, lock);
+    /**
+     * A pool whose capacity follows demand. Every {@link #POOL_RESIZE_INTERVAL} releases, the
+     * capacity is set to the largest number of instances that were out of the pool at once
+     * during the interval, clamped to [{@link #MIN_POOL_SIZE}, {@link #MAX_POOL_SIZE}]. This
+     * lets bursts of posted work be served without allocating, while idle pools shrink back.
+     */
+    static class Pool implements Pools.Pool<PooledLambdaImpl> {
+        private final String mName;
+        private final Object mLock;
+
+        private PooledLambdaImpl[] mPool = new PooledLambdaImpl[MIN_POOL_SIZE];
+        private int mPoolSize;
+
+        private int mOutstanding;
+        private int mPeakOutstanding;
+        private int mReleasesSinceResize;
+
+        private long mHitCount;
+        private long mMissCount;
+        private long mDropCount;
+
+        Pool(String name, Object lock) {
+            mName = name;
+            mLock = lock;
+        }
+
+        @Override
+        public PooledLambdaImpl acquire() {
+            synchronized (mLock) {
+                if (++mOutstanding > mPeakOutstanding) mPeakOutstanding = mOutstanding;
+                if (mPoolSize > 0) {
+                    mHitCount++;
+                    final PooledLambdaImpl instance = mPool[--mPoolSize];
+                    mPool[mPoolSize] = null;
+                    instance.mInPool = false;
+                    return instance;
+                }
+                mMissCount++;
+                return null;
+            }
+        }
+
+        @Override
+        public boolean release(PooledLambdaImpl instance) {
+            synchronized (mLock) {
+                if (instance.mInPool) {
+                    throw new IllegalStateException("Already in the pool!");
+                }
+                // Instances that were never recycled leave this permanently high; the clamp in
+                // resizeLocked() bounds the effect
+                if (mOutstanding > 0) mOutstanding--;
+                if (++mReleasesSinceResize >= POOL_RESIZE_INTERVAL) resizeLocked();
+                if (mPoolSize < mPool.length) {
+                    mPool[mPoolSize++] = instance;
+                    instance.mInPool = true;
+                    return true;
+                }
+                mDropCount++;
+                return false;
+            }
+        }
+
+        private void resizeLocked() {
+            final int capacity = Math.max(MIN_POOL_SIZE,
+                    Math.min(MAX_POOL_SIZE, mPeakOutstanding));
+            if (capacity != mPool.length) {
+                if (mPoolSize > capacity) {
+                    for (int i = capacity; i < mPoolSize; i++) {
+                        mPool[i].mInPool = false;
+                    }
+                    Arrays.fill(mPool, capacity, mPoolSize, null);
+                    mPoolSize = capacity;
+                }
+                mPool = Arrays.copyOf(mPool, capacity);
+            }
+            mPeakOutstanding = mOutstanding;
+            mReleasesSinceResize = 0;
+        }
+
+        void dump(PrintWriter pw) {
+            synchronized (mLock) {
+                final long requests = mHitCount + mMissCount;
+                pw.print("  ");
+                pw.print(mName);
+                pw.print(": capacity=");
+                pw.print(mPool.length);
+                pw.print(" pooled=");
+                pw.print(mPoolSize);
+                pw.print(" outstanding=");
+                pw.print(mOutstanding);
+                pw.print(" hits=");
+                pw.print(mHitCount);
+                pw.print(" misses=");
+                pw.print(mMissCount);
+                pw.print(" hitRate=");
+                pw.print(requests != 0 ? (100 * mHitCount / requests) : 0);
+                pw.print("% dropped=");
+                pw.println(mDropCount);
+            }
         }
     }
 
-    static final Pool sPool = new Pool(new Object());
-    static final Pool sMessageCallbacksPool = new Pool(Message.sPoolSync);
+    static final Pool sPool = new Pool("sPool", new Object());
+    static final Pool sMessageCallbacksPool =
+            new Pool("sMessageCallbacksPool", Message.sPoolSync);
+
+    /**
+     * @see PooledLambda#dumpPools
+     */
+    static void dumpPools(PrintWriter pw) {
+        pw.println("PooledLambda pools:");
+        sPool.dump(pw);
+        sMessageCallbacksPool.dump(pw);
+    }
 
     private PooledLambdaImpl() {}
 
@@ -156,6 +266,12 @@ final class PooledLambdaImpl<R> extends OmniFunction<Object,
      */
     int mFlags = 0;
 
+    /**
+     * Whether this instance is currently held by its {@link Pool}, so a second release can be
+     * caught without scanning the pool. Only accessed under the pool's lock.
+     */
+    boolean mInPool;
+
 
     @Override
     public void recycle() {
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util.function.pooled;
+
+import android.annotation.NonNull;
+import android.os.Handler;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+
+/**
+ * Runs {@link PooledRunnable}s on a {@link Handler}, coalescing everything posted before the
+ * Handler gets to it into a single message.
+ *
+ * Sending each runnable with {@link PooledLambda#obtainMessage} pays for a message queue
+ * insertion and possibly a wakeup of the target Looper every time. {@link #post} instead
+ * appends the runnable to a pending batch, and only sends a message when none is queued yet.
+ * When that message is handled, the runnables pending at that moment run in the order they
+ * were posted. Runnables posted while a batch runs are left for the next message, so that a
+ * busy producer cannot starve other messages on the Looper.
+ *
+ * Runnables are recycled after running if they were obtained as
+ * {@link PooledLambda#recycleOnUse recycle-on-use}.
+ *
+ * @hide
+ */
+public final class PooledRunnableBatcher {
+    private final Handler mHandler;
+    private final Runnable mDrainRunnable = this::drain;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private ArrayList<PooledRunnable> mPending = new ArrayList<>();
+
+    @GuardedBy("mLock")
+    private boolean mScheduled;
+
+    /** The batch being run by {@link #drain}. Only accessed on the Handler's thread. */
+    private ArrayList<PooledRunnable> mRunning = new ArrayList<>();
+
+    public PooledRunnableBatcher(@NonNull Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Adds {@code runnable} to the next batch run on the Handler's thread.
+     */
+    public void post(@NonNull PooledRunnable runnable) {
+        synchronized (mLock) {
+            mPending.add(runnable);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mHandler.post(mDrainRunnable);
+    }
+
+    /**
+     * Removes and recycles every runnable that has not started running yet.
+     */
+    public void removeAll() {
+        synchronized (mLock) {
+            for (int i = 0; i < mPending.size(); i++) {
+                mPending.get(i).recycle();
+            }
+            mPending.clear();
+        }
+    }
+
+    private void drain() {
+        final ArrayList<PooledRunnable> batch;
+        synchronized (mLock) {
+            batch = mPending;
+            mPending = mRunning;
+            mRunning = batch;
+            mScheduled = false;
+        }
+
+        final int size = batch.size();
+        int i = 0;
+        try {
+            for (; i < size; i++) {
+                batch.get(i).run();
+            }
+        } finally {
+            if (i < size - 1) {
+                // A runnable threw; keep the ones after it for the next message
+                requeue(batch, i + 1, size);
+            }
+            batch.clear();
+        }
+    }
+
+    private void requeue(ArrayList<PooledRunnable> batch, int start, int end) {
+        synchronized (mLock) {
+            mPending.addAll(0, batch.subList(start, end));
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mHandler.post(mDrainRunnable);
+    }
+}
@@ -17,22 +17,88 @@
 package com.android.internal.widget;
 
 import android.annotation.Nullable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.os.Trace;
 import android.view.View;
 
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 final class GapWorker implements Runnable {
 
     static final ThreadLocal<GapWorker> sGapWorker = new ThreadLocal<>();
 
+    /**
+     * Number of frames of scrolling at the current velocity to prefetch for when flinging
+     * faster than one item per frame.
+     */
+    static final int FLING_LOOKAHEAD_FRAMES = 3;
+
+    /**
+     * Upper bound on items prefetched beyond each position the LayoutManager asked for.
+     */
+    static final int MAX_FLING_LOOKAHEAD_ITEMS = 8;
+
+    /**
+     * Worker creating ViewHolders for view types that the Adapter allows to be created off the
+     * UI thread. Shared by all GapWorkers, created on first use.
+     */
+    private static ExecutorService sBackgroundCreateExecutor;
+
     ArrayList<RecyclerView> mRecyclerViews = new ArrayList<>();
     long mPostTimeNs;
     long mFrameIntervalNs;
+    private Handler mHandler;
+    // True during a prefetch pass, including prefetch into nested RecyclerViews and whatever
+    // their adapters do while binding, so that work is not counted as done for a frame.
+    private boolean mPrefetching;
+
+    /**
+     * Prefetch counters for a single RecyclerView. Only touched on the UI thread.
+     */
+    static class PrefetchMetrics {
+        /** Number of prefetch passes that considered the view. */
+        long mPrefetchPasses;
+        /** ViewHolders created / bound by prefetch on the UI thread. */
+        long mPrefetchCreates;
+        long mPrefetchBinds;
+        /** Prefetch creates and binds skipped because they would not fit before the frame. */
+        long mPrefetchDeadlineMisses;
+        /** ViewHolders created ahead of time on the background thread. */
+        long mBackgroundCreates;
+        /**
+         * Total time spent creating them. Kept apart from the pool's create time average, which
+         * budgets creates on the UI thread.
+         */
+        long mBackgroundCreateNs;
+        /** Extra positions queued because the view was flinging faster than prefetch covers. */
+        long mLookaheadPositions;
+        /** ViewHolders created / bound while laying out or scrolling a frame (jank risk). */
+        long mFrameCreates;
+        long mFrameBinds;
+
+        void dump(String prefix, PrintWriter pw) {
+            pw.print(prefix); pw.print("prefetchPasses="); pw.print(mPrefetchPasses);
+            pw.print(" prefetchCreates="); pw.print(mPrefetchCreates);
+            pw.print(" prefetchBinds="); pw.print(mPrefetchBinds);
+            pw.print(" backgroundCreates="); pw.print(mBackgroundCreates);
+            pw.print(" backgroundCreateAvgUs=");
+            pw.print(mBackgroundCreates != 0 ? mBackgroundCreateNs / mBackgroundCreates / 1000 : 0);
+            pw.print(" lookaheadPositions="); pw.println(mLookaheadPositions);
+            pw.print(prefix); pw.print("deadlineMisses="); pw.print(mPrefetchDeadlineMisses);
+            pw.print(" frameCreates="); pw.print(mFrameCreates);
+            pw.print(" frameBinds="); pw.println(mFrameBinds);
+        }
+    }
 
     static class Task {
         public boolean immediate;
@@ -94,6 +160,7 @@ final class GapWorker implements Runnable {
                     if (!view.hasPendingAdapterUpdates()) {
                         layout.collectAdjacentPrefetchPositions(mPrefetchDx, mPrefetchDy,
                                 view.mState, this);
+                        addFlingLookahead(view);
                     }
                 }
 
@@ -105,6 +172,66 @@ final class GapWorker implements Runnable {
             }
         }
 
+        /**
+         * When the view scrolls more than one item per frame, the single adjacent position a
+         * LayoutManager reports is consumed within a frame. Extend each reported position that
+         * lies outside the attached children further in the same direction, far enough to cover
+         * {@link #FLING_LOOKAHEAD_FRAMES} frames at the current velocity. The extra positions
+         * are never immediate, so they only use time left over before the deadline.
+         */
+        void addFlingLookahead(RecyclerView view) {
+            final int velocity = Math.abs(mPrefetchDx) + Math.abs(mPrefetchDy);
+            final int childCount = view.mChildHelper.getChildCount();
+            if (mCount == 0 || velocity == 0 || childCount == 0) {
+                return;
+            }
+
+            final boolean vertical = Math.abs(mPrefetchDy) >= Math.abs(mPrefetchDx);
+            int minPosition = Integer.MAX_VALUE;
+            int maxPosition = Integer.MIN_VALUE;
+            int measuredCount = 0;
+            int totalExtent = 0;
+            for (int i = 0; i < childCount; i++) {
+                final View child = view.mChildHelper.getChildAt(i);
+                final RecyclerView.ViewHolder holder = RecyclerView.getChildViewHolderInt(child);
+                if (holder == null || holder.shouldIgnore()) {
+                    continue;
+                }
+                minPosition = Math.min(minPosition, holder.mPosition);
+                maxPosition = Math.max(maxPosition, holder.mPosition);
+                totalExtent += vertical ? child.getHeight() : child.getWidth();
+                measuredCount++;
+            }
+            final int averageExtent = measuredCount == 0 ? 0 : totalExtent / measuredCount;
+            if (averageExtent <= 0 || velocity <= averageExtent) {
+                return;
+            }
+
+            final int lookahead = Math.min(MAX_FLING_LOOKAHEAD_ITEMS,
+                    velocity * FLING_LOOKAHEAD_FRAMES / averageExtent);
+            final int itemCount = view.mState.getItemCount();
+            final int reportedCount = mCount;
+            for (int i = 0; i < reportedCount * 2; i += 2) {
+                final int position = mPrefetchArray[i];
+                final int distance = mPrefetchArray[i + 1];
+                final int direction = position > maxPosition ? 1
+                        : position < minPosition ? -1 : 0;
+                if (direction == 0) {
+                    continue;
+                }
+                for (int k = 1; k <= lookahead; k++) {
+                    final int extraPosition = position + k * direction;
+                    if (extraPosition < 0 || extraPosition >= itemCount) {
+                        break;
+                    }
+                    if (!lastPrefetchIncludedPosition(extraPosition)) {
+                        addPosition(extraPosition, distance + k * averageExtent);
+                        view.mPrefetchMetrics.mLookaheadPositions++;
+                    }
+                }
+            }
+        }
+
         @Override
         public void addPosition(int layoutPosition, int pixelDistance) {
             if (pixelDistance < 0) {
@@ -213,6 +340,7 @@ final class GapWorker implements Runnable {
             RecyclerView view = mRecyclerViews.get(i);
             view.mPrefetchRegistry.collectPrefetchPositionsFromView(view, false);
             totalTaskCount += view.mPrefetchRegistry.mCount;
+            view.mPrefetchMetrics.mPrefetchPasses++;
         }
 
         // Populate task list from prefetch data...
@@ -320,7 +448,87 @@ final class GapWorker implements Runnable {
         }
     }
 
+    /**
+     * If the item at the given position needs a ViewHolder that the pool cannot provide, and
+     * creating one would not fit before the deadline, start creating one on the background
+     * thread when the Adapter allows it. The holder is put in the pool once created so a later
+     * prefetch or layout can bind it without paying for the creation on the UI thread.
+     */
+    private void maybeCreateInBackground(RecyclerView view, int position, long deadlineNs) {
+        final RecyclerView.Adapter adapter = view.mAdapter;
+        if (adapter == null || position < 0 || position >= adapter.getItemCount()
+                || isPrefetchPositionAttached(view, position)) {
+            return;
+        }
+        final int viewType = adapter.getItemViewType(position);
+        final RecyclerView.RecycledViewPool pool = view.getRecycledViewPool();
+        if (!adapter.canCreateViewHolderOffMainThread(viewType)
+                || pool.getRecycledViewCount(viewType) > 0
+                || pool.willCreateInTime(viewType, view.getNanoTime(), deadlineNs)
+                || !pool.canAcceptBackgroundCreate(viewType)) {
+            return;
+        }
+
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.myLooper());
+        }
+        pool.onBackgroundCreateStarted(viewType);
+        final WeakReference<RecyclerView> viewRef = new WeakReference<>(view);
+        getBackgroundCreateExecutor().execute(() -> {
+            final RecyclerView parent = viewRef.get();
+            if (parent == null) {
+                mHandler.post(() -> pool.onBackgroundCreateFinished(viewType));
+                return;
+            }
+            final long start = System.nanoTime();
+            final RecyclerView.ViewHolder holder;
+            try {
+                holder = adapter.createViewHolder(parent, viewType);
+            } catch (RuntimeException e) {
+                mHandler.post(() -> {
+                    pool.onBackgroundCreateFinished(viewType);
+                    throw e;
+                });
+                return;
+            }
+            final long createTimeNs = System.nanoTime() - start;
+            mHandler.post(() -> {
+                pool.onBackgroundCreateFinished(viewType);
+                final RecyclerView target = viewRef.get();
+                if (target == null || target.mAdapter != adapter) {
+                    // Adapter was swapped while creating; the holder may not fit the new one.
+                    return;
+                }
+                final RecyclerView innerView =
+                        RecyclerView.findNestedRecyclerView(holder.itemView);
+                if (innerView != null) {
+                    holder.mNestedRecyclerView = new WeakReference<>(innerView);
+                }
+                pool.putRecycledView(holder);
+                target.mPrefetchMetrics.mBackgroundCreates++;
+                target.mPrefetchMetrics.mBackgroundCreateNs += createTimeNs;
+            });
+        });
+    }
+
+    private static synchronized ExecutorService getBackgroundCreateExecutor() {
+        if (sBackgroundCreateExecutor == null) {
+            sBackgroundCreateExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                final Thread thread = new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "RecyclerViewPrefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sBackgroundCreateExecutor;
+    }
+
     private void flushTaskWithDeadline(Task task, long deadlineNs) {
+        if (!task.immediate) {
+            maybeCreateInBackground(task.view, task.position, deadlineNs);
+        }
         long taskDeadlineNs = task.immediate ? RecyclerView.FOREVER_NS : deadlineNs;
         RecyclerView.ViewHolder holder = prefetchPositionWithDeadline(task.view,
                 task.position, taskDeadlineNs);
@@ -341,8 +549,21 @@ final class GapWorker implements Runnable {
     }
 
     void prefetch(long deadlineNs) {
-        buildTaskList();
-        flushTasksWithDeadline(deadlineNs);
+        mPrefetching = true;
+        try {
+            buildTaskList();
+            flushTasksWithDeadline(deadlineNs);
+        } finally {
+            mPrefetching = false;
+        }
+    }
+
+    /**
+     * Returns whether the GapWorker of the calling thread is running a prefetch pass.
+     */
+    static boolean isPrefetchingOnCurrentThread() {
+        final GapWorker gapWorker = sGapWorker.get();
+        return gapWorker != null && gapWorker.mPrefetching;
     }
 
     @Override
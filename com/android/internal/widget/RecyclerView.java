@@ -60,6 +60,7 @@ import com.android.internal.R;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.widget.RecyclerView.ItemAnimator.ItemHolderInfo;
 
+import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.ref.WeakReference;
@@ -437,6 +438,8 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
     GapWorker mGapWorker;
     GapWorker.LayoutPrefetchRegistryImpl mPrefetchRegistry =
             ALLOW_THREAD_GAP_WORK ? new GapWorker.LayoutPrefetchRegistryImpl() : null;
+    final GapWorker.PrefetchMetrics mPrefetchMetrics =
+            ALLOW_THREAD_GAP_WORK ? new GapWorker.PrefetchMetrics() : null;
 
     final State mState = new State();
 
@@ -5080,6 +5083,8 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             int mMaxScrap = DEFAULT_MAX_SCRAP;
             long mCreateRunningAverageNs = 0;
             long mBindRunningAverageNs = 0;
+            // Holders of this type being created off the main thread by GapWorker.
+            int mPendingBackgroundCreates = 0;
         }
         SparseArray<ScrapData> mScrap = new SparseArray<>();
 
@@ -5167,6 +5172,24 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             return expectedDurationNs == 0 || (approxCurrentNs + expectedDurationNs < deadlineNs);
         }
 
+        /**
+         * Returns whether another holder of the given type may be created off the main thread
+         * without overfilling the pool once it is delivered.
+         */
+        boolean canAcceptBackgroundCreate(int viewType) {
+            final ScrapData scrapData = getScrapDataForType(viewType);
+            return scrapData.mPendingBackgroundCreates == 0
+                    && scrapData.mScrapHeap.size() < scrapData.mMaxScrap;
+        }
+
+        void onBackgroundCreateStarted(int viewType) {
+            getScrapDataForType(viewType).mPendingBackgroundCreates++;
+        }
+
+        void onBackgroundCreateFinished(int viewType) {
+            getScrapDataForType(viewType).mPendingBackgroundCreates--;
+        }
+
         boolean willBindInTime(int viewType, long approxCurrentNs, long deadlineNs) {
             long expectedDurationNs = getScrapDataForType(viewType).mBindRunningAverageNs;
             return expectedDurationNs == 0 || (approxCurrentNs + expectedDurationNs < deadlineNs);
@@ -5274,6 +5297,21 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
         }
     }
 
+    /**
+     * Dumps the prefetch counters of this RecyclerView: creates and binds done by prefetch,
+     * creates and binds that had to run while laying out or scrolling a frame, and prefetch
+     * work abandoned because it would not fit before the next frame.
+     *
+     * @hide
+     */
+    public void dumpPrefetchMetrics(String prefix, PrintWriter pw) {
+        if (mPrefetchMetrics == null) {
+            pw.print(prefix); pw.println("Prefetch not supported");
+            return;
+        }
+        mPrefetchMetrics.dump(prefix, pw);
+    }
+
     /**
      * A Recycler is responsible for managing scrapped or detached item views for reuse.
      *
@@ -5399,9 +5437,19 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             if (deadlineNs != FOREVER_NS
                     && !mRecyclerPool.willBindInTime(viewType, startBindNs, deadlineNs)) {
                 // abort - we have a deadline we can't meet
+                if (mPrefetchMetrics != null) {
+                    mPrefetchMetrics.mPrefetchDeadlineMisses++;
+                }
                 return false;
             }
             mAdapter.bindViewHolder(holder, offsetPosition);
+            if (mPrefetchMetrics != null) {
+                if (GapWorker.isPrefetchingOnCurrentThread()) {
+                    mPrefetchMetrics.mPrefetchBinds++;
+                } else {
+                    mPrefetchMetrics.mFrameBinds++;
+                }
+            }
             long endBindNs = getNanoTime();
             mRecyclerPool.factorInBindTime(holder.getItemViewType(), endBindNs - startBindNs);
             attachAccessibilityDelegate(holder.itemView);
@@ -5619,9 +5667,19 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
                     if (deadlineNs != FOREVER_NS
                             && !mRecyclerPool.willCreateInTime(type, start, deadlineNs)) {
                         // abort - we have a deadline we can't meet
+                        if (mPrefetchMetrics != null) {
+                            mPrefetchMetrics.mPrefetchDeadlineMisses++;
+                        }
                         return null;
                     }
                     holder = mAdapter.createViewHolder(RecyclerView.this, type);
+                    if (mPrefetchMetrics != null) {
+                        if (GapWorker.isPrefetchingOnCurrentThread()) {
+                            mPrefetchMetrics.mPrefetchCreates++;
+                        } else {
+                            mPrefetchMetrics.mFrameCreates++;
+                        }
+                    }
                     if (ALLOW_THREAD_GAP_WORK) {
                         // only bother finding nested RV if prefetching
                         RecyclerView innerView = findNestedRecyclerView(holder.itemView);
@@ -6481,6 +6539,25 @@ public class RecyclerView extends ViewGroup implements ScrollingView, NestedScro
             return 0;
         }
 
+        /**
+         * Return whether {@link #onCreateViewHolder(ViewGroup, int)} may be called for the
+         * given view type on a background thread.
+         *
+         * <p>When this returns true, prefetch may create ViewHolders of this type ahead of time
+         * on a worker thread if creating one on the UI thread would not fit before the next
+         * frame. The created ViewHolder is always bound on the UI thread. Only return true if
+         * creation does not touch state owned by the UI thread, such as the parent
+         * RecyclerView beyond reading its layout parameters.</p>
+         *
+         * <p>The default implementation returns false.</p>
+         *
+         * @param viewType The view type of the new View.
+         * @return Whether ViewHolders of this type can be created off the UI thread.
+         */
+        public boolean canCreateViewHolderOffMainThread(int viewType) {
+            return false;
+        }
+
         /**
          * Indicates whether each item in the data set can be represented with a unique identifier
          * of type {@link java.lang.Long}.
@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import libcore.internal.StringPool;
@@ -85,6 +86,12 @@ public class KXmlParser implements XmlPullParser, Closeable {
     static final private String ILLEGAL_TYPE = "Wrong event type";
     static final private int XML_DECLARATION = 998;
 
+    /**
+     * The longest partial name or value kept in the buffer across a refill.
+     * Longer values are copied into a string builder instead.
+     */
+    private static final int MAX_KEPT_CHARS = 32 * 1024;
+
     // general
     private String location;
 
@@ -1348,6 +1355,16 @@ public class KXmlParser implements XmlPullParser, Closeable {
              * to the slow path string builder first.
              */
             if (position >= limit) {
+                if (result == null && canKeepInBuffer(start)) {
+                    // keep the partial value in the buffer so it is still a single slice
+                    int length = position - start;
+                    boolean more = fillBuffer(1, start);
+                    start = position - length;
+                    if (!more) {
+                        return stringPool.get(buffer, start, length);
+                    }
+                    continue;
+                }
                 if (start < position) {
                     if (result == null) {
                         result = new StringBuilder();
@@ -1479,6 +1496,28 @@ public class KXmlParser implements XmlPullParser, Closeable {
      * false.
      */
     private boolean fillBuffer(int minimum) throws IOException, XmlPullParserException {
+        return fillBuffer(minimum, position);
+    }
+
+    /**
+     * Returns true if the characters from {@code start} through the current
+     * position can be retained across a call to {@link #fillBuffer(int, int)}.
+     * Characters of an entity's replacement text can't be retained, and very
+     * long values are copied out rather than growing the buffer without bound.
+     */
+    private boolean canKeepInBuffer(int start) {
+        return nextContentSource == null && position - start < MAX_KEPT_CHARS;
+    }
+
+    /**
+     * Like {@link #fillBuffer(int)}, but retains the characters from {@code
+     * keepFrom} through the current position so that a name or value that
+     * spans the end of the buffer can still be returned as a single slice. The
+     * retained characters move to the front of the buffer, which grows if they
+     * fill it. Callers must check {@link #canKeepInBuffer} first.
+     */
+    private boolean fillBuffer(int minimum, int keepFrom)
+            throws IOException, XmlPullParserException {
         // If we've exhausted the current content source, remove it
         while (nextContentSource != null) {
             if (position < limit) {
@@ -1491,7 +1530,7 @@ public class KXmlParser implements XmlPullParser, Closeable {
         }
 
         // Before clobbering the old characters, update where buffer starts
-        for (int i = 0; i < position; i++) {
+        for (int i = 0; i < keepFrom; i++) {
             if (buffer[i] == '\n') {
                 bufferStartLine++;
                 bufferStartColumn = 0;
@@ -1501,21 +1540,24 @@ public class KXmlParser implements XmlPullParser, Closeable {
         }
 
         if (bufferCapture != null) {
-            bufferCapture.append(buffer, 0, position);
+            bufferCapture.append(buffer, 0, keepFrom);
         }
 
-        if (limit != position) {
-            limit -= position;
-            System.arraycopy(buffer, position, buffer, 0, limit);
+        if (limit != keepFrom) {
+            limit -= keepFrom;
+            System.arraycopy(buffer, keepFrom, buffer, 0, limit);
         } else {
             limit = 0;
         }
 
-        position = 0;
+        position -= keepFrom;
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
         int total;
         while ((total = reader.read(buffer, limit, buffer.length - limit)) != -1) {
             limit += total;
-            if (limit >= minimum) {
+            if (limit - position >= minimum) {
                 return true;
             }
         }
@@ -1556,6 +1598,15 @@ public class KXmlParser implements XmlPullParser, Closeable {
              * to the slow path string builder first.
              */
             if (position >= limit) {
+                if (result == null && canKeepInBuffer(start)) {
+                    int length = position - start;
+                    boolean more = fillBuffer(1, start);
+                    start = position - length;
+                    if (!more) {
+                        return stringPool.get(buffer, start, length);
+                    }
+                    continue;
+                }
                 if (result == null) {
                     result = new StringBuilder();
                 }
@@ -1734,7 +1785,12 @@ public class KXmlParser implements XmlPullParser, Closeable {
             }
 
             int savedLimit = limit;
-            setInput(new InputStreamReader(is, charset));
+            if ("UTF-8".equalsIgnoreCase(charset)) {
+                // decode directly from bytes; nearly all documents are UTF-8
+                setInput(new Utf8Reader(is));
+            } else {
+                setInput(new InputStreamReader(is, charset));
+            }
             encoding = charset;
             limit = savedLimit;
 
@@ -127,8 +127,18 @@ public class KXmlSerializer implements XmlSerializer {
     }
 
     private final void writeEscaped(String s, int quot) throws IOException {
+        // Android-changed: copy runs of characters that need no escaping in bulk.
+        int runStart = 0;
         for (int i = 0; i < s.length(); i++) {
             char c = s.charAt(i);
+            if (c >= 0x20 && c != '&' && c != '<' && c != '>' && c != quot
+                    && (c < 127 || (unicode && c <= 0xd7ff))) {
+                continue;
+            }
+            if (runStart < i) {
+                append(s, runStart, i - runStart);
+            }
+            runStart = i + 1;
             switch (c) {
                 case '\n':
                 case '\r':
@@ -169,12 +179,16 @@ public class KXmlSerializer implements XmlSerializer {
                     } else if (Character.isHighSurrogate(c) && i < s.length() - 1) {
                         writeSurrogate(c, s.charAt(i + 1));
                         ++i;
+                        runStart = i + 1;
                     } else {
                         reportInvalidCharacter(c);
                     }
                     // END Android-changed
             }
         }
+        if (runStart < s.length()) {
+            append(s, runStart, s.length() - runStart);
+        }
     }
 
     // BEGIN Android-added
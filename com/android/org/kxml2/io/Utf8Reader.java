@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.org.kxml2.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes UTF-8 from an {@link InputStream} or a {@link ByteBuffer} without going through a
+ * {@link java.nio.charset.CharsetDecoder}. ASCII runs are copied with a single comparison per
+ * byte, and array-backed buffers are decoded in place without copying. Malformed input is
+ * replaced with U+FFFD.
+ *
+ * <p>Shared by {@link KXmlParser} and {@code android.util.JsonReader}. This class is not
+ * thread safe.
+ *
+ * @hide
+ */
+public final class Utf8Reader extends Reader {
+    private static final char REPLACEMENT = '\ufffd';
+
+    private final InputStream mIn;
+    private final ByteBuffer mBuffer;
+    private final int mArrayOffset;
+
+    private byte[] mBytes;
+    private int mBytePos;
+    private int mByteLimit;
+    private boolean mEof;
+
+    /** Second half of a surrogate pair that did not fit into the last read, or 0. */
+    private char mPendingLowSurrogate;
+
+    public Utf8Reader(InputStream in) {
+        mIn = in;
+        mBuffer = null;
+        mArrayOffset = 0;
+        mBytes = new byte[8192];
+    }
+
+    /** Decodes the remaining bytes of {@code buffer}, advancing its position as chars are read. */
+    public Utf8Reader(ByteBuffer buffer) {
+        mIn = null;
+        mBuffer = buffer;
+        if (buffer.hasArray()) {
+            mArrayOffset = buffer.arrayOffset();
+            mBytes = buffer.array();
+            mBytePos = mArrayOffset + buffer.position();
+            mByteLimit = mArrayOffset + buffer.limit();
+            mEof = true;
+        } else {
+            mArrayOffset = 0;
+            mBytes = new byte[8192];
+        }
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (mBytes == null) {
+            throw new IOException("Reader is closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        int n = 0;
+        if (mPendingLowSurrogate != 0) {
+            cbuf[off + n++] = mPendingLowSurrogate;
+            mPendingLowSurrogate = 0;
+        }
+
+        final byte[] bytes = mBytes;
+        decode:
+        while (n < len) {
+            // Copy a run of ASCII.
+            int pos = mBytePos;
+            final int end = Math.min(mByteLimit, pos + (len - n));
+            while (pos < end && bytes[pos] >= 0) {
+                cbuf[off + n++] = (char) bytes[pos++];
+            }
+            mBytePos = pos;
+            if (n == len) {
+                break;
+            }
+
+            if (pos == mByteLimit) {
+                if (n > 0 || !fill()) {
+                    break;
+                }
+                continue;
+            }
+
+            final int b = bytes[pos] & 0xff;
+            final int sequenceLength;
+            final int min;
+            final int max;
+            if (b >= 0xc2 && b <= 0xdf) {
+                sequenceLength = 2;
+                min = 0x80;
+                max = 0xbf;
+            } else if (b >= 0xe0 && b <= 0xef) {
+                sequenceLength = 3;
+                // Reject overlong forms and surrogates.
+                min = b == 0xe0 ? 0xa0 : 0x80;
+                max = b == 0xed ? 0x9f : 0xbf;
+            } else if (b >= 0xf0 && b <= 0xf4) {
+                sequenceLength = 4;
+                min = b == 0xf0 ? 0x90 : 0x80;
+                max = b == 0xf4 ? 0x8f : 0xbf;
+            } else {
+                cbuf[off + n++] = REPLACEMENT;
+                mBytePos = pos + 1;
+                continue;
+            }
+
+            if (pos + sequenceLength > mByteLimit && !mEof) {
+                // The sequence is split across reads.
+                if (n > 0 || !fill()) {
+                    break;
+                }
+                continue;
+            }
+
+            int codePoint = b & (0xff >> (sequenceLength + 1));
+            for (int i = 1; i < sequenceLength; i++) {
+                final int c = pos + i < mByteLimit ? bytes[pos + i] & 0xff : -1;
+                if (c < (i == 1 ? min : 0x80) || c > (i == 1 ? max : 0xbf)) {
+                    cbuf[off + n++] = REPLACEMENT;
+                    mBytePos = pos + i;
+                    continue decode;
+                }
+                codePoint = (codePoint << 6) | (c & 0x3f);
+            }
+            mBytePos = pos + sequenceLength;
+
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                cbuf[off + n++] = (char) codePoint;
+            } else {
+                cbuf[off + n++] = Character.highSurrogate(codePoint);
+                if (n < len) {
+                    cbuf[off + n++] = Character.lowSurrogate(codePoint);
+                } else {
+                    mPendingLowSurrogate = Character.lowSurrogate(codePoint);
+                }
+            }
+        }
+
+        if (mBuffer != null && mBuffer.hasArray()) {
+            mBuffer.position(mBytePos - mArrayOffset);
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    /**
+     * Moves any unread bytes to the front of the buffer and reads more. Returns false once the
+     * input is exhausted and no bytes are left.
+     */
+    private boolean fill() throws IOException {
+        if (mEof) {
+            return mBytePos < mByteLimit;
+        }
+        final int remaining = mByteLimit - mBytePos;
+        System.arraycopy(mBytes, mBytePos, mBytes, 0, remaining);
+        mBytePos = 0;
+        mByteLimit = remaining;
+        final int count;
+        if (mIn != null) {
+            count = mIn.read(mBytes, remaining, mBytes.length - remaining);
+        } else {
+            count = Math.min(mBuffer.remaining(), mBytes.length - remaining);
+            mBuffer.get(mBytes, remaining, count);
+            if (count == 0) {
+                mEof = true;
+            }
+        }
+        if (count == -1) {
+            mEof = true;
+        } else {
+            mByteLimit += count;
+        }
+        return mBytePos < mByteLimit;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mBytes = null;
+        if (mIn != null) {
+            mIn.close();
+        }
+    }
+}
@@ -65,18 +65,27 @@ import com.android.server.DropBoxManagerInternal.EntrySource;
 
 import libcore.io.IoUtils;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -101,9 +110,17 @@ public final class DropBoxManagerService extends SystemService {
     // Size beyond which to force-compress newly added entries.
     private static final long COMPRESS_THRESHOLD_BYTES = 16_384;
 
-    // TODO: This implementation currently uses one file per entry, which is
-    // inefficient for smallish entries -- consider using a single queue file
-    // per tag (or even globally) instead.
+    // Entries up to this size are packed into per-tag segment files instead of getting a file of
+    // their own; larger entries are force-compressed into their own file as before.
+    private static final long SEGMENT_ENTRY_MAX_BYTES = COMPRESS_THRESHOLD_BYTES;
+
+    // Size from which entries packed into a segment are compressed.
+    private static final int SEGMENT_COMPRESS_MIN_BYTES = 512;
+
+    // A segment stops taking new entries once it reaches this size or spans this much time, which
+    // bounds how much is lost early when trimming drops it as a whole.
+    private static final long SEGMENT_MAX_BYTES = 256 * 1024;
+    private static final long SEGMENT_MAX_SPAN_MILLIS = 60 * 60 * 1000;
 
     // The cached context and derived objects
 
@@ -115,6 +132,11 @@ public final class DropBoxManagerService extends SystemService {
     private FileList mAllFiles = null;
     private ArrayMap<String, FileList> mFilesByTag = null;
 
+    // Segment currently appended to for each tag.  Segments found at boot are never appended to.
+    private final ArrayMap<String, Segment> mActiveSegments = new ArrayMap<>();
+    // Segment currently receiving the tombstones of quota-trimmed segments for each tag.
+    private final ArrayMap<String, Segment> mTombstoneSegments = new ArrayMap<>();
+
     private long mLowPriorityRateLimitPeriod = 0;
     private ArraySet<String> mLowPriorityTags = null;
 
@@ -439,6 +461,14 @@ public final class DropBoxManagerService extends SystemService {
             return length;
         }
 
+        /** Reads the whole entry into memory. */
+        byte[] readAllBytes() throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    (int) Math.min(length, SEGMENT_ENTRY_MAX_BYTES));
+            FileUtils.copy(in, out);
+            return out.toByteArray();
+        }
+
         @Override
         public void writeTo(FileDescriptor fd) throws IOException {
             // No need to buffer the output here, since data is either coming
@@ -462,6 +492,7 @@ public final class DropBoxManagerService extends SystemService {
 
     public void addEntry(String tag, EntrySource entry, int flags) {
         File temp = null;
+        byte[] data = null;
         try {
             Slog.i(TAG, "add tag=" + tag + " isTagEnabled=" + isTagEnabled(tag)
                     + " flags=0x" + Integer.toHexString(flags));
@@ -478,6 +509,11 @@ public final class DropBoxManagerService extends SystemService {
             if (length > max) {
                 // Log and fall through to create empty tombstone below
                 Slog.w(TAG, "Dropping: " + tag + " (" + length + " > " + max + " bytes)");
+            } else if (entry instanceof SimpleEntrySource
+                    && (flags & DropBoxManager.IS_GZIPPED) == 0
+                    && length <= SEGMENT_ENTRY_MAX_BYTES) {
+                // Small enough to be packed into a segment without a temp file
+                data = ((SimpleEntrySource) entry).readAllBytes();
             } else {
                 temp = new File(mDropBoxDir, "drop" + Thread.currentThread().getId() + ".tmp");
                 try (FileOutputStream out = new FileOutputStream(temp)) {
@@ -486,7 +522,7 @@ public final class DropBoxManagerService extends SystemService {
             }
 
             // Writing above succeeded, so create the finalized entry
-            long time = createEntry(temp, tag, flags);
+            long time = createEntry(temp, data, tag, flags);
             temp = null;
 
             // Call sendBroadcast after returning from this call to avoid deadlock. In particular
@@ -564,15 +600,10 @@ public final class DropBoxManagerService extends SystemService {
 
         for (EntryFile entry : list.contents.tailSet(new EntryFile(millis + 1))) {
             if (entry.tag == null) continue;
-            if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
-                return new DropBoxManager.Entry(entry.tag, entry.timestampMillis);
-            }
-            final File file = entry.getFile(mDropBoxDir);
             try {
-                return new DropBoxManager.Entry(
-                        entry.tag, entry.timestampMillis, file, entry.flags);
+                return openEntry(entry);
             } catch (IOException e) {
-                Slog.wtf(TAG, "Can't read: " + file, e);
+                Slog.wtf(TAG, "Can't read: " + entry.getPath(mDropBoxDir), e);
                 // Continue to next file
             }
         }
@@ -665,8 +696,8 @@ public final class DropBoxManagerService extends SystemService {
             String date = TimeMigrationUtils.formatMillisWithFixedFormat(entry.timestampMillis);
             out.append(date).append(" ").append(entry.tag == null ? "(no tag)" : entry.tag);
 
-            final File file = entry.getFile(mDropBoxDir);
-            if (file == null) {
+            final String path = entry.getPath(mDropBoxDir);
+            if (path == null) {
                 out.append(" (no file)\n");
                 continue;
             } else if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
@@ -676,20 +707,19 @@ public final class DropBoxManagerService extends SystemService {
                 out.append(" (");
                 if ((entry.flags & DropBoxManager.IS_GZIPPED) != 0) out.append("compressed ");
                 out.append((entry.flags & DropBoxManager.IS_TEXT) != 0 ? "text" : "data");
-                out.append(", ").append(file.length()).append(" bytes)\n");
+                out.append(", ").append(entry.getStoredLength(mDropBoxDir)).append(" bytes)\n");
             }
 
             if (doFile || (doPrint && (entry.flags & DropBoxManager.IS_TEXT) == 0)) {
                 if (!doPrint) out.append("    ");
-                out.append(file.getPath()).append("\n");
+                out.append(path).append("\n");
             }
 
             if ((entry.flags & DropBoxManager.IS_TEXT) != 0 && (doPrint || !doFile)) {
                 DropBoxManager.Entry dbe = null;
                 InputStreamReader isr = null;
                 try {
-                    dbe = new DropBoxManager.Entry(
-                             entry.tag, entry.timestampMillis, file, entry.flags);
+                    dbe = openEntry(entry);
 
                     if (doPrint) {
                         isr = new InputStreamReader(dbe.getInputStream());
@@ -722,7 +752,7 @@ public final class DropBoxManagerService extends SystemService {
                     }
                 } catch (IOException e) {
                     out.append("*** ").append(e.toString()).append("\n");
-                    Slog.e(TAG, "Can't read: " + file, e);
+                    Slog.e(TAG, "Can't read: " + path, e);
                 } finally {
                     if (dbe != null) dbe.close();
                     if (isr != null) {
@@ -759,22 +789,56 @@ public final class DropBoxManagerService extends SystemService {
         return match;
     }
 
+    /** Creates a {@link DropBoxManager.Entry} returning the contents of an entry. */
+    private DropBoxManager.Entry openEntry(EntryFile entry) throws IOException {
+        if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
+            return new DropBoxManager.Entry(entry.tag, entry.timestampMillis);
+        }
+        if (entry.segment == null) {
+            return new DropBoxManager.Entry(entry.tag, entry.timestampMillis,
+                    entry.getFile(mDropBoxDir), entry.flags);
+        }
+
+        // Entry.getText() doesn't decompress in-memory data, so hand out plain contents.
+        byte[] data = entry.segment.read(entry.offset, entry.length);
+        int flags = entry.flags;
+        if ((flags & DropBoxManager.IS_GZIPPED) != 0) {
+            data = decompress(data);
+            flags &= ~DropBoxManager.IS_GZIPPED;
+        }
+        return new DropBoxManager.Entry(entry.tag, entry.timestampMillis, data, flags);
+    }
+
+    private static byte[] compress(byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(out)) {
+            gzipOutputStream.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            FileUtils.copy(in, out);
+        }
+        return out.toByteArray();
+    }
+
     private void dumpProtoLocked(FileDescriptor fd, ArrayList<String> searchArgs) {
         final ProtoOutputStream proto = new ProtoOutputStream(fd);
 
         for (EntryFile entry : mAllFiles.contents) {
             if (!matchEntry(entry, searchArgs)) continue;
 
-            final File file = entry.getFile(mDropBoxDir);
-            if ((file == null) || ((entry.flags & DropBoxManager.IS_EMPTY) != 0)) {
+            if (!entry.hasFile() || ((entry.flags & DropBoxManager.IS_EMPTY) != 0)) {
                 continue;
             }
 
             final long bToken = proto.start(DropBoxManagerServiceDumpProto.ENTRIES);
             proto.write(DropBoxManagerServiceDumpProto.Entry.TIME_MS, entry.timestampMillis);
             try (
-                DropBoxManager.Entry dbe = new DropBoxManager.Entry(
-                        entry.tag, entry.timestampMillis, file, entry.flags);
+                DropBoxManager.Entry dbe = openEntry(entry);
                 InputStream is = dbe.getInputStream();
             ) {
                 if (is != null) {
@@ -788,7 +852,7 @@ public final class DropBoxManagerService extends SystemService {
                             Arrays.copyOf(buf, readBytes));
                 }
             } catch (IOException e) {
-                Slog.e(TAG, "Can't read: " + file, e);
+                Slog.e(TAG, "Can't read: " + entry.getPath(mDropBoxDir), e);
             }
 
             proto.end(bToken);
@@ -828,6 +892,17 @@ public final class DropBoxManagerService extends SystemService {
         public final int flags;
         public final int blocks;
 
+        /**
+         * Segment holding the contents of this entry, or null if the entry has a file of its own.
+         * Space used by segments is accounted per segment, so {@link #blocks} is 0 for these.
+         */
+        @Nullable
+        public final Segment segment;
+        /** Offset of the contents in {@link #segment}. */
+        public final long offset;
+        /** Length of the contents as stored in {@link #segment}. */
+        public final int length;
+
         /** Sorts earlier EntryFile instances before later ones. */
         public final int compareTo(EntryFile o) {
             int comp = Long.compare(timestampMillis, o.timestampMillis);
@@ -860,6 +935,9 @@ public final class DropBoxManagerService extends SystemService {
             this.tag = TextUtils.safeIntern(tag);
             this.timestampMillis = timestampMillis;
             this.flags = flags;
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
 
             final File file = this.getFile(dir);
             if (!temp.renameTo(file)) {
@@ -881,9 +959,32 @@ public final class DropBoxManagerService extends SystemService {
             this.timestampMillis = timestampMillis;
             this.flags = DropBoxManager.IS_EMPTY;
             this.blocks = 0;
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
             new FileOutputStream(getFile(dir)).close();
         }
 
+        /**
+         * Describes an entry stored in a segment.
+         *
+         * @param segment holding the contents
+         * @param timestampMillis of log entry
+         * @param flags for the entry data
+         * @param offset of the contents in the segment
+         * @param length of the contents in the segment
+         */
+        public EntryFile(Segment segment, long timestampMillis, int flags, long offset,
+                int length) {
+            this.tag = segment.tag;
+            this.timestampMillis = timestampMillis;
+            this.flags = flags;
+            this.blocks = 0;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
         /**
          * Extracts metadata from an existing on-disk log filename.
          *
@@ -939,6 +1040,9 @@ public final class DropBoxManagerService extends SystemService {
                 this.flags = DropBoxManager.IS_EMPTY;
                 this.timestampMillis = 0;
                 this.blocks = 0;
+                this.segment = null;
+                this.offset = 0;
+                this.length = 0;
                 return;
             }
 
@@ -946,6 +1050,9 @@ public final class DropBoxManagerService extends SystemService {
             this.tag = TextUtils.safeIntern(tag);
             this.flags = flags;
             this.timestampMillis = millis;
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
         }
 
         /**
@@ -957,6 +1064,9 @@ public final class DropBoxManagerService extends SystemService {
             this.timestampMillis = millis;
             this.flags = DropBoxManager.IS_EMPTY;
             this.blocks = 0;
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
         }
 
         /**
@@ -977,10 +1087,12 @@ public final class DropBoxManagerService extends SystemService {
         }
 
         /**
-         * @return filename for this entry without the pathname.
+         * @return filename for this entry without the pathname, or null if the entry has no file
+         * of its own.
          */
         public String getFilename() {
-            return hasFile() ? Uri.encode(tag) + "@" + timestampMillis + getExtension() : null;
+            return hasFile() && segment == null
+                    ? Uri.encode(tag) + "@" + timestampMillis + getExtension() : null;
         }
 
         /**
@@ -989,19 +1101,275 @@ public final class DropBoxManagerService extends SystemService {
          *            know in which directory they're stored.
          */
         public File getFile(File dir) {
-            return hasFile() ? new File(dir, getFilename()) : null;
+            final String filename = getFilename();
+            return filename != null ? new File(dir, filename) : null;
+        }
+
+        /**
+         * @return where the contents of this entry are stored, for logging, or null if nowhere.
+         */
+        public String getPath(File dir) {
+            if (segment != null) {
+                return segment.file.getPath() + "#" + offset;
+            }
+            final File file = getFile(dir);
+            return file != null ? file.getPath() : null;
+        }
+
+        /** @return the number of bytes used to store the contents of this entry. */
+        public long getStoredLength(File dir) {
+            if (segment != null) {
+                return length;
+            }
+            final File file = getFile(dir);
+            return file != null ? file.length() : 0;
         }
 
         /**
-         * If an entry has a backing file, remove it.
+         * If an entry has a backing file of its own, remove it.  Entries stored in a segment are
+         * removed together with their segment.
          */
         public void deleteFile(File dir) {
-            if (hasFile()) {
-                getFile(dir).delete();
+            final File file = getFile(dir);
+            if (file != null) {
+                file.delete();
             }
         }
     }
 
+    /**
+     * Append-only file packing the contents of many small entries with the same tag, so adding an
+     * entry doesn't create, rename and later delete a file of its own.  All entries of a segment
+     * are trimmed together by deleting the file.
+     *
+     * The file starts with a magic number and version, followed by one record per entry: the
+     * timestamp, flags, length and CRC32 of the contents, then the contents themselves.  Only the
+     * record headers are read at boot; contents are read when an entry is opened.
+     */
+    @VisibleForTesting
+    static final class Segment {
+        static final String SUFFIX = ".seg";
+
+        private static final int MAGIC = 0x44425347; // "DBSG"
+        private static final int VERSION = 1;
+        private static final int HEADER_BYTES = 8;
+        private static final int RECORD_HEADER_BYTES = 20;
+
+        public final File file;
+        public final String tag;
+        /** Entries stored in this segment, in the order they were appended. */
+        public final ArrayList<EntryFile> entries = new ArrayList<>();
+        /** Blocks accounted to this segment in the {@link FileList}s. */
+        public int blocks = 0;
+
+        private final long mFirstMillis;
+        private long mLength;
+        private boolean mWritable;
+        private boolean mHasData;
+
+        private Segment(File file, String tag, long firstMillis, long length, boolean writable) {
+            this.file = file;
+            this.tag = tag;
+            mFirstMillis = firstMillis;
+            mLength = length;
+            mWritable = writable;
+        }
+
+        /**
+         * Creates an empty segment for entries of a tag.
+         *
+         * @param dir to store the segment in
+         * @param tag of the entries
+         * @param firstMillis timestamp of the first entry, used to name the file
+         * @throws IOException if the file can't be created
+         */
+        public static Segment create(File dir, String tag, long firstMillis) throws IOException {
+            // Entry timestamps are unique, but an entry moved back because of clock skew can
+            // leave an existing segment named after a timestamp that gets handed out again.
+            File file;
+            for (long millis = firstMillis; ; millis++) {
+                file = new File(dir, Uri.encode(tag) + "@" + millis + SUFFIX);
+                if (file.createNewFile()) break;
+            }
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            } catch (IOException e) {
+                file.delete();
+                throw e;
+            }
+            return new Segment(file, TextUtils.safeIntern(tag), firstMillis, HEADER_BYTES, true);
+        }
+
+        /**
+         * Reads the record headers of an existing segment.  A record cut short by a crash ends the
+         * segment; segments read from disk are never appended to.
+         *
+         * @param file of the segment
+         * @return the segment, or null if the file isn't a valid segment, in which case it is
+         * removed
+         */
+        @Nullable
+        public static Segment load(File file) {
+            final String name = file.getName();
+            final int at = name.lastIndexOf('@');
+            if (at < 0) {
+                Slog.wtf(TAG, "Invalid filename: " + file);
+                file.delete();
+                return null;
+            }
+
+            final Segment segment = new Segment(file,
+                    TextUtils.safeIntern(Uri.decode(name.substring(0, at))), 0, file.length(),
+                    false);
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Bad segment header");
+                }
+                long offset = HEADER_BYTES;
+                try {
+                    while (offset < segment.mLength) {
+                        final long millis = in.readLong();
+                        final int flags = in.readInt();
+                        final int length = in.readInt();
+                        in.readInt(); // CRC32, checked when the contents are read
+                        offset += RECORD_HEADER_BYTES;
+                        if (length < 0 || offset + length > segment.mLength) {
+                            throw new EOFException();
+                        }
+                        for (int skipped = 0; skipped < length; ) {
+                            final int n = in.skipBytes(length - skipped);
+                            if (n <= 0) throw new EOFException();
+                            skipped += n;
+                        }
+                        segment.entries.add(new EntryFile(segment, millis, flags, offset, length));
+                        if ((flags & DropBoxManager.IS_EMPTY) == 0) segment.mHasData = true;
+                        offset += length;
+                    }
+                } catch (EOFException e) {
+                    Slog.w(TAG, "Truncated segment: " + file);
+                }
+            } catch (IOException e) {
+                Slog.wtf(TAG, "Can't read segment: " + file, e);
+                file.delete();
+                return null;
+            }
+            return segment;
+        }
+
+        /** @return whether an entry of the given size should be appended to this segment. */
+        public boolean canAppend(long millis, int length) {
+            return mWritable
+                    && mLength + RECORD_HEADER_BYTES + length <= SEGMENT_MAX_BYTES
+                    && millis - mFirstMillis < SEGMENT_MAX_SPAN_MILLIS;
+        }
+
+        /**
+         * Appends an entry to the end of the segment.
+         *
+         * @param millis timestamp of the entry
+         * @param flags for the entry data
+         * @param data of the entry, or null for a tombstone
+         * @return the new entry
+         * @throws IOException if the entry can't be written
+         */
+        public EntryFile append(long millis, int flags, @Nullable byte[] data) throws IOException {
+            final int length = data != null ? data.length : 0;
+            final ByteArrayOutputStream record =
+                    new ByteArrayOutputStream(RECORD_HEADER_BYTES + length);
+            final DataOutputStream out = new DataOutputStream(record);
+            out.writeLong(millis);
+            out.writeInt(flags);
+            out.writeInt(length);
+            out.writeInt(crc(data));
+            if (data != null) out.write(data);
+
+            // A single write, so that a crash leaves at most one partial record at the end.
+            try (FileOutputStream fos = new FileOutputStream(file, true)) {
+                record.writeTo(fos);
+            } catch (IOException e) {
+                // Part of the record may have made it to disk; don't append anything after it.
+                mWritable = false;
+                throw e;
+            }
+
+            final EntryFile entry =
+                    new EntryFile(this, millis, flags, mLength + RECORD_HEADER_BYTES, length);
+            mLength += record.size();
+            entries.add(entry);
+            if ((flags & DropBoxManager.IS_EMPTY) == 0) mHasData = true;
+            return entry;
+        }
+
+        /**
+         * Reads the contents of an entry, as stored.
+         *
+         * @throws IOException if the contents can't be read or are corrupt
+         */
+        public byte[] read(long offset, int length) throws IOException {
+            final byte[] data = new byte[length];
+            final int crc;
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                in.seek(offset - 4);
+                crc = in.readInt();
+                in.readFully(data);
+            }
+            if (crc(data) != crc) {
+                throw new IOException("Corrupt entry at " + offset + " in " + file);
+            }
+            return data;
+        }
+
+        /**
+         * Replaces an entry with one at a different time, for correcting clock skew.  The
+         * timestamp is rewritten in the record header, which the CRC doesn't cover, so the
+         * correction survives a reboot like the rename of an entry file does.  If the record
+         * can't be updated, only the in-memory entry moves and the correction is redone after a
+         * reboot.
+         */
+        public EntryFile retime(EntryFile entry, long millis) {
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.seek(entry.offset - RECORD_HEADER_BYTES);
+                out.writeLong(millis);
+            } catch (IOException e) {
+                Slog.e(TAG, "Can't retime entry in " + file, e);
+            }
+            final EntryFile retimed =
+                    new EntryFile(this, millis, entry.flags, entry.offset, entry.length);
+            entries.set(entries.indexOf(entry), retimed);
+            return retimed;
+        }
+
+        /**
+         * @return whether any entry of the segment has contents.  A segment holding only
+         * tombstones isn't counted against the quota, like a zero-length tombstone file.
+         */
+        public boolean hasData() {
+            return mHasData;
+        }
+
+        /** @return the size of the segment file in bytes. */
+        public long getLength() {
+            return mLength;
+        }
+
+        /** Removes the segment file, and with it the contents of all its entries. */
+        public void delete() {
+            mWritable = false;
+            file.delete();
+        }
+
+        private static int crc(@Nullable byte[] data) {
+            if (data == null) {
+                return 0;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(data);
+            return (int) crc.getValue();
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     /** If never run before, scans disk contents to build in-memory tracking data. */
@@ -1033,6 +1401,14 @@ public final class DropBoxManagerService extends SystemService {
                     continue;
                 }
 
+                if (file.getName().endsWith(Segment.SUFFIX)) {
+                    final Segment segment = Segment.load(file);
+                    if (segment != null) {
+                        enrollSegment(segment);
+                    }
+                    continue;
+                }
+
                 EntryFile entry = new EntryFile(file, mBlockSize);
 
                 if (entry.hasFile()) {
@@ -1051,20 +1427,133 @@ public final class DropBoxManagerService extends SystemService {
 
         // mFilesByTag is used for trimming, so don't list empty files.
         // (Zero-length/lost files are trimmed by date from mAllFiles.)
+        // Entries in a segment don't have blocks of their own, but trimming them frees their
+        // segment.
 
-        if (entry.hasFile() && entry.blocks > 0) {
-            FileList tagFiles = mFilesByTag.get(entry.tag);
-            if (tagFiles == null) {
-                tagFiles = new FileList();
-                mFilesByTag.put(TextUtils.safeIntern(entry.tag), tagFiles);
-            }
+        final boolean inSegment = entry.segment != null
+                && (entry.flags & DropBoxManager.IS_EMPTY) == 0;
+        if (entry.hasFile() && (entry.blocks > 0 || inSegment)) {
+            final FileList tagFiles = getOrCreateTagFiles(entry.tag);
             tagFiles.contents.add(entry);
             tagFiles.blocks += entry.blocks;
         }
     }
 
-    /** Moves a temporary file to a final log filename and enrolls it. */
-    private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
+    private synchronized FileList getOrCreateTagFiles(String tag) {
+        FileList tagFiles = mFilesByTag.get(tag);
+        if (tagFiles == null) {
+            tagFiles = new FileList();
+            mFilesByTag.put(TextUtils.safeIntern(tag), tagFiles);
+        }
+        return tagFiles;
+    }
+
+    /** Adds all entries of a segment found on disk to in-memory tracking. */
+    private synchronized void enrollSegment(Segment segment) {
+        if (segment.entries.isEmpty()) {
+            segment.delete();
+            return;
+        }
+        for (int i = 0; i < segment.entries.size(); i++) {
+            enrollEntry(segment.entries.get(i));
+        }
+        accountSegment(segment);
+    }
+
+    /** Brings the blocks accounted to a segment up to date with its size. */
+    private synchronized void accountSegment(Segment segment) {
+        // Tombstones can't be reclaimed by trimming the tag, so they take no blocks from its quota.
+        final int blocks = segment.hasData()
+                ? (int) ((segment.getLength() + mBlockSize - 1) / mBlockSize) : 0;
+        final int delta = blocks - segment.blocks;
+        if (delta == 0) return;
+        segment.blocks = blocks;
+        mAllFiles.blocks += delta;
+        getOrCreateTagFiles(segment.tag).blocks += delta;
+    }
+
+    /**
+     * Appends an entry to the active segment of its tag, starting a new segment if needed.
+     *
+     * @param tag of the entry
+     * @param timestampMillis of the entry
+     * @param flags for the entry data
+     * @param data of the entry, or null for a tombstone
+     * @throws IOException if the entry can't be written
+     */
+    private synchronized void appendToSegment(String tag, long timestampMillis, int flags,
+            @Nullable byte[] data) throws IOException {
+        if (data != null && (flags & DropBoxManager.IS_GZIPPED) == 0
+                && data.length >= SEGMENT_COMPRESS_MIN_BYTES) {
+            final byte[] compressed = compress(data);
+            if (compressed.length < data.length) {
+                data = compressed;
+                flags |= DropBoxManager.IS_GZIPPED;
+            }
+        }
+
+        final int length = data != null ? data.length : 0;
+        Segment segment = mActiveSegments.get(tag);
+        if (segment == null || !segment.canAppend(timestampMillis, length)) {
+            segment = Segment.create(mDropBoxDir, tag, timestampMillis);
+            mActiveSegments.put(segment.tag, segment);
+        }
+        enrollEntry(segment.append(timestampMillis, flags, data));
+        accountSegment(segment);
+    }
+
+    /**
+     * Removes a segment and all of its entries.
+     *
+     * @param segment to remove
+     * @param leaveTombstones whether to keep tombstones marking the entries whose contents were
+     *     lost, which are appended to a tombstone-only segment of the tag so they age out at their
+     *     own pace
+     * @throws IOException if the tombstones can't be written
+     */
+    private synchronized void dropSegment(Segment segment, boolean leaveTombstones)
+            throws IOException {
+        final FileList tagFiles = mFilesByTag.get(segment.tag);
+        ArrayList<EntryFile> lost = null;
+        for (int i = 0; i < segment.entries.size(); i++) {
+            final EntryFile entry = segment.entries.get(i);
+            mAllFiles.contents.remove(entry);
+            if (tagFiles != null) tagFiles.contents.remove(entry);
+            if (leaveTombstones && (entry.flags & DropBoxManager.IS_EMPTY) == 0) {
+                if (lost == null) lost = new ArrayList<>();
+                lost.add(entry);
+            }
+        }
+        mAllFiles.blocks -= segment.blocks;
+        if (tagFiles != null) tagFiles.blocks -= segment.blocks;
+        segment.blocks = 0;
+        if (mActiveSegments.get(segment.tag) == segment) {
+            mActiveSegments.remove(segment.tag);
+        }
+        if (mTombstoneSegments.get(segment.tag) == segment) {
+            mTombstoneSegments.remove(segment.tag);
+        }
+        segment.delete();
+
+        if (lost != null) {
+            for (int i = 0; i < lost.size(); i++) {
+                final long millis = lost.get(i).timestampMillis;
+                Segment tombstones = mTombstoneSegments.get(segment.tag);
+                if (tombstones == null || !tombstones.canAppend(millis, 0)) {
+                    tombstones = Segment.create(mDropBoxDir, segment.tag, millis);
+                    mTombstoneSegments.put(tombstones.tag, tombstones);
+                }
+                enrollEntry(tombstones.append(millis, DropBoxManager.IS_EMPTY, null));
+            }
+        }
+    }
+
+    /**
+     * Moves a temporary file to a final log filename, or appends in-memory contents to a segment,
+     * and enrolls the entry.  With neither, a tombstone is recorded.
+     */
+    private synchronized long createEntry(File temp, byte[] data, String tag, int flags)
+            throws IOException {
         long t = System.currentTimeMillis();
 
         // Require each entry to have a unique timestamp; if there are entries
@@ -1089,7 +1578,9 @@ public final class DropBoxManagerService extends SystemService {
                 if (tagFiles != null && tagFiles.contents.remove(late)) {
                     tagFiles.blocks -= late.blocks;
                 }
-                if ((late.flags & DropBoxManager.IS_EMPTY) == 0) {
+                if (late.segment != null) {
+                    enrollEntry(late.segment.retime(late, t++));
+                } else if ((late.flags & DropBoxManager.IS_EMPTY) == 0) {
                     enrollEntry(new EntryFile(late.getFile(mDropBoxDir), mDropBoxDir,
                             late.tag, t++, late.flags, mBlockSize));
                 } else {
@@ -1098,8 +1589,10 @@ public final class DropBoxManagerService extends SystemService {
             }
         }
 
-        if (temp == null) {
-            enrollEntry(new EntryFile(mDropBoxDir, tag, t));
+        if (data != null) {
+            appendToSegment(tag, t, flags, data);
+        } else if (temp == null) {
+            appendToSegment(tag, t, DropBoxManager.IS_EMPTY, null);
         } else {
             enrollEntry(new EntryFile(temp, mDropBoxDir, tag, t, flags, mBlockSize));
         }
@@ -1126,6 +1619,13 @@ public final class DropBoxManagerService extends SystemService {
                 break;
             }
 
+            // Entries in a segment go together; a segment spans at most
+            // SEGMENT_MAX_SPAN_MILLIS, which bounds how early its newest entries go.
+            if (entry.segment != null) {
+                dropSegment(entry.segment, false);
+                continue;
+            }
+
             FileList tag = mFilesByTag.get(entry.tag);
             if (tag != null && tag.contents.remove(entry)) tag.blocks -= entry.blocks;
             if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
@@ -1174,7 +1674,9 @@ public final class DropBoxManagerService extends SystemService {
         // well-behaved data streams (event statistics, profile data, etc).
         //
         // Deleted files are replaced with zero-length tombstones to mark what
-        // was lost.  Tombstones are expunged by age (see above).
+        // was lost.  Tombstones are expunged by age (see above).  Small entries
+        // packed into segments are trimmed a whole segment at a time, with their
+        // tombstones appended to a tombstone-only segment that isn't charged to the tag.
 
         if (mAllFiles.blocks > mCachedQuotaBlocks) {
             // Find a fair share amount of space to limit each tag
@@ -1194,6 +1696,14 @@ public final class DropBoxManagerService extends SystemService {
                 if (mAllFiles.blocks < mCachedQuotaBlocks) break;
                 while (tag.blocks > tagQuota && !tag.contents.isEmpty()) {
                     EntryFile entry = tag.contents.first();
+                    if (entry.segment != null) {
+                        try {
+                            dropSegment(entry.segment, true);
+                        } catch (IOException e) {
+                            Slog.e(TAG, "Can't write tombstones", e);
+                        }
+                        continue;
+                    }
                     if (tag.contents.remove(entry)) tag.blocks -= entry.blocks;
                     if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
 
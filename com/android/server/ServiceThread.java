@@ -43,4 +43,10 @@ public class ServiceThread extends HandlerThread {
 
         super.run();
     }
+
+    @Override
+    protected void onLooperPrepared() {
+        // System service loopers routinely hold thousands of pending timeouts and retries.
+        getLooper().getQueue().setDelayedMessageHeapEnabled(true);
+    }
 }
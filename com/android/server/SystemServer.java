@@ -2483,7 +2483,11 @@ public final class SystemServer implements Dumpable {
 
         // Statsd pulled atoms
         t.traceBegin("StartStatsPullAtomService");
-        mSystemServiceManager.startService(STATS_PULL_ATOM_SERVICE_CLASS);
+        final SystemService statsPullAtomService =
+                mSystemServiceManager.startService(STATS_PULL_ATOM_SERVICE_CLASS);
+        if (statsPullAtomService instanceof Dumpable) {
+            mDumper.addDumpable((Dumpable) statsPullAtomService);
+        }
         t.traceEnd();
 
         // Incidentd and dumpstated helper
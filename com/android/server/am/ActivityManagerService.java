@@ -355,6 +355,7 @@ import com.android.internal.util.function.QuadFunction;
 import com.android.internal.util.function.QuintFunction;
 import com.android.internal.util.function.TriFunction;
 import com.android.internal.util.function.UndecFunction;
+import com.android.internal.util.function.pooled.PooledLambda;
 import com.android.server.AlarmManagerInternal;
 import com.android.server.DeviceIdleInternal;
 import com.android.server.DisplayThread;
@@ -8920,6 +8921,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                     System.gc();
                     pw.println(BinderInternal.nGetBinderProxyCount(Integer.parseInt(uid)));
                 }
+            } else if ("pooled-lambdas".equals(cmd)) {
+                PooledLambda.dumpPools(pw);
             } else if ("allowed-associations".equals(cmd)) {
                 if (opti < args.length) {
                     dumpPackage = args[opti];
@@ -3199,6 +3199,7 @@ final class ActivityManagerShellCommand extends ShellCommand {
             pw.println("    lmk: stats on low memory killer");
             pw.println("    lru: raw LRU process list");
             pw.println("    binder-proxies: stats on binder objects and IPCs");
+            pw.println("    pooled-lambdas: stats on PooledLambda pools");
             pw.println("    settings: currently applied config settings");
             pw.println("    service [COMP_SPEC]: service client-side state");
             pw.println("    package [PACKAGE_NAME]: all state related to given package");
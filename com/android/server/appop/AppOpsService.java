@@ -172,6 +172,7 @@ import com.android.internal.util.DumpUtils;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 import com.android.internal.util.function.pooled.PooledLambda;
+import com.android.internal.util.function.pooled.PooledRunnableBatcher;
 import com.android.server.LocalServices;
 import com.android.server.LockGuard;
 import com.android.server.SystemServerInitThreadPool;
@@ -210,6 +211,7 @@ import java.util.Objects;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Consumer;
 
 public class AppOpsService extends IAppOpsService.Stub {
@@ -272,6 +274,12 @@ public class AppOpsService extends IAppOpsService.Stub {
     private final @Nullable File mNoteOpCallerStacktracesFile;
     final Handler mHandler;
 
+    /**
+     * Posts per-callback {@link #notifyOpChanged} calls to {@link #mHandler}. A single mode change
+     * can fan out to every watcher and package, so these are delivered in one message per burst.
+     */
+    private final PooledRunnableBatcher mOpChangedBatcher;
+
     /** Pool for {@link OpEventProxyInfoPool} to avoid to constantly reallocate new objects */
     @GuardedBy("this")
     private final OpEventProxyInfoPool mOpEventProxyInfoPool = new OpEventProxyInfoPool();
@@ -1535,6 +1543,56 @@ public class AppOpsService extends IAppOpsService.Stub {
     final ArrayMap<IBinder, SparseArray<NotedCallback>> mNotedWatchers = new ArrayMap<>();
     final AudioRestrictionManager mAudioRestrictionManager = new AudioRestrictionManager();
 
+    /**
+     * Immutable copy of the state {@link #checkOperationUnchecked} reads for one uid, so that
+     * most checks can be answered without taking the service lock. A snapshot is only valid
+     * while {@link #mModeGeneration} still has the value it was built at.
+     */
+    private static final class ModeSnapshot {
+        final int uid;
+        final int generation;
+        /**
+         * Packages known to belong to the uid -> raw mode of every op, resolved through its
+         * switch op and the uid mode.
+         */
+        final ArrayMap<String, byte[]> packageModes;
+        /** Ops that a global or user restriction might apply to for this uid */
+        final boolean[] mayBeRestricted;
+
+        ModeSnapshot(int uid, int generation, ArrayMap<String, byte[]> packageModes,
+                boolean[] mayBeRestricted) {
+            this.uid = uid;
+            this.generation = generation;
+            this.packageModes = packageModes;
+            this.mayBeRestricted = mayBeRestricted;
+        }
+    }
+
+    private static final int MODE_SNAPSHOT_SLOTS = 256;
+
+    /** Returned by {@link #checkOperationFromSnapshot} when the lock has to be taken */
+    private static final int MODE_UNCACHED = -1;
+
+    /**
+     * Incremented under the lock whenever a mode, restriction or package to uid mapping that a
+     * {@link ModeSnapshot} depends on changes.
+     */
+    private volatile int mModeGeneration;
+
+    /**
+     * Direct-mapped by uid. A slot is only replaced once its snapshot is out of date, so of
+     * colliding uids the first one checked after a change keeps the slot. Written under the
+     * lock and read without it; snapshots only have final fields, so readers always see them
+     * fully built.
+     */
+    private final ModeSnapshot[] mModeSnapshots = new ModeSnapshot[MODE_SNAPSHOT_SLOTS];
+
+    /** Per-op number of checkOperation calls answered from a snapshot */
+    private final AtomicLongArray mLockFreeCheckCounts = new AtomicLongArray(_NUM_OP);
+
+    /** Per-op number of checkOperation calls that took the lock */
+    private final AtomicLongArray mLockedCheckCounts = new AtomicLongArray(_NUM_OP);
+
     final class ModeCallback implements DeathRecipient {
         /** If mWatchedOpCode==ALL_OPS notify for ops affected by the switch-op */
         public static final int ALL_OPS = -2;
@@ -1780,6 +1838,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             mNoteOpCallerStacktracesFile = null;
         }
         mHandler = handler;
+        mOpChangedBatcher = new PooledRunnableBatcher(mHandler);
         mConstants = new Constants(mHandler);
         readState();
 
@@ -1812,6 +1871,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
                     Ops removedOps = uidState.pkgOps.remove(pkgName);
                     if (removedOps != null) {
+                        invalidateModeSnapshotsLocked();
                         scheduleFastWriteLocked();
                     }
                 }
@@ -1854,6 +1914,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     // Reset cached package properties to re-initialize when needed
                     ops.bypass = null;
                     ops.knownAttributionTags.clear();
+                    invalidateModeSnapshotsLocked();
 
                     // Merge data collected for removed attributions into their successor
                     // attributions
@@ -1907,6 +1968,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 if (ArrayUtils.isEmpty(pkgsInUid)) {
                     uidState.clear();
                     mUidStates.removeAt(uidNum);
+                    invalidateModeSnapshotsLocked();
                     scheduleFastWriteLocked();
                     continue;
                 }
@@ -2045,6 +2107,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (ops != null) {
+                invalidateModeSnapshotsLocked();
                 scheduleFastWriteLocked();
 
                 final int numOps = ops.size();
@@ -2075,6 +2138,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
+                invalidateModeSnapshotsLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -2471,6 +2535,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             Ops ops = getOpsLocked(uid, packageName, null, false, null, /* edit */ false);
             if (ops != null) {
                 ops.remove(op.op);
+                invalidateModeSnapshotsLocked();
                 if (ops.size() <= 0) {
                     UidState uidState = ops.uidState;
                     ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
@@ -2563,6 +2628,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 scheduleWriteLocked();
             }
+            invalidateModeSnapshotsLocked();
             uidState.evalForegroundOps(mOpModeWatchers);
             if (mode != MODE_ERRORED && mode != previousMode) {
                 updateStartedOpModeForUidLocked(code, mode == MODE_IGNORED, uid);
@@ -2640,17 +2706,17 @@ public class AppOpsService extends IAppOpsService.Stub {
             final ModeCallback callback = callbackSpecs.keyAt(i);
             final ArraySet<String> reportedPackageNames = callbackSpecs.valueAt(i);
             if (reportedPackageNames == null) {
-                mHandler.sendMessage(PooledLambda.obtainMessage(
+                mOpChangedBatcher.post(PooledLambda.obtainRunnable(
                         AppOpsService::notifyOpChanged,
-                        this, callback, code, uid, (String) null));
+                        this, callback, code, uid, (String) null).recycleOnUse());
 
             } else {
                 final int reportedPackageCount = reportedPackageNames.size();
                 for (int j = 0; j < reportedPackageCount; j++) {
                     final String reportedPackageName = reportedPackageNames.valueAt(j);
-                    mHandler.sendMessage(PooledLambda.obtainMessage(
+                    mOpChangedBatcher.post(PooledLambda.obtainRunnable(
                             AppOpsService::notifyOpChanged,
-                            this, callback, code, uid, reportedPackageName));
+                            this, callback, code, uid, reportedPackageName).recycleOnUse());
                 }
             }
         }
@@ -2794,6 +2860,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 if (op.mode != mode) {
                     previousMode = op.mode;
                     op.mode = mode;
+                    invalidateModeSnapshotsLocked();
                     if (uidState != null) {
                         uidState.evalForegroundOps(mOpModeWatchers);
                     }
@@ -3040,6 +3107,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
 
+            // Uid modes may have been reset even if no package op changed
+            invalidateModeSnapshotsLocked();
             if (changed) {
                 scheduleFastWriteLocked();
             }
@@ -3050,9 +3119,9 @@ public class AppOpsService extends IAppOpsService.Stub {
                 ArrayList<ChangeRec> reports = ent.getValue();
                 for (int i=0; i<reports.size(); i++) {
                     ChangeRec rep = reports.get(i);
-                    mHandler.sendMessage(PooledLambda.obtainMessage(
+                    mOpChangedBatcher.post(PooledLambda.obtainRunnable(
                             AppOpsService::notifyOpChanged,
-                            this, cb, rep.op, rep.uid, rep.pkg));
+                            this, cb, rep.op, rep.uid, rep.pkg).recycleOnUse());
                 }
             }
         }
@@ -3229,6 +3298,13 @@ public class AppOpsService extends IAppOpsService.Stub {
      */
     private @Mode int checkOperationUnchecked(int code, int uid, @NonNull String packageName,
             @Nullable String attributionTag, boolean raw) {
+        final int snapshotMode = checkOperationFromSnapshot(code, uid, packageName, raw);
+        if (snapshotMode != MODE_UNCACHED) {
+            mLockFreeCheckCounts.incrementAndGet(code);
+            return snapshotMode;
+        }
+        mLockedCheckCounts.incrementAndGet(code);
+
         PackageVerificationResult pvr;
         try {
             pvr = verifyAndGetBypass(uid, packageName, null);
@@ -3241,6 +3317,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             return AppOpsManager.MODE_IGNORED;
         }
         synchronized (this) {
+            updateModeSnapshotLocked(uid);
             if (isOpRestrictedLocked(uid, code, packageName, attributionTag, pvr.bypass)) {
                 return AppOpsManager.MODE_IGNORED;
             }
@@ -3259,6 +3336,127 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Answers {@link #checkOperationUnchecked} from the uid's {@link ModeSnapshot} without
+     * taking the lock.
+     *
+     * @return The mode of the op, or {@link #MODE_UNCACHED} if there is no current snapshot
+     *         or the answer depends on state that is not in it
+     */
+    private int checkOperationFromSnapshot(int code, int uid, @NonNull String packageName,
+            boolean raw) {
+        final ModeSnapshot snapshot = mModeSnapshots[uid & (MODE_SNAPSHOT_SLOTS - 1)];
+        if (snapshot == null || snapshot.uid != uid
+                || snapshot.generation != mModeGeneration
+                || snapshot.mayBeRestricted[code]) {
+            return MODE_UNCACHED;
+        }
+        final byte[] modes = snapshot.packageModes.get(packageName);
+        if (modes == null) {
+            // Not yet verified to belong to the uid
+            return MODE_UNCACHED;
+        }
+        final int mode = modes[code];
+        if (mode == MODE_FOREGROUND && !raw) {
+            // Depends on the uid's process state
+            return MODE_UNCACHED;
+        }
+        if (isOpRestrictedDueToSuspend(code, packageName, uid)) {
+            return AppOpsManager.MODE_IGNORED;
+        }
+        return mode;
+    }
+
+    private void invalidateModeSnapshotsLocked() {
+        mModeGeneration++;
+    }
+
+    /**
+     * Publishes a {@link ModeSnapshot} of the uid's current state, unless its slot already holds
+     * an up to date snapshot.
+     */
+    private void updateModeSnapshotLocked(int uid) {
+        final int slot = uid & (MODE_SNAPSHOT_SLOTS - 1);
+        final ModeSnapshot current = mModeSnapshots[slot];
+        if (current != null && current.generation == mModeGeneration) {
+            // Either this uid's snapshot is up to date, or the slot holds a current snapshot of
+            // another uid. Evicting it would make two busy uids rebuild each other's snapshots
+            // in turn, which costs more than checking one of them under the lock.
+            return;
+        }
+
+        final UidState uidState = mUidStates.get(uid);
+        final ArrayMap<String, byte[]> packageModes = new ArrayMap<>();
+        if (uidState != null && uidState.pkgOps != null && uid != Process.ROOT_UID) {
+            final int numPkgs = uidState.pkgOps.size();
+            for (int pkgNum = 0; pkgNum < numPkgs; pkgNum++) {
+                final Ops ops = uidState.pkgOps.valueAt(pkgNum);
+                if (ops.bypass == null) {
+                    // verifyAndGetBypass() would have to ask the package manager
+                    continue;
+                }
+                final byte[] modes = new byte[_NUM_OP];
+                for (int code = 0; code < _NUM_OP; code++) {
+                    final int switchCode = AppOpsManager.opToSwitch(code);
+                    final int mode;
+                    if (uidState.opModes != null && uidState.opModes.indexOfKey(switchCode) >= 0) {
+                        mode = uidState.opModes.get(switchCode);
+                    } else {
+                        final Op op = ops.get(switchCode);
+                        mode = op != null ? op.mode : AppOpsManager.opToDefaultMode(switchCode);
+                    }
+                    modes[code] = (byte) mode;
+                }
+                packageModes.put(ops.packageName, modes);
+            }
+        }
+
+        final boolean[] mayBeRestricted = new boolean[_NUM_OP];
+        final int userId = UserHandle.getUserId(uid);
+        for (int i = mOpGlobalRestrictions.size() - 1; i >= 0; i--) {
+            final ArraySet<Integer> restrictedOps = mOpGlobalRestrictions.valueAt(i).mRestrictedOps;
+            for (int j = restrictedOps.size() - 1; j >= 0; j--) {
+                mayBeRestricted[restrictedOps.valueAt(j)] = true;
+            }
+        }
+        for (int i = mOpUserRestrictions.size() - 1; i >= 0; i--) {
+            final SparseArray<boolean[]> perUserRestrictions =
+                    mOpUserRestrictions.valueAt(i).perUserRestrictions;
+            final boolean[] restrictions = perUserRestrictions != null
+                    ? perUserRestrictions.get(userId) : null;
+            if (restrictions == null) {
+                continue;
+            }
+            for (int code = 0; code < restrictions.length && code < _NUM_OP; code++) {
+                mayBeRestricted[code] |= restrictions[code];
+            }
+        }
+
+        mModeSnapshots[slot] = new ModeSnapshot(uid, mModeGeneration, packageModes,
+                mayBeRestricted);
+    }
+
+    private void dumpCheckOperationCountsLocked(PrintWriter pw, int dumpOp) {
+        pw.println("  checkOperation calls (lock-free/locked):");
+        for (int op = 0; op < _NUM_OP; op++) {
+            if (dumpOp >= 0 && dumpOp != op) {
+                continue;
+            }
+            final long lockFree = mLockFreeCheckCounts.get(op);
+            final long locked = mLockedCheckCounts.get(op);
+            if (lockFree == 0 && locked == 0) {
+                continue;
+            }
+            pw.print("    ");
+            pw.print(AppOpsManager.opToName(op));
+            pw.print(": ");
+            pw.print(lockFree);
+            pw.print("/");
+            pw.println(locked);
+        }
+        pw.println();
+    }
+
     @Override
     public int checkAudioOperation(int code, int usage, int uid, String packageName) {
         return mCheckOpsDelegateDispatcher.checkAudioOperation(code, usage, uid, packageName);
@@ -4450,10 +4648,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                                     continue;
                                 }
                                 if (op.mode == AppOpsManager.MODE_FOREGROUND) {
-                                    mHandler.sendMessage(PooledLambda.obtainMessage(
+                                    mOpChangedBatcher.post(PooledLambda.obtainRunnable(
                                             AppOpsService::notifyOpChanged,
                                             this, callback, code, uidState.uid,
-                                            uidState.pkgOps.keyAt(pkgi)));
+                                            uidState.pkgOps.keyAt(pkgi)).recycleOnUse());
                                 }
                             }
                         }
@@ -4682,6 +4880,10 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         if (edit) {
             if (bypass != null) {
+                if (ops.bypass == null) {
+                    // The package is now known to belong to the uid
+                    invalidateModeSnapshotsLocked();
+                }
                 ops.bypass = bypass;
             }
 
@@ -4812,6 +5014,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 boolean success = false;
                 mUidStates.clear();
+                invalidateModeSnapshotsLocked();
                 try {
                     TypedXmlPullParser parser = Xml.resolvePullParser(stream);
                     int type;
@@ -4921,6 +5124,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             case 1:
                 // for future upgrades
         }
+        invalidateModeSnapshotsLocked();
         scheduleFastWriteLocked();
     }
 
@@ -5971,6 +6175,9 @@ public class AppOpsService extends IAppOpsService.Stub {
                 mConstants.dump(pw);
             }
             pw.println();
+            if (!dumpHistory && !dumpWatchers && dumpPackage == null) {
+                dumpCheckOperationCountsLocked(pw, dumpOp);
+            }
             final long now = System.currentTimeMillis();
             final long nowElapsed = SystemClock.elapsedRealtime();
             final long nowUptime = SystemClock.uptimeMillis();
@@ -6530,6 +6737,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
             if (restrictionState.setRestriction(code, restricted, excludedPackageTags,
                     userHandle)) {
+                invalidateModeSnapshotsLocked();
                 mHandler.sendMessage(PooledLambda.obtainMessage(
                         AppOpsService::notifyWatchersOfChange, this, code, UID_ANY));
                 mHandler.sendMessage(PooledLambda.obtainMessage(
@@ -6687,6 +6895,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
             Ops removedOps = uidState.pkgOps.remove(packageName);
             if (removedOps != null) {
+                invalidateModeSnapshotsLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -7011,6 +7220,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 mUidStates.removeAt(i);
             }
         }
+        invalidateModeSnapshotsLocked();
     }
 
     private void checkSystemUid(String function) {
@@ -7181,6 +7391,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                invalidateModeSnapshotsLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
@@ -7298,6 +7509,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
 
                 if (restrictionState.setRestriction(code, restricted)) {
+                    invalidateModeSnapshotsLocked();
                     mHandler.sendMessage(PooledLambda.obtainMessage(
                             AppOpsService::notifyWatchersOfChange, AppOpsService.this, code,
                             UID_ANY));
@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.appop;
+
+import static android.app.AppOpsManager.ATTRIBUTION_CHAIN_ID_NONE;
+import static android.app.AppOpsManager.ATTRIBUTION_FLAG_TRUSTED;
+
+import static com.android.internal.util.VarIntUtils.decodeZigZag;
+import static com.android.internal.util.VarIntUtils.encodeZigZag;
+import static com.android.internal.util.VarIntUtils.readVarLong;
+import static com.android.internal.util.VarIntUtils.writeVarLong;
+
+import static java.lang.Math.max;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.Process;
+import android.util.ArrayMap;
+
+import libcore.util.EmptyArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+
+/**
+ * Columnar store of discrete op events, used by {@link DiscreteRegistry} to hold persisted
+ * history in memory and as its on-disk format.
+ *
+ * Events are kept in primitive arrays, one per field, with package names and attribution tags
+ * interned into per-buffer string tables. Events are sorted by note time before they are
+ * queried, so a query only visits the events in its time range. Expired events are dropped from
+ * the front of the arrays, which are compacted when they next grow.
+ *
+ * This class is not thread safe.
+ */
+final class DiscreteEventBuffer {
+    /** "ADEB": app-ops discrete event buffer */
+    private static final int FILE_MAGIC = 0x41444542;
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Receives the events selected by {@link #forEachEvent}.
+     */
+    interface EventConsumer {
+        void accept(int uid, @NonNull String packageName, int op,
+                @Nullable String attributionTag, long noteTime, long noteDuration, int uidState,
+                int opFlags, int attributionFlags, int attributionChainId);
+    }
+
+    private final ArrayList<String> mPackageNames = new ArrayList<>();
+    private final ArrayMap<String, Integer> mPackageIds = new ArrayMap<>();
+    private final ArrayList<String> mAttributionTags = new ArrayList<>();
+    private final ArrayMap<String, Integer> mAttributionTagIds = new ArrayMap<>();
+
+    private long[] mNoteTimes = EmptyArray.LONG;
+    private long[] mNoteDurations = EmptyArray.LONG;
+    private int[] mUids = EmptyArray.INT;
+    private int[] mPackageIdColumn = EmptyArray.INT;
+    private short[] mOps = new short[0];
+    /** Index into {@link #mAttributionTags}, or -1 for the null tag */
+    private int[] mAttributionTagIdColumn = EmptyArray.INT;
+    private int[] mUidStates = EmptyArray.INT;
+    private byte[] mOpFlags = EmptyArray.BYTE;
+    private byte[] mAttributionFlags = EmptyArray.BYTE;
+    private int[] mAttributionChainIds = EmptyArray.INT;
+
+    /** Live events are at [mStart, mEnd) */
+    private int mStart;
+    private int mEnd;
+    private boolean mSorted = true;
+    /** Upper bound of the duration of any live event */
+    private long mMaxDuration;
+    private int mLargestChainId;
+
+    int size() {
+        return mEnd - mStart;
+    }
+
+    int getLargestChainId() {
+        return mLargestChainId;
+    }
+
+    void setLargestChainId(int largestChainId) {
+        mLargestChainId = largestChainId;
+    }
+
+    void add(int uid, @NonNull String packageName, int op, @Nullable String attributionTag,
+            long noteTime, long noteDuration, int uidState, int opFlags, int attributionFlags,
+            int attributionChainId) {
+        ensureCapacity(size() + 1);
+        final int i = mEnd++;
+        mNoteTimes[i] = noteTime;
+        mNoteDurations[i] = noteDuration;
+        mUids[i] = uid;
+        mPackageIdColumn[i] = intern(packageName, mPackageNames, mPackageIds);
+        mOps[i] = (short) op;
+        mAttributionTagIdColumn[i] = attributionTag == null ? -1
+                : intern(attributionTag, mAttributionTags, mAttributionTagIds);
+        mUidStates[i] = uidState;
+        mOpFlags[i] = (byte) opFlags;
+        mAttributionFlags[i] = (byte) attributionFlags;
+        mAttributionChainIds[i] = attributionChainId;
+
+        mMaxDuration = max(mMaxDuration, noteDuration);
+        if (i > mStart && mNoteTimes[i - 1] > noteTime) {
+            mSorted = false;
+        }
+    }
+
+    void addAll(@NonNull DiscreteEventBuffer other) {
+        ensureCapacity(size() + other.size());
+        for (int i = other.mStart; i < other.mEnd; i++) {
+            final int tagId = other.mAttributionTagIdColumn[i];
+            add(other.mUids[i], other.mPackageNames.get(other.mPackageIdColumn[i]),
+                    other.mOps[i], tagId == -1 ? null : other.mAttributionTags.get(tagId),
+                    other.mNoteTimes[i], other.mNoteDurations[i], other.mUidStates[i],
+                    other.mOpFlags[i], other.mAttributionFlags[i],
+                    other.mAttributionChainIds[i]);
+        }
+        mLargestChainId = max(mLargestChainId, other.mLargestChainId);
+    }
+
+    /**
+     * Drops events that ended before the given time, as far as that can be done from the
+     * oldest event on.
+     */
+    void trimBefore(long beginTimeMillis) {
+        ensureSorted();
+        while (mStart < mEnd && mNoteTimes[mStart] + mNoteDurations[mStart] < beginTimeMillis) {
+            mStart++;
+        }
+        if (mStart == mEnd) {
+            mStart = 0;
+            mEnd = 0;
+            mMaxDuration = 0;
+        }
+    }
+
+    /**
+     * Passes every event that may overlap with [beginTimeMillis, endTimeMillis) and matches
+     * the filters to the consumer, in note time order. Callers still need to apply their
+     * exact filters; this only narrows the events down cheaply.
+     *
+     * @param uidFilter Only return events of this uid, unless it is
+     *                  {@link Process#INVALID_UID}
+     * @param packageNameFilter Only return events of this package, unless it is null
+     * @param opsFilter Only return events whose op is set in this array, unless it is null
+     * @param includeTrustedChains Also return every trusted event that is part of an
+     *                             attribution chain, regardless of time and filters
+     */
+    void forEachEvent(long beginTimeMillis, long endTimeMillis, int uidFilter,
+            @Nullable String packageNameFilter, @Nullable boolean[] opsFilter,
+            boolean includeTrustedChains, @NonNull EventConsumer consumer) {
+        ensureSorted();
+
+        long from = beginTimeMillis - max(mMaxDuration, 0);
+        if (from > beginTimeMillis) {
+            // Underflow
+            from = Long.MIN_VALUE;
+        }
+        final int first = lowerBound(from);
+        final int last = lowerBound(endTimeMillis);
+
+        int packageIdFilter = -1;
+        if (packageNameFilter != null) {
+            final Integer id = mPackageIds.get(packageNameFilter);
+            // An unknown package matches nothing in the time range
+            packageIdFilter = id != null ? id : Integer.MIN_VALUE;
+        }
+
+        if (includeTrustedChains) {
+            for (int i = mStart; i < first; i++) {
+                if (isTrustedChainEvent(i)) {
+                    accept(i, consumer);
+                }
+            }
+        }
+        for (int i = first; i < last; i++) {
+            if ((uidFilter == Process.INVALID_UID || mUids[i] == uidFilter)
+                    && (packageIdFilter == -1 || mPackageIdColumn[i] == packageIdFilter)
+                    && (opsFilter == null
+                            || (mOps[i] < opsFilter.length && opsFilter[mOps[i]]))) {
+                accept(i, consumer);
+            } else if (includeTrustedChains && isTrustedChainEvent(i)) {
+                accept(i, consumer);
+            }
+        }
+        if (includeTrustedChains) {
+            for (int i = last; i < mEnd; i++) {
+                if (isTrustedChainEvent(i)) {
+                    accept(i, consumer);
+                }
+            }
+        }
+    }
+
+    private boolean isTrustedChainEvent(int i) {
+        return mAttributionChainIds[i] != ATTRIBUTION_CHAIN_ID_NONE
+                && (mAttributionFlags[i] & ATTRIBUTION_FLAG_TRUSTED) != 0;
+    }
+
+    private void accept(int i, EventConsumer consumer) {
+        final int tagId = mAttributionTagIdColumn[i];
+        consumer.accept(mUids[i], mPackageNames.get(mPackageIdColumn[i]), mOps[i],
+                tagId == -1 ? null : mAttributionTags.get(tagId), mNoteTimes[i],
+                mNoteDurations[i], mUidStates[i], mOpFlags[i], mAttributionFlags[i],
+                mAttributionChainIds[i]);
+    }
+
+    /** Returns the index of the first live event noted at or after the given time */
+    private int lowerBound(long time) {
+        int lo = mStart;
+        int hi = mEnd;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mNoteTimes[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Writes the buffer in the binary discrete history format.
+     */
+    void writeTo(@NonNull OutputStream stream) throws IOException {
+        ensureSorted();
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(mLargestChainId);
+        writeStrings(out, mPackageNames);
+        writeStrings(out, mAttributionTags);
+
+        final int n = size();
+        writeVarLong(out, n);
+        long previousTime = 0;
+        for (int i = mStart; i < mEnd; i++) {
+            writeVarLong(out, encodeZigZag(mNoteTimes[i] - previousTime));
+            previousTime = mNoteTimes[i];
+        }
+        for (int i = mStart; i < mEnd; i++) {
+            writeVarLong(out, encodeZigZag(mNoteDurations[i]));
+        }
+        for (int i = mStart; i < mEnd; i++) {
+            writeVarLong(out, encodeZigZag(mUids[i]));
+        }
+        for (int i = mStart; i < mEnd; i++) {
+            writeVarLong(out, mPackageIdColumn[i]);
+        }
+        for (int i = mStart; i < mEnd; i++) {
+            writeVarLong(out, mOps[i]);
+        }
+        for (int i = mStart; i < mEnd; i++) {
+            writeVarLong(out, mAttributionTagIdColumn[i] + 1);
+        }
+        for (int i = mStart; i < mEnd; i++) {
+            writeVarLong(out, encodeZigZag(mUidStates[i]));
+        }
+        out.write(mOpFlags, mStart, n);
+        out.write(mAttributionFlags, mStart, n);
+        for (int i = mStart; i < mEnd; i++) {
+            writeVarLong(out, encodeZigZag(mAttributionChainIds[i]));
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns whether the stream starts with a buffer written by {@link #writeTo}, without
+     * consuming any of it.
+     */
+    static boolean hasBinaryHeader(@NonNull BufferedInputStream stream) throws IOException {
+        stream.mark(Integer.BYTES);
+        try {
+            final DataInputStream in = new DataInputStream(stream);
+            return in.readInt() == FILE_MAGIC;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            stream.reset();
+        }
+    }
+
+    /**
+     * Reads only the largest attribution chain id of a buffer written by {@link #writeTo}.
+     */
+    static int readLargestChainId(@NonNull InputStream stream) throws IOException {
+        final DataInputStream in = new DataInputStream(stream);
+        readHeader(in);
+        return in.readInt();
+    }
+
+    /**
+     * Reads a buffer written by {@link #writeTo}.
+     */
+    static @NonNull DiscreteEventBuffer readFrom(@NonNull InputStream stream)
+            throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        readHeader(in);
+        final DiscreteEventBuffer buffer = new DiscreteEventBuffer();
+        buffer.mLargestChainId = in.readInt();
+        readStrings(in, buffer.mPackageNames, buffer.mPackageIds);
+        readStrings(in, buffer.mAttributionTags, buffer.mAttributionTagIds);
+
+        final int n = readCount(in);
+        buffer.ensureCapacity(n);
+        long time = 0;
+        for (int i = 0; i < n; i++) {
+            time += decodeZigZag(readVarLong(in));
+            buffer.mNoteTimes[i] = time;
+        }
+        for (int i = 0; i < n; i++) {
+            buffer.mNoteDurations[i] = decodeZigZag(readVarLong(in));
+            buffer.mMaxDuration = max(buffer.mMaxDuration, buffer.mNoteDurations[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            buffer.mUids[i] = (int) decodeZigZag(readVarLong(in));
+        }
+        for (int i = 0; i < n; i++) {
+            buffer.mPackageIdColumn[i] = readIndex(in, buffer.mPackageNames.size());
+        }
+        for (int i = 0; i < n; i++) {
+            buffer.mOps[i] = (short) readVarLong(in);
+        }
+        for (int i = 0; i < n; i++) {
+            buffer.mAttributionTagIdColumn[i] =
+                    readIndex(in, buffer.mAttributionTags.size() + 1) - 1;
+        }
+        for (int i = 0; i < n; i++) {
+            buffer.mUidStates[i] = (int) decodeZigZag(readVarLong(in));
+        }
+        in.readFully(buffer.mOpFlags, 0, n);
+        in.readFully(buffer.mAttributionFlags, 0, n);
+        for (int i = 0; i < n; i++) {
+            buffer.mAttributionChainIds[i] = (int) decodeZigZag(readVarLong(in));
+        }
+        buffer.mEnd = n;
+        for (int i = 1; i < n; i++) {
+            if (buffer.mNoteTimes[i - 1] > buffer.mNoteTimes[i]) {
+                buffer.mSorted = false;
+                break;
+            }
+        }
+        return buffer;
+    }
+
+    private static void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != FILE_MAGIC) {
+            throw new ProtocolException("Not a discrete history buffer");
+        }
+        final int version = in.readInt();
+        if (version != FILE_VERSION) {
+            throw new ProtocolException("Unexpected discrete history version " + version);
+        }
+    }
+
+    private void ensureCapacity(int count) {
+        final int capacity = mNoteTimes.length;
+        if (mStart + count <= capacity) {
+            return;
+        }
+        final int size = size();
+        // Compact in place if dropping the expired prefix makes enough room, otherwise grow
+        final int newCapacity = count <= capacity && mStart >= capacity / 2 ? capacity
+                : max(count, max(capacity * 3 / 2, 16));
+        mNoteTimes = moveLongs(mNoteTimes, newCapacity, size);
+        mNoteDurations = moveLongs(mNoteDurations, newCapacity, size);
+        mUids = moveInts(mUids, newCapacity, size);
+        mPackageIdColumn = moveInts(mPackageIdColumn, newCapacity, size);
+        mAttributionTagIdColumn = moveInts(mAttributionTagIdColumn, newCapacity, size);
+        mUidStates = moveInts(mUidStates, newCapacity, size);
+        mAttributionChainIds = moveInts(mAttributionChainIds, newCapacity, size);
+
+        final short[] ops = newCapacity == capacity ? mOps : new short[newCapacity];
+        System.arraycopy(mOps, mStart, ops, 0, size);
+        mOps = ops;
+        final byte[] opFlags = newCapacity == capacity ? mOpFlags : new byte[newCapacity];
+        System.arraycopy(mOpFlags, mStart, opFlags, 0, size);
+        mOpFlags = opFlags;
+        final byte[] attributionFlags = newCapacity == capacity ? mAttributionFlags
+                : new byte[newCapacity];
+        System.arraycopy(mAttributionFlags, mStart, attributionFlags, 0, size);
+        mAttributionFlags = attributionFlags;
+
+        mStart = 0;
+        mEnd = size;
+    }
+
+    private long[] moveLongs(long[] array, int newCapacity, int size) {
+        final long[] result = newCapacity == array.length ? array : new long[newCapacity];
+        System.arraycopy(array, mStart, result, 0, size);
+        return result;
+    }
+
+    private int[] moveInts(int[] array, int newCapacity, int size) {
+        final int[] result = newCapacity == array.length ? array : new int[newCapacity];
+        System.arraycopy(array, mStart, result, 0, size);
+        return result;
+    }
+
+    /**
+     * Stable sort of the live events by note time, keeping events that were noted at the same
+     * time in the order they were added.
+     */
+    private void ensureSorted() {
+        if (mSorted) {
+            return;
+        }
+        final int n = size();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = mStart + i;
+        }
+        int[] scratch = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                final int mid = Math.min(lo + width, n);
+                final int hi = Math.min(lo + 2 * width, n);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    scratch[k++] = mNoteTimes[order[j]] < mNoteTimes[order[i]]
+                            ? order[j++] : order[i++];
+                }
+                while (i < mid) {
+                    scratch[k++] = order[i++];
+                }
+                while (j < hi) {
+                    scratch[k++] = order[j++];
+                }
+            }
+            final int[] tmp = order;
+            order = scratch;
+            scratch = tmp;
+        }
+
+        final int capacity = mNoteTimes.length;
+        final long[] noteTimes = new long[capacity];
+        final long[] noteDurations = new long[capacity];
+        final int[] uids = new int[capacity];
+        final int[] packageIds = new int[capacity];
+        final short[] ops = new short[capacity];
+        final int[] tagIds = new int[capacity];
+        final int[] uidStates = new int[capacity];
+        final byte[] opFlags = new byte[capacity];
+        final byte[] attributionFlags = new byte[capacity];
+        final int[] chainIds = new int[capacity];
+        for (int k = 0; k < n; k++) {
+            final int i = order[k];
+            noteTimes[k] = mNoteTimes[i];
+            noteDurations[k] = mNoteDurations[i];
+            uids[k] = mUids[i];
+            packageIds[k] = mPackageIdColumn[i];
+            ops[k] = mOps[i];
+            tagIds[k] = mAttributionTagIdColumn[i];
+            uidStates[k] = mUidStates[i];
+            opFlags[k] = mOpFlags[i];
+            attributionFlags[k] = mAttributionFlags[i];
+            chainIds[k] = mAttributionChainIds[i];
+        }
+        mNoteTimes = noteTimes;
+        mNoteDurations = noteDurations;
+        mUids = uids;
+        mPackageIdColumn = packageIds;
+        mOps = ops;
+        mAttributionTagIdColumn = tagIds;
+        mUidStates = uidStates;
+        mOpFlags = opFlags;
+        mAttributionFlags = attributionFlags;
+        mAttributionChainIds = chainIds;
+        mStart = 0;
+        mEnd = n;
+        mSorted = true;
+    }
+
+    private static int intern(String value, ArrayList<String> table,
+            ArrayMap<String, Integer> ids) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = table.size();
+            table.add(value);
+            ids.put(value, id);
+        }
+        return id;
+    }
+
+    private static void writeStrings(DataOutputStream out, ArrayList<String> table)
+            throws IOException {
+        writeVarLong(out, table.size());
+        for (int i = 0; i < table.size(); i++) {
+            out.writeUTF(table.get(i));
+        }
+    }
+
+    private static void readStrings(DataInputStream in, ArrayList<String> table,
+            ArrayMap<String, Integer> ids) throws IOException {
+        final int n = readCount(in);
+        for (int i = 0; i < n; i++) {
+            final String value = in.readUTF().intern();
+            ids.put(value, table.size());
+            table.add(value);
+        }
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        final long count = readVarLong(in);
+        if (count < 0 || count > Integer.MAX_VALUE - 16) {
+            throw new ProtocolException("Invalid count " + count);
+        }
+        return (int) count;
+    }
+
+    private static int readIndex(DataInputStream in, int size) throws IOException {
+        final long index = readVarLong(in);
+        if (index < 0 || index >= size) {
+            throw new ProtocolException("Invalid index " + index);
+        }
+        return (int) index;
+    }
+}
@@ -48,18 +48,19 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 import android.os.FileUtils;
+import android.os.Process;
 import android.provider.DeviceConfig;
 import android.util.ArrayMap;
 import android.util.AtomicFile;
 import android.util.Slog;
 import android.util.TypedXmlPullParser;
-import android.util.TypedXmlSerializer;
 import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.XmlUtils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -99,9 +100,13 @@ import java.util.Set;
  * new file and memory state is cleared. Files older than time limit are deleted
  * during the process.
  *
- * When request comes in, files are read and requested information is collected
- * and delivered. Information is cached in memory until the next state save (up to 30 minutes), to
- * avoid reading disk if more API calls come in a quick succession.
+ * Files are written in the binary format of {@link DiscreteEventBuffer}; files in the earlier
+ * XML format are still read.
+ *
+ * When request comes in for the first time, files are read into a {@link DiscreteEventBuffer}
+ * that is kept in memory. At every state save the saved events are appended to it and expired
+ * events are dropped from it, so the disk is not read again. Requests only collect the events
+ * in their time range from the buffer.
  *
  * THREADING AND LOCKING:
  * For in-memory transactions this class relies on {@link DiscreteRegistry#mInMemoryLock}. It is
@@ -184,8 +189,9 @@ final class DiscreteRegistry {
     @GuardedBy("mInMemoryLock")
     private DiscreteOps mDiscreteOps;
 
+    /** Events that have been persisted, or null if the disk has not been read yet */
     @GuardedBy("mOnDiskLock")
-    private DiscreteOps mCachedOps = null;
+    private DiscreteEventBuffer mCachedEvents = null;
 
     private boolean mDebugMode = false;
 
@@ -262,12 +268,16 @@ final class DiscreteRegistry {
             synchronized (mInMemoryLock) {
                 discreteOps = mDiscreteOps;
                 mDiscreteOps = new DiscreteOps(discreteOps.mChainIdOffset);
-                mCachedOps = null;
             }
             deleteOldDiscreteHistoryFilesLocked();
             if (!discreteOps.isEmpty()) {
                 persistDiscreteOpsLocked(discreteOps);
             }
+            if (mCachedEvents != null) {
+                discreteOps.appendTo(mCachedEvents);
+                mCachedEvents.trimBefore(Instant.now().minus(sDiscreteHistoryCutoff,
+                        ChronoUnit.MILLIS).toEpochMilli());
+            }
         }
     }
 
@@ -278,13 +288,14 @@ final class DiscreteRegistry {
             @Nullable String attributionTagFilter, @AppOpsManager.OpFlags int flagsFilter,
             Set<String> attributionExemptPkgs) {
         boolean assembleChains = attributionExemptPkgs != null;
-        DiscreteOps discreteOps = getAllDiscreteOps();
+        beginTimeMillis = max(beginTimeMillis, Instant.now().minus(sDiscreteHistoryCutoff,
+                ChronoUnit.MILLIS).toEpochMilli());
+        DiscreteOps discreteOps = getDiscreteOps(beginTimeMillis, endTimeMillis, filter,
+                uidFilter, packageNameFilter, opNamesFilter, assembleChains);
         ArrayMap<Integer, AttributionChain> attributionChains = new ArrayMap<>();
         if (assembleChains) {
             attributionChains = createAttributionChains(discreteOps, attributionExemptPkgs);
         }
-        beginTimeMillis = max(beginTimeMillis, Instant.now().minus(sDiscreteHistoryCutoff,
-                ChronoUnit.MILLIS).toEpochMilli());
         discreteOps.filter(beginTimeMillis, endTimeMillis, filter, uidFilter, packageNameFilter,
                 opNamesFilter, attributionTagFilter, flagsFilter, attributionChains);
         discreteOps.applyToHistoricalOps(result, attributionChains);
@@ -311,13 +322,16 @@ final class DiscreteRegistry {
             if (latestFile == null) {
                 return 0;
             }
-            FileInputStream stream;
+            BufferedInputStream stream;
             try {
-                stream = new FileInputStream(latestFile);
+                stream = new BufferedInputStream(new FileInputStream(latestFile));
             } catch (FileNotFoundException e) {
                 return 0;
             }
             try {
+                if (DiscreteEventBuffer.hasBinaryHeader(stream)) {
+                    return DiscreteEventBuffer.readLargestChainId(stream);
+                }
                 TypedXmlPullParser parser = Xml.resolvePullParser(stream);
                 XmlUtils.beginDocument(parser, TAG_HISTORY);
 
@@ -379,27 +393,64 @@ final class DiscreteRegistry {
         return chains;
     }
 
-    private void readDiscreteOpsFromDisk(DiscreteOps discreteOps) {
-        synchronized (mOnDiskLock) {
-            long beginTimeMillis = Instant.now().minus(sDiscreteHistoryCutoff,
-                    ChronoUnit.MILLIS).toEpochMilli();
-
-            final File[] files = mDiscreteAccessDir.listFiles();
-            if (files != null && files.length > 0) {
-                for (File f : files) {
-                    final String fileName = f.getName();
-                    if (!fileName.endsWith(DISCRETE_HISTORY_FILE_SUFFIX)) {
-                        continue;
-                    }
-                    long timestamp = Long.valueOf(fileName.substring(0,
-                            fileName.length() - DISCRETE_HISTORY_FILE_SUFFIX.length()));
-                    if (timestamp < beginTimeMillis) {
-                        continue;
-                    }
-                    discreteOps.readFromFile(f, beginTimeMillis);
+    private void readDiscreteEventsFromDiskLocked(DiscreteEventBuffer events) {
+        long beginTimeMillis = Instant.now().minus(sDiscreteHistoryCutoff,
+                ChronoUnit.MILLIS).toEpochMilli();
+
+        final File[] files = mDiscreteAccessDir.listFiles();
+        if (files != null && files.length > 0) {
+            for (File f : files) {
+                final String fileName = f.getName();
+                if (!fileName.endsWith(DISCRETE_HISTORY_FILE_SUFFIX)) {
+                    continue;
                 }
+                long timestamp = Long.valueOf(fileName.substring(0,
+                        fileName.length() - DISCRETE_HISTORY_FILE_SUFFIX.length()));
+                if (timestamp < beginTimeMillis) {
+                    continue;
+                }
+                readDiscreteEventsFromFile(f, beginTimeMillis, events);
+            }
+        }
+        events.trimBefore(beginTimeMillis);
+    }
+
+    private void readDiscreteEventsFromFile(File f, long beginTimeMillis,
+            DiscreteEventBuffer events) {
+        BufferedInputStream stream;
+        try {
+            stream = new BufferedInputStream(new FileInputStream(f));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (DiscreteEventBuffer.hasBinaryHeader(stream)) {
+                events.addAll(DiscreteEventBuffer.readFrom(stream));
+                return;
+            }
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to read file " + f.getName() + " " + e.getMessage());
+            return;
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
             }
         }
+
+        // Written by an earlier release
+        DiscreteOps legacyOps = new DiscreteOps(0);
+        legacyOps.readFromFile(f, beginTimeMillis);
+        legacyOps.appendTo(events);
+    }
+
+    @GuardedBy("mOnDiskLock")
+    private DiscreteEventBuffer getCachedEventsLocked() {
+        if (mCachedEvents == null) {
+            mCachedEvents = new DiscreteEventBuffer();
+            readDiscreteEventsFromDiskLocked(mCachedEvents);
+        }
+        return mCachedEvents;
     }
 
     void clearHistory() {
@@ -453,23 +504,47 @@ final class DiscreteRegistry {
     }
 
     private void clearOnDiskHistoryLocked() {
-        mCachedOps = null;
+        mCachedEvents = null;
         FileUtils.deleteContentsAndDir(mDiscreteAccessDir);
         createDiscreteAccessDir();
     }
 
     private DiscreteOps getAllDiscreteOps() {
-        DiscreteOps discreteOps = new DiscreteOps(0);
+        return getDiscreteOps(Long.MIN_VALUE, Long.MAX_VALUE, 0, Process.INVALID_UID, null, null,
+                false);
+    }
+
+    /**
+     * Returns a copy of the in-memory events and those persisted events that may match the
+     * given query. The result still needs to be {@link DiscreteOps#filter filtered}.
+     *
+     * @param includeTrustedChains Whether to also include every persisted trusted event that
+     *                             is part of an attribution chain, to assemble chains from
+     */
+    private DiscreteOps getDiscreteOps(long beginTimeMillis, long endTimeMillis,
+            @AppOpsManager.HistoricalOpsRequestFilter int filter, int uidFilter,
+            @Nullable String packageNameFilter, @Nullable String[] opNamesFilter,
+            boolean includeTrustedChains) {
+        boolean[] opsFilter = null;
+        if ((filter & FILTER_BY_OP_NAMES) != 0) {
+            opsFilter = new boolean[AppOpsManager._NUM_OP];
+            for (int op = 0; op < opsFilter.length; op++) {
+                opsFilter[op] = ArrayUtils.contains(opNamesFilter,
+                        AppOpsManager.opToPublicName(op));
+            }
+        }
 
+        DiscreteOps discreteOps = new DiscreteOps(0);
         synchronized (mOnDiskLock) {
             synchronized (mInMemoryLock) {
                 discreteOps.merge(mDiscreteOps);
             }
-            if (mCachedOps == null) {
-                mCachedOps = new DiscreteOps(0);
-                readDiscreteOpsFromDisk(mCachedOps);
-            }
-            discreteOps.merge(mCachedOps);
+            DiscreteOps cachedOps = new DiscreteOps(0);
+            getCachedEventsLocked().forEachEvent(beginTimeMillis, endTimeMillis,
+                    (filter & FILTER_BY_UID) != 0 ? uidFilter : Process.INVALID_UID,
+                    (filter & FILTER_BY_PACKAGE_NAME) != 0 ? packageNameFilter : null,
+                    opsFilter, includeTrustedChains, cachedOps::addEvent);
+            discreteOps.merge(cachedOps);
             return discreteOps;
         }
     }
@@ -692,23 +767,53 @@ final class DiscreteRegistry {
             }
         }
 
-        private void writeToStream(FileOutputStream stream) throws Exception {
-            TypedXmlSerializer out = Xml.resolveSerializer(stream);
-
-            out.startDocument(null, true);
-            out.startTag(null, TAG_HISTORY);
-            out.attributeInt(null, ATTR_VERSION, CURRENT_VERSION);
-            out.attributeInt(null, ATTR_LARGEST_CHAIN_ID, mLargestChainId);
-
+        /**
+         * Adds all events to the buffer, along with the largest chain id.
+         */
+        private void appendTo(DiscreteEventBuffer buffer) {
+            buffer.setLargestChainId(max(buffer.getLargestChainId(), mLargestChainId));
             int nUids = mUids.size();
-            for (int i = 0; i < nUids; i++) {
-                out.startTag(null, TAG_UID);
-                out.attributeInt(null, ATTR_UID, mUids.keyAt(i));
-                mUids.valueAt(i).serialize(out);
-                out.endTag(null, TAG_UID);
+            for (int uidNum = 0; uidNum < nUids; uidNum++) {
+                int uid = mUids.keyAt(uidNum);
+                ArrayMap<String, DiscretePackageOps> pkgs = mUids.valueAt(uidNum).mPackages;
+                int nPackages = pkgs.size();
+                for (int pkgNum = 0; pkgNum < nPackages; pkgNum++) {
+                    String pkg = pkgs.keyAt(pkgNum);
+                    ArrayMap<Integer, DiscreteOp> ops = pkgs.valueAt(pkgNum).mPackageOps;
+                    int nOps = ops.size();
+                    for (int opNum = 0; opNum < nOps; opNum++) {
+                        int op = ops.keyAt(opNum);
+                        ArrayMap<String, List<DiscreteOpEvent>> attrOps =
+                                ops.valueAt(opNum).mAttributedOps;
+                        int nAttrOps = attrOps.size();
+                        for (int attrOpNum = 0; attrOpNum < nAttrOps; attrOpNum++) {
+                            String attributionTag = attrOps.keyAt(attrOpNum);
+                            List<DiscreteOpEvent> events = attrOps.valueAt(attrOpNum);
+                            int nEvents = events.size();
+                            for (int i = 0; i < nEvents; i++) {
+                                DiscreteOpEvent event = events.get(i);
+                                buffer.add(uid, pkg, op, attributionTag, event.mNoteTime,
+                                        event.mNoteDuration, event.mUidState, event.mOpFlag,
+                                        event.mAttributionFlags, event.mAttributionChainId);
+                            }
+                        }
+                    }
+                }
             }
-            out.endTag(null, TAG_HISTORY);
-            out.endDocument();
+        }
+
+        /**
+         * Adds an already recorded event as is. Events for the same attribution need to be
+         * added in note time order.
+         */
+        private void addEvent(int uid, @NonNull String packageName, int op,
+                @Nullable String attributionTag, long noteTime, long noteDuration,
+                @AppOpsManager.UidState int uidState, @AppOpsManager.OpFlags int opFlags,
+                @AppOpsManager.AttributionFlags int attributionFlags, int attributionChainId) {
+            getOrCreateDiscreteUidOps(uid).getOrCreateDiscretePackageOps(packageName)
+                    .getOrCreateDiscreteOp(op).getOrCreateDiscreteOpEventsList(attributionTag)
+                    .add(new DiscreteOpEvent(noteTime, noteDuration, uidState, opFlags,
+                            attributionFlags, attributionChainId));
         }
 
         private void dump(@NonNull PrintWriter pw, @NonNull SimpleDateFormat sdf,
@@ -785,7 +890,9 @@ final class DiscreteRegistry {
         FileOutputStream stream = null;
         try {
             stream = file.startWrite();
-            discreteOps.writeToStream(stream);
+            DiscreteEventBuffer buffer = new DiscreteEventBuffer();
+            discreteOps.appendTo(buffer);
+            buffer.writeTo(stream);
             file.finishWrite(stream);
         } catch (Throwable t) {
             Slog.e(TAG,
@@ -910,16 +1017,6 @@ final class DiscreteRegistry {
             }
         }
 
-        void serialize(TypedXmlSerializer out) throws Exception {
-            int nPackages = mPackages.size();
-            for (int i = 0; i < nPackages; i++) {
-                out.startTag(null, TAG_PACKAGE);
-                out.attribute(null, ATTR_PACKAGE_NAME, mPackages.keyAt(i));
-                mPackages.valueAt(i).serialize(out);
-                out.endTag(null, TAG_PACKAGE);
-            }
-        }
-
         private void dump(@NonNull PrintWriter pw, @NonNull SimpleDateFormat sdf,
                 @NonNull Date date, @NonNull String prefix, int nDiscreteOps) {
             int nPackages = mPackages.size();
@@ -1019,16 +1116,6 @@ final class DiscreteRegistry {
             }
         }
 
-        void serialize(TypedXmlSerializer out) throws Exception {
-            int nOps = mPackageOps.size();
-            for (int i = 0; i < nOps; i++) {
-                out.startTag(null, TAG_OP);
-                out.attributeInt(null, ATTR_OP_ID, mPackageOps.keyAt(i));
-                mPackageOps.valueAt(i).serialize(out);
-                out.endTag(null, TAG_OP);
-            }
-        }
-
         private void dump(@NonNull PrintWriter pw, @NonNull SimpleDateFormat sdf,
                 @NonNull Date date, @NonNull String prefix, int nDiscreteOps) {
             int nOps = mPackageOps.size();
@@ -1198,25 +1285,6 @@ final class DiscreteRegistry {
             }
         }
 
-        void serialize(TypedXmlSerializer out) throws Exception {
-            int nAttributions = mAttributedOps.size();
-            for (int i = 0; i < nAttributions; i++) {
-                out.startTag(null, TAG_TAG);
-                String tag = mAttributedOps.keyAt(i);
-                if (tag != null) {
-                    out.attribute(null, ATTR_TAG, mAttributedOps.keyAt(i));
-                }
-                List<DiscreteOpEvent> ops = mAttributedOps.valueAt(i);
-                int nOps = ops.size();
-                for (int j = 0; j < nOps; j++) {
-                    out.startTag(null, TAG_ENTRY);
-                    ops.get(j).serialize(out);
-                    out.endTag(null, TAG_ENTRY);
-                }
-                out.endTag(null, TAG_TAG);
-            }
-        }
-
         void deserialize(TypedXmlPullParser parser, long beginTimeMillis) throws Exception {
             int outerDepth = parser.getDepth();
             while (XmlUtils.nextElementWithin(parser, outerDepth)) {
@@ -1300,21 +1368,6 @@ final class DiscreteRegistry {
             }
             pw.println();
         }
-
-        private void serialize(TypedXmlSerializer out) throws Exception {
-            out.attributeLong(null, ATTR_NOTE_TIME, mNoteTime);
-            if (mNoteDuration != -1) {
-                out.attributeLong(null, ATTR_NOTE_DURATION, mNoteDuration);
-            }
-            if (mAttributionFlags != AppOpsManager.ATTRIBUTION_FLAGS_NONE) {
-                out.attributeInt(null, ATTR_ATTRIBUTION_FLAGS, mAttributionFlags);
-            }
-            if (mAttributionChainId != AppOpsManager.ATTRIBUTION_CHAIN_ID_NONE) {
-                out.attributeInt(null, ATTR_CHAIN_ID, mAttributionChainId);
-            }
-            out.attributeInt(null, ATTR_UID_STATE, mUidState);
-            out.attributeInt(null, ATTR_FLAGS, mOpFlag);
-        }
     }
 
     private static int[] parseOpsList(String opsList) {
@@ -48,12 +48,12 @@ import android.os.RemoteCallback;
 import android.os.UserHandle;
 import android.provider.DeviceConfig;
 import android.provider.Settings;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.LongSparseArray;
 import android.util.Slog;
 import android.util.TimeUtils;
 import android.util.TypedXmlPullParser;
-import android.util.TypedXmlSerializer;
 import android.util.Xml;
 
 import com.android.internal.annotations.GuardedBy;
@@ -66,6 +66,12 @@ import com.android.server.FgThread;
 
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -77,6 +83,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
@@ -88,19 +95,20 @@ import java.util.concurrent.TimeUnit;
  * This class manages historical app op state. This includes reading, persistence,
  * accounting, querying.
  * <p>
- * The history is kept forever in multiple files. Each file time contains the
- * relative offset from the current time which time is encoded in the file name.
- * The files contain historical app op state snapshots which have times that
- * are relative to the time of the container file.
- *
- * The data in the files are stored in a logarithmic fashion where where every
- * subsequent file would contain data for ten times longer interval with ten
- * times more time distance between snapshots. Hence, the more time passes
- * the lesser the fidelity.
+ * The history is kept forever in binary tile files, each holding the ops of one
+ * time bucket. Tiles come in multiple levels where every level has buckets ten
+ * times longer than the previous one, and every op is added to its bucket at
+ * each level. Fine levels are dropped as their data ages while the coarsest
+ * level is kept. Hence, the more time passes the lesser the fidelity.
+ * <p>
+ * For example, the first level would contain buckets of 0.1 days for the last
+ * day, the next level buckets of 1 day for the last 10 days, and so on. A query
+ * for the last 10 days would read ten buckets of the second level plus a few of
+ * the first level at the edges of the interval.
  * <p>
- * For example, the first file would contain data for 1 days with snapshots
- * every 0.1 days, the next file would contain data for the period 1 to 10
- * days with snapshots every 1 days, and so on.
+ * Bucket times are positions on a timeline whose head, the current time, is kept
+ * in a metadata file. Time passing and changes to the system time move the head
+ * rather than rewriting the tiles.
  * <p>
  * THREADING AND LOCKING: Reported ops must be processed as quickly as possible.
  * We keep ops pending to be persisted in memory and write to disk on a background
@@ -232,6 +240,7 @@ final class HistoricalRegistry {
                     if (!isPersistenceInitializedMLocked()) {
                         mPersistence = new Persistence(mBaseSnapshotInterval,
                                 mIntervalCompressionMultiplier);
+                        mPersistence.ensureCurrentFormatDLocked();
                     }
 
                     // When starting always adjust history to now.
@@ -586,19 +595,15 @@ final class HistoricalRegistry {
                     return;
                 }
             }
-            final List<HistoricalOps> history = mPersistence.readHistoryDLocked();
-            clearHistoricalRegistry();
-            if (history != null) {
-                final int historySize = history.size();
-                for (int i = 0; i < historySize; i++) {
-                    final HistoricalOps ops = history.get(i);
-                    ops.offsetBeginAndEndTime(offsetMillis);
-                }
-                if (offsetMillis < 0) {
-                    pruneFutureOps(history);
-                }
-                mPersistence.persistHistoricalOpsDLocked(history);
+            // Only the persisted history is offset, so start over in memory
+            BackgroundThread.getHandler().removeMessages(MSG_WRITE_PENDING_HISTORY);
+            synchronized (mInMemoryLock) {
+                mCurrentHistoricalOps = null;
+                mNextPersistDueTimeMillis = 0;
+                mPendingHistoryOffsetMillis = 0;
+                mPendingWrites.clear();
             }
+            mPersistence.offsetHistoryDLocked(offsetMillis);
         }
     }
 
@@ -624,6 +629,7 @@ final class HistoricalRegistry {
 
     private void resampleHistoryOnDiskInMemoryDMLocked(long offsetMillis) {
         mPersistence = new Persistence(mBaseSnapshotInterval, mIntervalCompressionMultiplier);
+        mPersistence.ensureCurrentFormatDLocked();
         offsetHistory(offsetMillis);
     }
 
@@ -793,31 +799,43 @@ final class HistoricalRegistry {
                 nowMillis- ops.getBeginTimeMillis());
     }
 
-    private void pruneFutureOps(@NonNull List<HistoricalOps> ops) {
-        final int opCount = ops.size();
-        for (int i = opCount - 1; i >= 0; i--) {
-            final HistoricalOps op = ops.get(i);
-            if (op.getEndTimeMillis() <= mBaseSnapshotInterval) {
-                ops.remove(i);
-            } else if (op.getBeginTimeMillis() < mBaseSnapshotInterval) {
-                final double filterScale = (double) (op.getEndTimeMillis() - mBaseSnapshotInterval)
-                        / (double) op.getDurationMillis();
-                Persistence.spliceFromBeginning(op, filterScale);
-            }
-        }
-    }
-
     private static boolean isApiEnabled() {
         return Binder.getCallingUid() == Process.myUid()
                 || DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_PRIVACY,
                 PROPERTY_PERMISSIONS_HUB_ENABLED, true);
     }
 
+    /**
+     * Persists the history as tiles, binary files that each hold the ops of one time bucket.
+     * <p>
+     * Level 0 tiles span the base snapshot interval and every next level spans the interval
+     * compression multiplier times more, aligned so that each tile falls within a single tile
+     * of every coarser level. Persisted ops are added to their tile at every level, which makes
+     * coarser tiles pre-aggregated rollups of the finer ones. A level drops its tiles once they
+     * are older than one tile of the next level, while the coarsest level is kept.
+     * <p>
+     * Tiles are placed on a timeline where the head, stored in a metadata file next to them, is
+     * age zero. Time passing and history offsets move the head instead of rewriting tiles, and
+     * queries read the coarsest tiles their interval covers, only reading finer tiles at the
+     * edges of the interval.
+     */
     private static final class Persistence {
         private static final boolean DEBUG = false;
 
         private static final String LOG_TAG = Persistence.class.getSimpleName();
 
+        private static final String METADATA_FILE = "history.meta";
+        private static final String TILE_FILE_SUFFIX = ".tile";
+        private static final char TILE_NAME_DELIMITER = '_';
+
+        private static final int METADATA_MAGIC = 0x48534d44;
+        private static final int TILE_MAGIC = 0x48535449;
+        private static final int TILES_VERSION = 1;
+
+        private static final int MAX_LEVEL_COUNT = 16;
+        private static final long MAX_TILE_DURATION_MILLIS = TimeUnit.DAYS.toMillis(365);
+
+        // The XML format history was kept in before tiles, only read to migrate it
         private static final String TAG_HISTORY = "history";
         private static final String TAG_OPS = "ops";
         private static final String TAG_UID = "uid";
@@ -848,25 +866,180 @@ final class HistoricalRegistry {
         private static final AtomicDirectory sHistoricalAppOpsDir = new AtomicDirectory(
                 new File(new File(Environment.getDataSystemDirectory(), "appops"), "history"));
 
-        private File generateFile(@NonNull File baseDir, int depth) {
-            final long globalBeginMillis = computeGlobalIntervalBeginMillis(depth);
-            return new File(baseDir, Long.toString(globalBeginMillis) + HISTORY_FILE_SUFFIX);
+        /** Where the tiles are on the timeline and how long they are. */
+        private static final class Metadata {
+            final long mBaseSnapshotInterval;
+            final long mIntervalCompressionMultiplier;
+            final long[] mTileDurationMillis;
+            /** Timeline position of age zero. */
+            long mHeadMillis;
+            long mLastPersistTimeMillis;
+            /** Per level, the timeline position before which its tiles were dropped. */
+            final long[] mRetainedSinceMillis;
+
+            Metadata(long baseSnapshotInterval, long intervalCompressionMultiplier,
+                    int levelCount) {
+                mBaseSnapshotInterval = baseSnapshotInterval;
+                mIntervalCompressionMultiplier = intervalCompressionMultiplier;
+                mTileDurationMillis = new long[levelCount];
+                mTileDurationMillis[0] = baseSnapshotInterval;
+                for (int level = 1; level < levelCount; level++) {
+                    mTileDurationMillis[level] = mTileDurationMillis[level - 1]
+                            * intervalCompressionMultiplier;
+                }
+                mRetainedSinceMillis = new long[levelCount];
+                Arrays.fill(mRetainedSinceMillis, Long.MIN_VALUE);
+            }
+
+            int getLevelCount() {
+                return mTileDurationMillis.length;
+            }
+
+            long getTileDurationMillis(int level) {
+                return mTileDurationMillis[level];
+            }
+
+            boolean hasGeometry(long baseSnapshotInterval, long intervalCompressionMultiplier) {
+                return mBaseSnapshotInterval == baseSnapshotInterval
+                        && mIntervalCompressionMultiplier == intervalCompressionMultiplier
+                        && getLevelCount() == computeLevelCount(baseSnapshotInterval,
+                                intervalCompressionMultiplier);
+            }
+
+            /** Returns the timeline position before which tiles of a level are dropped. */
+            long getRetentionCutoffMillis(int level) {
+                if (level == getLevelCount() - 1) {
+                    return Long.MIN_VALUE;
+                }
+                return toTimelineMillis(getTileDurationMillis(level + 1));
+            }
+
+            long toTimelineMillis(long ageMillis) {
+                if (ageMillis < 0 && mHeadMillis > Long.MAX_VALUE + ageMillis) {
+                    return Long.MAX_VALUE;
+                }
+                if (ageMillis > 0 && mHeadMillis < Long.MIN_VALUE + ageMillis) {
+                    return Long.MIN_VALUE;
+                }
+                return mHeadMillis - ageMillis;
+            }
+
+            static int computeLevelCount(long baseSnapshotInterval,
+                    long intervalCompressionMultiplier) {
+                int levelCount = 1;
+                long tileDurationMillis = baseSnapshotInterval;
+                while (levelCount < MAX_LEVEL_COUNT && intervalCompressionMultiplier > 1
+                        && tileDurationMillis
+                                <= MAX_TILE_DURATION_MILLIS / intervalCompressionMultiplier) {
+                    tileDurationMillis *= intervalCompressionMultiplier;
+                    levelCount++;
+                }
+                return levelCount;
+            }
         }
 
-        void clearHistoryDLocked(int uid, String packageName) {
-            List<HistoricalOps> historicalOps = readHistoryDLocked();
+        /**
+         * The tiles of one write. Tiles are read from the previous version of the history on
+         * first use and only the ones read are written again, the others are linked.
+         */
+        private static final class TileSet {
+            private final @NonNull File mOldBaseDir;
+            private final @NonNull ArraySet<String> mNames;
+            private final @NonNull ArrayMap<String, HistoricalOps> mUpdatedTiles =
+                    new ArrayMap<>();
 
-            if (historicalOps == null) {
-                return;
+            TileSet(@NonNull File oldBaseDir) {
+                mOldBaseDir = oldBaseDir;
+                mNames = getTileFileNames(oldBaseDir);
             }
 
-            for (int index = 0; index < historicalOps.size(); index++) {
-                historicalOps.get(index).clearHistory(uid, packageName);
+            @Nullable HistoricalOps getForUpdate(@NonNull String name) throws IOException {
+                HistoricalOps ops = mUpdatedTiles.get(name);
+                if (ops == null && mNames.contains(name)) {
+                    ops = readTileDLocked(new File(mOldBaseDir, name), Process.INVALID_UID,
+                            null /*filterPackageName*/, null /*filterAttributionTag*/,
+                            null /*filterOpNames*/, 0 /*filter*/, AppOpsManager.OP_FLAGS_ALL,
+                            Long.MIN_VALUE, Long.MAX_VALUE);
+                    if (ops != null) {
+                        mUpdatedTiles.put(name, ops);
+                    } else {
+                        mNames.remove(name);
+                    }
+                }
+                return ops;
             }
 
-            clearHistoryDLocked();
+            @NonNull HistoricalOps getOrCreateForUpdate(@NonNull String name,
+                    long beginTimeMillis, long endTimeMillis) throws IOException {
+                HistoricalOps ops = getForUpdate(name);
+                if (ops == null) {
+                    ops = new HistoricalOps(beginTimeMillis, endTimeMillis);
+                    mNames.add(name);
+                    mUpdatedTiles.put(name, ops);
+                }
+                return ops;
+            }
 
-            persistHistoricalOpsDLocked(historicalOps);
+            void remove(@NonNull String name) {
+                mNames.remove(name);
+                mUpdatedTiles.remove(name);
+            }
+
+            void clear() {
+                mNames.clear();
+                mUpdatedTiles.clear();
+            }
+
+            void writeDLocked(@NonNull File newBaseDir) throws IOException {
+                final int tileCount = mNames.size();
+                for (int i = 0; i < tileCount; i++) {
+                    final String name = mNames.valueAt(i);
+                    final File newFile = new File(newBaseDir, name);
+                    final HistoricalOps ops = mUpdatedTiles.get(name);
+                    if (ops != null) {
+                        writeTileDLocked(ops, newFile);
+                    } else {
+                        Files.createLink(newFile.toPath(), new File(mOldBaseDir, name).toPath());
+                    }
+                }
+            }
+        }
+
+        private interface TileUpdate {
+            void applyDLocked(@NonNull Metadata metadata, @NonNull TileSet tiles)
+                    throws IOException;
+        }
+
+        /** Package names and attribution tags of a tile, written once and then referenced. */
+        private static final class StringPool {
+            private final @NonNull List<String> mStrings = new ArrayList<>();
+            private final @NonNull ArrayMap<String, Integer> mIndices = new ArrayMap<>();
+
+            int indexOf(@NonNull String string) {
+                Integer index = mIndices.get(string);
+                if (index == null) {
+                    index = mStrings.size();
+                    mStrings.add(string);
+                    mIndices.put(string, index);
+                }
+                return index;
+            }
+        }
+
+        void clearHistoryDLocked(int uid, String packageName) {
+            updateTilesDLocked((metadata, tiles) -> {
+                for (int i = tiles.mNames.size() - 1; i >= 0; i--) {
+                    final String name = tiles.mNames.valueAt(i);
+                    final HistoricalOps ops = tiles.getForUpdate(name);
+                    if (ops == null) {
+                        continue;
+                    }
+                    ops.clearHistory(uid, packageName);
+                    if (ops.isEmpty()) {
+                        tiles.remove(name);
+                    }
+                }
+            });
         }
 
         static void clearHistoryDLocked() {
@@ -878,24 +1051,64 @@ final class HistoricalRegistry {
                 Slog.i(LOG_TAG, "Persisting ops:\n" + opsToDebugString(ops));
                 enforceOpsWellFormed(ops);
             }
-            try {
-                final File newBaseDir = sHistoricalAppOpsDir.startWrite();
-                final File oldBaseDir = sHistoricalAppOpsDir.getBackupDirectory();
-                final HistoricalFilesInvariant filesInvariant;
-                if (DEBUG) {
-                    filesInvariant = new HistoricalFilesInvariant();
-                    filesInvariant.startTracking(oldBaseDir);
-                }
-                final Set<String> oldFileNames = getHistoricalFileNames(oldBaseDir);
-                handlePersistHistoricalOpsRecursiveDLocked(newBaseDir, oldBaseDir, ops,
-                        oldFileNames,  0);
-                if (DEBUG) {
-                    filesInvariant.stopTracking(newBaseDir);
+            updateTilesDLocked((metadata, tiles) -> {
+                final long elapsedTimeMillis = ops.get(ops.size() - 1).getEndTimeMillis()
+                        - mBaseSnapshotInterval;
+                metadata.mHeadMillis += Math.max(elapsedTimeMillis, 0);
+                final int opCount = ops.size();
+                for (int i = 0; i < opCount; i++) {
+                    final HistoricalOps op = ops.get(i);
+                    final HistoricalOps timelineOps = new HistoricalOps(op);
+                    timelineOps.setBeginAndEndTime(
+                            metadata.toTimelineMillis(op.getEndTimeMillis()
+                                    - mBaseSnapshotInterval),
+                            metadata.toTimelineMillis(op.getBeginTimeMillis()
+                                    - mBaseSnapshotInterval));
+                    addToTilesDLocked(metadata, tiles, timelineOps);
+                }
+                metadata.mLastPersistTimeMillis = System.currentTimeMillis();
+            });
+        }
+
+        /**
+         * Offsets the persisted history by moving the head, dropping history that ends up in
+         * the future.
+         */
+        void offsetHistoryDLocked(long offsetMillis) {
+            if (offsetMillis == 0) {
+                return;
+            }
+            updateTilesDLocked((metadata, tiles) -> {
+                metadata.mHeadMillis += offsetMillis;
+                if (offsetMillis < 0) {
+                    pruneFutureTilesDLocked(metadata, tiles);
                 }
-                sHistoricalAppOpsDir.finishWrite();
+                metadata.mLastPersistTimeMillis = System.currentTimeMillis();
+            });
+        }
+
+        /**
+         * Brings the history to the current format, migrating XML history and re-tiling history
+         * persisted with another snapshot interval or multiplier.
+         */
+        void ensureCurrentFormatDLocked() {
+            File baseDir = null;
+            final boolean current;
+            try {
+                baseDir = sHistoricalAppOpsDir.startRead();
+                final Metadata metadata = readMetadataDLocked(baseDir);
+                current = metadata != null
+                        ? metadata.hasGeometry(mBaseSnapshotInterval,
+                                mIntervalCompressionMultiplier)
+                        : getLegacyHistoryFileNames(baseDir).isEmpty();
+                sHistoricalAppOpsDir.finishRead();
             } catch (Throwable t) {
-                wtf("Failed to write historical app ops, restoring backup", t, null);
-                sHistoricalAppOpsDir.failWrite();
+                wtf("Error reading historical app ops. Deleting history.", t, baseDir);
+                sHistoricalAppOpsDir.delete();
+                return;
+            }
+            if (!current) {
+                updateTilesDLocked((metadata, tiles) -> { });
             }
         }
 
@@ -903,7 +1116,8 @@ final class HistoricalRegistry {
             return collectHistoricalOpsBaseDLocked(Process.INVALID_UID /*filterUid*/,
                     null /*filterPackageName*/, null /*filterAttributionTag*/,
                     null /*filterOpNames*/, 0 /*filter*/, 0 /*filterBeginTimeMills*/,
-                    Long.MAX_VALUE /*filterEndTimeMills*/, AppOpsManager.OP_FLAGS_ALL);
+                    Long.MAX_VALUE /*filterEndTimeMills*/, AppOpsManager.OP_FLAGS_ALL,
+                    true /*finest*/);
         }
 
         @Nullable List<HistoricalOps> readHistoryDLocked() {
@@ -922,26 +1136,9 @@ final class HistoricalRegistry {
             File baseDir = null;
             try {
                 baseDir = sHistoricalAppOpsDir.startRead();
-                final File[] files = baseDir.listFiles();
-                if (files != null && files.length > 0) {
-                    File shortestFile = null;
-                    for (File candidate : files) {
-                        final String candidateName = candidate.getName();
-                        if (!candidateName.endsWith(HISTORY_FILE_SUFFIX)) {
-                            continue;
-                        }
-                        if (shortestFile == null) {
-                            shortestFile = candidate;
-                        } else if (candidateName.length() < shortestFile.getName().length()) {
-                            shortestFile = candidate;
-                        }
-                    }
-                    if (shortestFile == null) {
-                        return 0;
-                    }
-                    return shortestFile.lastModified();
-                }
+                final Metadata metadata = readMetadataDLocked(baseDir);
                 sHistoricalAppOpsDir.finishRead();
+                return metadata != null ? metadata.mLastPersistTimeMillis : 0;
             } catch (Throwable e) {
                 wtf("Error reading historical app ops. Deleting history.", e, baseDir);
                 sHistoricalAppOpsDir.delete();
@@ -955,7 +1152,7 @@ final class HistoricalRegistry {
                 long filterBeingMillis, long filterEndMillis, @OpFlags int filterFlags) {
             final List<HistoricalOps> readOps = collectHistoricalOpsBaseDLocked(filterUid,
                     filterPackageName, filterAttributionTag, filterOpNames, filter,
-                    filterBeingMillis, filterEndMillis, filterFlags);
+                    filterBeingMillis, filterEndMillis, filterFlags, false /*finest*/);
             if (readOps != null) {
                 final int readCount = readOps.size();
                 for (int i = 0; i < readCount; i++) {
@@ -965,26 +1162,38 @@ final class HistoricalRegistry {
              }
         }
 
-        private @Nullable LinkedList<HistoricalOps> collectHistoricalOpsBaseDLocked(int filterUid,
+        private @Nullable List<HistoricalOps> collectHistoricalOpsBaseDLocked(int filterUid,
                 @Nullable String filterPackageName, @Nullable String filterAttributionTag,
                 @Nullable String[] filterOpNames, @HistoricalOpsRequestFilter int filter,
-                long filterBeginTimeMillis, long filterEndTimeMillis, @OpFlags int filterFlags) {
+                long filterBeginTimeMillis, long filterEndTimeMillis, @OpFlags int filterFlags,
+                boolean finest) {
             File baseDir = null;
             try {
                 baseDir = sHistoricalAppOpsDir.startRead();
-                final HistoricalFilesInvariant filesInvariant;
-                if (DEBUG) {
-                    filesInvariant = new HistoricalFilesInvariant();
-                    filesInvariant.startTracking(baseDir);
-                }
-                final Set<String> historyFiles = getHistoricalFileNames(baseDir);
-                final long[] globalContentOffsetMillis = {0};
-                final LinkedList<HistoricalOps> ops = collectHistoricalOpsRecursiveDLocked(
-                        baseDir, filterUid, filterPackageName, filterAttributionTag, filterOpNames,
-                        filter, filterBeginTimeMillis, filterEndTimeMillis, filterFlags,
-                        globalContentOffsetMillis, null /*outOps*/, 0 /*depth*/, historyFiles);
-                if (DEBUG) {
-                    filesInvariant.stopTracking(baseDir);
+                final Metadata metadata = readMetadataDLocked(baseDir);
+                List<HistoricalOps> ops = null;
+                // Persisted history starts where the in memory state ends
+                final long beginAgeMillis = Math.max(filterBeginTimeMillis, mBaseSnapshotInterval)
+                        - mBaseSnapshotInterval;
+                final long endAgeMillis = filterEndTimeMillis - mBaseSnapshotInterval;
+                if (metadata != null && beginAgeMillis < endAgeMillis) {
+                    final List<HistoricalOps> tileOps = new ArrayList<>();
+                    collectTilesDLocked(baseDir, metadata, getTileFileNames(baseDir),
+                            metadata.toTimelineMillis(endAgeMillis),
+                            metadata.toTimelineMillis(beginAgeMillis), finest, filterUid,
+                            filterPackageName, filterAttributionTag, filterOpNames, filter,
+                            filterFlags, tileOps);
+                    final int opCount = tileOps.size();
+                    for (int i = 0; i < opCount; i++) {
+                        final HistoricalOps tileOp = tileOps.get(i);
+                        tileOp.setBeginAndEndTime(
+                                metadata.mHeadMillis - tileOp.getEndTimeMillis(),
+                                metadata.mHeadMillis - tileOp.getBeginTimeMillis());
+                    }
+                    tileOps.sort(Comparator.comparingLong(HistoricalOps::getBeginTimeMillis));
+                    if (!tileOps.isEmpty()) {
+                        ops = tileOps;
+                    }
                 }
                 sHistoricalAppOpsDir.finishRead();
                 return ops;
@@ -995,6 +1204,510 @@ final class HistoricalRegistry {
             return null;
         }
 
+        /**
+         * Reads the tiles within a timeline interval, the coarsest ones that the interval
+         * covers unless {@code finest}.
+         */
+        private static void collectTilesDLocked(@NonNull File baseDir,
+                @NonNull Metadata metadata, @NonNull Set<String> tileNames, long beginMillis,
+                long endMillis, boolean finest, int filterUid,
+                @Nullable String filterPackageName, @Nullable String filterAttributionTag,
+                @Nullable String[] filterOpNames, @HistoricalOpsRequestFilter int filter,
+                @OpFlags int filterFlags, @NonNull List<HistoricalOps> outOps)
+                throws IOException {
+            // Only walk the part of the interval that the coarsest tiles cover
+            final int topLevel = metadata.getLevelCount() - 1;
+            long firstIndex = Long.MAX_VALUE;
+            long lastIndex = Long.MIN_VALUE;
+            for (String name : tileNames) {
+                if (getTileLevel(name) == topLevel) {
+                    final long index = getTileIndex(name);
+                    firstIndex = Math.min(firstIndex, index);
+                    lastIndex = Math.max(lastIndex, index);
+                }
+            }
+            if (firstIndex > lastIndex) {
+                return;
+            }
+            final long tileDurationMillis = metadata.getTileDurationMillis(topLevel);
+            beginMillis = Math.max(beginMillis, firstIndex * tileDurationMillis);
+            endMillis = Math.min(endMillis, (lastIndex + 1) * tileDurationMillis);
+            collectTilesDLocked(baseDir, metadata, tileNames, topLevel, beginMillis, endMillis,
+                    finest, filterUid, filterPackageName, filterAttributionTag, filterOpNames,
+                    filter, filterFlags, outOps);
+        }
+
+        private static void collectTilesDLocked(@NonNull File baseDir,
+                @NonNull Metadata metadata, @NonNull Set<String> tileNames, int level,
+                long beginMillis, long endMillis, boolean finest, int filterUid,
+                @Nullable String filterPackageName, @Nullable String filterAttributionTag,
+                @Nullable String[] filterOpNames, @HistoricalOpsRequestFilter int filter,
+                @OpFlags int filterFlags, @NonNull List<HistoricalOps> outOps)
+                throws IOException {
+            if (beginMillis >= endMillis) {
+                return;
+            }
+            final long tileDurationMillis = metadata.getTileDurationMillis(level);
+            final long lastIndex = Math.floorDiv(endMillis - 1, tileDurationMillis);
+            for (long index = Math.floorDiv(beginMillis, tileDurationMillis); index <= lastIndex;
+                    index++) {
+                final String name = getTileName(level, index);
+                if (!tileNames.contains(name)) {
+                    continue;
+                }
+                final long tileBeginMillis = index * tileDurationMillis;
+                final long overlapBeginMillis = Math.max(beginMillis, tileBeginMillis);
+                final long overlapEndMillis = Math.min(endMillis,
+                        tileBeginMillis + tileDurationMillis);
+                final boolean covered = overlapBeginMillis == tileBeginMillis
+                        && overlapEndMillis == tileBeginMillis + tileDurationMillis;
+                // Finer tiles are more precise at the edges, if they are still around
+                if (level > 0 && (finest || !covered)
+                        && overlapBeginMillis >= metadata.mRetainedSinceMillis[level - 1]) {
+                    collectTilesDLocked(baseDir, metadata, tileNames, level - 1,
+                            overlapBeginMillis, overlapEndMillis, finest, filterUid,
+                            filterPackageName, filterAttributionTag, filterOpNames, filter,
+                            filterFlags, outOps);
+                    continue;
+                }
+                final HistoricalOps ops = readTileDLocked(new File(baseDir, name), filterUid,
+                        filterPackageName, filterAttributionTag, filterOpNames, filter,
+                        filterFlags, overlapBeginMillis, overlapEndMillis);
+                if (ops != null) {
+                    outOps.add(ops);
+                }
+            }
+        }
+
+        private void updateTilesDLocked(@NonNull TileUpdate update) {
+            try {
+                final File newBaseDir = sHistoricalAppOpsDir.startWrite();
+                final File oldBaseDir = sHistoricalAppOpsDir.getBackupDirectory();
+                final TileSet tiles = new TileSet(oldBaseDir);
+                Metadata metadata = readMetadataDLocked(oldBaseDir);
+                if (metadata == null) {
+                    metadata = new Metadata(mBaseSnapshotInterval, mIntervalCompressionMultiplier,
+                            Metadata.computeLevelCount(mBaseSnapshotInterval,
+                                    mIntervalCompressionMultiplier));
+                    migrateLegacyHistoryDLocked(oldBaseDir, metadata, tiles);
+                } else if (!metadata.hasGeometry(mBaseSnapshotInterval,
+                        mIntervalCompressionMultiplier)) {
+                    metadata = retileDLocked(oldBaseDir, metadata, tiles);
+                }
+                update.applyDLocked(metadata, tiles);
+                pruneTilesDLocked(metadata, tiles);
+                tiles.writeDLocked(newBaseDir);
+                writeMetadataDLocked(metadata, new File(newBaseDir, METADATA_FILE));
+                sHistoricalAppOpsDir.finishWrite();
+            } catch (Throwable t) {
+                wtf("Failed to write historical app ops, restoring backup", t, null);
+                sHistoricalAppOpsDir.failWrite();
+            }
+        }
+
+        /** Adds ops placed on the timeline to the tiles of every level they overlap. */
+        private static void addToTilesDLocked(@NonNull Metadata metadata,
+                @NonNull TileSet tiles, @NonNull HistoricalOps ops) throws IOException {
+            if (ops.isEmpty()) {
+                return;
+            }
+            final int levelCount = metadata.getLevelCount();
+            for (int level = 0; level < levelCount; level++) {
+                final long tileDurationMillis = metadata.getTileDurationMillis(level);
+                final long cutoffMillis = metadata.getRetentionCutoffMillis(level);
+                HistoricalOps remainder = new HistoricalOps(ops);
+                // Splice off a tile worth from the end at a time
+                while (remainder != null && !remainder.isEmpty()) {
+                    final long beginTimeMillis = remainder.getBeginTimeMillis();
+                    final long endTimeMillis = remainder.getEndTimeMillis();
+                    final long index = Math.floorDiv(endTimeMillis - 1, tileDurationMillis);
+                    final long tileBeginMillis = index * tileDurationMillis;
+                    if (tileBeginMillis + tileDurationMillis <= cutoffMillis) {
+                        break;
+                    }
+                    final HistoricalOps piece;
+                    if (tileBeginMillis <= beginTimeMillis) {
+                        piece = remainder;
+                        remainder = null;
+                    } else {
+                        piece = remainder.spliceFromEnd((double) (endTimeMillis - tileBeginMillis)
+                                / (double) remainder.getDurationMillis());
+                        // Splicing computes times in floating point, keep them on the boundary
+                        remainder.setBeginAndEndTime(beginTimeMillis, tileBeginMillis);
+                        if (piece != null) {
+                            piece.setBeginAndEndTime(tileBeginMillis, endTimeMillis);
+                        }
+                    }
+                    if (piece != null) {
+                        tiles.getOrCreateForUpdate(getTileName(level, index),
+                                piece.getBeginTimeMillis(), piece.getEndTimeMillis()).merge(piece);
+                    }
+                }
+            }
+        }
+
+        /** Drops the tiles that are too old for their level. */
+        private static void pruneTilesDLocked(@NonNull Metadata metadata,
+                @NonNull TileSet tiles) {
+            final int topLevel = metadata.getLevelCount() - 1;
+            for (int level = 0; level < topLevel; level++) {
+                final long tileDurationMillis = metadata.getTileDurationMillis(level);
+                final long cutoffMillis = metadata.getRetentionCutoffMillis(level);
+                if (cutoffMillis > Long.MIN_VALUE + tileDurationMillis) {
+                    // Tiles before the one the cutoff falls into are dropped
+                    metadata.mRetainedSinceMillis[level] = Math.max(
+                            metadata.mRetainedSinceMillis[level],
+                            Math.floorDiv(cutoffMillis, tileDurationMillis) * tileDurationMillis);
+                }
+            }
+            for (int i = tiles.mNames.size() - 1; i >= 0; i--) {
+                final String name = tiles.mNames.valueAt(i);
+                final int level = getTileLevel(name);
+                if (level >= topLevel) {
+                    continue;
+                }
+                final long tileEndMillis = (getTileIndex(name) + 1)
+                        * metadata.getTileDurationMillis(level);
+                if (tileEndMillis <= metadata.mRetainedSinceMillis[level]) {
+                    tiles.remove(name);
+                }
+            }
+        }
+
+        /** Drops history that an offset moved past the head. */
+        private static void pruneFutureTilesDLocked(@NonNull Metadata metadata,
+                @NonNull TileSet tiles) throws IOException {
+            final long headMillis = metadata.mHeadMillis;
+            for (int i = tiles.mNames.size() - 1; i >= 0; i--) {
+                final String name = tiles.mNames.valueAt(i);
+                final long tileEndMillis = (getTileIndex(name) + 1)
+                        * metadata.getTileDurationMillis(getTileLevel(name));
+                if (tileEndMillis <= headMillis) {
+                    continue;
+                }
+                final HistoricalOps ops = tiles.getForUpdate(name);
+                if (ops == null) {
+                    continue;
+                }
+                final long beginTimeMillis = ops.getBeginTimeMillis();
+                final long endTimeMillis = ops.getEndTimeMillis();
+                if (beginTimeMillis >= headMillis) {
+                    tiles.remove(name);
+                } else if (endTimeMillis > headMillis) {
+                    ops.spliceFromEnd((double) (endTimeMillis - headMillis)
+                            / (double) ops.getDurationMillis());
+                    ops.setBeginAndEndTime(beginTimeMillis, headMillis);
+                    if (ops.isEmpty()) {
+                        tiles.remove(name);
+                    }
+                }
+            }
+        }
+
+        /** Moves the tiles to the current snapshot interval and multiplier. */
+        private @NonNull Metadata retileDLocked(@NonNull File oldBaseDir,
+                @NonNull Metadata oldMetadata, @NonNull TileSet tiles) throws IOException {
+            final List<HistoricalOps> history = new ArrayList<>();
+            collectTilesDLocked(oldBaseDir, oldMetadata, new ArraySet<>(tiles.mNames),
+                    Long.MIN_VALUE, Long.MAX_VALUE, true /*finest*/, Process.INVALID_UID,
+                    null /*filterPackageName*/, null /*filterAttributionTag*/,
+                    null /*filterOpNames*/, 0 /*filter*/, AppOpsManager.OP_FLAGS_ALL, history);
+            tiles.clear();
+            final Metadata metadata = new Metadata(mBaseSnapshotInterval,
+                    mIntervalCompressionMultiplier, Metadata.computeLevelCount(
+                            mBaseSnapshotInterval, mIntervalCompressionMultiplier));
+            metadata.mHeadMillis = oldMetadata.mHeadMillis;
+            metadata.mLastPersistTimeMillis = oldMetadata.mLastPersistTimeMillis;
+            final int opCount = history.size();
+            for (int i = 0; i < opCount; i++) {
+                addToTilesDLocked(metadata, tiles, history.get(i));
+            }
+            return metadata;
+        }
+
+        /** Moves history persisted as XML to tiles, with the last write as the head. */
+        private void migrateLegacyHistoryDLocked(@NonNull File oldBaseDir,
+                @NonNull Metadata metadata, @NonNull TileSet tiles)
+                throws IOException, XmlPullParserException {
+            final Set<String> historyFiles = getLegacyHistoryFileNames(oldBaseDir);
+            if (historyFiles.isEmpty()) {
+                return;
+            }
+            for (String historyFile : historyFiles) {
+                metadata.mLastPersistTimeMillis = Math.max(metadata.mLastPersistTimeMillis,
+                        new File(oldBaseDir, historyFile).lastModified());
+            }
+            final List<HistoricalOps> history = collectHistoricalOpsRecursiveDLocked(oldBaseDir,
+                    Process.INVALID_UID /*filterUid*/, null /*filterPackageName*/,
+                    null /*filterAttributionTag*/, null /*filterOpNames*/, 0 /*filter*/,
+                    0 /*filterBeginTimeMillis*/, Long.MAX_VALUE /*filterEndTimeMillis*/,
+                    AppOpsManager.OP_FLAGS_ALL, new long[] {0} /*globalContentOffsetMillis*/,
+                    null /*outOps*/, 0 /*depth*/, historyFiles);
+            if (history == null) {
+                return;
+            }
+            final int opCount = history.size();
+            for (int i = 0; i < opCount; i++) {
+                final HistoricalOps ops = history.get(i);
+                ops.setBeginAndEndTime(metadata.toTimelineMillis(ops.getEndTimeMillis()),
+                        metadata.toTimelineMillis(ops.getBeginTimeMillis()));
+                addToTilesDLocked(metadata, tiles, ops);
+            }
+        }
+
+        private static @Nullable Metadata readMetadataDLocked(@NonNull File baseDir)
+                throws IOException {
+            final File file = new File(baseDir, METADATA_FILE);
+            if (!file.exists()) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)))) {
+                if (in.readInt() != METADATA_MAGIC || in.readInt() != TILES_VERSION) {
+                    throw new IOException("Unsupported history metadata: " + file);
+                }
+                final long baseSnapshotInterval = in.readLong();
+                final long intervalCompressionMultiplier = in.readLong();
+                final long headMillis = in.readLong();
+                final long lastPersistTimeMillis = in.readLong();
+                final int levelCount = in.readInt();
+                if (baseSnapshotInterval <= 0 || levelCount <= 0
+                        || levelCount > MAX_LEVEL_COUNT) {
+                    throw new IOException("Malformed history metadata: " + file);
+                }
+                final Metadata metadata = new Metadata(baseSnapshotInterval,
+                        intervalCompressionMultiplier, levelCount);
+                metadata.mHeadMillis = headMillis;
+                metadata.mLastPersistTimeMillis = lastPersistTimeMillis;
+                for (int level = 0; level < levelCount; level++) {
+                    metadata.mRetainedSinceMillis[level] = in.readLong();
+                }
+                return metadata;
+            }
+        }
+
+        private static void writeMetadataDLocked(@NonNull Metadata metadata, @NonNull File file)
+                throws IOException {
+            final FileOutputStream output = sHistoricalAppOpsDir.openWrite(file);
+            try {
+                final DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(output));
+                out.writeInt(METADATA_MAGIC);
+                out.writeInt(TILES_VERSION);
+                out.writeLong(metadata.mBaseSnapshotInterval);
+                out.writeLong(metadata.mIntervalCompressionMultiplier);
+                out.writeLong(metadata.mHeadMillis);
+                out.writeLong(metadata.mLastPersistTimeMillis);
+                final int levelCount = metadata.getLevelCount();
+                out.writeInt(levelCount);
+                for (int level = 0; level < levelCount; level++) {
+                    out.writeLong(metadata.mRetainedSinceMillis[level]);
+                }
+                out.flush();
+                sHistoricalAppOpsDir.closeWrite(output);
+            } catch (IOException e) {
+                sHistoricalAppOpsDir.failWrite(output);
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the part of a tile within a timeline interval, scaled down to the fraction of
+         * the tile's data that the interval covers.
+         */
+        private static @Nullable HistoricalOps readTileDLocked(@NonNull File file, int filterUid,
+                @Nullable String filterPackageName, @Nullable String filterAttributionTag,
+                @Nullable String[] filterOpNames, @HistoricalOpsRequestFilter int filter,
+                @OpFlags int filterFlags, long filterBeginMillis, long filterEndMillis)
+                throws IOException {
+            if (DEBUG) {
+                Slog.i(LOG_TAG, "Reading ops from:" + file);
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)))) {
+                if (in.readInt() != TILE_MAGIC || in.readInt() != TILES_VERSION) {
+                    throw new IOException("Unsupported history tile: " + file);
+                }
+                final long beginTimeMillis = in.readLong();
+                final long endTimeMillis = in.readLong();
+                final long filteredBeginTimeMillis = Math.max(beginTimeMillis, filterBeginMillis);
+                final long filteredEndTimeMillis = Math.min(endTimeMillis, filterEndMillis);
+                if (filteredBeginTimeMillis >= filteredEndTimeMillis) {
+                    return null;
+                }
+                final double filterScale = (double) (filteredEndTimeMillis
+                        - filteredBeginTimeMillis) / (double) (endTimeMillis - beginTimeMillis);
+                final String[] strings = new String[in.readInt()];
+                for (int i = 0; i < strings.length; i++) {
+                    strings[i] = in.readUTF();
+                }
+                HistoricalOps ops = null;
+                final int uidCount = in.readInt();
+                for (int i = 0; i < uidCount; i++) {
+                    final int uid = in.readInt();
+                    final int uidLength = in.readInt();
+                    if ((filter & FILTER_BY_UID) != 0 && filterUid != uid) {
+                        skipFully(in, uidLength);
+                        continue;
+                    }
+                    final int packageCount = in.readInt();
+                    for (int j = 0; j < packageCount; j++) {
+                        final String packageName = strings[in.readInt()];
+                        final boolean packageMatches = (filter & FILTER_BY_PACKAGE_NAME) == 0
+                                || filterPackageName.equals(packageName);
+                        final int attributionCount = in.readInt();
+                        for (int k = 0; k < attributionCount; k++) {
+                            final int tagIndex = in.readInt();
+                            final String attributionTag = tagIndex >= 0 ? strings[tagIndex] : null;
+                            final boolean attributionMatches = packageMatches
+                                    && ((filter & FILTER_BY_ATTRIBUTION_TAG) == 0
+                                    || Objects.equals(filterAttributionTag, attributionTag));
+                            final int opCount = in.readInt();
+                            for (int l = 0; l < opCount; l++) {
+                                final int op = in.readInt();
+                                final boolean opMatches = attributionMatches
+                                        && ((filter & FILTER_BY_OP_NAMES) == 0
+                                        || ArrayUtils.contains(filterOpNames,
+                                                AppOpsManager.opToPublicName(op)));
+                                final int keyCount = in.readInt();
+                                for (int m = 0; m < keyCount; m++) {
+                                    final long key = in.readLong();
+                                    final long accessCount = in.readLong();
+                                    final long rejectCount = in.readLong();
+                                    final long accessDuration = in.readLong();
+                                    if (opMatches) {
+                                        ops = addStateDLocked(ops, uid, packageName,
+                                                attributionTag, op, key, accessCount,
+                                                rejectCount, accessDuration, filterFlags,
+                                                filterScale);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                if (ops != null) {
+                    ops.setBeginAndEndTime(filteredBeginTimeMillis, filteredEndTimeMillis);
+                }
+                return ops;
+            }
+        }
+
+        private static void writeTileDLocked(@NonNull HistoricalOps ops, @NonNull File file)
+                throws IOException {
+            // Uids are prefixed with their length so that reads filtering by uid can skip them
+            final StringPool strings = new StringPool();
+            final ByteArrayOutputStream uidBytes = new ByteArrayOutputStream();
+            final DataOutputStream uidOut = new DataOutputStream(uidBytes);
+            final ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+            final DataOutputStream bodyOut = new DataOutputStream(bodyBytes);
+            final int uidCount = ops.getUidCount();
+            bodyOut.writeInt(uidCount);
+            for (int i = 0; i < uidCount; i++) {
+                final HistoricalUidOps uidOps = ops.getUidOpsAt(i);
+                uidBytes.reset();
+                writeUidOpsDLocked(uidOps, strings, uidOut);
+                bodyOut.writeInt(uidOps.getUid());
+                bodyOut.writeInt(uidBytes.size());
+                uidBytes.writeTo(bodyOut);
+            }
+
+            final FileOutputStream output = sHistoricalAppOpsDir.openWrite(file);
+            try {
+                final DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(output));
+                out.writeInt(TILE_MAGIC);
+                out.writeInt(TILES_VERSION);
+                out.writeLong(ops.getBeginTimeMillis());
+                out.writeLong(ops.getEndTimeMillis());
+                final int stringCount = strings.mStrings.size();
+                out.writeInt(stringCount);
+                for (int i = 0; i < stringCount; i++) {
+                    out.writeUTF(strings.mStrings.get(i));
+                }
+                bodyBytes.writeTo(out);
+                out.flush();
+                sHistoricalAppOpsDir.closeWrite(output);
+            } catch (IOException e) {
+                sHistoricalAppOpsDir.failWrite(output);
+                throw e;
+            }
+        }
+
+        private static void writeUidOpsDLocked(@NonNull HistoricalUidOps uidOps,
+                @NonNull StringPool strings, @NonNull DataOutputStream out) throws IOException {
+            final int packageCount = uidOps.getPackageCount();
+            out.writeInt(packageCount);
+            for (int i = 0; i < packageCount; i++) {
+                final HistoricalPackageOps packageOps = uidOps.getPackageOpsAt(i);
+                out.writeInt(strings.indexOf(packageOps.getPackageName()));
+                final int attributionCount = packageOps.getAttributedOpsCount();
+                out.writeInt(attributionCount);
+                for (int j = 0; j < attributionCount; j++) {
+                    final AppOpsManager.AttributedHistoricalOps attributionOps =
+                            packageOps.getAttributedOpsAt(j);
+                    final String attributionTag = attributionOps.getTag();
+                    out.writeInt(attributionTag != null ? strings.indexOf(attributionTag) : -1);
+                    final int opCount = attributionOps.getOpCount();
+                    out.writeInt(opCount);
+                    for (int k = 0; k < opCount; k++) {
+                        writeOpDLocked(attributionOps.getOpAt(k), out);
+                    }
+                }
+            }
+        }
+
+        private static void writeOpDLocked(@NonNull HistoricalOp op,
+                @NonNull DataOutputStream out) throws IOException {
+            out.writeInt(op.getOpCode());
+            final LongSparseArray keys = op.collectKeys();
+            final int keyCount = keys != null ? keys.size() : 0;
+            out.writeInt(keyCount);
+            for (int i = 0; i < keyCount; i++) {
+                final long key = keys.keyAt(i);
+                final int uidState = AppOpsManager.extractUidStateFromKey(key);
+                final int flags = AppOpsManager.extractFlagsFromKey(key);
+                out.writeLong(key);
+                out.writeLong(op.getAccessCount(uidState, uidState, flags));
+                out.writeLong(op.getRejectCount(uidState, uidState, flags));
+                out.writeLong(op.getAccessDuration(uidState, uidState, flags));
+            }
+        }
+
+        private static void skipFully(@NonNull DataInputStream in, int byteCount)
+                throws IOException {
+            while (byteCount > 0) {
+                final int skipped = in.skipBytes(byteCount);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                byteCount -= skipped;
+            }
+        }
+
+        private static @NonNull String getTileName(int level, long index) {
+            return Integer.toString(level) + TILE_NAME_DELIMITER + index + TILE_FILE_SUFFIX;
+        }
+
+        private static int getTileLevel(@NonNull String tileName) {
+            return Integer.parseInt(tileName.substring(0,
+                    tileName.indexOf(TILE_NAME_DELIMITER)));
+        }
+
+        private static long getTileIndex(@NonNull String tileName) {
+            return Long.parseLong(tileName.substring(tileName.indexOf(TILE_NAME_DELIMITER) + 1,
+                    tileName.length() - TILE_FILE_SUFFIX.length()));
+        }
+
+        private static @NonNull ArraySet<String> getTileFileNames(@NonNull File historyDir) {
+            return getHistoricalFileNames(historyDir, TILE_FILE_SUFFIX);
+        }
+
+        private static @NonNull ArraySet<String> getLegacyHistoryFileNames(
+                @NonNull File historyDir) {
+            return getHistoricalFileNames(historyDir, HISTORY_FILE_SUFFIX);
+        }
+
         private @Nullable LinkedList<HistoricalOps> collectHistoricalOpsRecursiveDLocked(
                 @NonNull File baseDir, int filterUid, @Nullable String filterPackageName,
                 @Nullable String filterAttributionTag, @Nullable String[] filterOpNames,
@@ -1052,160 +1765,6 @@ final class HistoricalRegistry {
             return outOps;
         }
 
-        private void handlePersistHistoricalOpsRecursiveDLocked(@NonNull File newBaseDir,
-                @NonNull File oldBaseDir, @Nullable List<HistoricalOps> passedOps,
-                @NonNull Set<String> oldFileNames, int depth)
-                throws IOException, XmlPullParserException {
-            final long previousIntervalEndMillis = (long) Math.pow(mIntervalCompressionMultiplier,
-                    depth) * mBaseSnapshotInterval;
-            final long currentIntervalEndMillis = (long) Math.pow(mIntervalCompressionMultiplier,
-                    depth + 1) * mBaseSnapshotInterval;
-
-            if (passedOps == null || passedOps.isEmpty()) {
-                if (!oldFileNames.isEmpty()) {
-                    // If there is an old file we need to copy it over to the new state.
-                    final File oldFile = generateFile(oldBaseDir, depth);
-                    if (oldFileNames.remove(oldFile.getName())) {
-                        final File newFile = generateFile(newBaseDir, depth);
-                        Files.createLink(newFile.toPath(), oldFile.toPath());
-                    }
-                    handlePersistHistoricalOpsRecursiveDLocked(newBaseDir, oldBaseDir,
-                            passedOps, oldFileNames, depth + 1);
-                }
-                return;
-            }
-
-            if (DEBUG) {
-                enforceOpsWellFormed(passedOps);
-            }
-
-            // Normalize passed ops time to be based off this interval start
-            final int passedOpCount = passedOps.size();
-            for (int i = 0; i < passedOpCount; i++) {
-                final HistoricalOps passedOp = passedOps.get(i);
-                passedOp.offsetBeginAndEndTime(-previousIntervalEndMillis);
-            }
-
-            if (DEBUG) {
-                enforceOpsWellFormed(passedOps);
-            }
-
-            // Read persisted ops for this interval
-            final List<HistoricalOps> existingOps = readHistoricalOpsLocked(oldBaseDir,
-                    previousIntervalEndMillis, currentIntervalEndMillis,
-                    Process.INVALID_UID /*filterUid*/, null /*filterPackageName*/,
-                    null /*filterAttributionTag*/, null /*filterOpNames*/, 0 /*filter*/,
-                    Long.MIN_VALUE /*filterBeginTimeMillis*/,
-                    Long.MAX_VALUE /*filterEndTimeMillis*/, AppOpsManager.OP_FLAGS_ALL, null, depth,
-                    null /*historyFiles*/);
-            if (DEBUG) {
-                enforceOpsWellFormed(existingOps);
-            }
-
-            // Offset existing ops to account for elapsed time
-            if (existingOps != null) {
-                final int existingOpCount = existingOps.size();
-                if (existingOpCount > 0) {
-                    // Compute elapsed time
-                    final long elapsedTimeMillis = passedOps.get(passedOps.size() - 1)
-                        .getEndTimeMillis();
-                    for (int i = 0; i < existingOpCount; i++) {
-                        final HistoricalOps existingOp = existingOps.get(i);
-                        existingOp.offsetBeginAndEndTime(elapsedTimeMillis);
-                    }
-                }
-            }
-
-            if (DEBUG) {
-                enforceOpsWellFormed(existingOps);
-            }
-
-            final long slotDurationMillis = previousIntervalEndMillis;
-
-            // Consolidate passed ops at the current slot duration ensuring each snapshot is
-            // full. To achieve this we put all passed and existing ops in a list and will
-            // merge them to ensure each represents a snapshot at the current granularity.
-            final List<HistoricalOps> allOps = new LinkedList<>(passedOps);
-            if (existingOps != null) {
-                allOps.addAll(existingOps);
-            }
-
-            if (DEBUG) {
-                enforceOpsWellFormed(allOps);
-            }
-
-            // Compute ops to persist and overflow ops
-            List<HistoricalOps> persistedOps = null;
-            List<HistoricalOps> overflowedOps = null;
-
-            // We move a snapshot into the next level only if the start time is
-            // after the end of the current interval. This avoids rewriting all
-            // files to propagate the information added to the history on every
-            // iteration. Instead, we would rewrite the next level file only if
-            // an entire snapshot from the previous level is being propagated.
-            // The trade off is that we need to store how much the last snapshot
-            // of the current interval overflows past the interval end. We write
-            // the overflow data to avoid parsing all snapshots on query.
-            long intervalOverflowMillis = 0;
-            final int opCount = allOps.size();
-            for (int i = 0; i < opCount; i++) {
-                final HistoricalOps op = allOps.get(i);
-                final HistoricalOps persistedOp;
-                final HistoricalOps overflowedOp;
-                if (op.getEndTimeMillis() <= currentIntervalEndMillis) {
-                    persistedOp = op;
-                    overflowedOp = null;
-                } else if (op.getBeginTimeMillis() < currentIntervalEndMillis) {
-                    persistedOp = op;
-                    intervalOverflowMillis = op.getEndTimeMillis() - currentIntervalEndMillis;
-                    if (intervalOverflowMillis > previousIntervalEndMillis) {
-                        final double splitScale = (double) intervalOverflowMillis
-                                / op.getDurationMillis();
-                        overflowedOp = spliceFromEnd(op, splitScale);
-                        intervalOverflowMillis = op.getEndTimeMillis() - currentIntervalEndMillis;
-                    } else {
-                        overflowedOp = null;
-                    }
-                } else {
-                    persistedOp = null;
-                    overflowedOp = op;
-                }
-                if (persistedOp != null) {
-                    if (persistedOps == null) {
-                        persistedOps = new ArrayList<>();
-                    }
-                    persistedOps.add(persistedOp);
-                }
-                if (overflowedOp != null) {
-                    if (overflowedOps == null) {
-                        overflowedOps = new ArrayList<>();
-                    }
-                    overflowedOps.add(overflowedOp);
-                }
-            }
-
-            if (DEBUG) {
-                enforceOpsWellFormed(persistedOps);
-                enforceOpsWellFormed(overflowedOps);
-            }
-
-            final File newFile = generateFile(newBaseDir, depth);
-            oldFileNames.remove(newFile.getName());
-
-            if (persistedOps != null) {
-                normalizeSnapshotForSlotDuration(persistedOps, slotDurationMillis);
-                writeHistoricalOpsDLocked(persistedOps, intervalOverflowMillis, newFile);
-                if (DEBUG) {
-                    Slog.i(LOG_TAG, "Persisted at depth: " + depth + " file: " + newFile
-                            + " ops:\n" + opsToDebugString(persistedOps));
-                    enforceOpsWellFormed(persistedOps);
-                }
-            }
-
-            handlePersistHistoricalOpsRecursiveDLocked(newBaseDir, oldBaseDir,
-                    overflowedOps, oldFileNames, depth + 1);
-        }
-
         private @Nullable List<HistoricalOps> readHistoricalOpsLocked(File baseDir,
                 long intervalBeginMillis, long intervalEndMillis, int filterUid,
                 @Nullable String filterPackageName, @Nullable String filterAttributionTag,
@@ -1453,12 +2012,22 @@ final class HistoricalRegistry {
                 @NonNull TypedXmlPullParser parser, @OpFlags int filterFlags, double filterScale)
                 throws IOException, XmlPullParserException {
             final long key = parser.getAttributeLong(null, ATTR_NAME);
+            return addStateDLocked(ops, uid, packageName, attributionTag, op, key,
+                    parser.getAttributeLong(null, ATTR_ACCESS_COUNT, 0),
+                    parser.getAttributeLong(null, ATTR_REJECT_COUNT, 0),
+                    parser.getAttributeLong(null, ATTR_ACCESS_DURATION, 0), filterFlags,
+                    filterScale);
+        }
+
+        private static @Nullable HistoricalOps addStateDLocked(@Nullable HistoricalOps ops,
+                int uid, @NonNull String packageName, @Nullable String attributionTag, int op,
+                long key, long accessCount, long rejectCount, long accessDuration,
+                @OpFlags int filterFlags, double filterScale) {
             final int flags = AppOpsManager.extractFlagsFromKey(key) & filterFlags;
             if (flags == 0) {
-                return null;
+                return ops;
             }
             final int uidState = AppOpsManager.extractUidStateFromKey(key);
-            long accessCount = parser.getAttributeLong(null, ATTR_ACCESS_COUNT, 0);
             if (accessCount > 0) {
                 if (!Double.isNaN(filterScale)) {
                     accessCount = (long) HistoricalOps.round(
@@ -1470,7 +2039,6 @@ final class HistoricalRegistry {
                 ops.increaseAccessCount(op, uid, packageName, attributionTag, uidState, flags,
                         accessCount);
             }
-            long rejectCount = parser.getAttributeLong(null, ATTR_REJECT_COUNT, 0);
             if (rejectCount > 0) {
                 if (!Double.isNaN(filterScale)) {
                     rejectCount = (long) HistoricalOps.round(
@@ -1482,7 +2050,6 @@ final class HistoricalRegistry {
                 ops.increaseRejectCount(op, uid, packageName, attributionTag, uidState, flags,
                         rejectCount);
             }
-            long accessDuration =  parser.getAttributeLong(null, ATTR_ACCESS_DURATION, 0);
             if (accessDuration > 0) {
                 if (!Double.isNaN(filterScale)) {
                     accessDuration = (long) HistoricalOps.round(
@@ -1497,127 +2064,6 @@ final class HistoricalRegistry {
             return ops;
         }
 
-        private void writeHistoricalOpsDLocked(@Nullable List<HistoricalOps> allOps,
-                long intervalOverflowMillis, @NonNull File file) throws IOException {
-            final FileOutputStream output = sHistoricalAppOpsDir.openWrite(file);
-            try {
-                final TypedXmlSerializer serializer = Xml.resolveSerializer(output);
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_HISTORY);
-                serializer.attributeInt(null, ATTR_VERSION, CURRENT_VERSION);
-                if (intervalOverflowMillis != 0) {
-                    serializer.attributeLong(null, ATTR_OVERFLOW, intervalOverflowMillis);
-                }
-                if (allOps != null) {
-                    final int opsCount = allOps.size();
-                    for (int i = 0; i < opsCount; i++) {
-                        final HistoricalOps ops = allOps.get(i);
-                        writeHistoricalOpDLocked(ops, serializer);
-                    }
-                }
-                serializer.endTag(null, TAG_HISTORY);
-                serializer.endDocument();
-                sHistoricalAppOpsDir.closeWrite(output);
-            } catch (IOException e) {
-                sHistoricalAppOpsDir.failWrite(output);
-                throw e;
-            }
-        }
-
-        private void writeHistoricalOpDLocked(@NonNull HistoricalOps ops,
-                @NonNull TypedXmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_OPS);
-            serializer.attributeLong(null, ATTR_BEGIN_TIME, ops.getBeginTimeMillis());
-            serializer.attributeLong(null, ATTR_END_TIME, ops.getEndTimeMillis());
-            final int uidCount = ops.getUidCount();
-            for (int i = 0; i < uidCount; i++) {
-                final HistoricalUidOps uidOp = ops.getUidOpsAt(i);
-                writeHistoricalUidOpsDLocked(uidOp, serializer);
-            }
-            serializer.endTag(null, TAG_OPS);
-        }
-
-        private void writeHistoricalUidOpsDLocked(@NonNull HistoricalUidOps uidOps,
-                @NonNull TypedXmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_UID);
-            serializer.attributeInt(null, ATTR_NAME, uidOps.getUid());
-            final int packageCount = uidOps.getPackageCount();
-            for (int i = 0; i < packageCount; i++) {
-                final HistoricalPackageOps packageOps = uidOps.getPackageOpsAt(i);
-                writeHistoricalPackageOpsDLocked(packageOps, serializer);
-            }
-            serializer.endTag(null, TAG_UID);
-        }
-
-        private void writeHistoricalPackageOpsDLocked(@NonNull HistoricalPackageOps packageOps,
-                @NonNull TypedXmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_PACKAGE);
-            serializer.attributeInterned(null, ATTR_NAME, packageOps.getPackageName());
-            final int numAttributions = packageOps.getAttributedOpsCount();
-            for (int i = 0; i < numAttributions; i++) {
-                final AppOpsManager.AttributedHistoricalOps op = packageOps.getAttributedOpsAt(i);
-                writeHistoricalAttributionOpsDLocked(op, serializer);
-            }
-            serializer.endTag(null, TAG_PACKAGE);
-        }
-
-        private void writeHistoricalAttributionOpsDLocked(
-                @NonNull AppOpsManager.AttributedHistoricalOps attributionOps,
-                @NonNull TypedXmlSerializer serializer) throws IOException {
-            serializer.startTag(null, TAG_ATTRIBUTION);
-            XmlUtils.writeStringAttribute(serializer, ATTR_NAME, attributionOps.getTag());
-            final int opCount = attributionOps.getOpCount();
-            for (int i = 0; i < opCount; i++) {
-                final HistoricalOp op = attributionOps.getOpAt(i);
-                writeHistoricalOpDLocked(op, serializer);
-            }
-            serializer.endTag(null, TAG_ATTRIBUTION);
-        }
-
-        private void writeHistoricalOpDLocked(@NonNull HistoricalOp op,
-                @NonNull TypedXmlSerializer serializer) throws IOException {
-            final LongSparseArray keys = op.collectKeys();
-            if (keys == null || keys.size() <= 0) {
-                return;
-            }
-            serializer.startTag(null, TAG_OP);
-            serializer.attributeInt(null, ATTR_NAME, op.getOpCode());
-            final int keyCount = keys.size();
-            for (int i = 0; i < keyCount; i++) {
-                writeStateOnLocked(op, keys.keyAt(i), serializer);
-            }
-            serializer.endTag(null, TAG_OP);
-        }
-
-        private void writeStateOnLocked(@NonNull HistoricalOp op, long key,
-                @NonNull TypedXmlSerializer serializer) throws IOException {
-            final int uidState = AppOpsManager.extractUidStateFromKey(key);
-            final int flags = AppOpsManager.extractFlagsFromKey(key);
-
-            final long accessCount = op.getAccessCount(uidState, uidState, flags);
-            final long rejectCount = op.getRejectCount(uidState, uidState, flags);
-            final long accessDuration = op.getAccessDuration(uidState, uidState, flags);
-
-            if (accessCount <= 0 && rejectCount <= 0 && accessDuration <= 0) {
-                return;
-            }
-
-            serializer.startTag(null, TAG_STATE);
-            serializer.attributeLong(null, ATTR_NAME, key);
-            if (accessCount > 0) {
-                serializer.attributeLong(null, ATTR_ACCESS_COUNT, accessCount);
-            }
-            if (rejectCount > 0) {
-                serializer.attributeLong(null, ATTR_REJECT_COUNT, rejectCount);
-            }
-            if (accessDuration > 0) {
-                serializer.attributeLong(null, ATTR_ACCESS_DURATION, accessDuration);
-            }
-            serializer.endTag(null, TAG_STATE);
-        }
-
         private static void enforceOpsWellFormed(@NonNull List<HistoricalOps> ops) {
             if (ops == null) {
                 return;
@@ -1657,77 +2103,6 @@ final class HistoricalRegistry {
             return beginTimeMillis * mBaseSnapshotInterval;
         }
 
-        private static @NonNull HistoricalOps spliceFromEnd(@NonNull HistoricalOps ops,
-                double spliceRatio) {
-            if (DEBUG) {
-                Slog.w(LOG_TAG, "Splicing from end:" + ops + " ratio:" + spliceRatio);
-            }
-            final HistoricalOps splice = ops.spliceFromEnd(spliceRatio);
-            if (DEBUG) {
-                Slog.w(LOG_TAG, "Spliced into:" + ops + " and:" + splice);
-            }
-            return splice;
-        }
-
-
-        private static @NonNull HistoricalOps spliceFromBeginning(@NonNull HistoricalOps ops,
-                double spliceRatio) {
-            if (DEBUG) {
-                Slog.w(LOG_TAG, "Splicing from beginning:" + ops + " ratio:" + spliceRatio);
-            }
-            final HistoricalOps splice = ops.spliceFromBeginning(spliceRatio);
-            if (DEBUG) {
-                Slog.w(LOG_TAG, "Spliced into:" + ops + " and:" + splice);
-            }
-            return splice;
-        }
-
-        private static void normalizeSnapshotForSlotDuration(@NonNull List<HistoricalOps> ops,
-                long slotDurationMillis) {
-            if (DEBUG) {
-                Slog.i(LOG_TAG, "Normalizing for slot duration: " + slotDurationMillis
-                        + " ops:\n" + opsToDebugString(ops));
-                enforceOpsWellFormed(ops);
-            }
-            long slotBeginTimeMillis;
-            final int opCount = ops.size();
-            for (int processedIdx = opCount - 1; processedIdx >= 0; processedIdx--) {
-                final HistoricalOps processedOp = ops.get(processedIdx);
-                slotBeginTimeMillis = Math.max(processedOp.getEndTimeMillis()
-                        - slotDurationMillis, 0);
-                for (int candidateIdx = processedIdx - 1; candidateIdx >= 0; candidateIdx--) {
-                    final HistoricalOps candidateOp = ops.get(candidateIdx);
-                    final long candidateSlotIntersectionMillis = candidateOp.getEndTimeMillis()
-                            - Math.min(slotBeginTimeMillis, processedOp.getBeginTimeMillis());
-                    if (candidateSlotIntersectionMillis <= 0) {
-                        break;
-                    }
-                    final float candidateSplitRatio = candidateSlotIntersectionMillis
-                            / (float) candidateOp.getDurationMillis();
-                    if (Float.compare(candidateSplitRatio, 1.0f) >= 0) {
-                        ops.remove(candidateIdx);
-                        processedIdx--;
-                        processedOp.merge(candidateOp);
-                    } else {
-                        final HistoricalOps endSplice = spliceFromEnd(candidateOp,
-                                candidateSplitRatio);
-                        if (endSplice != null) {
-                            processedOp.merge(endSplice);
-                        }
-                        if (candidateOp.isEmpty()) {
-                            ops.remove(candidateIdx);
-                            processedIdx--;
-                        }
-                    }
-                }
-            }
-            if (DEBUG) {
-                Slog.i(LOG_TAG, "Normalized for slot duration: " + slotDurationMillis
-                        + " ops:\n" + opsToDebugString(ops));
-                enforceOpsWellFormed(ops);
-            }
-        }
-
         private static @NonNull String opsToDebugString(@NonNull List<HistoricalOps> ops) {
             StringBuilder builder = new StringBuilder();
             final int opCount = ops.size();
@@ -1741,59 +2116,24 @@ final class HistoricalRegistry {
             return builder.toString();
         }
 
-        private static Set<String> getHistoricalFileNames(@NonNull File historyDir)  {
+        private File generateFile(@NonNull File baseDir, int depth) {
+            final long globalBeginMillis = computeGlobalIntervalBeginMillis(depth);
+            return new File(baseDir, Long.toString(globalBeginMillis) + HISTORY_FILE_SUFFIX);
+        }
+
+        private static @NonNull ArraySet<String> getHistoricalFileNames(@NonNull File historyDir,
+                @NonNull String suffix) {
             final File[] files = historyDir.listFiles();
             if (files == null) {
-                return Collections.emptySet();
+                return new ArraySet<>();
             }
             final ArraySet<String> fileNames = new ArraySet<>(files.length);
             for (File file : files) {
-                fileNames.add(file.getName());
-
-            }
-            return fileNames;
-        }
-    }
-
-    private static class HistoricalFilesInvariant {
-        private final @NonNull List<File> mBeginFiles = new ArrayList<>();
-
-        public void startTracking(@NonNull File folder) {
-            final File[] files = folder.listFiles();
-            if (files != null) {
-                Collections.addAll(mBeginFiles, files);
-            }
-        }
-
-        public void stopTracking(@NonNull File folder) {
-            final List<File> endFiles = new ArrayList<>();
-            final File[] files = folder.listFiles();
-            if (files != null) {
-                Collections.addAll(endFiles, files);
-            }
-            final long beginOldestFileOffsetMillis = getOldestFileOffsetMillis(mBeginFiles);
-            final long endOldestFileOffsetMillis = getOldestFileOffsetMillis(endFiles);
-            if (endOldestFileOffsetMillis < beginOldestFileOffsetMillis) {
-                final String message = "History loss detected!"
-                        + "\nold files: " + mBeginFiles;
-                wtf(message, null, folder);
-                throw new IllegalStateException(message);
-            }
-        }
-
-        private static long getOldestFileOffsetMillis(@NonNull List<File> files) {
-            if (files.isEmpty()) {
-                return 0;
-            }
-            String longestName = files.get(0).getName();
-            final int fileCount = files.size();
-            for (int i = 1; i < fileCount; i++) {
-                final File file = files.get(i);
-                if (file.getName().length() > longestName.length()) {
-                    longestName = file.getName();
+                if (file.getName().endsWith(suffix)) {
+                    fileNames.add(file.getName());
                 }
             }
-            return Long.parseLong(longestName.replace(HISTORY_FILE_SUFFIX, ""));
+            return fileNames;
         }
     }
 
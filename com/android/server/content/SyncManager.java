@@ -2006,6 +2006,7 @@ public class SyncManager {
         dumpSyncState(ipw, buckets);
         mConstants.dump(pw, "");
         dumpSyncAdapters(ipw);
+        mSyncStorageEngine.dumpCoalescingStats(pw);
 
         if (dumpAll) {
             ipw.println("Detailed Sync History");
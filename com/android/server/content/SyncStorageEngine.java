@@ -41,21 +41,25 @@ import android.os.Message;
 import android.os.Parcel;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.EventLog;
+import android.util.IntArray;
 import android.util.Log;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.util.TypedXmlPullParser;
 import android.util.TypedXmlSerializer;
 import android.util.Xml;
 import android.util.proto.ProtoInputStream;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.IntPair;
@@ -69,6 +73,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
@@ -152,12 +157,23 @@ public class SyncStorageEngine {
 
     public static final int MAX_HISTORY = 100;
 
-    private static final int MSG_WRITE_STATUS = 1;
-    private static final long WRITE_STATUS_DELAY = 1000*60*10; // 10 minutes
+    /** Writes every dirty section in one pass, see {@link #scheduleWriteLocked}. */
+    private static final int MSG_WRITE = 1;
+
+    /** Delivers the observer notifications collected by {@link #reportChange}. */
+    private static final int MSG_REPORT_CHANGES = 2;
 
-    private static final int MSG_WRITE_STATISTICS = 2;
+    private static final int SECTION_ACCOUNTS = 1 << 0;
+    private static final int SECTION_STATUS = 1 << 1;
+    private static final int SECTION_STATISTICS = 1 << 2;
+
+    private static final long WRITE_ACCOUNTS_DELAY = 1000; // 1 second
+    private static final long WRITE_STATUS_DELAY = 1000*60*10; // 10 minutes
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
+    /** How long changes are collected before observers are told about them. */
+    private static final long REPORT_CHANGES_DELAY = 100;
+
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
     // the version of the accounts xml file format
@@ -452,6 +468,28 @@ public class SyncStorageEngine {
     private final RemoteCallbackList<ISyncStatusObserver> mChangeListeners
             = new RemoteCallbackList<ISyncStatusObserver>();
 
+    /** Observer types changed since observers were last notified, keyed by user id. */
+    @GuardedBy("mAuthorities")
+    private final SparseIntArray mPendingChanges = new SparseIntArray();
+
+    /** Sections changed since they were last written, see {@link #scheduleWriteLocked}. */
+    @GuardedBy("mAuthorities")
+    private int mDirtySections;
+
+    /** Uptime at which {@link #MSG_WRITE} is due, if scheduled. */
+    @GuardedBy("mAuthorities")
+    private long mWriteDeadline;
+
+    // Counters for the effect of coalescing, shown in dumpsys content.
+    @GuardedBy("mAuthorities")
+    private long mWriteRequestCount;
+    @GuardedBy("mAuthorities")
+    private long mWriteCount;
+    @GuardedBy("mAuthorities")
+    private long mChangeReportCount;
+    @GuardedBy("mAuthorities")
+    private long mChangeDeliveryCount;
+
     /** Reverse mapping for component name -> <userid -> target id>. */
     private final ArrayMap<ComponentName, SparseArray<AuthorityInfo>> mServices =
             new ArrayMap<ComponentName, SparseArray<AuthorityInfo>>();
@@ -593,14 +631,12 @@ public class SyncStorageEngine {
 
         @Override
         public void handleMessage(Message msg) {
-            if (msg.what == MSG_WRITE_STATUS) {
-                synchronized (mAuthorities) {
-                    writeStatusLocked();
-                }
-            } else if (msg.what == MSG_WRITE_STATISTICS) {
+            if (msg.what == MSG_WRITE) {
                 synchronized (mAuthorities) {
-                    writeStatisticsLocked();
+                    writeDirtySectionsLocked();
                 }
+            } else if (msg.what == MSG_REPORT_CHANGES) {
+                deliverPendingChanges();
             }
         }
     }
@@ -644,28 +680,55 @@ public class SyncStorageEngine {
         }
     }
 
+    /**
+     * Tells the observers of a user about a change.  Changes are collected for
+     * {@link #REPORT_CHANGES_DELAY} and delivered together, so an observer gets one callback with
+     * the union of the types it listens to rather than one per change.
+     */
     void reportChange(int which, int callingUserId) {
+        synchronized (mAuthorities) {
+            mChangeReportCount++;
+            final int pending = mPendingChanges.get(callingUserId);
+            mPendingChanges.put(callingUserId, pending | which);
+            if (!mHandler.hasMessages(MSG_REPORT_CHANGES)) {
+                mHandler.sendEmptyMessageDelayed(MSG_REPORT_CHANGES, REPORT_CHANGES_DELAY);
+            }
+        }
+    }
+
+    private void deliverPendingChanges() {
         ArrayList<ISyncStatusObserver> reports = null;
+        IntArray reportWhich = null;
         synchronized (mAuthorities) {
+            if (mPendingChanges.size() == 0) {
+                return;
+            }
             int i = mChangeListeners.beginBroadcast();
             while (i > 0) {
                 i--;
                 final long cookie = (long) mChangeListeners.getBroadcastCookie(i);
                 final int userId = IntPair.first(cookie);
                 final int mask = IntPair.second(cookie);
-                if ((which & mask) == 0 || callingUserId != userId) {
+                final int which = mPendingChanges.get(userId) & mask;
+                if (which == 0) {
                     continue;
                 }
                 if (reports == null) {
-                    reports = new ArrayList<ISyncStatusObserver>(i);
+                    reports = new ArrayList<ISyncStatusObserver>(i + 1);
+                    reportWhich = new IntArray(i + 1);
                 }
                 reports.add(mChangeListeners.getBroadcastItem(i));
+                reportWhich.add(which);
             }
             mChangeListeners.finishBroadcast();
+            mPendingChanges.clear();
+            if (reports != null) {
+                mChangeDeliveryCount += reports.size();
+            }
         }
 
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
-            Slog.v(TAG, "reportChange " + which + " to: " + reports);
+            Slog.v(TAG, "reportChange " + reportWhich + " to: " + reports);
         }
 
         if (reports != null) {
@@ -673,7 +736,7 @@ public class SyncStorageEngine {
             while (i > 0) {
                 i--;
                 try {
-                    reports.get(i).onStatusChanged(which);
+                    reports.get(i).onStatusChanged(reportWhich.get(i));
                 } catch (RemoteException e) {
                     // The remote callback list will take care of this for us.
                 }
@@ -735,7 +798,7 @@ public class SyncStorageEngine {
                 authority.syncable = AuthorityInfo.NOT_INITIALIZED;
             }
             authority.enabled = sync;
-            writeAccountInfoLocked();
+            scheduleWriteLocked(SECTION_ACCOUNTS, WRITE_ACCOUNTS_DELAY);
         }
 
         if (sync) {
@@ -805,7 +868,7 @@ public class SyncStorageEngine {
                 return;
             }
             aInfo.syncable = syncable;
-            writeAccountInfoLocked();
+            scheduleWriteLocked(SECTION_ACCOUNTS, WRITE_ACCOUNTS_DELAY);
         }
         if (syncable == AuthorityInfo.SYNCABLE) {
             requestSync(aInfo, SyncOperation.REASON_IS_SYNCABLE, new Bundle(),
@@ -965,7 +1028,7 @@ public class SyncStorageEngine {
                 }
                 authority.periodicSyncs.clear();
             }
-            writeAccountInfoLocked();
+            scheduleWriteLocked(SECTION_ACCOUNTS, WRITE_ACCOUNTS_DELAY);
         }
         return true;
     }
@@ -981,7 +1044,7 @@ public class SyncStorageEngine {
                 return;
             }
             mMasterSyncAutomatically.put(userId, flag);
-            writeAccountInfoLocked();
+            scheduleWriteLocked(SECTION_ACCOUNTS, WRITE_ACCOUNTS_DELAY);
         }
         if (flag) {
             requestSync(null, userId, SyncOperation.REASON_MASTER_SYNC_AUTO, null,
@@ -1097,9 +1160,7 @@ public class SyncStorageEngine {
                         }
                     }
                 }
-                writeAccountInfoLocked();
-                writeStatusLocked();
-                writeStatisticsLocked();
+                scheduleWriteLocked(SECTION_ACCOUNTS | SECTION_STATUS | SECTION_STATISTICS, 0);
             }
         }
     }
@@ -1319,17 +1380,11 @@ public class SyncStorageEngine {
 
             status.addEvent(event.toString());
 
-            if (writeStatusNow) {
-                writeStatusLocked();
-            } else if (!mHandler.hasMessages(MSG_WRITE_STATUS)) {
-                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE_STATUS),
-                        WRITE_STATUS_DELAY);
-            }
-            if (writeStatisticsNow) {
-                writeStatisticsLocked();
-            } else if (!mHandler.hasMessages(MSG_WRITE_STATISTICS)) {
-                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE_STATISTICS),
-                        WRITE_STATISTICS_DELAY);
+            if (writeStatusNow || writeStatisticsNow) {
+                scheduleWriteLocked(SECTION_STATUS | SECTION_STATISTICS, 0);
+            } else {
+                scheduleWriteLocked(SECTION_STATUS, WRITE_STATUS_DELAY);
+                scheduleWriteLocked(SECTION_STATISTICS, WRITE_STATISTICS_DELAY);
             }
         }
 
@@ -1549,7 +1604,7 @@ public class SyncStorageEngine {
         authority = new AuthorityInfo(info, ident);
         mAuthorities.put(ident, authority);
         if (doWrite) {
-            writeAccountInfoLocked();
+            scheduleWriteLocked(SECTION_ACCOUNTS, WRITE_ACCOUNTS_DELAY);
         }
         return authority;
     }
@@ -1576,7 +1631,7 @@ public class SyncStorageEngine {
                 }
                 mAuthorities.remove(authorityInfo.ident);
                 if (doWrite) {
-                    writeAccountInfoLocked();
+                    scheduleWriteLocked(SECTION_ACCOUNTS, WRITE_ACCOUNTS_DELAY);
                 }
             }
         }
@@ -1593,12 +1648,81 @@ public class SyncStorageEngine {
 
     public void writeAllState() {
         synchronized (mAuthorities) {
-            // Account info is always written so no need to do it here.
+            // Account info is only written here if a change to it is still pending.
+            mDirtySections |= SECTION_STATUS | SECTION_STATISTICS;
+            writeDirtySectionsLocked();
+        }
+    }
+
+    /**
+     * Marks sections as needing to be written within the given delay.  All dirty sections are
+     * written together when the earliest deadline passes, so a burst of changes results in one
+     * write of each file.
+     *
+     * @param sections the {@code SECTION_*} flags of the changed sections
+     * @param delayMillis how long the write may be deferred, or 0 to write right away
+     */
+    @GuardedBy("mAuthorities")
+    private void scheduleWriteLocked(int sections, long delayMillis) {
+        mWriteRequestCount += Integer.bitCount(sections);
+        mDirtySections |= sections;
+        if (delayMillis == 0) {
+            writeDirtySectionsLocked();
+            return;
+        }
+        final long deadline = SystemClock.uptimeMillis() + delayMillis;
+        if (mHandler.hasMessages(MSG_WRITE) && mWriteDeadline <= deadline) {
+            return;
+        }
+        mHandler.removeMessages(MSG_WRITE);
+        mHandler.sendEmptyMessageAtTime(MSG_WRITE, deadline);
+        mWriteDeadline = deadline;
+    }
+
+    /** Writes every section changed since it was last written. */
+    @GuardedBy("mAuthorities")
+    private void writeDirtySectionsLocked() {
+        final int dirty = mDirtySections;
+        if ((dirty & SECTION_ACCOUNTS) != 0) {
+            writeAccountInfoLocked();
+        }
+        if ((dirty & SECTION_STATUS) != 0) {
             writeStatusLocked();
+        }
+        if ((dirty & SECTION_STATISTICS) != 0) {
             writeStatisticsLocked();
         }
     }
 
+    /** Clears the dirty flags of sections that have just been written. */
+    @GuardedBy("mAuthorities")
+    private void onSectionWrittenLocked(int section) {
+        mWriteCount++;
+        mDirtySections &= ~section;
+        if (mDirtySections == 0) {
+            // Nothing left to write until the next change.
+            mHandler.removeMessages(MSG_WRITE);
+        }
+    }
+
+    /**
+     * Prints how many file writes and observer callbacks were saved by coalescing.
+     */
+    public void dumpCoalescingStats(PrintWriter pw) {
+        synchronized (mAuthorities) {
+            pw.print("Sync storage writes: requested=");
+            pw.print(mWriteRequestCount);
+            pw.print(" written=");
+            pw.print(mWriteCount);
+            pw.print(" saved=");
+            pw.println(Math.max(0, mWriteRequestCount - mWriteCount));
+            pw.print("Sync status callbacks: changes=");
+            pw.print(mChangeReportCount);
+            pw.print(" delivered=");
+            pw.println(mChangeDeliveryCount);
+        }
+    }
+
     public boolean shouldGrantSyncAdaptersAccountAccess() {
         return mGrantSyncAdaptersAccountAccess;
     }
@@ -1608,6 +1732,7 @@ public class SyncStorageEngine {
      */
     public void clearAndReadState() {
         synchronized (mAuthorities) {
+            writeDirtySectionsLocked();
             mAuthorities.clear();
             mAccounts.clear();
             mServices.clear();
@@ -1949,6 +2074,7 @@ public class SyncStorageEngine {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Writing new " + mAccountInfoFile.getBaseFile());
         }
+        onSectionWrittenLocked(SECTION_ACCOUNTS);
         FileOutputStream fos = null;
 
         try {
@@ -2273,7 +2399,7 @@ public class SyncStorageEngine {
 
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
-        mHandler.removeMessages(MSG_WRITE_STATUS);
+        onSectionWrittenLocked(SECTION_STATUS);
 
         FileOutputStream fos = null;
         try {
@@ -2535,7 +2661,7 @@ public class SyncStorageEngine {
 
         // The file is being written, so we don't need to have a scheduled
         // write until the next change.
-        mHandler.removeMessages(MSG_WRITE_STATISTICS);
+        onSectionWrittenLocked(SECTION_STATISTICS);
 
         FileOutputStream fos = null;
         try {
@@ -27,12 +27,15 @@ import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLong;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLong;
 import static android.net.TrafficStats.UID_REMOVED;
 import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
 import static com.android.internal.net.NetworkUtilsInternal.multiplySafeByRational;
 import static com.android.server.net.NetworkStatsService.TAG;
 
+import android.annotation.Nullable;
 import android.net.NetworkIdentity;
 import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
@@ -65,10 +68,12 @@ import com.google.android.collect.Lists;
 import com.google.android.collect.Maps;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -102,6 +107,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    private static final int VERSION_UNIFIED_INDEXED = 17;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
@@ -439,11 +445,23 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
     @Override
     public void read(InputStream in) throws IOException {
+        read(in, null, null);
+    }
+
+    /**
+     * Reads only the entries whose identity matches {@code template} and whose
+     * UID is one of {@code uids}. Either filter may be null to accept all
+     * entries. Files in the indexed format skip the other entries without
+     * decoding their history.
+     */
+    public void read(InputStream in, @Nullable NetworkTemplate template, @Nullable int[] uids)
+            throws IOException {
         final FastDataInput dataIn = new FastDataInput(in, BUFFER_SIZE);
-        read(dataIn);
+        read(dataIn, template, uids);
     }
 
-    private void read(DataInput in) throws IOException {
+    private void read(DataInput in, @Nullable NetworkTemplate template, @Nullable int[] uids)
+            throws IOException {
         // verify file magic header intact
         final int magic = in.readInt();
         if (magic != FILE_MAGIC) {
@@ -457,6 +475,8 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                 final int identSize = in.readInt();
                 for (int i = 0; i < identSize; i++) {
                     final NetworkIdentitySet ident = new NetworkIdentitySet(in);
+                    final boolean identMatches =
+                            template == null || templateMatches(template, ident);
 
                     final int size = in.readInt();
                     for (int j = 0; j < size; j++) {
@@ -466,7 +486,59 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
                         final Key key = new Key(ident, uid, set, tag);
                         final NetworkStatsHistory history = new NetworkStatsHistory(in);
-                        recordHistory(key, history);
+                        if (identMatches && (uids == null || ArrayUtils.contains(uids, uid))) {
+                            recordHistory(key, history);
+                        }
+                    }
+                }
+                break;
+            }
+            case VERSION_UNIFIED_INDEXED: {
+                // uid := identSize *NetworkIdentitySet size *identIndex *uid *set *tag
+                //        *historyLength *NetworkStatsHistory
+                final int identSize = in.readInt();
+                if (identSize < 0) {
+                    throw new ProtocolException("negative ident count");
+                }
+                final NetworkIdentitySet[] idents = new NetworkIdentitySet[identSize];
+                final boolean[] identMatches = new boolean[identSize];
+                for (int i = 0; i < identSize; i++) {
+                    idents[i] = new NetworkIdentitySet(in);
+                    identMatches[i] = template == null || templateMatches(template, idents[i]);
+                }
+
+                final int size = in.readInt();
+                if (size < 0) {
+                    throw new ProtocolException("negative key count");
+                }
+                final int[] identIndices = new int[size];
+                for (int i = 0; i < size; i++) {
+                    final long index = readVarLong(in);
+                    if (index < 0 || index >= identSize) {
+                        throw new ProtocolException("invalid ident index: " + index);
+                    }
+                    identIndices[i] = (int) index;
+                }
+                final int[] keyUids = readIntColumn(in, size);
+                final int[] keySets = readIntColumn(in, size);
+                final int[] keyTags = readIntColumn(in, size);
+                final int[] lengths = new int[size];
+                for (int i = 0; i < size; i++) {
+                    final long length = readVarLong(in);
+                    if (length < 0 || length > Integer.MAX_VALUE) {
+                        throw new ProtocolException("invalid history length: " + length);
+                    }
+                    lengths[i] = (int) length;
+                }
+
+                for (int i = 0; i < size; i++) {
+                    if (identMatches[identIndices[i]]
+                            && (uids == null || ArrayUtils.contains(uids, keyUids[i]))) {
+                        final Key key = new Key(idents[identIndices[i]], keyUids[i],
+                                keySets[i], keyTags[i]);
+                        recordHistory(key, new NetworkStatsHistory(in));
+                    } else if (in.skipBytes(lengths[i]) != lengths[i]) {
+                        throw new EOFException();
                     }
                 }
                 break;
@@ -477,6 +549,14 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         }
     }
 
+    private static int[] readIntColumn(DataInput in, int size) throws IOException {
+        final int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+
     @Override
     public void write(OutputStream out) throws IOException {
         final FastDataOutput dataOut = new FastDataOutput(out, BUFFER_SIZE);
@@ -484,7 +564,75 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         dataOut.flush();
     }
 
+    /**
+     * Writes the format used before {@link #VERSION_UNIFIED_INDEXED}, for
+     * comparing the two.
+     */
+    @VisibleForTesting
+    void writeLegacy(OutputStream out) throws IOException {
+        final FastDataOutput dataOut = new FastDataOutput(out, BUFFER_SIZE);
+        writeLegacy(dataOut);
+        dataOut.flush();
+    }
+
     private void write(DataOutput out) throws IOException {
+        // Number the identity sets, so each key refers to its set by index
+        final ArrayMap<NetworkIdentitySet, Integer> identIndices = new ArrayMap<>();
+        final int size = mStats.size();
+        final int[] keyIdents = new int[size];
+        for (int i = 0; i < size; i++) {
+            final NetworkIdentitySet ident = mStats.keyAt(i).ident;
+            Integer index = identIndices.get(ident);
+            if (index == null) {
+                index = identIndices.size();
+                identIndices.put(ident, index);
+            }
+            keyIdents[i] = index;
+        }
+
+        // Encode the histories up front, so the index can record their lengths
+        // and readers can skip the entries they don't need
+        final ByteArrayOutputStream histories = new ByteArrayOutputStream(estimateBuckets() * 8);
+        final DataOutputStream historiesOut = new DataOutputStream(histories);
+        final int[] lengths = new int[size];
+        for (int i = 0; i < size; i++) {
+            final int start = historiesOut.size();
+            mStats.valueAt(i).writeToStreamDeltaEncoded(historiesOut);
+            lengths[i] = historiesOut.size() - start;
+        }
+
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(VERSION_UNIFIED_INDEXED);
+
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identIndices.size()];
+        for (int i = 0; i < identIndices.size(); i++) {
+            idents[identIndices.valueAt(i)] = identIndices.keyAt(i);
+        }
+        out.writeInt(idents.length);
+        for (NetworkIdentitySet ident : idents) {
+            ident.writeToStream(out);
+        }
+
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            writeVarLong(out, keyIdents[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeInt(mStats.keyAt(i).uid);
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeInt(mStats.keyAt(i).set);
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeInt(mStats.keyAt(i).tag);
+        }
+        for (int i = 0; i < size; i++) {
+            writeVarLong(out, lengths[i]);
+        }
+        out.write(histories.toByteArray());
+    }
+
+    private void writeLegacy(DataOutput out) throws IOException {
         // cluster key lists grouped by ident
         final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
         for (Key key : mStats.keySet()) {
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
+import static android.net.NetworkIdentity.OEM_NONE;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Compares reading and writing {@link NetworkStatsCollection} in the legacy and indexed formats.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class NetworkStatsCollectionPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static final long BUCKET_DURATION = 2 * HOUR_IN_MILLIS;
+    private static final int BUCKET_COUNT = 360;
+    private static final int UID_COUNT = 200;
+    private static final int TAG_COUNT = 3;
+    private static final long START_MILLIS = 1_600_000_000_000L;
+
+    private NetworkStatsCollection mCollection;
+    private byte[] mLegacy;
+    private byte[] mIndexed;
+
+    @Before
+    public void setUp() throws IOException {
+        final NetworkIdentitySet mobile = new NetworkIdentitySet();
+        mobile.add(new NetworkIdentity(TYPE_MOBILE, 0, "310260000000000", null, false, true,
+                true, OEM_NONE));
+        final NetworkIdentitySet wifi = new NetworkIdentitySet();
+        wifi.add(new NetworkIdentity(TYPE_WIFI, 0, null, "\"PerfTestWifi\"", false, false,
+                true, OEM_NONE));
+
+        mCollection = new NetworkStatsCollection(BUCKET_DURATION);
+        final NetworkStats.Entry entry = new NetworkStats.Entry(1024, 8, 512, 4, 0);
+        for (int uid = 10000; uid < 10000 + UID_COUNT; uid++) {
+            for (int tag = 0; tag < TAG_COUNT; tag++) {
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket += 1 + (uid + tag) % 3) {
+                    final long start = START_MILLIS + bucket * BUCKET_DURATION;
+                    final long end = start + BUCKET_DURATION;
+                    final int set = bucket % 2 == 0 ? SET_DEFAULT : SET_FOREGROUND;
+                    mCollection.recordData(mobile, uid, set, tag == 0 ? TAG_NONE : tag,
+                            start, end, entry);
+                    mCollection.recordData(wifi, uid, set, tag == 0 ? TAG_NONE : tag,
+                            start, end, entry);
+                }
+            }
+        }
+
+        final ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        mCollection.writeLegacy(legacy);
+        mLegacy = legacy.toByteArray();
+        final ByteArrayOutputStream indexed = new ByteArrayOutputStream();
+        mCollection.write(indexed);
+        mIndexed = indexed.toByteArray();
+    }
+
+    @Test
+    public void timeWrite_legacy() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(mLegacy.length);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            os.reset();
+            mCollection.writeLegacy(os);
+        }
+    }
+
+    @Test
+    public void timeWrite_indexed() throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream(mIndexed.length);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            os.reset();
+            mCollection.write(os);
+        }
+    }
+
+    @Test
+    public void timeRead_legacy() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            new NetworkStatsCollection(BUCKET_DURATION).read(new ByteArrayInputStream(mLegacy));
+        }
+    }
+
+    @Test
+    public void timeRead_indexed() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            new NetworkStatsCollection(BUCKET_DURATION).read(new ByteArrayInputStream(mIndexed));
+        }
+    }
+
+    @Test
+    public void timeReadOneUid_legacy() throws IOException {
+        final int[] uids = { 10000 + UID_COUNT / 2 };
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            new NetworkStatsCollection(BUCKET_DURATION).read(
+                    new ByteArrayInputStream(mLegacy), null, uids);
+        }
+    }
+
+    @Test
+    public void timeReadOneUid_indexed() throws IOException {
+        final int[] uids = { 10000 + UID_COUNT / 2 };
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            new NetworkStatsCollection(BUCKET_DURATION).read(
+                    new ByteArrayInputStream(mIndexed), null, uids);
+        }
+    }
+
+    @Test
+    public void timeReadWifi_indexed() throws IOException {
+        final NetworkTemplate template = NetworkTemplate.buildTemplateWifiWildcard();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            new NetworkStatsCollection(BUCKET_DURATION).read(
+                    new ByteArrayInputStream(mIndexed), template, null);
+        }
+    }
+}
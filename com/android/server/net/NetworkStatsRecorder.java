@@ -181,6 +181,34 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Returns the complete history if it is already cached, and otherwise loads
+     * only the entries whose identity matches {@code template}. Files in the
+     * indexed format skip other entries without decoding them, so this is much
+     * cheaper than {@link #getOrLoadCompleteLocked()} for a single network.
+     */
+    public NetworkStatsCollection getOrLoadMatchingLocked(NetworkTemplate template) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
+        if (res == null) {
+            if (LOGD) Slog.d(TAG, "getOrLoadMatchingLocked() reading from disk for " + mCookie);
+            final NetworkStatsCollection matching = new NetworkStatsCollection(mBucketDuration);
+            try {
+                mRotator.readMatching(in -> matching.read(in, template, null),
+                        Long.MIN_VALUE, Long.MAX_VALUE);
+                matching.recordCollection(mPending);
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem reading matching network stats", e);
+                recoverFromWtf();
+            } catch (OutOfMemoryError e) {
+                Log.wtf(TAG, "problem reading matching network stats", e);
+                recoverFromWtf();
+            }
+            res = matching;
+        }
+        return res;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
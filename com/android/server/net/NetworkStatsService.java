@@ -885,11 +885,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private NetworkStats getNetworkUidBytes(NetworkTemplate template, long start, long end) {
         assertSystemReady();
 
-        final NetworkStatsCollection uidComplete;
+        final NetworkStatsCollection uidMatching;
         synchronized (mStatsLock) {
-            uidComplete = mUidRecorder.getOrLoadCompleteLocked();
+            uidMatching = mUidRecorder.getOrLoadMatchingLocked(template);
         }
-        return uidComplete.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
+        return uidMatching.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
                 android.os.Process.SYSTEM_UID);
     }
 
@@ -349,6 +349,7 @@ import com.android.internal.security.VerityUtils;
 import com.android.internal.telephony.CarrierAppUtils;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.CollectionUtils;
+import com.android.internal.util.ConcurrentStringPool;
 import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.FrameworkStatsLog;
@@ -24664,6 +24665,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 pw.println("    compiler-stats: dump compiler statistics");
                 pw.println("    service-permissions: dump permissions required by services");
                 pw.println("    snapshot: dump snapshot statistics");
+                pw.println("    string-pool: dump shared XML string pool statistics");
                 pw.println("    known-packages: dump known packages");
                 pw.println("    <package.name>: info about given package");
                 return;
@@ -24823,6 +24825,8 @@ public class PackageManagerService extends IPackageManager.Stub
                         opti++;
                     }
                 }
+            } else if ("string-pool".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_STRING_POOL);
             } else if ("write".equals(cmd)) {
                 synchronized (mLock) {
                     writeSettingsLPrTEMP();
@@ -25168,6 +25172,14 @@ public class PackageManagerService extends IPackageManager.Stub
                 mSnapshotStatistics.dump(pw, "  ", now, hits, level, dumpState.isBrief());
             }
         }
+
+        if (!checkin && dumpState.isDumping(DumpState.DUMP_STRING_POOL)
+                && packageName == null) {
+            if (dumpState.onTitlePrinted()) {
+                pw.println();
+            }
+            ConcurrentStringPool.getInstance().dump(pw);
+        }
     }
 
     /**
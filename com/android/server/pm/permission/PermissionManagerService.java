@@ -183,6 +183,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiFunction;
 
 /**
@@ -257,6 +258,26 @@ public class PermissionManagerService extends IPermissionManager.Stub {
     @NonNull
     private final DevicePermissionState mState = new DevicePermissionState();
 
+    /** Number of slots in {@link #mUidStateCache}; must be a power of two. */
+    private static final int UID_STATE_CACHE_SLOTS = 512;
+
+    /**
+     * Direct-mapped cache of {@link UidPermissionState} keyed by UID, letting
+     * {@link #checkPermissionInternal} find the state of a UID without holding {@link #mLock}.
+     * Entries are only trusted while their generation matches {@link #mUidStateGeneration}.
+     */
+    private final UidStateCacheEntry[] mUidStateCache =
+            new UidStateCacheEntry[UID_STATE_CACHE_SLOTS];
+
+    /** Bumped under {@link #mLock} whenever a UID or user permission state is removed. */
+    private volatile int mUidStateGeneration;
+
+    /** Permission checks answered without taking {@link #mLock}. */
+    private final LongAdder mLockFreeCheckCount = new LongAdder();
+
+    /** Permission checks that had to take {@link #mLock}. */
+    private final LongAdder mLockedCheckCount = new LongAdder();
+
     /** Permission controller: User space permission management */
     private PermissionControllerManager mPermissionControllerManager;
 
@@ -319,8 +340,8 @@ public class PermissionManagerService extends IPermissionManager.Stub {
     final private ArrayList<OnRuntimePermissionStateChangedListener>
             mRuntimePermissionStateChangedListeners = new ArrayList<>();
 
-    @GuardedBy("mLock")
-    private CheckPermissionDelegate mCheckPermissionDelegate;
+    /** Written under {@link #mLock}, read without it by the permission checks. */
+    private volatile CheckPermissionDelegate mCheckPermissionDelegate;
 
     @NonNull
     private final OnPermissionChangeListeners mOnPermissionChangeListeners;
@@ -454,6 +475,13 @@ public class PermissionManagerService extends IPermissionManager.Stub {
             return;
         }
 
+        if (!ArrayUtils.contains(args, "--proto")) {
+            pw.println("Permission checks:");
+            pw.print("  lockFree="); pw.print(mLockFreeCheckCount.sum());
+            pw.print(" locked="); pw.println(mLockedCheckCount.sum());
+            pw.flush();
+        }
+
         mContext.getSystemService(PermissionControllerManager.class).dump(fd, args);
     }
 
@@ -942,10 +970,7 @@ public class PermissionManagerService extends IPermissionManager.Stub {
             return PackageManager.PERMISSION_DENIED;
         }
 
-        final CheckPermissionDelegate checkPermissionDelegate;
-        synchronized (mLock) {
-            checkPermissionDelegate = mCheckPermissionDelegate;
-        }
+        final CheckPermissionDelegate checkPermissionDelegate = mCheckPermissionDelegate;
         if (checkPermissionDelegate == null) {
             return checkPermissionImpl(pkgName, permName, userId);
         }
@@ -977,6 +1002,25 @@ public class PermissionManagerService extends IPermissionManager.Stub {
         final int uid = UserHandle.getUid(userId, pkg.getUid());
         final boolean isInstantApp = mPackageManagerInt.getInstantAppPackageName(uid) != null;
 
+        // Instant apps additionally need the permission to be marked instant in the registry,
+        // which can only be consulted under the lock.
+        if (!isInstantApp) {
+            final UidPermissionState uidState = getCachedUidState(uid);
+            if (uidState != null) {
+                mLockFreeCheckCount.increment();
+                if (uidState.isPermissionGrantedLockFree(permissionName)) {
+                    return PackageManager.PERMISSION_GRANTED;
+                }
+                final String fullerPermissionName = FULLER_PERMISSION_MAP.get(permissionName);
+                if (fullerPermissionName != null
+                        && uidState.isPermissionGrantedLockFree(fullerPermissionName)) {
+                    return PackageManager.PERMISSION_GRANTED;
+                }
+                return PackageManager.PERMISSION_DENIED;
+            }
+        }
+
+        mLockedCheckCount.increment();
         synchronized (mLock) {
             final UidPermissionState uidState = getUidStateLocked(pkg, userId);
             if (uidState == null) {
@@ -984,6 +1028,7 @@ public class PermissionManagerService extends IPermissionManager.Stub {
                         + userId);
                 return PackageManager.PERMISSION_DENIED;
             }
+            cacheUidStateLocked(uid, uidState);
 
             if (checkSinglePermissionInternalLocked(uidState, permissionName, isInstantApp)) {
                 return PackageManager.PERMISSION_GRANTED;
@@ -999,6 +1044,27 @@ public class PermissionManagerService extends IPermissionManager.Stub {
         return PackageManager.PERMISSION_DENIED;
     }
 
+    @Nullable
+    private UidPermissionState getCachedUidState(int uid) {
+        final int generation = mUidStateGeneration;
+        final UidStateCacheEntry entry = mUidStateCache[uid & (UID_STATE_CACHE_SLOTS - 1)];
+        if (entry == null || entry.uid != uid || entry.generation != generation) {
+            return null;
+        }
+        return entry.uidState;
+    }
+
+    @GuardedBy("mLock")
+    private void cacheUidStateLocked(int uid, @NonNull UidPermissionState uidState) {
+        mUidStateCache[uid & (UID_STATE_CACHE_SLOTS - 1)] =
+                new UidStateCacheEntry(uid, mUidStateGeneration, uidState);
+    }
+
+    @GuardedBy("mLock")
+    private void invalidateUidStateCacheLocked() {
+        mUidStateGeneration++;
+    }
+
     @GuardedBy("mLock")
     private boolean checkSinglePermissionInternalLocked(@NonNull UidPermissionState uidState,
             @NonNull String permissionName, boolean isInstantApp) {
@@ -1024,10 +1090,7 @@ public class PermissionManagerService extends IPermissionManager.Stub {
             return PackageManager.PERMISSION_DENIED;
         }
 
-        final CheckPermissionDelegate checkPermissionDelegate;
-        synchronized (mLock) {
-            checkPermissionDelegate = mCheckPermissionDelegate;
-        }
+        final CheckPermissionDelegate checkPermissionDelegate = mCheckPermissionDelegate;
         if (checkPermissionDelegate == null)  {
             return checkUidPermissionImpl(uid, permName);
         }
@@ -2514,6 +2577,7 @@ public class PermissionManagerService extends IPermissionManager.Stub {
     private void onUserRemoved(@UserIdInt int userId) {
         synchronized (mLock) {
             mState.removeUserState(userId);
+            invalidateUidStateCacheLocked();
         }
     }
 
@@ -4638,6 +4702,7 @@ public class PermissionManagerService extends IPermissionManager.Stub {
                 return;
             }
             userState.removeUidState(appId);
+            invalidateUidStateCacheLocked();
             userState.setInstallPermissionsFixed(packageName, false);
         }
     }
@@ -6236,4 +6301,20 @@ public class PermissionManagerService extends IPermissionManager.Stub {
             return false;
         }
     }
+
+    /**
+     * Immutable entry of {@link #mUidStateCache}.
+     */
+    private static final class UidStateCacheEntry {
+        final int uid;
+        final int generation;
+        @NonNull
+        final UidPermissionState uidState;
+
+        UidStateCacheEntry(int uid, int generation, @NonNull UidPermissionState uidState) {
+            this.uid = uid;
+            this.generation = generation;
+            this.uidState = uidState;
+        }
+    }
 }
@@ -24,24 +24,48 @@ import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.IntArray;
 
+import com.android.internal.annotations.GuardedBy;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Permission state for a UID.
  */
 public final class UidPermissionState {
+    /**
+     * Process-wide mapping from permission name to its bit in {@link #mGrantedBits}. Indices are
+     * only ever added, so a name without an index has never been granted to any UID.
+     */
+    private static final ConcurrentHashMap<String, Integer> sPermissionIndices =
+            new ConcurrentHashMap<>();
+
+    @GuardedBy("sPermissionIndices")
+    private static int sNextPermissionIndex;
+
+    private static final long[] NO_BITS = new long[0];
+
     private boolean mMissing;
 
     @Nullable
     private ArrayMap<String, PermissionState> mPermissions;
 
+    /**
+     * Bitset of granted permissions indexed by {@link #sPermissionIndices}, mirroring the granted
+     * state in {@link #mPermissions}. The array is never modified once published so that it can be
+     * read without holding the lock guarding the rest of this object.
+     */
+    private volatile long[] mGrantedBits = NO_BITS;
+
     public UidPermissionState() {}
 
     public UidPermissionState(@NonNull UidPermissionState other) {
         mMissing = other.mMissing;
+        mGrantedBits = other.mGrantedBits;
 
         if (other.mPermissions != null) {
             mPermissions = new ArrayMap<>();
@@ -60,6 +84,7 @@ public final class UidPermissionState {
     public void reset() {
         mMissing = false;
         mPermissions = null;
+        mGrantedBits = NO_BITS;
         invalidateCache();
     }
 
@@ -171,6 +196,7 @@ public final class UidPermissionState {
         }
         permissionState.updateFlags(flags, flags);
         mPermissions.put(name, permissionState);
+        setGrantedBit(name, granted);
     }
 
     /**
@@ -187,6 +213,9 @@ public final class UidPermissionState {
         if (changed && mPermissions.isEmpty()) {
             mPermissions = null;
         }
+        if (changed) {
+            setGrantedBit(name, false);
+        }
         return changed;
     }
 
@@ -201,6 +230,66 @@ public final class UidPermissionState {
         return permissionState != null && permissionState.isGranted();
     }
 
+    /**
+     * Get whether a permission is granted, without requiring the caller to hold the lock guarding
+     * this object.
+     * <p>
+     * The result reflects the latest completed grant or revoke, but may race with one that is in
+     * progress.
+     *
+     * @param name the permission name
+     * @return whether the permission is granted
+     */
+    public boolean isPermissionGrantedLockFree(@NonNull String name) {
+        final Integer index = sPermissionIndices.get(name);
+        if (index == null) {
+            return false;
+        }
+        final long[] bits = mGrantedBits;
+        final int word = index >>> 6;
+        return word < bits.length && (bits[word] & (1L << index)) != 0;
+    }
+
+    private void setGrantedBit(@NonNull String name, boolean granted) {
+        final int index = granted ? getOrAssignPermissionIndex(name) : getPermissionIndex(name);
+        if (index < 0) {
+            return;
+        }
+        final long[] oldBits = mGrantedBits;
+        final int word = index >>> 6;
+        final long mask = 1L << index;
+        if (word >= oldBits.length) {
+            if (!granted) {
+                return;
+            }
+            final long[] newBits = Arrays.copyOf(oldBits, word + 1);
+            newBits[word] = mask;
+            mGrantedBits = newBits;
+            return;
+        }
+        if (((oldBits[word] & mask) != 0) == granted) {
+            return;
+        }
+        final long[] newBits = oldBits.clone();
+        newBits[word] ^= mask;
+        mGrantedBits = newBits;
+    }
+
+    private static int getPermissionIndex(@NonNull String name) {
+        final Integer index = sPermissionIndices.get(name);
+        return index != null ? index : -1;
+    }
+
+    private static int getOrAssignPermissionIndex(@NonNull String name) {
+        final Integer index = sPermissionIndices.get(name);
+        if (index != null) {
+            return index;
+        }
+        synchronized (sPermissionIndices) {
+            return sPermissionIndices.computeIfAbsent(name, key -> sNextPermissionIndex++);
+        }
+    }
+
     /**
      * Get all the granted permissions.
      *
@@ -232,7 +321,11 @@ public final class UidPermissionState {
      */
     public boolean grantPermission(@NonNull Permission permission) {
         final PermissionState permissionState = getOrCreatePermissionState(permission);
-        return permissionState.grant();
+        final boolean changed = permissionState.grant();
+        if (changed) {
+            setGrantedBit(permission.getName(), true);
+        }
+        return changed;
     }
 
     /**
@@ -248,6 +341,9 @@ public final class UidPermissionState {
             return false;
         }
         final boolean changed = permissionState.revoke();
+        if (changed) {
+            setGrantedBit(name, false);
+        }
         if (changed && permissionState.isDefault()) {
             removePermissionState(name);
         }
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm.permission;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares checking a permission of a {@link UidPermissionState} under a lock, as
+ * {@link PermissionManagerService} used to, with the lock-free granted bitset.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class UidPermissionStatePerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static final int PERMISSION_COUNT = 200;
+    /** One grant or revoke for every this many checks in the mixed workloads. */
+    private static final int CHECKS_PER_UPDATE = 100;
+
+    private final Object mLock = new Object();
+
+    private Permission[] mPermissions;
+    private String[] mNames;
+    private UidPermissionState mUidState;
+
+    @Before
+    public void setUp() {
+        mPermissions = new Permission[PERMISSION_COUNT];
+        mNames = new String[PERMISSION_COUNT];
+        mUidState = new UidPermissionState();
+        for (int i = 0; i < PERMISSION_COUNT; i++) {
+            mNames[i] = "com.android.perftest.permission.P" + i;
+            mPermissions[i] = new Permission(mNames[i], "android", Permission.TYPE_MANIFEST);
+            if (i % 2 == 0) {
+                mUidState.grantPermission(mPermissions[i]);
+            } else {
+                mUidState.updatePermissionFlags(mPermissions[i], 1, 1);
+            }
+        }
+    }
+
+    @Test
+    public void timeCheck_locked() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            synchronized (mLock) {
+                mUidState.isPermissionGranted(mNames[i]);
+            }
+            i = (i + 1) % PERMISSION_COUNT;
+        }
+    }
+
+    @Test
+    public void timeCheck_lockFree() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mUidState.isPermissionGrantedLockFree(mNames[i]);
+            i = (i + 1) % PERMISSION_COUNT;
+        }
+    }
+
+    @Test
+    public void timeCheckAndUpdate_locked() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            synchronized (mLock) {
+                if (i % CHECKS_PER_UPDATE == 0) {
+                    toggleLocked(i);
+                }
+                mUidState.isPermissionGranted(mNames[i]);
+            }
+            i = (i + 1) % PERMISSION_COUNT;
+        }
+    }
+
+    @Test
+    public void timeCheckAndUpdate_lockFree() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            if (i % CHECKS_PER_UPDATE == 0) {
+                synchronized (mLock) {
+                    toggleLocked(i);
+                }
+            }
+            mUidState.isPermissionGrantedLockFree(mNames[i]);
+            i = (i + 1) % PERMISSION_COUNT;
+        }
+    }
+
+    private void toggleLocked(int i) {
+        if (mUidState.isPermissionGranted(mNames[i])) {
+            mUidState.revokePermission(mPermissions[i]);
+        } else {
+            mUidState.grantPermission(mPermissions[i]);
+        }
+    }
+}
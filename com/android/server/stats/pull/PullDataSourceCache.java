@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.stats.pull;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.ConcurrentUtils;
+import com.android.server.stats.pull.ProcfsMemoryUtil.MemorySnapshot;
+import com.android.server.stats.pull.ProcfsMemoryUtil.VmStat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Short-lived snapshots of the procfs and kernel data that several pulled atoms are built from.
+ *
+ * statsd pulls related atoms back to back in one pull cycle; PROCESS_MEMORY_SNAPSHOT and
+ * PROCESS_MEMORY_HIGH_WATER_MARK for example both scan /proc for cmdlines and read the status of
+ * every process. Each source is read at most once per TTL and shared by every atom pulled within
+ * it. Reads of many per-process files are spread over an optional executor.
+ *
+ * Thread-safe.
+ */
+final class PullDataSourceCache {
+    /** Cached in place of a process whose status could not be read, usually because it died. */
+    private static final MemorySnapshot MISSING_SNAPSHOT = new MemorySnapshot();
+    /** Don't hand out fewer reads than this to a helper thread, it costs more than it saves. */
+    private static final int MIN_READS_PER_HELPER = 32;
+    private static final long PARALLEL_READ_TIMEOUT_MILLIS = 10_000;
+
+    private final long mTtlMillis;
+    @Nullable
+    private final Executor mExecutor;
+    private final int mMaxHelpers;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final SparseArray<MemorySnapshot> mMemorySnapshots = new SparseArray<>();
+    @GuardedBy("mLock")
+    private long mMemorySnapshotsExpiry;
+    /** Bumped whenever {@link #mMemorySnapshots} is cleared, so late reads don't repopulate it. */
+    @GuardedBy("mLock")
+    private int mMemorySnapshotsGeneration;
+    @GuardedBy("mLock")
+    private SystemMemoryUtil.Metrics mSystemMemoryMetrics;
+    @GuardedBy("mLock")
+    private long mSystemMemoryMetricsExpiry;
+    @GuardedBy("mLock")
+    private VmStat mVmStat;
+    @GuardedBy("mLock")
+    private long mVmStatExpiry;
+
+    /** Held across the /proc scan so concurrent pulls wait for it instead of scanning twice. */
+    private final Object mCmdlinesLock = new Object();
+    @GuardedBy("mCmdlinesLock")
+    private SparseArray<String> mCmdlines;
+    @GuardedBy("mCmdlinesLock")
+    private long mCmdlinesExpiry;
+
+    /**
+     * @param ttlMillis how long a read stays valid
+     * @param executor runs per-process reads in parallel with the pulling thread, or null to
+     *                 read everything on the pulling thread
+     * @param maxHelpers how many reads may be in flight on {@code executor} for one pull
+     */
+    PullDataSourceCache(long ttlMillis, @Nullable Executor executor, int maxHelpers) {
+        mTtlMillis = ttlMillis;
+        mExecutor = executor;
+        mMaxHelpers = executor != null ? maxHelpers : 0;
+    }
+
+    /**
+     * Returns the cmdline of every process as {@link ProcfsMemoryUtil#getProcessCmdlines}. The
+     * returned array is the caller's to modify.
+     */
+    SparseArray<String> getProcessCmdlines() {
+        synchronized (mCmdlinesLock) {
+            final long now = SystemClock.elapsedRealtime();
+            if (mCmdlines == null || now >= mCmdlinesExpiry) {
+                mCmdlines = ProcfsMemoryUtil.getProcessCmdlines();
+                mCmdlinesExpiry = now + mTtlMillis;
+            }
+            return mCmdlines.clone();
+        }
+    }
+
+    /**
+     * Returns the memory snapshot of each of {@code pids}, in the same order, with null for
+     * processes that could not be read. The snapshots are shared and must not be modified.
+     */
+    MemorySnapshot[] getMemorySnapshots(int[] pids) {
+        final MemorySnapshot[] snapshots = new MemorySnapshot[pids.length];
+        final int[] toRead = new int[pids.length];
+        int toReadCount = 0;
+        final int generation;
+        synchronized (mLock) {
+            final long now = SystemClock.elapsedRealtime();
+            if (now >= mMemorySnapshotsExpiry) {
+                clearMemorySnapshotsLocked();
+                mMemorySnapshotsExpiry = now + mTtlMillis;
+            }
+            generation = mMemorySnapshotsGeneration;
+            for (int i = 0; i < pids.length; i++) {
+                final MemorySnapshot snapshot = mMemorySnapshots.get(pids[i]);
+                if (snapshot == null) {
+                    toRead[toReadCount++] = i;
+                } else if (snapshot != MISSING_SNAPSHOT) {
+                    snapshots[i] = snapshot;
+                }
+            }
+        }
+        if (toReadCount == 0) {
+            return snapshots;
+        }
+
+        forEachInParallel(toReadCount, index -> {
+            final int i = toRead[index];
+            snapshots[i] = ProcfsMemoryUtil.readMemorySnapshotFromProcfs(pids[i]);
+        });
+
+        synchronized (mLock) {
+            if (generation == mMemorySnapshotsGeneration) {
+                for (int index = 0; index < toReadCount; index++) {
+                    final int i = toRead[index];
+                    mMemorySnapshots.put(pids[i],
+                            snapshots[i] != null ? snapshots[i] : MISSING_SNAPSHOT);
+                }
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Drops cached memory snapshots, e.g. after resetting the RSS high-water marks they contain.
+     */
+    void invalidateMemorySnapshots() {
+        synchronized (mLock) {
+            clearMemorySnapshotsLocked();
+            mMemorySnapshotsExpiry = 0;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void clearMemorySnapshotsLocked() {
+        mMemorySnapshots.clear();
+        mMemorySnapshotsGeneration++;
+    }
+
+    /** Returns {@link SystemMemoryUtil#getMetrics}. The result must not be modified. */
+    SystemMemoryUtil.Metrics getSystemMemoryMetrics() {
+        synchronized (mLock) {
+            final long now = SystemClock.elapsedRealtime();
+            if (mSystemMemoryMetrics == null || now >= mSystemMemoryMetricsExpiry) {
+                mSystemMemoryMetrics = SystemMemoryUtil.getMetrics();
+                mSystemMemoryMetricsExpiry = now + mTtlMillis;
+            }
+            return mSystemMemoryMetrics;
+        }
+    }
+
+    /** Returns {@link ProcfsMemoryUtil#readVmStat}. The result must not be modified. */
+    @Nullable
+    VmStat getVmStat() {
+        synchronized (mLock) {
+            final long now = SystemClock.elapsedRealtime();
+            if (now >= mVmStatExpiry) {
+                mVmStat = ProcfsMemoryUtil.readVmStat();
+                mVmStatExpiry = now + mTtlMillis;
+            }
+            return mVmStat;
+        }
+    }
+
+    /**
+     * Runs {@code task} once for every index below {@code count}. Helpers on {@link #mExecutor}
+     * and the calling thread claim indices from a shared counter, so this completes even when
+     * the executor is saturated and no helper gets to run.
+     */
+    private void forEachInParallel(int count, IntConsumer task) {
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(count);
+        final Runnable worker = () -> {
+            int index;
+            while ((index = next.getAndIncrement()) < count) {
+                try {
+                    task.accept(index);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+
+        final int helpers = Math.min(mMaxHelpers, count / MIN_READS_PER_HELPER);
+        for (int i = 0; i < helpers; i++) {
+            try {
+                mExecutor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+        worker.run();
+        // Only reads claimed by helpers can still be running at this point
+        ConcurrentUtils.waitForCountDownNoInterrupt(done, PARALLEL_READ_TIMEOUT_MILLIS,
+                "Parallel procfs reads");
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.stats.pull;
+
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.util.SparseArray;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.internal.util.ConcurrentUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Measures reading the memory snapshot of every process from procfs, one pid at a time as the
+ * memory pullers used to and spread over a {@link PullDataSourceCache} executor.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class PullDataSourceCachePerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static final int THREADS = 4;
+
+    private ExecutorService mExecutor;
+    private int[] mPids;
+
+    @Before
+    public void setUp() {
+        mExecutor = ConcurrentUtils.newFixedThreadPool(THREADS, "PullDataSourceCachePerfTest",
+                Process.THREAD_PRIORITY_DEFAULT);
+        final SparseArray<String> cmdlines = ProcfsMemoryUtil.getProcessCmdlines();
+        mPids = new int[cmdlines.size()];
+        for (int i = 0; i < mPids.length; i++) {
+            mPids[i] = cmdlines.keyAt(i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void timeReadMemorySnapshots_sequential() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (int pid : mPids) {
+                ProcfsMemoryUtil.readMemorySnapshotFromProcfs(pid);
+            }
+        }
+    }
+
+    @Test
+    public void timeReadMemorySnapshots_parallel() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // A TTL of zero so every iteration reads procfs again
+            new PullDataSourceCache(0, mExecutor, THREADS - 1).getMemorySnapshots(mPids);
+        }
+    }
+
+    @Test
+    public void timeReadMemorySnapshots_cached() {
+        final PullDataSourceCache cache =
+                new PullDataSourceCache(Long.MAX_VALUE / 2, mExecutor, THREADS - 1);
+        cache.getMemorySnapshots(mPids);
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            cache.getMemorySnapshots(mPids);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.stats.pull;
+
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+
+/**
+ * Per-atom histograms of how long pulls take. Bucket {@code i} counts pulls that took less than
+ * 2^i microseconds and at least half that; the last bucket is unbounded.
+ *
+ * Thread-safe.
+ */
+final class PullLatencyStats {
+    /** 2^24us is about 17s, well past the statsd pull timeout. */
+    private static final int BUCKET_COUNT = 25;
+    private static final int COUNT = BUCKET_COUNT;
+    private static final int TOTAL_MICROS = BUCKET_COUNT + 1;
+    private static final int MAX_MICROS = BUCKET_COUNT + 2;
+    private static final int SLOT_COUNT = BUCKET_COUNT + 3;
+
+    private final Object mLock = new Object();
+    /** Atom tag to bucket counts, followed by pull count, total and max latency. */
+    @GuardedBy("mLock")
+    private final SparseArray<long[]> mHistograms = new SparseArray<>();
+
+    void record(int atomTag, long durationNanos) {
+        final long micros = Math.max(0, durationNanos / 1000);
+        final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        synchronized (mLock) {
+            long[] histogram = mHistograms.get(atomTag);
+            if (histogram == null) {
+                histogram = new long[SLOT_COUNT];
+                mHistograms.put(atomTag, histogram);
+            }
+            histogram[bucket]++;
+            histogram[COUNT]++;
+            histogram[TOTAL_MICROS] += micros;
+            histogram[MAX_MICROS] = Math.max(histogram[MAX_MICROS], micros);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Pull latency (us):");
+            for (int i = 0; i < mHistograms.size(); i++) {
+                final long[] histogram = mHistograms.valueAt(i);
+                pw.print("  atom=");
+                pw.print(mHistograms.keyAt(i));
+                pw.print(" count=");
+                pw.print(histogram[COUNT]);
+                pw.print(" mean=");
+                pw.print(histogram[TOTAL_MICROS] / histogram[COUNT]);
+                pw.print(" max=");
+                pw.print(histogram[MAX_MICROS]);
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    if (histogram[bucket] == 0) {
+                        continue;
+                    }
+                    pw.print(bucket == BUCKET_COUNT - 1 ? " >=" : " <");
+                    pw.print(1L << (bucket == BUCKET_COUNT - 1 ? bucket - 1 : bucket));
+                    pw.print(':');
+                    pw.print(histogram[bucket]);
+                }
+                pw.println();
+            }
+        }
+    }
+}
@@ -57,9 +57,7 @@ import static com.android.internal.util.FrameworkStatsLog.TIME_ZONE_DETECTOR_STA
 import static com.android.server.am.MemoryStatUtil.readMemoryStatFromFilesystem;
 import static com.android.server.stats.pull.IonMemoryUtil.readProcessSystemIonHeapSizesFromDebugfs;
 import static com.android.server.stats.pull.IonMemoryUtil.readSystemIonHeapSizeFromDebugfs;
-import static com.android.server.stats.pull.ProcfsMemoryUtil.getProcessCmdlines;
 import static com.android.server.stats.pull.ProcfsMemoryUtil.readCmdlineFromProcfs;
-import static com.android.server.stats.pull.ProcfsMemoryUtil.readMemorySnapshotFromProcfs;
 
 import static java.lang.Math.min;
 import static java.util.concurrent.TimeUnit.HOURS;
@@ -154,6 +152,7 @@ import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Slog;
 import android.util.SparseArray;
@@ -173,6 +172,7 @@ import com.android.internal.os.KernelCpuThreadReader;
 import com.android.internal.os.KernelCpuThreadReaderDiff;
 import com.android.internal.os.KernelCpuThreadReaderSettingsObserver;
 import com.android.internal.os.KernelCpuTotalBpfMapReader;
+import com.android.internal.os.KernelCpuUidTimeReader;
 import com.android.internal.os.KernelCpuUidTimeReader.KernelCpuUidActiveTimeReader;
 import com.android.internal.os.KernelCpuUidTimeReader.KernelCpuUidClusterTimeReader;
 import com.android.internal.os.KernelCpuUidTimeReader.KernelCpuUidFreqTimeReader;
@@ -187,11 +187,13 @@ import com.android.internal.os.SelectedProcessCpuThreadReader;
 import com.android.internal.os.StoragedUidIoStatsReader;
 import com.android.internal.os.SystemServerCpuThreadReader.SystemServiceCpuThreadTimes;
 import com.android.internal.util.CollectionUtils;
+import com.android.internal.util.ConcurrentUtils;
 import com.android.internal.util.FrameworkStatsLog;
 import com.android.role.RoleManagerLocal;
 import com.android.server.BatteryService;
 import com.android.server.BinderCallsStatsService;
 import com.android.server.LocalManagerRegistry;
+import com.android.server.Dumpable;
 import com.android.server.LocalServices;
 import com.android.server.SystemService;
 import com.android.server.SystemServiceManager;
@@ -241,7 +243,7 @@ import java.util.function.BiConsumer;
  *
  * @hide
  */
-public class StatsPullAtomService extends SystemService {
+public class StatsPullAtomService extends SystemService implements Dumpable {
     private static final String TAG = "StatsPullAtomService";
     private static final boolean DEBUG = true;
 
@@ -296,6 +298,15 @@ public class StatsPullAtomService extends SystemService {
     /** Number of entries in CpuCyclesPerUidCluster atom stored in an array for each cluster. */
     private static final int CPU_CYCLES_PER_UID_CLUSTER_VALUES = 3;
 
+    /**
+     * How long procfs and kernel reads are shared between atoms. statsd pulls related atoms
+     * back to back, and never the same atom twice within its own one second cool down.
+     */
+    private static final long DATA_SOURCE_CACHE_TTL_MILLIS = 1000;
+    private static final String PARALLEL_PULLERS = "parallel_pullers";
+    /** Threads for pullers that only read procfs and sysfs, see {@link #mProcfsPullExecutor}. */
+    private static final int PROCFS_PULL_THREADS = 4;
+
     private final Object mThermalLock = new Object();
     @GuardedBy("mThermalLock")
     private IThermalService mThermalService;
@@ -448,6 +459,19 @@ public class StatsPullAtomService extends SystemService {
     private final Object mInstalledIncrementalPackagesLock = new Object();
     private final Object mKeystoreLock = new Object();
 
+    private final PullLatencyStats mPullLatencyStats = new PullLatencyStats();
+    private PullDataSourceCache mDataSourceCache;
+    /**
+     * Runs pullers that only read procfs and sysfs and don't depend on each other, and their
+     * per-process reads, off the binder threads and in parallel. {@code DIRECT_EXECUTOR} when
+     * parallel pullers are turned off.
+     */
+    private Executor mProcfsPullExecutor;
+    @GuardedBy("mCpuTimePerUidFreqLock")
+    private SparseArray<long[]> mCpuUidFreqTimeSnapshot;
+    @GuardedBy("mCpuTimePerUidFreqLock")
+    private long mCpuUidFreqTimeSnapshotExpiry;
+
     public StatsPullAtomService(Context context) {
         super(context);
         mContext = context;
@@ -468,6 +492,7 @@ public class StatsPullAtomService extends SystemService {
             if (Trace.isTagEnabled(Trace.TRACE_TAG_SYSTEM_SERVER)) {
                 Trace.traceBegin(Trace.TRACE_TAG_SYSTEM_SERVER, "StatsPull-" + atomTag);
             }
+            final long startNanos = SystemClock.elapsedRealtimeNanos();
             try {
                 switch (atomTag) {
                     case FrameworkStatsLog.WIFI_BYTES_TRANSFER:
@@ -738,6 +763,8 @@ public class StatsPullAtomService extends SystemService {
                         throw new UnsupportedOperationException("Unknown tagId=" + atomTag);
                 }
             } finally {
+                final long durationNanos = SystemClock.elapsedRealtimeNanos() - startNanos;
+                mPullLatencyStats.record(atomTag, durationNanos);
                 Trace.traceEnd(Trace.TRACE_TAG_SYSTEM_SERVER);
             }
         }
@@ -748,6 +775,15 @@ public class StatsPullAtomService extends SystemService {
         // no op
     }
 
+    /**
+     * Dumps puller latencies, as part of {@code dumpsys system_server_dumper}.
+     */
+    @Override
+    public void dump(IndentingPrintWriter pw, String[] args) {
+        pw.println("Parallel pullers: " + (mProcfsPullExecutor != DIRECT_EXECUTOR));
+        mPullLatencyStats.dump(pw);
+    }
+
     @Override
     public void onBootPhase(int phase) {
         super.onBootPhase(phase);
@@ -783,6 +819,17 @@ public class StatsPullAtomService extends SystemService {
         mBaseDir = new File(SystemServiceManager.ensureSystemDir(), "stats_pull");
         mBaseDir.mkdirs();
 
+        // Initialize the procfs pullers, which may run in parallel with each other
+        if (DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_STATSD_JAVA, PARALLEL_PULLERS, true)) {
+            mProcfsPullExecutor = ConcurrentUtils.newFixedThreadPool(PROCFS_PULL_THREADS,
+                    "StatsPullProcfs", Process.THREAD_PRIORITY_BACKGROUND);
+            mDataSourceCache = new PullDataSourceCache(DATA_SOURCE_CACHE_TTL_MILLIS,
+                    mProcfsPullExecutor, PROCFS_PULL_THREADS - 1);
+        } else {
+            mProcfsPullExecutor = DIRECT_EXECUTOR;
+            mDataSourceCache = new PullDataSourceCache(DATA_SOURCE_CACHE_TTL_MILLIS, null, 0);
+        }
+
         // Disables throttler on CPU time readers.
         mCpuUidUserSysTimeReader = new KernelCpuUidUserSysTimeReader(false);
         mCpuUidFreqTimeReader = new KernelCpuUidFreqTimeReader(false);
@@ -1642,7 +1689,7 @@ public class StatsPullAtomService extends SystemService {
             mStatsManager.setPullAtomCallback(
                     tagId,
                     metadata,
-                    DIRECT_EXECUTOR,
+                    mProcfsPullExecutor,
                     mStatsCallbackImpl
             );
         }
@@ -1672,7 +1719,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 metadata,
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -1697,7 +1744,7 @@ public class StatsPullAtomService extends SystemService {
             mStatsManager.setPullAtomCallback(
                     tagId,
                     metadata,
-                    DIRECT_EXECUTOR,
+                    mProcfsPullExecutor,
                     mStatsCallbackImpl
             );
         }
@@ -1728,7 +1775,7 @@ public class StatsPullAtomService extends SystemService {
         // Aggregate 0: mcycles, 1: runtime ms, 2: power profile estimate for the same uids for
         // each cluster.
         SparseArray<double[]> aggregated = new SparseArray<>();
-        mCpuUidFreqTimeReader.readAbsolute((uid, cpuFreqTimeMs) -> {
+        readCpuUidFreqTimeLocked((uid, cpuFreqTimeMs) -> {
             if (UserHandle.isIsolated(uid)) {
                 // Skip individual isolated uids because they are recycled and quickly removed from
                 // the underlying data source.
@@ -1772,6 +1819,29 @@ public class StatsPullAtomService extends SystemService {
         return StatsManager.PULL_SUCCESS;
     }
 
+    /**
+     * Reads the CPU time per frequency of every uid. CPU_CYCLES_PER_UID_CLUSTER and
+     * CPU_TIME_PER_UID_FREQ pulled within {@link #DATA_SOURCE_CACHE_TTL_MILLIS} of each other
+     * share one read.
+     */
+    @GuardedBy("mCpuTimePerUidFreqLock")
+    private void readCpuUidFreqTimeLocked(KernelCpuUidTimeReader.Callback<long[]> callback) {
+        final long now = SystemClock.elapsedRealtime();
+        if (mCpuUidFreqTimeSnapshot == null || now >= mCpuUidFreqTimeSnapshotExpiry) {
+            final SparseArray<long[]> snapshot = new SparseArray<>();
+            // The reader reuses its buffer between uids
+            mCpuUidFreqTimeReader.readAbsolute((uid, cpuFreqTimeMs) ->
+                    snapshot.put(uid, cpuFreqTimeMs.clone()));
+            mCpuUidFreqTimeSnapshot = snapshot;
+            mCpuUidFreqTimeSnapshotExpiry = now + DATA_SOURCE_CACHE_TTL_MILLIS;
+        }
+        final int size = mCpuUidFreqTimeSnapshot.size();
+        for (int i = 0; i < size; ++i) {
+            callback.onUidCpuTime(mCpuUidFreqTimeSnapshot.keyAt(i),
+                    mCpuUidFreqTimeSnapshot.valueAt(i));
+        }
+    }
+
     private void registerCpuTimePerUidFreq() {
         // the throttling is 3sec, handled in
         // frameworks/base/core/java/com/android/internal/os/KernelCpuProcReader
@@ -1782,7 +1852,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 metadata,
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -1790,7 +1860,7 @@ public class StatsPullAtomService extends SystemService {
     int pullCpuTimePerUidFreqLocked(int atomTag, List<StatsEvent> pulledData) {
         // Aggregate times for the same uids.
         SparseArray<long[]> aggregated = new SparseArray<>();
-        mCpuUidFreqTimeReader.readAbsolute((uid, cpuFreqTimeMs) -> {
+        readCpuUidFreqTimeLocked((uid, cpuFreqTimeMs) -> {
             if (UserHandle.isIsolated(uid)) {
                 // Skip individual isolated uids because they are recycled and quickly removed from
                 // the underlying data source.
@@ -1836,7 +1906,7 @@ public class StatsPullAtomService extends SystemService {
             mStatsManager.setPullAtomCallback(
                     tagId,
                     metadata,
-                    DIRECT_EXECUTOR,
+                    mProcfsPullExecutor,
                     mStatsCallbackImpl
             );
         }
@@ -1899,7 +1969,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 metadata,
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -1921,7 +1991,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 metadata,
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -2108,7 +2178,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 metadata,
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -2136,7 +2206,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 null, // use default PullAtomMetadata values
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -2145,8 +2215,11 @@ public class StatsPullAtomService extends SystemService {
         List<ProcessMemoryState> managedProcessList =
                 LocalServices.getService(ActivityManagerInternal.class)
                         .getMemoryStateForProcesses();
-        for (ProcessMemoryState managedProcess : managedProcessList) {
-            final MemorySnapshot snapshot = readMemorySnapshotFromProcfs(managedProcess.pid);
+        MemorySnapshot[] managedSnapshots =
+                mDataSourceCache.getMemorySnapshots(getPids(managedProcessList));
+        for (int i = 0; i < managedSnapshots.length; ++i) {
+            final ProcessMemoryState managedProcess = managedProcessList.get(i);
+            final MemorySnapshot snapshot = managedSnapshots[i];
             if (snapshot == null) {
                 continue;
             }
@@ -2157,11 +2230,12 @@ public class StatsPullAtomService extends SystemService {
                     snapshot.rssHighWaterMarkInKilobytes));
         }
         // Complement the data with native system processes
-        SparseArray<String> processCmdlines = getProcessCmdlines();
+        SparseArray<String> processCmdlines = mDataSourceCache.getProcessCmdlines();
         managedProcessList.forEach(managedProcess -> processCmdlines.delete(managedProcess.pid));
-        int size = processCmdlines.size();
-        for (int i = 0; i < size; ++i) {
-            final MemorySnapshot snapshot = readMemorySnapshotFromProcfs(processCmdlines.keyAt(i));
+        MemorySnapshot[] nativeSnapshots =
+                mDataSourceCache.getMemorySnapshots(getPids(processCmdlines));
+        for (int i = 0; i < nativeSnapshots.length; ++i) {
+            final MemorySnapshot snapshot = nativeSnapshots[i];
             if (snapshot == null) {
                 continue;
             }
@@ -2173,6 +2247,8 @@ public class StatsPullAtomService extends SystemService {
         }
         // Invoke rss_hwm_reset binary to reset RSS HWM counters for all processes.
         SystemProperties.set("sys.rss_hwm_reset.on", "1");
+        // The cached high-water marks are about to be stale.
+        mDataSourceCache.invalidateMemorySnapshots();
         return StatsManager.PULL_SUCCESS;
     }
 
@@ -2181,7 +2257,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 null, // use default PullAtomMetadata values
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -2190,8 +2266,11 @@ public class StatsPullAtomService extends SystemService {
         List<ProcessMemoryState> managedProcessList =
                 LocalServices.getService(ActivityManagerInternal.class)
                         .getMemoryStateForProcesses();
-        for (ProcessMemoryState managedProcess : managedProcessList) {
-            final MemorySnapshot snapshot = readMemorySnapshotFromProcfs(managedProcess.pid);
+        MemorySnapshot[] managedSnapshots =
+                mDataSourceCache.getMemorySnapshots(getPids(managedProcessList));
+        for (int i = 0; i < managedSnapshots.length; ++i) {
+            final ProcessMemoryState managedProcess = managedProcessList.get(i);
+            final MemorySnapshot snapshot = managedSnapshots[i];
             if (snapshot == null) {
                 continue;
             }
@@ -2203,12 +2282,13 @@ public class StatsPullAtomService extends SystemService {
         // Complement the data with native system processes. Given these measurements can be taken
         // in response to LMKs happening, we want to first collect the managed app stats (to
         // maximize the probability that a heavyweight process will be sampled before it dies).
-        SparseArray<String> processCmdlines = getProcessCmdlines();
+        SparseArray<String> processCmdlines = mDataSourceCache.getProcessCmdlines();
         managedProcessList.forEach(managedProcess -> processCmdlines.delete(managedProcess.pid));
-        int size = processCmdlines.size();
-        for (int i = 0; i < size; ++i) {
+        MemorySnapshot[] nativeSnapshots =
+                mDataSourceCache.getMemorySnapshots(getPids(processCmdlines));
+        for (int i = 0; i < nativeSnapshots.length; ++i) {
             int pid = processCmdlines.keyAt(i);
-            final MemorySnapshot snapshot = readMemorySnapshotFromProcfs(pid);
+            final MemorySnapshot snapshot = nativeSnapshots[i];
             if (snapshot == null) {
                 continue;
             }
@@ -2221,12 +2301,28 @@ public class StatsPullAtomService extends SystemService {
         return StatsManager.PULL_SUCCESS;
     }
 
+    private static int[] getPids(List<ProcessMemoryState> processes) {
+        int[] pids = new int[processes.size()];
+        for (int i = 0; i < pids.length; ++i) {
+            pids[i] = processes.get(i).pid;
+        }
+        return pids;
+    }
+
+    private static int[] getPids(SparseArray<String> processCmdlines) {
+        int[] pids = new int[processCmdlines.size()];
+        for (int i = 0; i < pids.length; ++i) {
+            pids[i] = processCmdlines.keyAt(i);
+        }
+        return pids;
+    }
+
     private void registerSystemIonHeapSize() {
         int tagId = FrameworkStatsLog.SYSTEM_ION_HEAP_SIZE;
         mStatsManager.setPullAtomCallback(
                 tagId,
                 null, // use default PullAtomMetadata values
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -2245,7 +2341,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 /* PullAtomMetadata */ null,
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -2261,7 +2357,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 null, // use default PullAtomMetadata values
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -2282,7 +2378,7 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 null, // use default PullAtomMetadata values
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
@@ -2319,13 +2415,13 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 null, // use default PullAtomMetadata values
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
 
     int pullSystemMemory(int atomTag, List<StatsEvent> pulledData) {
-        SystemMemoryUtil.Metrics metrics = SystemMemoryUtil.getMetrics();
+        SystemMemoryUtil.Metrics metrics = mDataSourceCache.getSystemMemoryMetrics();
         pulledData.add(
                 FrameworkStatsLog.buildStatsEvent(
                         atomTag,
@@ -2346,13 +2442,13 @@ public class StatsPullAtomService extends SystemService {
         mStatsManager.setPullAtomCallback(
                 tagId,
                 null, // use default PullAtomMetadata values
-                DIRECT_EXECUTOR,
+                mProcfsPullExecutor,
                 mStatsCallbackImpl
         );
     }
 
     int pullVmStat(int atomTag, List<StatsEvent> pulledData) {
-        ProcfsMemoryUtil.VmStat vmStat = ProcfsMemoryUtil.readVmStat();
+        ProcfsMemoryUtil.VmStat vmStat = mDataSourceCache.getVmStat();
         if (vmStat != null) {
             pulledData.add(
                     FrameworkStatsLog.buildStatsEvent(
@@ -48,6 +48,7 @@ import java.util.concurrent.TimeUnit;
 public class DiskStatsLoggingService extends JobService {
     private static final String TAG = "DiskStatsLogService";
     public static final String DUMPSYS_CACHE_PATH = "/data/system/diskstats_cache.json";
+    private static final String WALK_CACHE_PATH = "/data/system/diskstats_walk_cache.bin";
     private static final int JOB_DISKSTATS_LOGGING = 0x4449534b; // DISK
     private static ComponentName sDiskStatsLoggingService = new ComponentName(
             "android",
@@ -77,6 +78,7 @@ public class DiskStatsLoggingService extends JobService {
                 environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS));
         task.setSystemSize(FileCollector.getSystemSize(this));
         task.setLogOutputFile(new File(DUMPSYS_CACHE_PATH));
+        task.setWalkCacheFile(new File(WALK_CACHE_PATH));
         task.setAppCollector(collector);
         task.setJobService(this, params);
         task.setContext(this);
@@ -129,6 +131,7 @@ public class DiskStatsLoggingService extends JobService {
         private AppCollector mCollector;
         private File mOutputFile;
         private File mDownloadsDirectory;
+        private File mWalkCacheFile;
         private Context mContext;
         private long mSystemSize;
 
@@ -136,6 +139,10 @@ public class DiskStatsLoggingService extends JobService {
             mDownloadsDirectory = file;
         }
 
+        public void setWalkCacheFile(File file) {
+            mWalkCacheFile = file;
+        }
+
         public void setAppCollector(AppCollector collector) {
             mCollector = collector;
         }
@@ -168,7 +175,7 @@ public class DiskStatsLoggingService extends JobService {
                 return;
             }
             FileCollector.MeasurementResult downloads =
-                    FileCollector.getMeasurementResult(mDownloadsDirectory);
+                    FileCollector.getMeasurementResult(mDownloadsDirectory, mWalkCacheFile);
 
             boolean needsReschedule = true;
             List<PackageStats> stats = mCollector.getPackageStats(TIMEOUT_MILLIS);
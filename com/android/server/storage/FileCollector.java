@@ -17,6 +17,7 @@
 package com.android.server.storage;
 
 import android.annotation.IntDef;
+import android.annotation.Nullable;
 import android.app.usage.ExternalStorageStats;
 import android.app.usage.StorageStatsManager;
 import android.content.Context;
@@ -25,17 +26,45 @@ import android.os.UserHandle;
 import android.os.storage.StorageManager;
 import android.os.storage.VolumeInfo;
 import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * FileCollector walks over a directory and categorizes storage usage by their type.
  */
 public class FileCollector {
+    private static final String TAG = "FileCollector";
+
     private static final int UNRECOGNIZED = -1;
     private static final int IMAGES = 0;
     private static final int VIDEO = 1;
@@ -48,6 +77,23 @@ public class FileCollector {
             AUDIO })
     private @interface FileTypes {}
 
+    /** Upper bound on the number of threads walking a tree; the walk is I/O bound. */
+    private static final int MAX_WALK_PARALLELISM = 4;
+
+    private static final int CACHE_MAGIC = 0x46434331; // "FCC1"
+
+    /**
+     * A directory's mtime only changes when entries are added, removed or renamed, so a file
+     * growing in place goes unnoticed while its directory is cached. Caches older than this are
+     * discarded to bound how stale such sizes can get.
+     */
+    private static final long CACHE_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Directories modified this close to the start of a walk aren't cached, since a later change
+     * within the same mtime granularity would go unnoticed.
+     */
+    private static final long CACHE_MTIME_SLACK_MILLIS = TimeUnit.SECONDS.toMillis(2);
 
     private static final Map<String, Integer> EXTENSION_MAP = new ArrayMap<String, Integer>();
     static {
@@ -153,8 +199,42 @@ public class FileCollector {
      * @param path Directory to collect and categorize storage in.
      */
     public static MeasurementResult getMeasurementResult(File path) {
-        return collectFiles(StorageManager.maybeTranslateEmulatedPathToInternal(path),
-                new MeasurementResult());
+        return getMeasurementResult(path, null);
+    }
+
+    /**
+     * Returns the file categorization measurement result, skipping directories that haven't
+     * changed since the last measurement recorded in {@code cacheFile}.
+     *
+     * @param path Directory to collect and categorize storage in.
+     * @param cacheFile File to keep per-directory results in between measurements, or
+     *                  {@code null} to always walk the whole directory.
+     */
+    public static MeasurementResult getMeasurementResult(File path, @Nullable File cacheFile) {
+        final File root = StorageManager.maybeTranslateEmulatedPathToInternal(path);
+        final long nowMillis = System.currentTimeMillis();
+        final AtomicFile atomicCacheFile = cacheFile != null ? new AtomicFile(cacheFile) : null;
+
+        final long[] cacheCreatedMillis = { nowMillis };
+        final Map<String, DirectorySummary> cache = atomicCacheFile != null
+                ? readCache(atomicCacheFile, root.getPath(), nowMillis, cacheCreatedMillis)
+                : Collections.emptyMap();
+        final Map<String, DirectorySummary> newCache = new ConcurrentHashMap<>();
+
+        final ForkJoinPool pool = new ForkJoinPool(
+                Math.min(MAX_WALK_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+        final MeasurementResult result;
+        try {
+            result = pool.invoke(new WalkTask(root.toPath(), "", cache,
+                    atomicCacheFile != null ? newCache : null, nowMillis));
+        } finally {
+            pool.shutdown();
+        }
+
+        if (atomicCacheFile != null) {
+            writeCache(atomicCacheFile, root.getPath(), cacheCreatedMillis[0], newCache);
+        }
+        return result;
     }
 
     /**
@@ -220,48 +300,218 @@ public class FileCollector {
         return systemSize;
     }
 
-    private static MeasurementResult collectFiles(File file, MeasurementResult result) {
-        File[] files = file.listFiles();
+    /**
+     * Walks one directory and forks a task for each of its subdirectories. Each file is
+     * categorized from the attributes returned while listing the directory, so it costs a single
+     * stat.
+     */
+    private static final class WalkTask extends RecursiveTask<MeasurementResult> {
+        private final Path mDir;
+        private final String mKey;
+        private final Map<String, DirectorySummary> mCache;
+        @Nullable
+        private final Map<String, DirectorySummary> mNewCache;
+        private final long mStartMillis;
 
-        if (files == null) {
-            return result;
+        WalkTask(Path dir, String key, Map<String, DirectorySummary> cache,
+                @Nullable Map<String, DirectorySummary> newCache, long startMillis) {
+            mDir = dir;
+            mKey = key;
+            mCache = cache;
+            mNewCache = newCache;
+            mStartMillis = startMillis;
         }
 
-        for (File f : files) {
-            if (f.isDirectory()) {
-                try {
-                    collectFiles(f, result);
-                } catch (StackOverflowError e) {
-                    return result;
+        @Override
+        protected MeasurementResult compute() {
+            final MeasurementResult result = new MeasurementResult();
+            final DirectorySummary summary;
+            try {
+                final long mtime = Files.readAttributes(mDir, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS).lastModifiedTime().toMillis();
+                final DirectorySummary cached = mCache.get(mKey);
+                summary = (cached != null && cached.mtime == mtime) ? cached : scan(mtime);
+                if (mNewCache != null && mtime < mStartMillis - CACHE_MTIME_SLACK_MILLIS) {
+                    mNewCache.put(mKey, summary);
+                }
+            } catch (IOException e) {
+                return result;
+            }
+            summary.addTo(result);
+
+            final int subdirCount = summary.subdirs.length;
+            if (subdirCount == 0) {
+                return result;
+            }
+            final List<WalkTask> tasks = new ArrayList<>(subdirCount);
+            for (int i = 0; i < subdirCount; i++) {
+                final String name = summary.subdirs[i];
+                tasks.add(new WalkTask(mDir.resolve(name),
+                        mKey.isEmpty() ? name : mKey + File.separatorChar + name, mCache,
+                        mNewCache, mStartMillis));
+            }
+            try {
+                invokeAll(tasks);
+            } catch (StackOverflowError e) {
+                return result;
+            }
+            for (int i = 0; i < subdirCount; i++) {
+                final MeasurementResult subdirResult = tasks.get(i).getRawResult();
+                if (subdirResult != null) {
+                    addTo(result, subdirResult);
                 }
-            } else {
-                handleFile(result, f);
             }
+            return result;
         }
 
-        return result;
+        private DirectorySummary scan(long mtime) throws IOException {
+            final DirectorySummary summary = new DirectorySummary(mtime);
+            final ArrayList<String> subdirs = new ArrayList<>();
+            // With a maximum depth of 1, entries of the directory, including subdirectories, are
+            // passed to visitFile() along with their attributes.
+            Files.walkFileTree(mDir, EnumSet.noneOf(FileVisitOption.class), 1,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            final String name = file.getFileName().toString();
+                            if (attrs.isDirectory()) {
+                                subdirs.add(name);
+                            } else {
+                                summary.addFile(name, attrs.size());
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+            summary.subdirs = subdirs.toArray(new String[subdirs.size()]);
+            return summary;
+        }
+    }
+
+    /**
+     * Sizes of the files directly inside a directory and the names of its subdirectories, as of
+     * the directory's last modification time.
+     */
+    @VisibleForTesting
+    static final class DirectorySummary {
+        final long mtime;
+        long imagesSize;
+        long videosSize;
+        long audioSize;
+        long miscSize;
+        String[] subdirs;
+
+        DirectorySummary(long mtime) {
+            this.mtime = mtime;
+        }
+
+        void addFile(String name, long fileSize) {
+            switch (EXTENSION_MAP.getOrDefault(getExtension(name), UNRECOGNIZED)) {
+                case AUDIO:
+                    audioSize += fileSize;
+                    break;
+                case VIDEO:
+                    videosSize += fileSize;
+                    break;
+                case IMAGES:
+                    imagesSize += fileSize;
+                    break;
+                default:
+                    miscSize += fileSize;
+            }
+        }
+
+        void addTo(MeasurementResult result) {
+            result.imagesSize += imagesSize;
+            result.videosSize += videosSize;
+            result.audioSize += audioSize;
+            result.miscSize += miscSize;
+        }
     }
 
-    private static void handleFile(MeasurementResult result, File f) {
-        long fileSize = f.length();
-        int fileType = EXTENSION_MAP.getOrDefault(getExtensionForFile(f), UNRECOGNIZED);
-        switch (fileType) {
-            case AUDIO:
-                result.audioSize += fileSize;
-                break;
-            case VIDEO:
-                result.videosSize += fileSize;
-                break;
-            case IMAGES:
-                result.imagesSize += fileSize;
-                break;
-            default:
-                result.miscSize += fileSize;
+    private static void addTo(MeasurementResult result, MeasurementResult other) {
+        result.imagesSize += other.imagesSize;
+        result.videosSize += other.videosSize;
+        result.audioSize += other.audioSize;
+        result.miscSize += other.miscSize;
+    }
+
+    /**
+     * Reads the directory summaries of a previous walk of {@code root}, or returns an empty map if
+     * there are none or they are too old.
+     */
+    private static Map<String, DirectorySummary> readCache(AtomicFile file, String root,
+            long nowMillis, long[] outCreatedMillis) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(file.openRead()))) {
+            if (in.readInt() != CACHE_MAGIC || !root.equals(in.readUTF())) {
+                return Collections.emptyMap();
+            }
+            final long createdMillis = in.readLong();
+            if (createdMillis > nowMillis || nowMillis - createdMillis > CACHE_MAX_AGE_MILLIS) {
+                return Collections.emptyMap();
+            }
+            final int count = in.readInt();
+            final Map<String, DirectorySummary> cache = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final DirectorySummary summary = new DirectorySummary(in.readLong());
+                summary.imagesSize = in.readLong();
+                summary.videosSize = in.readLong();
+                summary.audioSize = in.readLong();
+                summary.miscSize = in.readLong();
+                summary.subdirs = new String[in.readInt()];
+                for (int j = 0; j < summary.subdirs.length; j++) {
+                    summary.subdirs[j] = in.readUTF();
+                }
+                cache.put(key, summary);
+            }
+            outCreatedMillis[0] = createdMillis;
+            return cache;
+        } catch (FileNotFoundException e) {
+            return Collections.emptyMap();
+        } catch (IOException | RuntimeException e) {
+            Slog.w(TAG, "Discarding unreadable cache " + file.getBaseFile(), e);
+            return Collections.emptyMap();
+        }
+    }
+
+    private static void writeCache(AtomicFile file, String root, long createdMillis,
+            Map<String, DirectorySummary> cache) {
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(CACHE_MAGIC);
+            out.writeUTF(root);
+            out.writeLong(createdMillis);
+            out.writeInt(cache.size());
+            for (Map.Entry<String, DirectorySummary> entry : cache.entrySet()) {
+                final DirectorySummary summary = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(summary.mtime);
+                out.writeLong(summary.imagesSize);
+                out.writeLong(summary.videosSize);
+                out.writeLong(summary.audioSize);
+                out.writeLong(summary.miscSize);
+                out.writeInt(summary.subdirs.length);
+                for (String subdir : summary.subdirs) {
+                    out.writeUTF(subdir);
+                }
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write cache " + file.getBaseFile(), e);
+            file.failWrite(fos);
         }
     }
 
-    private static String getExtensionForFile(File file) {
-        String fileName = file.getName();
+    private static String getExtension(String fileName) {
         int index = fileName.lastIndexOf('.');
         if (index == -1) {
             return "";
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2021 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.storage;
+
+import android.os.FileUtils;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.LargeTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures walking a synthetic tree of a million files with {@link FileCollector}, with and
+ * without a cache of the previous walk.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class FileCollectorPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private static final int TOP_LEVEL_DIRS = 10;
+    private static final int DIRS_PER_TOP_LEVEL_DIR = 100;
+    private static final int FILES_PER_DIR = 1000;
+    private static final String[] EXTENSIONS = { ".jpg", ".mp4", ".mp3", ".txt", "" };
+
+    private static File sRoot;
+    private static File sCacheFile;
+
+    @BeforeClass
+    public static void setUpTree() throws IOException {
+        final File dir = InstrumentationRegistry.getContext().getCacheDir();
+        sRoot = new File(dir, "file_collector_perf");
+        sCacheFile = new File(dir, "file_collector_perf.cache");
+        FileUtils.deleteContentsAndDir(sRoot);
+
+        // Directories modified in the last couple of seconds aren't cached, so backdate them
+        final long mtime = System.currentTimeMillis() - 60_000;
+        for (int i = 0; i < TOP_LEVEL_DIRS; i++) {
+            final File topLevelDir = new File(sRoot, "top" + i);
+            for (int j = 0; j < DIRS_PER_TOP_LEVEL_DIR; j++) {
+                final File leafDir = new File(topLevelDir, "dir" + j);
+                leafDir.mkdirs();
+                for (int k = 0; k < FILES_PER_DIR; k++) {
+                    new File(leafDir, "file" + k + EXTENSIONS[k % EXTENSIONS.length])
+                            .createNewFile();
+                }
+                leafDir.setLastModified(mtime);
+            }
+            topLevelDir.setLastModified(mtime);
+        }
+        sRoot.setLastModified(mtime);
+    }
+
+    @AfterClass
+    public static void tearDownTree() {
+        FileUtils.deleteContentsAndDir(sRoot);
+        sCacheFile.delete();
+    }
+
+    @Test
+    public void timeMeasure_uncached() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            FileCollector.getMeasurementResult(sRoot);
+        }
+    }
+
+    @Test
+    public void timeMeasure_cached() {
+        sCacheFile.delete();
+        FileCollector.getMeasurementResult(sRoot, sCacheFile);
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            FileCollector.getMeasurementResult(sRoot, sCacheFile);
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package org.json;
 
 import android.compat.annotation.UnsupportedAppUsage;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -290,7 +292,7 @@ public class JSONArray {
             if (value == null) {
                 throw new JSONException("Value at " + index + " is null.");
             }
-            return value;
+            return resolve(index, value);
         } catch (IndexOutOfBoundsException e) {
             throw new JSONException("Index " + index + " out of range [0.." + values.size() + ")", e);
         }
@@ -304,7 +306,36 @@ public class JSONArray {
         if (index < 0 || index >= values.size()) {
             return null;
         }
-        return values.get(index);
+        Object value = values.get(index);
+        if (value instanceof JSONTokener.Deferred) {
+            try {
+                value = resolve(index, value);
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Parses {@code value} if it was deferred by a lazy {@link JSONTokener},
+     * replacing the value at {@code index} with the result.
+     */
+    private Object resolve(int index, Object value) throws JSONException {
+        if (value instanceof JSONTokener.Deferred) {
+            value = ((JSONTokener.Deferred) value).resolve();
+            values.set(index, value);
+        }
+        return value;
+    }
+
+    /**
+     * Parses all deferred values, leaving any that fail to parse in place.
+     */
+    private void resolveAll() {
+        for (int i = 0, size = values.size(); i < size; i++) {
+            opt(i);
+        }
     }
 
     /**
@@ -315,7 +346,15 @@ public class JSONArray {
         if (index < 0 || index >= values.size()) {
             return null;
         }
-        return values.remove(index);
+        Object value = values.remove(index);
+        if (value instanceof JSONTokener.Deferred) {
+            try {
+                value = ((JSONTokener.Deferred) value).resolve();
+            } catch (JSONException e) {
+                value = null;
+            }
+        }
+        return value;
     }
 
     /**
@@ -571,7 +610,7 @@ public class JSONArray {
             if (i > 0) {
                 stringer.out.append(separator);
             }
-            stringer.value(values.get(i));
+            stringer.value(resolve(i, values.get(i)));
         }
         stringer.close(JSONStringer.Scope.NULL, JSONStringer.Scope.NULL, "");
         return stringer.out.toString();
@@ -612,18 +651,43 @@ public class JSONArray {
     @UnsupportedAppUsage
     void writeTo(JSONStringer stringer) throws JSONException {
         stringer.array();
-        for (Object value : values) {
-            stringer.value(value);
+        for (int i = 0, size = values.size(); i < size; i++) {
+            stringer.value(resolve(i, values.get(i)));
         }
         stringer.endArray();
     }
 
+    /**
+     * Encodes this array as compact JSON directly to {@code writer}, without
+     * building the whole string in memory first. The writer is not flushed or
+     * closed.
+     *
+     * @hide
+     */
+    public void write(Writer writer) throws JSONException, IOException {
+        JSONStringer stringer = new JSONStringer(writer);
+        try {
+            writeTo(stringer);
+        } catch (JSONException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     @Override public boolean equals(Object o) {
-        return o instanceof JSONArray && ((JSONArray) o).values.equals(values);
+        if (!(o instanceof JSONArray)) {
+            return false;
+        }
+        resolveAll();
+        ((JSONArray) o).resolveAll();
+        return ((JSONArray) o).values.equals(values);
     }
 
     @Override public int hashCode() {
         // diverge from the original, which doesn't implement hashCode
+        resolveAll();
         return values.hashCode();
     }
 }
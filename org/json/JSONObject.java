@@ -21,6 +21,8 @@ import static android.annotation.SystemApi.Client.MODULE_LIBRARIES;
 import android.annotation.SystemApi;
 import android.compat.annotation.UnsupportedAppUsage;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -309,7 +311,7 @@ public class JSONObject {
     // TODO: Change {@code append) to {@link #append} when append is
     // unhidden.
     @NonNull public JSONObject accumulate(@NonNull String name, @Nullable Object value) throws JSONException {
-        Object current = nameValuePairs.get(checkName(name));
+        Object current = resolve(checkName(name), nameValuePairs.get(name));
         if (current == null) {
             return put(name, value);
         }
@@ -339,7 +341,7 @@ public class JSONObject {
      */
     @UnsupportedAppUsage
     public JSONObject append(String name, Object value) throws JSONException {
-        Object current = nameValuePairs.get(checkName(name));
+        Object current = resolve(checkName(name), nameValuePairs.get(name));
 
         final JSONArray array;
         if (current instanceof JSONArray) {
@@ -372,7 +374,15 @@ public class JSONObject {
      *     no such mapping.
      */
     @Nullable public Object remove(@Nullable String name) {
-        return nameValuePairs.remove(name);
+        Object value = nameValuePairs.remove(name);
+        if (value instanceof JSONTokener.Deferred) {
+            try {
+                value = ((JSONTokener.Deferred) value).resolve();
+            } catch (JSONException e) {
+                value = null;
+            }
+        }
+        return value;
     }
 
     /**
@@ -402,7 +412,7 @@ public class JSONObject {
         if (result == null) {
             throw new JSONException("No value for " + name);
         }
-        return result;
+        return resolve(name, result);
     }
 
     /**
@@ -410,7 +420,27 @@ public class JSONObject {
      * exists.
      */
     @Nullable public Object opt(@Nullable String name) {
-        return nameValuePairs.get(name);
+        Object result = nameValuePairs.get(name);
+        if (result instanceof JSONTokener.Deferred) {
+            try {
+                result = resolve(name, result);
+            } catch (JSONException e) {
+                return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parses {@code value} if it was deferred by a lazy {@link JSONTokener},
+     * replacing the mapping for {@code name} with the result.
+     */
+    private Object resolve(String name, Object value) throws JSONException {
+        if (value instanceof JSONTokener.Deferred) {
+            value = ((JSONTokener.Deferred) value).resolve();
+            nameValuePairs.put(name, value);
+        }
+        return value;
     }
 
     /**
@@ -737,11 +767,35 @@ public class JSONObject {
     void writeTo(JSONStringer stringer) throws JSONException {
         stringer.object();
         for (Map.Entry<String, Object> entry : nameValuePairs.entrySet()) {
-            stringer.key(entry.getKey()).value(entry.getValue());
+            Object value = entry.getValue();
+            if (value instanceof JSONTokener.Deferred) {
+                value = ((JSONTokener.Deferred) value).resolve();
+                entry.setValue(value);
+            }
+            stringer.key(entry.getKey()).value(value);
         }
         stringer.endObject();
     }
 
+    /**
+     * Encodes this object as compact JSON directly to {@code writer}, without
+     * building the whole string in memory first. The writer is not flushed or
+     * closed.
+     *
+     * @hide
+     */
+    public void write(@NonNull Writer writer) throws JSONException, IOException {
+        JSONStringer stringer = new JSONStringer(writer);
+        try {
+            writeTo(stringer);
+        } catch (JSONException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     /**
      * Encodes the number as a JSON string.
      *
@@ -17,6 +17,8 @@
 package org.json;
 
 import android.compat.annotation.UnsupportedAppUsage;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -123,8 +125,21 @@ public class JSONStringer {
     @UnsupportedAppUsage
     private final String indent;
 
+    /**
+     * Buffered output is handed to the writer once it reaches this many
+     * characters, and when the top-level value is complete.
+     */
+    private static final int FLUSH_THRESHOLD = 8192;
+
+    /** The destination of the output, or null to keep it all in {@link #out}. */
+    private final Writer writer;
+
+    /** True once any output has been handed to {@link #writer}. */
+    private boolean flushed;
+
     public JSONStringer() {
         indent = null;
+        writer = null;
     }
 
     @UnsupportedAppUsage
@@ -132,6 +147,42 @@ public class JSONStringer {
         char[] indentChars = new char[indentSpaces];
         Arrays.fill(indentChars, ' ');
         indent = new String(indentChars);
+        writer = null;
+    }
+
+    /**
+     * Creates a stringer that encodes directly to {@code writer}. Output is
+     * buffered in chunks and the last chunk is written when the top-level
+     * array or object is closed; the writer itself is not flushed. Failures
+     * to write are reported as a {@link JSONException} whose cause is the
+     * {@link IOException}. {@link #toString} only returns output that has
+     * not yet been written.
+     *
+     * @hide
+     */
+    public JSONStringer(Writer writer) {
+        if (writer == null) {
+            throw new NullPointerException("writer == null");
+        }
+        indent = null;
+        this.writer = writer;
+    }
+
+    /**
+     * Hands buffered output to the writer if there is enough of it, or if the
+     * top-level value is complete.
+     */
+    private void flushIfNeeded() throws JSONException {
+        if (writer == null || (out.length() < FLUSH_THRESHOLD && !stack.isEmpty())) {
+            return;
+        }
+        try {
+            writer.append(out);
+        } catch (IOException e) {
+            throw new JSONException("Failed to write JSON", e);
+        }
+        out.setLength(0);
+        flushed = true;
     }
 
     /**
@@ -178,7 +229,7 @@ public class JSONStringer {
      */
     @UnsupportedAppUsage
     JSONStringer open(Scope empty, String openBracket) throws JSONException {
-        if (stack.isEmpty() && out.length() > 0) {
+        if (stack.isEmpty() && (out.length() > 0 || flushed)) {
             throw new JSONException("Nesting problem: multiple top-level roots");
         }
         beforeValue();
@@ -203,6 +254,7 @@ public class JSONStringer {
             newline();
         }
         out.append(closeBracket);
+        flushIfNeeded();
         return this;
     }
 
@@ -413,6 +465,7 @@ public class JSONStringer {
         if (stack.isEmpty()) {
             return;
         }
+        flushIfNeeded();
 
         Scope context = peek();
         if (context == Scope.EMPTY_ARRAY) { // first in array
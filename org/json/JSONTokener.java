@@ -17,6 +17,11 @@
 package org.json;
 
 import android.compat.annotation.UnsupportedAppUsage;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import libcore.internal.StringPool;
 
 // Note: this class was written without inspecting the non-free org.json sourcecode.
 
@@ -74,6 +79,22 @@ public class JSONTokener {
     @UnsupportedAppUsage
     private int pos;
 
+    /**
+     * True if objects and arrays nested in the values returned by this
+     * tokener are parsed on first access. See {@link #setLazy}.
+     */
+    private boolean lazy;
+
+    /**
+     * Pool for the names of object members in lazy mode. This is shared with
+     * the deferred values of the same input, which may be resolved on
+     * different threads; races on the pool only cost allocations.
+     */
+    private StringPool names;
+
+    /** Scratch space for copying names out of the input before pooling. */
+    private char[] nameBuffer;
+
     /**
      * @param in JSON encoded string. Null is not permitted and will yield a
      *     tokener that throws {@code NullPointerExceptions} when methods are
@@ -87,6 +108,71 @@ public class JSONTokener {
         this.in = in;
     }
 
+    /**
+     * Creates a tokener over all remaining characters of {@code in}. The
+     * reader is read to the end but not closed.
+     *
+     * @hide
+     */
+    public JSONTokener(Reader in) throws IOException {
+        this(readFully(in));
+    }
+
+    /**
+     * Creates a tokener over the remaining UTF-8 encoded bytes of {@code in}.
+     * The buffer's position is advanced to its limit.
+     *
+     * @hide
+     */
+    public JSONTokener(ByteBuffer in) {
+        this(StandardCharsets.UTF_8.decode(in).toString());
+    }
+
+    /** Creates a lazy tokener for a deferred value starting at {@code pos}. */
+    private JSONTokener(String in, int pos, StringPool names) {
+        this.in = in;
+        this.pos = pos;
+        this.lazy = true;
+        this.names = names;
+    }
+
+    private static String readFully(Reader in) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            builder.append(buffer, 0, count);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Sets whether objects and arrays nested inside the values returned by
+     * {@link #nextValue} are parsed on first access instead of up front.
+     *
+     * <p>In lazy mode only the outermost object or array is built eagerly.
+     * Nested objects and arrays are only checked for balanced brackets and
+     * terminated strings, and are parsed the first time they are read through
+     * a {@code get}, {@code opt} or {@code remove} method, when the enclosing
+     * value is encoded, or when arrays are compared. Object names are pooled
+     * so repeated names share a single string. This makes it cheap to parse
+     * large documents of which only a few fields are read.
+     *
+     * <p>Other syntax errors in nested values are only reported on first
+     * access: {@code get} methods throw the {@link JSONException}, {@code opt}
+     * and {@code remove} methods return null. Objects and arrays built from a
+     * lazy tokener retain the whole input until all of their nested values
+     * have been accessed.
+     *
+     * @hide
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+        if (lazy && names == null) {
+            names = new StringPool();
+        }
+    }
+
     /**
      * Returns the next value from the input.
      *
@@ -368,7 +454,7 @@ public class JSONTokener {
         }
 
         while (true) {
-            Object name = nextValue();
+            Object name = lazy ? nextName() : nextValue();
             if (!(name instanceof String)) {
                 if (name == null) {
                     throw syntaxError("Names cannot be null");
@@ -391,7 +477,7 @@ public class JSONTokener {
                 pos++;
             }
 
-            result.put((String) name, nextValue());
+            result.put((String) name, lazy ? nextMember() : nextValue());
 
             switch (nextCleanInternal()) {
                 case '}':
@@ -437,7 +523,7 @@ public class JSONTokener {
                     pos--;
             }
 
-            result.put(nextValue());
+            result.put(lazy ? nextMember() : nextValue());
 
             switch (nextCleanInternal()) {
                 case ']':
@@ -452,6 +538,206 @@ public class JSONTokener {
         }
     }
 
+    /**
+     * Returns the name of an object member, pooling quoted names that contain
+     * no escape sequences.
+     */
+    private Object nextName() throws JSONException {
+        int quote = nextCleanInternal();
+        if (quote != '"' && quote != '\'') {
+            if (quote != -1) {
+                pos--;
+            }
+            return nextValue();
+        }
+
+        int start = pos;
+        for (int i = start; i < in.length(); i++) {
+            char c = in.charAt(i);
+            if (c == quote) {
+                int length = i - start;
+                if (nameBuffer == null || nameBuffer.length < length) {
+                    nameBuffer = new char[Math.max(length, 32)];
+                }
+                in.getChars(start, i, nameBuffer, 0);
+                pos = i + 1;
+                return names.get(nameBuffer, 0, length);
+            }
+            if (c == '\\') {
+                break;
+            }
+        }
+        return nextString((char) quote);
+    }
+
+    /**
+     * Returns the next value of an object or array in lazy mode. Objects and
+     * arrays are skipped and returned as a {@link Deferred} value.
+     */
+    private Object nextMember() throws JSONException {
+        int c = nextCleanInternal();
+        if (c == '{' || c == '[') {
+            int start = pos - 1;
+            if (c == '{') {
+                skipObject();
+            } else {
+                skipArray();
+            }
+            return new Deferred(in, start, names);
+        }
+        if (c != -1) {
+            pos--;
+        }
+        return nextValue();
+    }
+
+    /**
+     * Advances past the next value, following the same grammar as {@link
+     * #nextValue} without building any objects.
+     */
+    private void skipValue() throws JSONException {
+        int c = nextCleanInternal();
+        switch (c) {
+            case -1:
+                throw syntaxError("End of input");
+
+            case '{':
+                skipObject();
+                return;
+
+            case '[':
+                skipArray();
+                return;
+
+            case '\'':
+            case '"':
+                skipString((char) c);
+                return;
+
+            default:
+                pos--;
+                skipLiteral();
+        }
+    }
+
+    private void skipString(char quote) throws JSONException {
+        while (pos < in.length()) {
+            int c = in.charAt(pos++);
+            if (c == quote) {
+                return;
+            }
+            if (c == '\\') {
+                if (pos == in.length()) {
+                    throw syntaxError("Unterminated escape sequence");
+                }
+                if (in.charAt(pos++) == 'u') {
+                    if (pos + 4 > in.length()) {
+                        throw syntaxError("Unterminated escape sequence");
+                    }
+                    pos += 4;
+                }
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void skipLiteral() throws JSONException {
+        int start = pos;
+        for (; pos < in.length(); pos++) {
+            char c = in.charAt(pos);
+            if (c == '\r' || c == '\n' || "{}[]/\\:,=;# \t\f".indexOf(c) != -1) {
+                break;
+            }
+        }
+        if (pos == start) {
+            throw syntaxError("Expected literal value");
+        }
+    }
+
+    /** Mirrors {@link #readObject}. The opening brace should have already been read. */
+    private void skipObject() throws JSONException {
+        int first = nextCleanInternal();
+        if (first == '}') {
+            return;
+        } else if (first != -1) {
+            pos--;
+        }
+
+        while (true) {
+            skipValue();
+
+            int separator = nextCleanInternal();
+            if (separator != ':' && separator != '=') {
+                throw syntaxError("Expected ':' after name");
+            }
+            if (pos < in.length() && in.charAt(pos) == '>') {
+                pos++;
+            }
+
+            skipValue();
+
+            switch (nextCleanInternal()) {
+                case '}':
+                    return;
+                case ';':
+                case ',':
+                    continue;
+                default:
+                    throw syntaxError("Unterminated object");
+            }
+        }
+    }
+
+    /** Mirrors {@link #readArray}. The opening bracket should have already been read. */
+    private void skipArray() throws JSONException {
+        while (true) {
+            switch (nextCleanInternal()) {
+                case -1:
+                    throw syntaxError("Unterminated array");
+                case ']':
+                    return;
+                case ',':
+                case ';':
+                    continue;
+                default:
+                    pos--;
+            }
+
+            skipValue();
+
+            switch (nextCleanInternal()) {
+                case ']':
+                    return;
+                case ',':
+                case ';':
+                    continue;
+                default:
+                    throw syntaxError("Unterminated array");
+            }
+        }
+    }
+
+    /**
+     * A nested object or array that has been skipped by a lazy tokener and is
+     * parsed on first access.
+     */
+    static final class Deferred {
+        private final String in;
+        private final int start;
+        private final StringPool names;
+
+        Deferred(String in, int start, StringPool names) {
+            this.in = in;
+            this.start = start;
+            this.names = names;
+        }
+
+        /** Parses the value. Each call returns a new {@link JSONObject} or {@link JSONArray}. */
+        Object resolve() throws JSONException {
+            return new JSONTokener(in, start, names).nextValue();
+        }
+    }
+
     /**
      * Returns an exception containing the given message plus the current
      * position and the entire input string.